@@ -0,0 +1,54 @@
+package com.ociweb.pronghorn.network;
+
+import java.nio.channels.SocketChannel;
+
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.ScriptedNonThreadScheduler;
+
+/**
+ * Shared setup for the network benchmarks. Graphs are stepped on the benchmark
+ * thread with a {@link ScriptedNonThreadScheduler} so the measured time is the
+ * stage work and not the hand off between threads.
+ */
+final class BenchmarkSupport {
+
+	private BenchmarkSupport() {		
+	}
+	
+	//never bound unless the socket stages are built
+	private static final int UNBOUND_PORT = 8090;
+	
+	static ServerCoordinator coordinator(GraphManager gm, int tracks) {
+		return coordinator(gm, UNBOUND_PORT, tracks);
+	}
+	
+	static ServerCoordinator coordinator(GraphManager gm, int port, int tracks) {
+		HTTPServerConfig c = NetGraphBuilder.serverConfig(port, gm);
+		c.setHost("127.0.0.1");
+		c.useInsecureServer();
+		c.setTracks(tracks);
+		((HTTPServerConfigImpl)c).finalizeDeclareConnections();
+		
+		final ServerPipesConfig serverConfig = c.buildServerConfig();
+		ServerConnectionStruct scs = new ServerConnectionStruct(gm.recordTypeData);
+		return new ServerCoordinator(null, "127.0.0.1", port, scs, false, "Benchmark", "", serverConfig);
+	}
+
+	/**
+	 * Registers a server side connection the same way ServerNewConnectionStage does
+	 * so stages which look up the connection by id find it.
+	 */
+	static ServerConnection registerConnection(ServerCoordinator coordinator, SocketChannel channel) {
+		long id = ServerCoordinator.lookupInsertPosition(coordinator, 0);
+		ServerConnection con = new ServerConnection(null, channel, id, coordinator);
+		ServerCoordinator.setConnection(coordinator, id, con);
+		return con;
+	}
+	
+	static ScriptedNonThreadScheduler scheduler(GraphManager gm) {
+		ScriptedNonThreadScheduler scheduler = new ScriptedNonThreadScheduler(gm, null, false);
+		scheduler.startup();
+		return scheduler;
+	}
+	
+}
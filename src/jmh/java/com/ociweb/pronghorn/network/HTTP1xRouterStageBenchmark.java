@@ -0,0 +1,156 @@
+package com.ociweb.pronghorn.network;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ociweb.pronghorn.network.http.HTTP1xRouterStageConfig;
+import com.ociweb.pronghorn.network.http.ModuleConfig;
+import com.ociweb.pronghorn.network.http.RouterStageConfig;
+import com.ociweb.pronghorn.network.schema.HTTPLogRequestSchema;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ReleaseSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.ChannelReaderController;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.ScriptedNonThreadScheduler;
+import com.ociweb.pronghorn.stage.test.PipeCleanerStage;
+
+/**
+ * Request parsing cost of HTTP1xRouterStage (parseHTTP, parseHeaderFields and
+ * accumRunningBytes are all reached through run()). Each operation feeds one
+ * request to every track and steps the routers until the input is consumed.
+ * The routers are wired with NetGraphBuilder.buildRouters so the graph matches
+ * the one built for a real server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HTTP1xRouterStageBenchmark {
+
+	@Param({"1","2","4"})
+	public int tracks;
+	
+	@Param({"2","16"})
+	public int headerCount;
+	
+	private Pipe<NetPayloadSchema>[] fromNet;
+	private ServerConnection[] connections;
+	private ScriptedNonThreadScheduler scheduler;
+	private byte[] request;
+	private long position;
+	
+	@Setup
+	public void setup() {
+		GraphManager gm = new GraphManager();
+		ServerCoordinator coordinator = BenchmarkSupport.coordinator(gm, tracks);
+		
+		request = buildRequest(headerCount);
+		
+		ModuleConfig modules = new ModuleConfig() {
+			@Override
+			public int moduleCount() {
+				return 1;
+			}
+			@Override
+			public Pipe<ServerResponseSchema>[] registerModule(int moduleInstance, GraphManager graphManager,
+					RouterStageConfig routerConfig, Pipe<HTTPRequestSchema>[] inputPipes) {
+				routerConfig.registerCompositeRoute().path("/${path}");
+				PipeCleanerStage.newInstance(graphManager, inputPipes);
+				return Pipe.buildPipes(inputPipes.length,
+						ServerResponseSchema.instance.newPipeConfig(4, 512));
+			}
+		};
+		
+		Pipe<ServerResponseSchema>[][] fromModule = new Pipe[tracks][];       
+		Pipe<HTTPRequestSchema>[][] toModules = new Pipe[tracks][];
+		HTTP1xRouterStageConfig routerConfig = NetGraphBuilder.buildModules(coordinator, gm,
+				 modules, coordinator.spec, fromModule, toModules);
+		
+		PipeConfig<NetPayloadSchema> netConfig = coordinator.pcm.getConfig(NetPayloadSchema.class);
+		fromNet = Pipe.buildPipes(tracks, netConfig);
+		Pipe<NetPayloadSchema>[][] perTrackFromNet = Pipe.splitPipes(tracks, fromNet);
+		Pipe<ReleaseSchema>[] releaseAfterParse = Pipe.buildPipes(tracks, coordinator.pcm.getConfig(ReleaseSchema.class));
+		Pipe<HTTPLogRequestSchema>[] log = new Pipe[tracks];
+		
+		NetGraphBuilder.buildRouters(gm, coordinator, releaseAfterParse, fromModule, toModules,
+				                     routerConfig, false, log, perTrackFromNet);
+		
+		int t = tracks;
+		while (--t>=0) {
+			PipeCleanerStage.newInstance(gm, fromModule[t]);
+		}
+		PipeCleanerStage.newInstance(gm, releaseAfterParse);
+		
+		connections = new ServerConnection[tracks];
+		int i = tracks;
+		while (--i>=0) {
+			connections[i] = BenchmarkSupport.registerConnection(coordinator, null);
+		}
+		
+		scheduler = BenchmarkSupport.scheduler(gm);
+	}
+
+	private static byte[] buildRequest(int headerCount) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("GET /index.html HTTP/1.1\r\n");
+		builder.append("Host: 127.0.0.1\r\n");
+		for(int h = 1; h<headerCount; h++) {
+			builder.append("X-Benchmark-").append(h).append(": some value which is not routed\r\n");
+		}
+		builder.append("\r\n");
+		return builder.toString().getBytes();
+	}
+	
+	@Benchmark
+	public void routeRequest() {
+		int i = tracks;
+		while (--i>=0) {
+			NetPayloadSchema.publishPlain(fromNet[i], connections[i].id, System.nanoTime(), 
+					                      position, request, 0, request.length);
+		}
+		position += request.length;
+		
+		boolean pending = true;
+		while (pending) {
+			scheduler.run();
+			pending = false;
+			int p = tracks;
+			while (--p>=0) {
+				pending |= !Pipe.isEmpty(fromNet[p]);
+			}
+		}
+		
+		//the module side would normally release the in flight connection data
+		int c = tracks;
+		while (--c>=0) {
+			ChannelReaderController reader = connections[c].connectionDataReader();
+			while (null != reader.beginRead()) {
+				reader.commitRead();
+			}
+		}
+	}
+	
+	@TearDown
+	public void teardown() {
+		scheduler.shutdown();
+	}
+	
+}
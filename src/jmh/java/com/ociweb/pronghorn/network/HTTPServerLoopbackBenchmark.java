@@ -0,0 +1,168 @@
+package com.ociweb.pronghorn.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ociweb.pronghorn.HTTPServer;
+import com.ociweb.pronghorn.network.http.ModuleConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.StageScheduler;
+
+/**
+ * Full request/response round trip through a server built by
+ * NetGraphBuilder.buildHTTPServerGraph and run by the default scheduler.
+ * One keep-alive client connection is opened per track and each operation
+ * sends one GET on every connection before reading all the responses back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HTTPServerLoopbackBenchmark {
+
+	@Param({"1","2","4"})
+	public int tracks;
+	
+	@Param({"index.html","dot-viewer.js"})
+	public String resource;
+	
+	private static final int PORT = 8091;
+	
+	private ServerCoordinator coordinator;
+	private StageScheduler scheduler;
+	private Socket[] clients;
+	private byte[] request;
+	private final byte[] readBuffer = new byte[1<<16];
+	
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		GraphManager gm = new GraphManager();
+		GraphManager.addDefaultNota(gm, GraphManager.SCHEDULE_RATE, 20_000);
+		
+		ModuleConfig modules = HTTPServer.simpleFileServerConfig(8, 1<<15, "telemetry/", "index.html", null);
+		
+		coordinator = BenchmarkSupport.coordinator(gm, PORT, tracks);
+		NetGraphBuilder.buildHTTPServerGraph(gm, modules, coordinator);
+		
+		scheduler = StageScheduler.defaultScheduler(gm);
+		scheduler.startup();
+		
+		request = ("GET /"+resource+" HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes();
+		
+		clients = new Socket[tracks];
+		int i = tracks;
+		while (--i>=0) {
+			clients[i] = connect();
+		}
+	}
+
+	private static Socket connect() throws IOException, InterruptedException {
+		//the listener is opened by the new connection stage after startup so retry until it is bound
+		int attempts = 500;
+		while (true) {
+			Socket socket = new Socket();
+			socket.setTcpNoDelay(true);
+			try {
+				socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+				if (--attempts<=0) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+	
+	@Benchmark
+	public int roundTrip() throws IOException {
+		int i = tracks;
+		while (--i>=0) {
+			OutputStream out = clients[i].getOutputStream();
+			out.write(request);
+			out.flush();
+		}
+		int total = 0;
+		int c = tracks;
+		while (--c>=0) {
+			total += readResponse(clients[c].getInputStream());
+		}
+		return total;
+	}
+
+	private int readResponse(InputStream in) throws IOException {
+		int len = 0;
+		int headerEnd = -1;
+		while (headerEnd<0) {
+			int count = in.read(readBuffer, len, readBuffer.length-len);
+			if (count<0) {
+				throw new IOException("server closed the connection");
+			}
+			len += count;
+			headerEnd = indexOfHeaderEnd(readBuffer, len);
+		}
+		int remaining = headerEnd + contentLength(readBuffer, headerEnd) - len;
+		while (remaining > 0) {
+			int count = in.read(readBuffer, 0, Math.min(remaining, readBuffer.length));
+			if (count<0) {
+				throw new IOException("server closed the connection");
+			}
+			remaining -= count;
+			len += count;
+		}
+		return len;
+	}
+
+	private static int indexOfHeaderEnd(byte[] data, int len) {
+		int i = 3;
+		while (i<len) {
+			if (data[i]=='\n' && data[i-1]=='\r' && data[i-2]=='\n' && data[i-3]=='\r') {
+				return i+1;
+			}
+			i++;
+		}
+		return -1;
+	}
+	
+	private static int contentLength(byte[] data, int headerEnd) {
+		String headers = new String(data, 0, headerEnd).toLowerCase();
+		int idx = headers.indexOf("content-length:");
+		if (idx<0) {
+			return 0;
+		}
+		int end = headers.indexOf('\r', idx);
+		return Integer.parseInt(headers.substring(idx+15, end).trim());
+	}
+	
+	@TearDown
+	public void teardown() throws IOException {
+		int i = clients.length;
+		while (--i>=0) {
+			clients[i].close();
+		}
+		coordinator.shutdown();
+		scheduler.shutdown();
+		scheduler.awaitTermination(1, TimeUnit.SECONDS);
+	}
+	
+}
@@ -0,0 +1,98 @@
+package com.ociweb.pronghorn.network;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.ScriptedNonThreadScheduler;
+import com.ociweb.pronghorn.stage.test.PipeCleanerStage;
+
+/**
+ * Ordering cost of the supervisor. Each operation publishes one response per input
+ * pipe, all for the same channel, so the supervisor must pick them off the pipes in
+ * sequence order the way it does when one connection is served by many modules.
+ * SampleTime reports p0.50/p0.99/p0.999 for the whole batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OrderSupervisorStageBenchmark {
+
+	@Param({"1","2","4"})
+	public int tracks;
+	
+	@Param({"64","4096"})
+	public int payloadSize;
+	
+	private final PipeConfig<ServerResponseSchema> resConfig = ServerResponseSchema.instance.newPipeConfig(32, 1<<13);
+	private final PipeConfig<NetPayloadSchema> netConfig = NetPayloadSchema.instance.newPipeConfig(32, 1<<13);
+
+	private Pipe<ServerResponseSchema>[] inputPipes;
+	private ScriptedNonThreadScheduler scheduler;
+	private byte[] payload;
+	private int sequence;
+	
+	@Setup
+	public void setup() {
+		GraphManager gm = new GraphManager();
+		payload = new byte[payloadSize];
+		
+		inputPipes = Pipe.buildPipes(tracks, resConfig);
+		Pipe<NetPayloadSchema>[] outgoingPipes = Pipe.buildPipes(tracks, netConfig);
+		
+		OrderSupervisorStage.newInstance(gm, inputPipes, null, outgoingPipes, BenchmarkSupport.coordinator(gm, tracks), false);
+		PipeCleanerStage.newInstance(gm, outgoingPipes);
+		
+		scheduler = BenchmarkSupport.scheduler(gm);
+	}
+
+	@Benchmark
+	public void orderResponses() {
+		//last pipe gets the lowest sequence so the scan order never matches
+		int i = tracks;
+		while (--i>=0) {
+			ServerResponseSchema.publishToChannel(inputPipes[i], 1, sequence+(tracks-1-i),
+					payload, 0, payload.length, OrderSupervisorStage.END_RESPONSE_MASK);			
+		}
+		sequence += tracks;
+		
+		while (!allEmpty(inputPipes)) {
+			scheduler.run();
+		}
+	}
+
+	private static boolean allEmpty(Pipe<ServerResponseSchema>[] pipes) {
+		int i = pipes.length;
+		while (--i>=0) {
+			if (!Pipe.isEmpty(pipes[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@TearDown
+	public void teardown() {
+		scheduler.shutdown();
+	}
+	
+}
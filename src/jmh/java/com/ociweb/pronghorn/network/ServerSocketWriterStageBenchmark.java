@@ -0,0 +1,128 @@
+package com.ociweb.pronghorn.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.ScriptedNonThreadScheduler;
+
+/**
+ * Socket write cost of ServerSocketWriterStage (writeDataToChannel and the message
+ * merging in front of it) over real loopback sockets. Each operation publishes
+ * messagesPerTrack payloads to every track then steps the writer and drains the
+ * client side until all the bytes have arrived.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServerSocketWriterStageBenchmark {
+
+	@Param({"1","2","4"})
+	public int tracks;
+	
+	@Param({"256","16384"})
+	public int payloadSize;
+	
+	@Param({"1","8"})
+	public int messagesPerTrack;
+	
+	private Pipe<NetPayloadSchema>[] toWriter;
+	private ServerConnection[] connections;
+	private SocketChannel[] clients;
+	private ServerSocketChannel listener;
+	private ScriptedNonThreadScheduler scheduler;
+	private ByteBuffer readBuffer;
+	private byte[] payload;
+	private long position;
+	
+	@Setup
+	public void setup() throws IOException {
+		GraphManager gm = new GraphManager();
+		ServerCoordinator coordinator = BenchmarkSupport.coordinator(gm, tracks);
+		
+		payload = new byte[payloadSize];
+		readBuffer = ByteBuffer.allocateDirect(1<<20);
+		
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress("127.0.0.1", 0));
+		
+		clients = new SocketChannel[tracks];
+		connections = new ServerConnection[tracks];
+		int i = tracks;
+		while (--i>=0) {
+			clients[i] = SocketChannel.open(listener.getLocalAddress());
+			clients[i].configureBlocking(false);
+			SocketChannel accepted = listener.accept();
+			accepted.configureBlocking(false);
+			accepted.socket().setTcpNoDelay(true);
+			connections[i] = BenchmarkSupport.registerConnection(coordinator, accepted);
+		}
+		
+		PipeConfig<NetPayloadSchema> netConfig = NetPayloadSchema.instance.newPipeConfig(
+				                                      Math.max(16, messagesPerTrack*2), payloadSize);
+		toWriter = Pipe.buildPipes(tracks, netConfig);
+		new ServerSocketWriterStage(gm, coordinator, toWriter);
+		
+		scheduler = BenchmarkSupport.scheduler(gm);
+	}
+
+	@Benchmark
+	public long writeToChannel() throws IOException {
+		int i = tracks;
+		while (--i>=0) {
+			int m = messagesPerTrack;
+			while (--m>=0) {
+				NetPayloadSchema.publishPlain(toWriter[i], connections[i].id, System.nanoTime(),
+						                      position, payload, 0, payload.length);
+			}
+		}
+		position += payload.length*messagesPerTrack;
+		
+		long expected = ((long)payloadSize)*messagesPerTrack*tracks;
+		long received = 0;
+		while (received < expected) {
+			scheduler.run();
+			int c = tracks;
+			while (--c>=0) {
+				readBuffer.clear();
+				received += Math.max(0, clients[c].read(readBuffer));
+			}
+		}
+		return received;
+	}
+	
+	@TearDown
+	public void teardown() throws IOException {
+		scheduler.shutdown();
+		int i = clients.length;
+		while (--i>=0) {
+			clients[i].close();
+			connections[i].getSocketChannel().close();
+		}
+		listener.close();
+	}
+	
+}
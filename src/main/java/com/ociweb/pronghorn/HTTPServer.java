@@ -171,7 +171,8 @@ public class HTTPServer {
 					}
 				}
 							
-				routerConfig.registerCompositeRoute().path((CharSequence) ((fileServerIndex == a) ? "/${path}" : null));
+				//the headers used for precompressed, conditional and range responses
+				routerConfig.registerCompositeRoute(FileReadModuleStage.REQUEST_HEADERS).path((CharSequence) ((fileServerIndex == a) ? "/${path}" : null));
 			
 				if (fileServerIndex == a) {
 					return staticFileOutputs;
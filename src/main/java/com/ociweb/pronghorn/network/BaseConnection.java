@@ -28,6 +28,10 @@ public abstract class BaseConnection {
 	protected boolean isDisconnecting = false;
 
     private long lastUsedTimeNS = System.currentTimeMillis();
+    
+    //wall clock to compare with SSLSession.getCreationTime()
+    private final long handshakeBeginMS = System.currentTimeMillis();
+    private volatile boolean handshakeCounted;
 
 	protected ChannelWriterController connectionDataWriter;
 	protected ChannelReaderController connectionDataReader;	
@@ -56,6 +60,21 @@ public abstract class BaseConnection {
 		connectionDataReader = null;
 	}
 		
+	/**
+	 * Wrap and unwrap stages both see the end of the handshake, only the first one counts it.
+	 */
+	void countHandshake(SSLEngineFactory factory, boolean isServer) {
+		if (!handshakeCounted) {
+			synchronized (this) {
+				if (handshakeCounted) {
+					return;
+				}
+				handshakeCounted = true;
+			}
+			factory.handshakeFinished(engine, handshakeBeginMS, isServer);
+		}
+	}
+		
 	public ChannelWriterController connectionDataWriter() {		
 		return connectionDataWriter;
 	}
@@ -4,11 +4,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.StandardSocketOptions;
-import java.net.UnknownHostException;
 import java.nio.channels.NoConnectionPendingException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
@@ -74,6 +74,10 @@ public class ClientConnection extends BaseConnection implements SelectionKeyHash
 	private int[] inFlightRoutes;
 
 	private final long creationTimeNS;
+	private boolean awaitingAddress;
+	
+	//set when this connection is a member of a pool
+	ClientConnectionPool pool;
 	
 	public final boolean isTLS;
 	boolean isFinishedConnection = false;
@@ -156,66 +160,40 @@ public class ClientConnection extends BaseConnection implements SelectionKeyHash
 		return recBufferSize;
 	}
 
+	/**
+	 * Never blocks on DNS, when the address is not yet known the connect is
+	 * started later from isFinishConnect once the resolver has answered.
+	 */
 	private void resolveAddressAndConnect(int port) throws IOException {
+		InetAddress[] ipAddresses = DNSResolver.resolve(hostId, host);
+		if (null == ipAddresses) {
+			awaitingAddress = true;
+		} else {
+			connect(ipAddresses, port);
+		}
+	}
 
-				
-		InetAddress[] ipAddresses = null;
-		boolean failureDetected = false;
-		long resolveTimeout = System.currentTimeMillis()+resolveWithDNSTimeoutMS;
-		long msSleep = 1;
-		do { //NOTE: warning this a blocking loop looking up DNS, should replace with non blocking... See Netty
-			try {
-				if (failureDetected) {
-					//we have done this before so slow down a little
-					try {
-						Thread.sleep(msSleep); //for each attempt double ms waiting for next call
-						msSleep <<= 1;
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-						return;
-					} //2 ms					
-				}
-				
-				long s = System.nanoTime();
-				ipAddresses = InetAddress.getAllByName(host);
-				long d = System.nanoTime()-s;
-				
-				if (d>1_000_000_000) {
-					logger.info("warning slow DNS took {} sec to resolve {} to {} ",d/1_000_000_000,host,ipAddresses);
-				}
-			} catch (UnknownHostException unknwnHostEx) {
-				failureDetected = true;
-			}
-		} while (null == ipAddresses && System.currentTimeMillis()<resolveTimeout);
-		
-		
-		
-		
-		if (null==ipAddresses || ipAddresses.length==0) {
+	private void connect(InetAddress[] ipAddresses, int port) throws IOException {
+		awaitingAddress = false;
+		if (0 == ipAddresses.length) {
 			//unresolved
 			logger.error("unable to resolve address for {}:{}",host,port);
-			new Exception("we have host: "+host+" and port: "+port).printStackTrace();
-			return;
+			close();
 		} else {
-			
-			InetAddress inetAddress = ipAddresses[0];			
-			this.getSocketChannel().connect(new InetSocketAddress(inetAddress, port));
+			this.getSocketChannel().connect(new InetSocketAddress(ipAddresses[0], port));
 			
 			//if you see BindException: Can't assign requested address then something is
 			//up with your local network and this machine no longer has access to that address and port.
-			
 		}
-				
-		/////////////////////////
-
-		boolean done = false;
-		do {		
-			done = this.getSocketChannel().finishConnect(); //call again later to confirm its done.
-			if (!done) {
-				Thread.yield();
-			}
-		} while (!done && (System.currentTimeMillis()<resolveTimeout));
-		
+		//completion is checked by isFinishConnect so this thread never waits on the network
+	}
+	
+	/**
+	 * @return true while the address is being resolved or the socket is being connected
+	 */
+	public boolean isConnecting() {
+		return isValid && !isFinishedConnection && !isDisconnecting
+			   && (System.nanoTime() <= creationTimeNS+(resolveWithDNSTimeoutMS*1000000L));
 	}
 	
 	public String toString() {
@@ -309,6 +287,20 @@ public class ClientConnection extends BaseConnection implements SelectionKeyHash
 			return true;
 		} else {
 			try {
+				if (awaitingAddress) {
+					InetAddress[] ipAddresses = DNSResolver.resolve(hostId, host);
+					if (null == ipAddresses) {
+						if (System.nanoTime() > creationTimeNS+(resolveWithDNSTimeoutMS*1000000L)) {
+				    		logger.info("DNS timeout {} {}ms",this,resolveWithDNSTimeoutMS);
+				    		beginDisconnect();
+				    	}
+						return false;
+					}
+					connect(ipAddresses, port);
+					if (!isValid) {
+						return false;
+					}
+				}
 								
 				boolean finishConnect = getSocketChannel().finishConnect();
 				isFinishedConnection |= finishConnect;
@@ -331,6 +323,8 @@ public class ClientConnection extends BaseConnection implements SelectionKeyHash
 				
 			} catch (IOException io) {
 				close();
+				//the address may have moved so look it up again next time
+				DNSResolver.invalidate(hostId);
 				if (showConectionDetails) {
 					logger.info("finish connection exception ",io);
 				}
@@ -510,6 +504,13 @@ public class ClientConnection extends BaseConnection implements SelectionKeyHash
 		return ok;
 	}
 		
+	/**
+	 * @return count of requests sent which have not yet been answered, may be read from any stage
+	 */
+	public int inFlightCount() {
+		return inFlightRoutesSentPos-inFlightRoutesRespPos;
+	}
+	
 	public void recordDestinationRouteId(int id) {
 		inFlightRoutes[++inFlightRoutesSentPos & maxInFlightMask] = id;
 	}
@@ -522,6 +523,161 @@ public class ClientConnection extends BaseConnection implements SelectionKeyHash
 		return inFlightRoutes[(1+inFlightRoutesRespPos) & maxInFlightMask];
 	}
 
+	/////////////////////////
+	//Single flight, identical GETs are parked on the outstanding request
+	//and the response parser copies the response to each of them.
+	//The request stage opens and joins slots, the parser seals them when the
+	//response begins, after that no more destinations can be added.
+	/////////////////////////
+	
+	private static final int SINGLE_FLIGHT_SLOTS = 16;
+	public  static final int MAX_FOLLOWERS = 32;
+	private static final int SEALED = -1;
+	private static final int RESPONDING = -2;
+	
+	//follower count for each slot, SEALED when free, RESPONDING while the parser copies the followers out
+	private final AtomicIntegerArray flightCount = sealedSlots();
+	private final int[] flightPosition = new int[SINGLE_FLIGHT_SLOTS];
+	private final int[] flightFollowers = new int[SINGLE_FLIGHT_SLOTS*MAX_FOLLOWERS];
+	
+	//only used by the request stage
+	private final int[] flightLeader = new int[SINGLE_FLIGHT_SLOTS];
+	private final byte[][] flightKey = new byte[SINGLE_FLIGHT_SLOTS][];
+	private final int[] flightPathLen = new int[SINGLE_FLIGHT_SLOTS];
+	private final int[] flightKeyLen = new int[SINGLE_FLIGHT_SLOTS];
+	
+	//only used by the response parser
+	private final int[] activeFollowers = new int[MAX_FOLLOWERS];
+	private int activeFollowerCount;
+	private int activeFollowerPos;
+	private boolean activeFollowerValid;
+	
+	private static AtomicIntegerArray sealedSlots() {
+		AtomicIntegerArray result = new AtomicIntegerArray(SINGLE_FLIGHT_SLOTS);
+		int i = SINGLE_FLIGHT_SLOTS;
+		while (--i>=0) {
+			result.set(i, SEALED);
+		}
+		return result;
+	}
+	
+	/**
+	 * Parks this GET on an identical outstanding one if it has not begun to respond.
+	 * @return true if the response will be copied to routeId, the request must not be sent
+	 */
+	public boolean joinInFlight(int routeId, byte[] backing, int mask, int pathPos, int pathLen, int headPos, int headLen) {
+		int s = SINGLE_FLIGHT_SLOTS;
+		while (--s>=0) {
+			int count = flightCount.get(s);
+			if (count>=0 && count<MAX_FOLLOWERS
+				&& flightPathLen[s]==pathLen && flightKeyLen[s]==pathLen+headLen
+				&& isKeyEqual(flightKey[s], 0, backing, pathPos, pathLen, mask)
+				&& isKeyEqual(flightKey[s], pathLen, backing, headPos, headLen, mask)
+				&& isNewDestination(s, count, routeId)) {
+				
+				flightFollowers[(s*MAX_FOLLOWERS)+count] = routeId;
+				//fails if the parser sealed the slot after we looked
+				return flightCount.compareAndSet(s, count, count+1);
+			}
+		}
+		return false;
+	}
+
+	//a destination only gets one copy so fragments are never interleaved on the same pipe
+	private boolean isNewDestination(int slot, int count, int routeId) {
+		if (flightLeader[slot]==routeId) {
+			return false;
+		}
+		int base = slot*MAX_FOLLOWERS;
+		while (--count>=0) {
+			if (flightFollowers[base+count]==routeId) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean isKeyEqual(byte[] key, int keyPos, byte[] backing, int pos, int len, int mask) {
+		while (--len>=0) {
+			if (key[keyPos+len] != backing[mask&(pos+len)]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Allows identical GETs to join the request about to be sent.
+	 * Must be called before the request is published so the slot is open before any response can arrive.
+	 */
+	public void openInFlight(int routeId, byte[] backing, int mask, int pathPos, int pathLen, int headPos, int headLen) {
+		int s = SINGLE_FLIGHT_SLOTS;
+		while (--s>=0) {
+			if (SEALED == flightCount.get(s)) {
+				int keyLen = pathLen+headLen;
+				if (null==flightKey[s] || flightKey[s].length<keyLen) {
+					flightKey[s] = new byte[keyLen];
+				}
+				Pipe.copyBytesFromToRing(backing, pathPos, mask, flightKey[s], 0, Integer.MAX_VALUE, pathLen);
+				Pipe.copyBytesFromToRing(backing, headPos, mask, flightKey[s], pathLen, Integer.MAX_VALUE, headLen);
+				flightPathLen[s] = pathLen;
+				flightKeyLen[s] = keyLen;
+				flightLeader[s] = routeId;
+				flightPosition[s] = 1+inFlightRoutesSentPos;
+				flightCount.set(s, 0);//publishes the slot
+				return;
+			}
+		}
+		//all slots busy, this request is not shared
+	}
+	
+	/**
+	 * Called by the response parser when the next response begins, no more destinations may join after this.
+	 * @return count of destinations in addition to readDestinationRouteId()
+	 */
+	public int beginFollowers() {
+		final int pos = 1+inFlightRoutesRespPos;
+		if (activeFollowerValid && activeFollowerPos==pos) {
+			return activeFollowerCount;
+		}
+		activeFollowerValid = true;
+		activeFollowerPos = pos;
+		activeFollowerCount = 0;
+		int s = SINGLE_FLIGHT_SLOTS;
+		while (--s>=0) {
+			int count = flightCount.get(s);
+			if (count>=0 && flightPosition[s]==pos) {
+				//closed to joins but not yet free, openInFlight must not reuse it until the copy is done
+				while (!flightCount.compareAndSet(s, count, RESPONDING)) {
+					count = flightCount.get(s);//another follower joined
+				}
+				System.arraycopy(flightFollowers, s*MAX_FOLLOWERS, activeFollowers, 0, count);
+				activeFollowerCount = count;
+				flightCount.set(s, SEALED);
+				break;
+			}
+		}
+		return activeFollowerCount;
+	}
+	
+	/**
+	 * @return count of destinations sharing the response in progress
+	 */
+	public int followerCount() {
+		return (activeFollowerValid && activeFollowerPos==(1+inFlightRoutesRespPos)) ? activeFollowerCount : 0;
+	}
+	
+	public int followerRouteId(int idx) {
+		return activeFollowers[idx];
+	}
+	
+	/**
+	 * Called by the response parser once the followers were told the response will not come.
+	 */
+	public void dropFollowers() {
+		activeFollowerCount = 0;
+	}
+
 	
 	/////////////////////////
 	//This is for asserting of thread safety
@@ -0,0 +1,141 @@
+package com.ociweb.pronghorn.network;
+
+import java.util.Arrays;
+
+/**
+ * Group of connections to the same host, port and session. Requests are given to the member with the
+ * fewest responses outstanding so one slow response no longer holds up everything queued behind it.
+ * Members are opened as the load requires up to maxConnections and idle members above minConnections
+ * are closed by the request stage.
+ *
+ * Only the request stage selects and adds members, other stages only read the counts.
+ */
+public class ClientConnectionPool {
+
+	public final String host;
+	public final int hostId;
+	public final int port;
+	public final int sessionId;
+	public final int minConnections;
+	public final int maxConnections;
+	public final long idleLimitNS;
+
+	private final long[] members;
+	private int size;
+
+	ClientConnectionPool(String host, int hostId, int port, int sessionId,
+			             int minConnections, int maxConnections, long idleLimitNS) {
+		if (minConnections<0 || maxConnections<1 || minConnections>maxConnections) {
+			throw new UnsupportedOperationException("pool must allow at least 1 connection and min must not be larger than max");
+		}
+		this.host = host;
+		this.hostId = hostId;
+		this.port = port;
+		this.sessionId = sessionId;
+		this.minConnections = minConnections;
+		this.maxConnections = maxConnections;
+		this.idleLimitNS = idleLimitNS;
+		this.members = new long[maxConnections];
+		Arrays.fill(members, -1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isMember(ClientConnection cc) {
+		return cc.hostId==hostId && cc.port==port && cc.sessionId==sessionId;
+	}
+
+	boolean add(long connectionId) {
+		int i = members.length;
+		while (--i>=0) {
+			if (members[i]==connectionId) {
+				return true;
+			}
+		}
+		i = members.length;
+		while (--i>=0) {
+			if (-1==members[i]) {
+				members[i] = connectionId;
+				size++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean remove(long connectionId) {
+		int i = members.length;
+		while (--i>=0) {
+			if (members[i]==connectionId) {
+				members[i] = -1;
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Least loaded member by count of responses outstanding, ties go to the one waiting the shortest time.
+	 * Connections still being opened are only used when no open member exists.
+	 *
+	 * @return connection id or -1 when a new member should be opened
+	 */
+	long select(ClientCoordinator ccm, long now) {
+		long bestId = -1;
+		int bestLoad = Integer.MAX_VALUE;
+		long bestWait = Long.MAX_VALUE;
+		long connectingId = -1;
+
+		int i = members.length;
+		while (--i>=0) {
+			long id = members[i];
+			if (-1 != id) {
+				ClientConnection cc = ccm.connectionById(id);
+				if (null==cc || !isMember(cc) || cc.isDisconnecting()) {
+					//closed or the id was given to another connection
+					members[i] = -1;
+					size--;
+					continue;
+				}
+				if (!cc.isRegistered()) {
+					connectingId = id;
+					continue;
+				}
+				if (!cc.isValid()) {
+					members[i] = -1;
+					size--;
+					continue;
+				}
+				int load = cc.inFlightCount();
+				long wait = cc.outstandingCallTime(now);
+				if (load<bestLoad || (load==bestLoad && wait<bestWait)) {
+					bestId = id;
+					bestLoad = load;
+					bestWait = wait;
+				}
+			}
+		}
+
+		if (-1 != connectingId) {
+			//finish the one being opened before opening more
+			return (-1==bestId || bestLoad>0) ? connectingId : bestId;
+		}
+		if (-1==bestId || (bestLoad>0 && size<maxConnections)) {
+			return -1;
+		}
+		return bestId;
+	}
+
+	/**
+	 * @return true if the connection may be closed for being idle
+	 */
+	boolean isIdle(ClientConnection cc, long now) {
+		return size>minConnections
+			&& 0==cc.inFlightCount()
+			&& (now-cc.getLastUsedTime())>idleLimitNS;
+	}
+
+}
@@ -39,6 +39,10 @@ public class ClientCoordinator extends SSLConnectionHolder implements ServiceObj
 	
 	public static boolean TEST_RECORDS = false;
 	
+	//identical GETs to the same connection share one outstanding request and its response
+	public static boolean singleFlight = false;
+	public static long singleFlightJoins;//dirty count of requests which were not sent
+	
 	//do not modify without sync on domainRegistry which is final
 	public static int totalKnownDomains = 0;
 	public static final TrieParser domainRegistry = new TrieParser(64, 2, false, false, true);
@@ -48,6 +52,15 @@ public class ClientCoordinator extends SSLConnectionHolder implements ServiceObj
 	///////////////////////////////////////////////
 
 	public static long busyCounter;//dirty count of occurences where client is waiting backed up.
+	
+	//requests written to a connection before waiting on a response
+	private int pipelineDepth = ClientConnection.maxInFlight;
+	//hosts which closed or misbehaved with pipelined requests outstanding, indexed by host id
+	private boolean[] pipelineDisabled = new boolean[4];
+	
+	private ClientConnectionPool[] pools = new ClientConnectionPool[0];
+	private LongLongHashTable poolTable = new LongLongHashTable(4);
+	private ClientCoordinatorAbandonScanner idleScanner = new ClientCoordinatorAbandonScanner();
 	private final StructRegistry typeData;
     private PronghornStageProcessor optionalStageProcessor;
 	public final int receiveBufferSize;
@@ -111,6 +124,132 @@ public class ClientCoordinator extends SSLConnectionHolder implements ServiceObj
 		}
 	}
 	
+	/**
+	 * Limits the requests written back to back on each connection before a response must arrive.
+	 * A depth of 1 turns off pipelining.
+	 */
+	public void setPipelineDepth(int depth) {
+		if (depth<1 || depth>ClientConnection.maxInFlight) {
+			throw new UnsupportedOperationException("pipeline depth must be from 1 to "+ClientConnection.maxInFlight);
+		}
+		pipelineDepth = depth;
+	}
+	
+	/**
+	 * @return requests which may be outstanding at once on a connection to this host
+	 */
+	public int pipelineDepth(int hostId) {
+		boolean[] local = pipelineDisabled;
+		return (hostId<local.length && local[hostId]) ? 1 : pipelineDepth;
+	}
+	
+	/**
+	 * Called by the response parser when a host closes or sends bad data while requests are
+	 * pipelined, from then on only one request at a time is sent to this host.
+	 */
+	public void disablePipelining(ClientConnection cc) {
+		if (pipelineDepth>1 && 1!=pipelineDepth(cc.hostId)) {
+			logger.warn("pipelining disabled for {}:{}, it closed or misbehaved with {} requests outstanding", 
+					    cc.host, cc.port, cc.inFlightCount());
+			boolean[] local = pipelineDisabled;
+			if (cc.hostId>=local.length) {
+				boolean[] bigger = new boolean[Math.max(cc.hostId+1, local.length*2)];
+				System.arraycopy(local, 0, bigger, 0, local.length);
+				local = bigger;
+			}
+			local[cc.hostId] = true;
+			pipelineDisabled = local;//other stages may see this late, it only limits new requests
+		}
+	}
+	
+	/**
+	 * Spread requests for this host, port and session over a pool of connections.
+	 * Must be called before the client stages are started.
+	 * @param minConnections opened at startup and kept open while idle
+	 * @param maxConnections more are opened only while every open one is waiting on a response
+	 * @param idleLimitMS connections above the minimum are closed after this long without use
+	 */
+	public ClientConnectionPool setConnectionPool(CharSequence host, int port, int sessionId,
+			                                      int minConnections, int maxConnections, long idleLimitMS) {
+		int hostId = registerDomain(host);
+		ClientConnectionPool pool = new ClientConnectionPool(host.toString(), hostId, port, sessionId, 
+				                                             minConnections, maxConnections, idleLimitMS*1_000_000L);
+		
+		ClientConnectionPool[] newPools = new ClientConnectionPool[pools.length+1];
+		System.arraycopy(pools, 0, newPools, 0, pools.length);
+		newPools[pools.length] = pool;
+		
+		if (LongLongHashTable.isFull(poolTable)) {
+			poolTable = LongLongHashTable.doubleClone(poolTable);
+		}
+		LongLongHashTable.setItem(poolTable, poolKey(hostId, port, sessionId), newPools.length);
+		pools = newPools;
+		return pool;
+	}
+	
+	private static long poolKey(int hostId, int port, int sessionId) {
+		return (((long)hostId)<<32) | (0xFFFFFFFFL&computePortSessionKey(port, sessionId));
+	}
+	
+	public boolean hasConnectionPools() {
+		return pools.length>0;
+	}
+	
+	public int connectionPoolCount() {
+		return pools.length;
+	}
+	
+	public ClientConnectionPool connectionPool(int idx) {
+		return pools[idx];
+	}
+	
+	/**
+	 * @return pool for this host, port and session or null if it is not pooled
+	 */
+	public ClientConnectionPool connectionPool(int hostId, int port, int sessionId) {
+		int idx = (int)LongLongHashTable.getItem(poolTable, poolKey(hostId, port, sessionId));
+		return idx>0 ? pools[idx-1] : null;
+	}
+
+	/**
+	 * @return least loaded connection id of the pool, -1 if a new connection should be opened
+	 */
+	public long selectPooledConnection(ClientConnectionPool pool, long now) {
+		return pool.select(this, now);
+	}
+	
+	/**
+	 * @return the least loaded member when connectionId belongs to a pool, otherwise connectionId
+	 */
+	public long pooledConnectionId(long connectionId, long now) {
+		ClientConnection cc = connectionId>=0 ? connections.get(connectionId) : null;
+		return (null==cc || null==cc.pool) ? connectionId : cc.pool.select(this, now);
+	}
+	
+	ClientConnection connectionById(long id) {
+		return connections.get(id);
+	}
+	
+	/**
+	 * Finds the pooled connection which has been idle the longest once the pool has more than its minimum.
+	 * The connection is removed from its pool, the caller must close it.
+	 */
+	public ClientConnection scanForIdlePooledConnection() {
+		if (0==pools.length) {
+			return null;
+		}
+		idleScanner.reset();
+		connections.visitValid(idleScanner);
+		ClientConnection idle = idleScanner.idleCandidate();
+		if (null!=idle) {
+			ClientConnectionPool pool = connectionPool(idle.hostId, idle.port, idle.sessionId);
+			if (null==pool || !pool.remove(idle.id)) {
+				idle = null;
+			}
+		}
+		return idle;
+	}
+	
 	public BaseConnection connectionForSessionId(long id) {
 		ClientConnection response = connections.get(id);
 		
@@ -355,7 +494,7 @@ public class ClientCoordinator extends SSLConnectionHolder implements ServiceObj
 
 				if (-1 == connectionId || 
 					null == (cc = (ClientConnection) ccm.connections.get(connectionId)) ||
-					!cc.isValid()
+					(!cc.isValid() && !cc.isConnecting()) //still resolving or connecting is not replaced
 						) { 
 					//NOTE: using direct lookup get since un finished connections may not be valid.
 										
@@ -402,6 +541,12 @@ public class ClientCoordinator extends SSLConnectionHolder implements ServiceObj
 					}
 					
 					ccm.connections.setValue(connectionId, cc);	
+					
+					ClientConnectionPool pool = ccm.connectionPool(cc.hostId, cc.port, cc.sessionId);
+					if (null!=pool) {
+						pool.add(connectionId);
+						cc.pool = pool;
+					}
 				
 					long key = computePortSessionKey(cc.port, cc.sessionId);
 					LongLongHashTable table = conTables[cc.hostId];					
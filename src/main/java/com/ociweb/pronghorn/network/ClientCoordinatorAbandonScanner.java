@@ -15,6 +15,7 @@ public class ClientCoordinatorAbandonScanner extends ServerObjectHolderVisitor<C
 	private long scanTime;
 	private long maxOutstandingCallTime;
 	private ClientConnection candidate;
+	private ClientConnection idleCandidate;
 	private RunningStdDev stdDev = new RunningStdDev();
 	
 	
@@ -22,6 +23,7 @@ public class ClientCoordinatorAbandonScanner extends ServerObjectHolderVisitor<C
 		scanTime = System.nanoTime();
 		maxOutstandingCallTime = -1;
 		candidate = null;
+		idleCandidate = null;
 		stdDev.clear();
 	}
 		
@@ -36,7 +38,11 @@ public class ClientCoordinatorAbandonScanner extends ServerObjectHolderVisitor<C
 			candidate = t;
 		}
 		
-		//TODO: can, find the lest recently used connection and close it as well.
+		//least recently used pool member which is no longer needed
+		if (null!=t.pool && t.pool.isIdle(t, scanTime)
+			&& (null==idleCandidate || t.getLastUsedTime()<idleCandidate.getLastUsedTime())) {
+			idleCandidate = t;
+		}
 		
 		if (ElapsedTimeRecorder.totalCount(t.histogram())>1) {
 			//find the std dev of the 98% of all network calls
@@ -46,6 +52,13 @@ public class ClientCoordinatorAbandonScanner extends ServerObjectHolderVisitor<C
 	
 	StringBuilder workspace = new StringBuilder();
 	
+	/**
+	 * @return pooled connection idle the longest past its pool limit, or null
+	 */
+	public ClientConnection idleCandidate() {
+		return idleCandidate;
+	}
+	
 	public ClientConnection leadingCandidate() {
 		
 		///turn back on after we see that the server is stable
@@ -0,0 +1,165 @@
+package com.ociweb.pronghorn.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves host names on background threads so no stage thread ever waits on InetAddress.
+ * Results are cached by the host id of ClientCoordinator.domainRegistry. Failures are cached for
+ * a shorter time and entries still in use are refreshed before they expire.
+ *
+ * Entries are immutable and replaced whole so stages may read them without locking.
+ */
+public final class DNSResolver {
+
+	private static final Logger logger = LoggerFactory.getLogger(DNSResolver.class);
+
+	public static long ttlMS = 30_000;
+	public static long negativeTTLMS = 5_000;
+	//refresh when this fraction of the ttl remains
+	public static int prefetchDivisor = 5;
+	public static int resolverThreads = 2;
+
+	private static final InetAddress[] UNRESOLVED = new InetAddress[0];
+
+	private static final class Entry {
+		final InetAddress[] addresses; //UNRESOLVED for negative entries, null before the first answer
+		final long expiresNS;
+		final long prefetchNS;
+		final boolean resolving;
+
+		Entry(InetAddress[] addresses, long expiresNS, long prefetchNS, boolean resolving) {
+			this.addresses = addresses;
+			this.expiresNS = expiresNS;
+			this.prefetchNS = prefetchNS;
+			this.resolving = resolving;
+		}
+	}
+
+	private static volatile Entry[] entries = new Entry[16];
+	private static ExecutorService executor;
+
+	private DNSResolver() {
+	}
+
+	/**
+	 * Never blocks. Starts a lookup when the host is not cached, expired or about to expire.
+	 *
+	 * @return addresses for the host, null while the lookup is in progress or
+	 *         an empty array when the host could not be resolved
+	 */
+	public static InetAddress[] resolve(int hostId, String host) {
+		final long now = System.nanoTime();
+		Entry[] local = entries;
+		Entry entry = hostId<local.length ? local[hostId] : null;
+
+		if (null!=entry) {
+			if (now-entry.expiresNS < 0) {
+				if (!entry.resolving && now-entry.prefetchNS >= 0) {
+					begin(hostId, host, entry);//refresh early so callers never see it expire
+				}
+				return entry.addresses;
+			}
+			if (entry.resolving) {
+				return null;
+			}
+		}
+		begin(hostId, host, entry);
+		return null;
+	}
+
+	private static void begin(final int hostId, final String host, Entry expected) {
+		synchronized (DNSResolver.class) {
+			Entry current = hostId<entries.length ? entries[hostId] : null;
+			if (current!=expected || (null!=current && current.resolving)) {
+				return;//another caller already started it
+			}
+			store(hostId, null==current ? new Entry(null, 0, 0, true)
+					                    : new Entry(current.addresses, current.expiresNS, current.prefetchNS, true));
+			if (null==executor) {
+				executor = Executors.newFixedThreadPool(resolverThreads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "DNSResolver");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				lookup(hostId, host);
+			}
+		});
+	}
+
+	private static void lookup(int hostId, String host) {
+		InetAddress[] addresses;
+		long ttl;
+		long start = System.nanoTime();
+		try {
+			addresses = InetAddress.getAllByName(host);
+			ttl = ttlMS;
+		} catch (UnknownHostException e) {
+			logger.warn("unable to resolve address for {}", host);
+			addresses = UNRESOLVED;
+			ttl = negativeTTLMS;
+		} catch (RuntimeException e) {
+			//must still finish or the entry would stay resolving forever
+			logger.warn("unable to resolve address for {}", host, e);
+			addresses = UNRESOLVED;
+			ttl = negativeTTLMS;
+		}
+		long now = System.nanoTime();
+		if (now-start > 1_000_000_000L) {
+			logger.info("warning slow DNS took {} sec to resolve {}", (now-start)/1_000_000_000L, host);
+		}
+
+		synchronized (DNSResolver.class) {
+			Entry current = hostId<entries.length ? entries[hostId] : null;
+			if (UNRESOLVED==addresses && null!=current
+				&& null!=current.addresses && UNRESOLVED!=current.addresses
+				&& now-current.expiresNS < 0) {
+				//refresh failed, keep the good answer until it expires
+				addresses = current.addresses;
+				ttl = (current.expiresNS-now)/1_000_000L;
+			}
+			long ttlNS = ttl*1_000_000L;
+			store(hostId, new Entry(addresses, now+ttlNS, now+ttlNS-(ttlNS/prefetchDivisor), false));
+		}
+	}
+
+	private static void store(int hostId, Entry entry) {
+		Entry[] local = entries;
+		if (hostId>=local.length) {
+			Entry[] bigger = new Entry[Math.max(hostId+1, local.length*2)];
+			System.arraycopy(local, 0, bigger, 0, local.length);
+			local = bigger;
+		}
+		local[hostId] = entry;
+		entries = local;
+	}
+
+	/**
+	 * Drops the cached answer so the next call resolves again, used when connecting to it fails.
+	 */
+	public static void invalidate(int hostId) {
+		synchronized (DNSResolver.class) {
+			if (hostId<entries.length) {
+				Entry current = entries[hostId];
+				if (null!=current && !current.resolving) {
+					entries[hostId] = null;
+				}
+			}
+		}
+	}
+
+}
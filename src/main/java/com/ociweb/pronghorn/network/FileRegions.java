@@ -0,0 +1,114 @@
+package com.ociweb.pronghorn.network;
+
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+
+/**
+ * Shares open FileChannels between the file module and the ServerSocketWriterStage.
+ * Instead of the file bytes the module sends a small descriptor (id, position, count)
+ * and the writer uses FileChannel.transferTo to move the bytes straight to the socket.
+ *
+ * Only for plain connections, TLS must see the bytes so it can encrypt them.
+ *
+ * A slot is only given to a new channel once the channel held there has been closed, so a
+ * descriptor still in flight always finds its channel. When every slot holds an open channel
+ * register returns zero and the caller must send the bytes instead.
+ * Ids are never reused so a descriptor for a replaced slot is detected and not sent.
+ */
+public final class FileRegions {
+
+	//arrival time value used on NetPayloadSchema plain messages holding a descriptor
+	public static final long REGION_MARKER = -2;
+	public static final int DESCRIPTOR_SIZE = 24;
+
+	private static final int SLOT_BITS = 12;
+	private static final int SLOT_MASK = (1<<SLOT_BITS)-1;
+
+	private static final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(1<<SLOT_BITS);
+	private static final AtomicLong nextId = new AtomicLong();
+
+	private static final class Entry {
+		private final long id;
+		private final FileChannel channel;
+
+		private Entry(long id, FileChannel channel) {
+			this.id = id;
+			this.channel = channel;
+		}
+	}
+
+	private FileRegions() {
+	}
+
+	/**
+	 * @return new id for this channel, zero when no slot is free and the bytes must be sent instead
+	 */
+	public static long register(FileChannel channel) {
+		//the low bits of the id are the slot, the high bits make it unique
+		final long unique = nextId.incrementAndGet();
+		final int start = SLOT_MASK&(int)unique;
+		int i = SLOT_MASK+1;
+		while (--i>=0) {
+			final int slot = SLOT_MASK&(start+i);
+			final Entry old = entries.get(slot);
+			if (null==old || !old.channel.isOpen()) {
+				final Entry e = new Entry((unique<<SLOT_BITS)|slot, channel);
+				if (entries.compareAndSet(slot, old, e)) {
+					return e.id;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Frees the slot for this id, any descriptor still holding the id will no longer be sent.
+	 */
+	public static void release(long id) {
+		final int slot = SLOT_MASK&(int)id;
+		final Entry e = entries.get(slot);
+		if (null!=e && id==e.id) {
+			entries.compareAndSet(slot, e, null);
+		}
+	}
+
+	/**
+	 * @return the channel for this id or null if it has been released or closed
+	 */
+	public static FileChannel lookup(long id) {
+		Entry e = entries.get(SLOT_MASK&(int)id);
+		return (null!=e && id==e.id && e.channel.isOpen()) ? e.channel : null;
+	}
+
+	public static void writeDescriptor(DataOutputBlobWriter<?> writer, long id, long position, long count) {
+		writer.writeLong(id);
+		writer.writeLong(position);
+		writer.writeLong(count);
+	}
+
+	public static long readId(byte[] blob, int pos, int mask) {
+		return read64(blob, pos, mask);
+	}
+
+	public static long readPosition(byte[] blob, int pos, int mask) {
+		return read64(blob, pos+8, mask);
+	}
+
+	public static long readCount(byte[] blob, int pos, int mask) {
+		return read64(blob, pos+16, mask);
+	}
+
+	private static long read64(byte[] blob, int pos, int mask) {
+		//big endian to match DataOutput.writeLong
+		long v = 0;
+		int i = 8;
+		while (--i>=0) {
+			v = (v<<8) | (0xFF & blob[mask & pos++]);
+		}
+		return v;
+	}
+
+}
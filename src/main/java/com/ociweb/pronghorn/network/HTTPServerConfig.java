@@ -18,11 +18,18 @@ public interface HTTPServerConfig {
 	HTTPServerConfig logTraffic(boolean logResponses);
 	HTTPServerConfig logTraffic();
 	HTTPServerConfig setTracks(int tracks);
+	HTTPServerConfig setAcceptors(int acceptors);
+	HTTPServerConfig setHTTP2(boolean enabled);
+	HTTPServerConfig setResponseCacheSize(long maxCacheBytes, int maxEntryBytes);
 	
 	HTTPServerConfig setClientAuthRequired(boolean value);
 	HTTPServerConfig setServiceName(String name);
 	
 	int getMaxConnectionBits();
+	int getAcceptors();
+	boolean isHTTP2();
+	long getResponseCacheBytes();
+	int getResponseCacheEntryBytes();
 	int getEncryptionUnitsPerTrack();
 	int getDecryptionUnitsPerTrack();
 	int getConcurrentChannelsPerEncryptUnit();
@@ -1,6 +1,7 @@
 package com.ociweb.pronghorn.network;
 
 import com.ociweb.pronghorn.network.config.HTTPHeader;
+import com.ociweb.pronghorn.network.http.HTTPResponseCacheStage;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
 import com.ociweb.pronghorn.pipe.PipeConfig;
@@ -41,6 +42,10 @@ public class HTTPServerConfigImpl implements HTTPServerConfig {
 	private int maxResponseSize = 1<<10;//default of 10K
 	private final PipeConfigManager pcm;
     private int tracks = 1;//default 1, for low memory usage
+    private int acceptors = 1;//default 1, one socket accepts all the connections
+    private boolean http2 = false;//default HTTP/1.1 only
+    private long responseCacheBytes = HTTPResponseCacheStage.DEFAULT_CACHE_BYTES;//held by each cache instance
+    private int responseCacheEntryBytes = HTTPResponseCacheStage.DEFAULT_ENTRY_BYTES;
 	private LogFileConfig logFile;	
 	private boolean requireClientAuth = false;
 	private String serviceName = "Server";
@@ -231,7 +236,7 @@ public class HTTPServerConfigImpl implements HTTPServerConfig {
 				
 		pcm.addConfig(ServerResponseSchema.instance.newPipeConfig(4, 512));
 		
-		return new ServerPipesConfig(
+		ServerPipesConfig result = new ServerPipesConfig(
 				logFile,
 				isTLS(),
 				getMaxConnectionBits(),
@@ -245,6 +250,11 @@ public class HTTPServerConfigImpl implements HTTPServerConfig {
 				getMaxRequestSize(),
 				getMaxResponseSize(),
 				pcm);
+		result.acceptors = acceptors;
+		result.http2 = http2;
+		result.responseCacheBytes = responseCacheBytes;
+		result.responseCacheEntryBytes = responseCacheEntryBytes;
+		return result;
 	}
 
 	private int getMaxResponseSize() {
@@ -303,6 +313,65 @@ public class HTTPServerConfigImpl implements HTTPServerConfig {
 		
 	}
 
+	/**
+	 * Each acceptor binds the port with SO_REUSEPORT and feeds its own selector
+	 * and socket reader so accept and select can scale past one core.
+	 * The tracks are divided between the acceptors so this must be a power of 2
+	 * which evenly divides the track count.
+	 */
+	@Override
+	public HTTPServerConfig setAcceptors(int acceptors) {
+		configStage.throwIfNot(BridgeConfigStage.DeclareConnections);
+		if (acceptors<1 || Integer.bitCount(acceptors)!=1) {
+			throw new UnsupportedOperationException("Acceptors must be a power of 2");
+		}
+		this.acceptors = acceptors;
+		return this;
+	}
+
+	@Override
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	/**
+	 * Accept HTTP/2 on the same port as HTTP/1.1. With TLS it is offered by ALPN when the JDK
+	 * supports it, without TLS clients must start with the HTTP/2 preface (prior knowledge).
+	 */
+	@Override
+	public HTTPServerConfig setHTTP2(boolean enabled) {
+		configStage.throwIfNot(BridgeConfigStage.DeclareConnections);
+		this.http2 = enabled;
+		return this;
+	}
+
+	@Override
+	public boolean isHTTP2() {
+		return http2;
+	}
+
+	/**
+	 * Limits for the response cache placed on each track for routes registered with cacheResponses.
+	 * Responses larger than maxEntryBytes are not cached.
+	 */
+	@Override
+	public HTTPServerConfig setResponseCacheSize(long maxCacheBytes, int maxEntryBytes) {
+		configStage.throwIfNot(BridgeConfigStage.DeclareConnections);
+		this.responseCacheBytes = maxCacheBytes;
+		this.responseCacheEntryBytes = maxEntryBytes;
+		return this;
+	}
+
+	@Override
+	public long getResponseCacheBytes() {
+		return responseCacheBytes;
+	}
+
+	@Override
+	public int getResponseCacheEntryBytes() {
+		return responseCacheEntryBytes;
+	}
+
 	@Override
 	public HTTPServerConfig setClientAuthRequired(boolean value) {
 		requireClientAuth = value;
@@ -18,14 +18,18 @@ import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
 import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
 import com.ociweb.pronghorn.network.config.HTTPSpecification;
 import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTP2ConnectionStage;
 import com.ociweb.pronghorn.network.http.HTTP1xResponseParserStage;
 import com.ociweb.pronghorn.network.http.HTTP1xRouterStage;
 import com.ociweb.pronghorn.network.http.HTTP1xRouterStageConfig;
 import com.ociweb.pronghorn.network.http.HTTPClientRequestStage;
 import com.ociweb.pronghorn.network.http.HTTPLogUnificationStage;
 import com.ociweb.pronghorn.network.http.HTTPRequestJSONExtractionStage;
+import com.ociweb.pronghorn.network.http.HTTPResponseCacheStage;
+import com.ociweb.pronghorn.network.http.HTTPResponseDeflateStage;
 import com.ociweb.pronghorn.network.http.ModuleConfig;
 import com.ociweb.pronghorn.network.http.RouterStageConfig;
+import com.ociweb.pronghorn.network.module.ByteArrayPayloadResponseStage;
 import com.ociweb.pronghorn.network.module.DotModuleStage;
 import com.ociweb.pronghorn.network.module.FileReadModuleStage;
 import com.ociweb.pronghorn.network.module.ResourceModuleStage;
@@ -357,6 +361,10 @@ public class NetGraphBuilder {
 		Pipe<NetPayloadSchema>[][] perTrackFromSuper 
 			= Pipe.splitPipes(coordinator.moduleParallelism(), sendingToNet);
 		
+		if (coordinator.http2) {
+			buildHTTP2Stages(graphManager, coordinator, perTrackFromNet, perTrackFromSuper);
+		}
+		
 		buildLogging(graphManager, coordinator, reqLog, resLog);
 		
 		buildRouters(graphManager, coordinator, releaseAfterParse,
@@ -367,6 +375,38 @@ public class NetGraphBuilder {
 		buildOrderingSupers(graphManager, coordinator, fromModule, resLog, perTrackFromSuper);
 	}
 
+	/**
+	 * Places an HTTP2ConnectionStage on each track, the pipe arrays are updated so the router
+	 * reads from it and the supervisor writes to it.
+	 */
+	private static void buildHTTP2Stages(GraphManager graphManager, ServerCoordinator coordinator,
+			Pipe<NetPayloadSchema>[][] perTrackFromNet,
+			Pipe<NetPayloadSchema>[][] perTrackFromSuper) {
+		int track = perTrackFromNet.length;
+		while (--track>=0) {
+			Pipe<NetPayloadSchema>[] fromNet = perTrackFromNet[track];
+			Pipe<NetPayloadSchema>[] toRouter = new Pipe[fromNet.length];
+			int i = fromNet.length;
+			while (--i>=0) {
+				toRouter[i] = new Pipe<NetPayloadSchema>(fromNet[i].config());
+			}
+
+			Pipe<NetPayloadSchema>[] toNet = perTrackFromSuper[track];
+			Pipe<NetPayloadSchema>[] fromSuper = new Pipe[toNet.length];
+			i = toNet.length;
+			while (--i>=0) {
+				fromSuper[i] = new Pipe<NetPayloadSchema>(toNet[i].config(), false);
+			}
+
+			HTTP2ConnectionStage stage = new HTTP2ConnectionStage(graphManager, coordinator, fromNet, toRouter, fromSuper, toNet);
+			GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "HTTP2", stage);
+			coordinator.processNota(graphManager, stage);
+
+			perTrackFromNet[track] = toRouter;
+			perTrackFromSuper[track] = fromSuper;
+		}
+	}
+
 	public static PipeConfig<HTTPRequestSchema> buildRoutertoModulePipeConfig(
 			ServerCoordinator coordinator,
 			ServerPipesConfig serverConfig) {
@@ -523,13 +563,42 @@ public class NetGraphBuilder {
 			acks[a] =  new Pipe<ReleaseSchema>(coordinator.pcm.getConfig(ReleaseSchema.class), false);	
 		}
                    
-        //reads from the socket connection
-        ServerSocketReaderStage readerStage = new ServerSocketReaderStage(graphManager, acks, encryptedIncomingGroup, coordinator);
-        GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "SocketReader", readerStage);
-        coordinator.processNota(graphManager, readerStage);
+        if (coordinator.acceptors<=1) {
+	        //reads from the socket connection
+	        ServerSocketReaderStage readerStage = new ServerSocketReaderStage(graphManager, acks, encryptedIncomingGroup, coordinator);
+	        GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "SocketReader", readerStage);
+	        coordinator.processNota(graphManager, readerStage);
+        } else {
+        	buildAcceptorSocketReaderStages(graphManager, coordinator, routerCount, encryptedIncomingGroup, acks);
+        }
 		return acks;
 	}
 
+	/**
+	 * One reader for each acceptor, each reader owns a contiguous block of the input pipes
+	 * and takes the release acks from the routers of the tracks reading those pipes.
+	 */
+	private static void buildAcceptorSocketReaderStages(GraphManager graphManager, ServerCoordinator coordinator,
+			final int routerCount, Pipe<NetPayloadSchema>[] encryptedIncomingGroup, Pipe<ReleaseSchema>[] acks) {
+		
+		Pipe<NetPayloadSchema>[][] perAcceptor = Pipe.splitPipes(coordinator.acceptors, encryptedIncomingGroup);
+		int tracksPerAcceptor = routerCount/coordinator.acceptors;
+		int acksBase = acks.length-1;//routers take their acks from the end, see buildRouters
+		
+		int a = coordinator.acceptors;
+		while (--a>=0) {
+			Pipe<ReleaseSchema>[] acceptorAcks = new Pipe[tracksPerAcceptor];
+			int t = tracksPerAcceptor;
+			while (--t>=0) {
+				acceptorAcks[t] = acks[acksBase-((a*tracksPerAcceptor)+t)];
+			}
+			
+			ServerSocketReaderStage readerStage = new ServerSocketReaderStage(graphManager, acceptorAcks, perAcceptor[a], coordinator, a);
+			GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "SocketReader", readerStage);
+			coordinator.processNota(graphManager, readerStage);
+		}
+	}
+
 	public static Pipe<NetPayloadSchema>[] buildRemainderOFServerStages(final GraphManager graphManager,
 			ServerCoordinator coordinator, Pipe<NetPayloadSchema>[] handshakeIncomingGroup) {
 
@@ -543,8 +612,11 @@ public class NetGraphBuilder {
                     
         buildSocketWriters(graphManager, coordinator, coordinator.serverSocketWriters, toWiterPipes);
 
-        ServerNewConnectionStage newConStage = new ServerNewConnectionStage(graphManager, coordinator); 
-        coordinator.processNota(graphManager, newConStage);
+        int a = coordinator.acceptors;
+        while (--a>=0) {
+	        ServerNewConnectionStage newConStage = new ServerNewConnectionStage(graphManager, coordinator, a); 
+	        coordinator.processNota(graphManager, newConStage);
+        }
 
 		return fromOrderedContent;
 	}
@@ -676,16 +748,21 @@ public class NetGraphBuilder {
 				
 				
 			}
+			final int firstRoute = routerConfig.totalRoutesCount();
 			//each module can unify of split across routers
 			Pipe<ServerResponseSchema>[] outputPipes = modules.registerModule(
 					                moduleInstance, graphManager, routerConfig, routesTemp);
 			
+			//deflated responses are chunked so each block grows by the chunk framing
+			final boolean deflate = isDeflateUsed(graphManager, outputPipes);
+			final int framing = deflate ? HTTPResponseDeflateStage.CHUNK_OVERHEAD : 0;
+			
 			int maxOut = coordinator.pcm.getConfig(NetPayloadSchema.class).maxVarLenSize();
 			int i = outputPipes.length;
 			while (--i>=0) {
-				if (outputPipes[i].maxVarLen>maxOut) {
+				if (outputPipes[i].maxVarLen+framing>maxOut) {
 					throw new UnsupportedOperationException(
-						"Module instance "+moduleInstance+" is configured to write blocks of "+outputPipes[i].maxVarLen+
+						"Module instance "+moduleInstance+" is configured to write blocks of "+(outputPipes[i].maxVarLen+framing)+
 						" but the server is set to maximum response size of "+maxOut+
 						". Either setMaxResponseSize larger or modify module to write less."
 					);
@@ -695,6 +772,16 @@ public class NetGraphBuilder {
 			
 			assert(validateNoNulls(outputPipes));
 		    
+		    if (routerConfig.isAnyRouteCached(firstRoute, routerConfig.totalRoutesCount())) {
+		    	outputPipes = buildResponseCaches(coordinator, graphManager, routerConfig, routerToModuleConfig,
+		    			                          moduleInstance, routesTemp, outputPipes, fromModule, toModules, deflate);
+		    }
+		    
+		    if (deflate) {
+		    	//after the cache so cached responses are stored once and deflated for each client which asked
+		    	outputPipes = buildDeflate(coordinator, graphManager, outputPipes);
+		    }
+		    
 		    for(int r=0; r<routerCount; r++) {
 		    	//accumulate all the from pipes for a given router group
 		    	fromModule[r] = PronghornStage.join(fromModule[r], outputPipes[r]);
@@ -705,6 +792,65 @@ public class NetGraphBuilder {
 		return routerConfig;
 	}
 
+	/**
+	 * Places a response cache between the router and the module on each track.
+	 * Cache hits are given their own pipe into the supervisor, it orders them by sequence
+	 * like the other responses so they can not be blocked behind the module.
+	 * @return the response pipes from the caches, one per track, to be joined for the supervisors
+	 */
+	private static Pipe<ServerResponseSchema>[] buildResponseCaches(ServerCoordinator coordinator, GraphManager graphManager,
+			HTTP1xRouterStageConfig routerConfig, PipeConfig<HTTPRequestSchema> routerToModuleConfig, int moduleInstance,
+			Pipe<HTTPRequestSchema>[] routesTemp, Pipe<ServerResponseSchema>[] outputPipes,
+			Pipe<ServerResponseSchema>[][] fromModule, Pipe<HTTPRequestSchema>[][] toModules, boolean deflate) {
+		
+		Pipe<ServerResponseSchema>[] result = new Pipe[routesTemp.length];
+		int r = routesTemp.length;
+		while (--r>=0) {
+			Pipe<HTTPRequestSchema> fromRouter = new Pipe<HTTPRequestSchema>(routerToModuleConfig);
+			toModules[r][moduleInstance] = fromRouter;
+			
+			Pipe<ServerResponseSchema> toSupervisor = new Pipe<ServerResponseSchema>(outputPipes[r].config());
+			Pipe<ServerResponseSchema> hits = new Pipe<ServerResponseSchema>(outputPipes[r].config());
+			
+			HTTPResponseCacheStage cache = new HTTPResponseCacheStage(graphManager, routerConfig,
+					                           fromRouter, routesTemp[r], outputPipes[r], toSupervisor, hits,
+					                           coordinator.responseCacheBytes, coordinator.responseCacheEntryBytes);
+			GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "ModuleStage", cache);
+			coordinator.processNota(graphManager, cache);
+			
+			result[r] = toSupervisor;
+			fromModule[r] = PronghornStage.join(fromModule[r], 
+					                            deflate ? buildDeflate(coordinator, graphManager, new Pipe[]{hits})[0] : hits);
+		}
+		return result;
+	}
+
+	/**
+	 * True when the module writing these pipes marks responses to be deflated.
+	 */
+	private static boolean isDeflateUsed(GraphManager graphManager, Pipe<ServerResponseSchema>[] outputPipes) {
+		int i = outputPipes.length;
+		while (--i>=0) {
+			int producerId = GraphManager.getRingProducerStageId(graphManager, outputPipes[i].id);
+			PronghornStage producer = producerId<0 ? null : GraphManager.getStage(graphManager, producerId);
+			if ((producer instanceof ByteArrayPayloadResponseStage)
+				&& ((ByteArrayPayloadResponseStage)producer).isDeflateUsed()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static Pipe<ServerResponseSchema>[] buildDeflate(ServerCoordinator coordinator, GraphManager graphManager,
+			                                                 Pipe<ServerResponseSchema>[] outputPipes) {
+		Pipe<ServerResponseSchema>[] result = HTTPResponseDeflateStage.deflateResponses(graphManager, outputPipes, 
+				                                                                  HTTPResponseDeflateStage.compressionLevel);
+		PronghornStage deflateStage = GraphManager.getRingProducer(graphManager, result[0].id);
+		GraphManager.addNota(graphManager, GraphManager.DOT_RANK_NAME, "ModuleStage", deflateStage);
+		coordinator.processNota(graphManager, deflateStage);
+		return result;
+	}
+
 	private static boolean validateNoNulls(Pipe<ServerResponseSchema>[] outputPipes) {
 		
 		int i = outputPipes.length;
@@ -1047,6 +1193,11 @@ public class NetGraphBuilder {
 
 					routerConfig.registerCompositeRoute().path( getPathRoute(a));
 
+				} else if (a==0) {
+					
+					//resources are sent gzipped when the client accepts it
+					routerConfig.registerCompositeRoute(HTTPHeaderDefaults.ACCEPT_ENCODING).path( getPathRoute(a));
+					
 				} else {
 					
 					routerConfig.registerCompositeRoute().path( getPathRoute(a));
@@ -1287,8 +1438,8 @@ public class NetGraphBuilder {
 						FileReadModuleStage.newInstance(graphManager, inputPipes[i], staticFileOutputs[i], (HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults>) ((HTTP1xRouterStageConfig)routerConfig).httpSpec, new File(pathRoot));					
 					}
 						
-					routerConfig.registerCompositeRoute().path("/${path}");
-					//no headers requested
+					//the headers used for precompressed, conditional and range responses
+					routerConfig.registerCompositeRoute(FileReadModuleStage.REQUEST_HEADERS).path("/${path}");
 					
 				return staticFileOutputs;
 			}        
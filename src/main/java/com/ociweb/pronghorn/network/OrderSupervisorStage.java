@@ -22,7 +22,6 @@ import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 import com.ociweb.pronghorn.util.Appendables;
-import com.ociweb.pronghorn.util.ServiceObjectHolder;
 
 //TODO: should add feature of subscriptions here due to it being before the encryption stage.
 
@@ -37,6 +36,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
     
     private static final byte[] BYTES_NEWLINE = "\r\n".getBytes();
 	private static final int PAYLOAD_LENGTH_IDX = 5;
+	private static final int REQUEST_CONTEXT_IDX = 6;
 	private static final int SIZE_OF_TO_CHNL = Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOCHANNEL_100);
     public static final byte[] EMPTY = new byte[0];
     
@@ -77,7 +77,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
     public final int plainSize = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_PLAIN_210);
     private int shutdownCount;
     private boolean shutdownInProgress;
-	private ServiceObjectHolder<ServerConnection> socketHolder;
+	private final ServerCoordinator coordinator;
 	private ServerConnectionStruct conStruct;
 	private HTTPSpecification<HTTPContentTypeDefaults, HTTPRevisionDefaults, HTTPVerbDefaults, HTTPHeaderDefaults> spec;
 	private final long[] routeSLA;
@@ -120,7 +120,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
         this.channelBitsMask = coordinator.channelBitsMask;
         this.channelBitsSize = coordinator.channelBitsSize;
         this.isTLS = coordinator.isTLS;
-        this.socketHolder = ServerCoordinator.getSocketChannelHolder(coordinator);
+        this.coordinator = coordinator;
         
         this.conStruct = coordinator.connectionStruct();
         this.spec = coordinator.spec;
@@ -327,7 +327,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		boolean keepWorking;
 		//we already moved past this point
 		//this sequence just read is < the expected value
-		BaseConnection con = socketHolder.get(channelId);
+		BaseConnection con = ServerCoordinator.getConnection(coordinator, channelId);
 		if (null!=con) {
 			con.close();
 		}
@@ -445,7 +445,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 	}
 
 	private void finishHandshake(Pipe<NetPayloadSchema> outPipe, long channelId) {
-		BaseConnection con = socketHolder.get(channelId);			
+		BaseConnection con = ServerCoordinator.getConnection(coordinator, channelId);			
 		if (!SSLUtil.handshakeProcessing(outPipe, con)) {
 			//TODO: we must wait until later...
 		}
@@ -591,12 +591,18 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		
 		 int requestContext = Pipe.takeInt(input); //high 1 upgrade, 1 close low 20 target pipe	                     
 		 
+		 //file regions are sent alone so the socket writer can transfer them from the file
+		 final boolean fileRegion = 0 != (ServerCoordinator.FILE_REGION_MASK & requestContext);
+		 if (fileRegion && isTLS) {
+			 throw new UnsupportedOperationException("File regions can not be encrypted, FileReadModuleStage.sendFileRegions must be false for TLS servers");
+		 }
+		 
 		 
 		 final int blobMask = Pipe.blobMask(input);
 		 byte[] blob = Pipe.byteBackingArray(meta, input);
 		 final int bytePosition = Pipe.bytePosition(meta, input, len); //also move the position forward
 		
-		 BaseConnection con = socketHolder.get(channelId);
+		 BaseConnection con = ServerCoordinator.getConnection(coordinator, channelId);
 		 ChannelReaderController connectionDataReader = null;
 		 long arrivalTime = -1;
 		 long businessTime = -1;
@@ -617,7 +623,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 				 
 
 				 
-				 if (beginningOfResponse) {
+				 if (beginningOfResponse && !fileRegion) {
 					 HTTPHeader[] headersToEcho = conStruct.headersToEcho();
 					 if (null!=headersToEcho) {
 
@@ -661,10 +667,13 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		 boolean finishedFullReponse = true;//only false when we run out of room...
 		 int y = 0;
 		 //If a response was sent as multiple parts all part of the same sequence number then we roll them up as a single write when possible.
-		 while ( Pipe.peekMsg(input, ServerResponseSchema.MSG_TOCHANNEL_100) 
+		 //a following file region is not finished here, it is rolled back and sent as its own message
+		 while ( !fileRegion
+				 && Pipe.peekMsg(input, ServerResponseSchema.MSG_TOCHANNEL_100) 
 			 	 && Pipe.peekInt(input, 0xFF&ServerResponseSchema.MSG_TOCHANNEL_100_FIELD_SEQUENCENO_23) == expSeq 
 			 	 && Pipe.peekLong(input, 0xFF&ServerResponseSchema.MSG_TOCHANNEL_100_FIELD_CHANNELID_21) == channelId 
-			     && (finishedFullReponse =((len+Pipe.peekInt(input, PAYLOAD_LENGTH_IDX))<output.maxVarLen)) ) {
+			     && (finishedFullReponse =((len+Pipe.peekInt(input, PAYLOAD_LENGTH_IDX))<output.maxVarLen)
+			                              && 0 == (ServerCoordinator.FILE_REGION_MASK & Pipe.peekInt(input, REQUEST_CONTEXT_IDX))) ) {
 					 //this is still part of the current response so combine them together
 					
 			 		y++;
@@ -769,7 +778,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 			 Pipe.outputStream(output).debugAsUTF8();
 		 }
 		 
-		 writeToNextStage(output, myPipeIdx, channelId, requestContext); 
+		 writeToNextStage(output, myPipeIdx, channelId, requestContext, fileRegion); 
 		 	 
 		 
 		 assert(Pipe.bytesReadBase(input)>=0);
@@ -779,7 +788,7 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 	}
 
 	private int writeToNextStage(Pipe<NetPayloadSchema> output, int myPipeIdx,
-			final long channelId, int requestContext) {
+			final long channelId, int requestContext, boolean fileRegion) {
 		/////////////
 		 //if needed write out the upgrade message
 		 ////////////
@@ -806,7 +815,8 @@ public class OrderSupervisorStage extends PronghornStage { //AKA re-ordering sta
 		 
 		 int plainSize = Pipe.addMsgIdx(output, NetPayloadSchema.MSG_PLAIN_210);
 		 Pipe.addLongValue(channelId, output);
-		 Pipe.addLongValue(0, output); //TODO: is this time field needed to be sent? no....
+		 //TODO: is this time field needed to be sent? no.... only used to mark file regions for the writer
+		 Pipe.addLongValue(fileRegion ? FileRegions.REGION_MARKER : 0, output);
 		 Pipe.addLongValue(Pipe.getWorkingTailPosition(output), output);
 
 	 
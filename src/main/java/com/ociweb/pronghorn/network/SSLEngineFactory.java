@@ -1,13 +1,39 @@
 package com.ociweb.pronghorn.network;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SSLEngineFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(SSLEngineFactory.class);
+    
+    //sessions kept for resumption, per side, 0 for no limit
+    //stateless session tickets follow the JDK defaults, see jdk.tls.server.enableSessionTicketExtension
+    public static int sessionCacheSize = 10_000;
+    public static int sessionTimeoutSec = 3_600;
+
+    //session value set once a handshake is counted, found again when the session is resumed
+    private static final String COUNTED_KEY = SSLEngineFactory.class.getName();
+
     private TLSService privateService;
 	private final TLSCertificates certificates;
 
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	private final AtomicLong abbreviatedHandshakes = new AtomicLong();
+	private volatile boolean clientCacheConfigured;
+	private volatile boolean serverCacheConfigured;
+	private boolean hasHandshakeReporter;
+
     SSLEngineFactory(TLSCertificates certificates) {
         this.certificates = certificates;
     }
@@ -29,6 +55,85 @@ public class SSLEngineFactory {
     	getService();
     }
     
+    /**
+     * Called once per connection when its handshake is done.
+     * A resumed session still carries the value set when its first handshake was counted.
+     * Sessions restored from a server session ticket lose their values but keep the creation
+     * time of the original, which is then older than the connection.
+     */
+    void handshakeFinished(SSLEngine engine, long handshakeBeginMS, boolean isServer) {
+    	SSLSession session = engine.getSession();
+    	if (isServer ? !serverCacheConfigured : !clientCacheConfigured) {
+    		configureCache(session.getSessionContext(), isServer);
+    	}
+    	if (null!=session.getValue(COUNTED_KEY) || session.getCreationTime() < handshakeBeginMS) {
+    		abbreviatedHandshakes.incrementAndGet();
+    	} else {
+    		fullHandshakes.incrementAndGet();
+    	}
+    	session.putValue(COUNTED_KEY, Boolean.TRUE);
+    }
+
+    private void configureCache(SSLSessionContext context, boolean isServer) {
+    	if (null!=context) {
+    		context.setSessionCacheSize(sessionCacheSize);
+    		context.setSessionTimeout(sessionTimeoutSec);
+    	}
+    	if (isServer) {
+    		serverCacheConfigured = true;
+    	} else {
+    		clientCacheConfigured = true;
+    	}
+    }
+
+    /**
+     * TLSService does not expose its SSLContext so it is found by type. If it can not be
+     * found the caches are configured from the session of the first handshake on each side.
+     */
+    private void configureCaches(TLSService service) {
+    	try {
+    		Class<?> c = service.getClass();
+    		while (null!=c) {
+    			Field[] fields = c.getDeclaredFields();
+    			int i = fields.length;
+    			while (--i>=0) {
+    				if (SSLContext.class.isAssignableFrom(fields[i].getType())) {
+    					fields[i].setAccessible(true);
+    					SSLContext context = (SSLContext)fields[i].get(service);
+    					if (null!=context) {
+    						configureCache(context.getClientSessionContext(), false);
+    						configureCache(context.getServerSessionContext(), true);
+    						return;
+    					}
+    				}
+    			}
+    			c = c.getSuperclass();
+    		}
+    	} catch (Throwable t) {
+    		logger.debug("unable to reach the SSLContext, session caches set on first handshake", t);
+    	}
+    }
+
+    public long fullHandshakes() {
+    	return fullHandshakes.get();
+    }
+
+    public long abbreviatedHandshakes() {
+    	return abbreviatedHandshakes.get();
+    }
+
+    /**
+     * Many stages share this factory, only the first to ask reports the handshake counters
+     * so telemetry totals are not repeated.
+     */
+    synchronized boolean claimHandshakeReporter() {
+    	if (hasHandshakeReporter) {
+    		return false;
+    	}
+    	hasHandshakeReporter = true;
+    	return true;
+    }
+
     private TLSService getService() {
         if (privateService==null) {
             InputStream keyInputStream = null;
@@ -55,6 +160,7 @@ public class SSLEngineFactory {
                 privateService = TLSService.make(keyInputStream, keyStorePassword, 
                 		                         trustInputStream, keyPassword, 
                 		                         certificates.trustAllCerts());
+                configureCaches(privateService);
             }
             finally {
                 if (keyInputStream != null ) {
@@ -9,6 +9,7 @@ import com.ociweb.pronghorn.network.schema.ReleaseSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.CounterSource;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
 /**
@@ -17,7 +18,7 @@ import com.ociweb.pronghorn.stage.scheduling.GraphManager;
  * @author Nathan Tippy
  * @see <a href="https://github.com/objectcomputing/Pronghorn">Pronghorn</a>
  */
-public class SSLEngineUnWrapStage extends PronghornStage {
+public class SSLEngineUnWrapStage extends PronghornStage implements CounterSource {
 
 	private final SSLConnectionHolder ccm;
 	private final Pipe<NetPayloadSchema>[] encryptedContent; 
@@ -36,6 +37,7 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 	private int shutdownCount;
 	
 	private int idx;
+	private final boolean reportsHandshakes;
 
 	/**
 	 *
@@ -78,6 +80,8 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 
 		this.shutdownCount = encryptedContent.length;
 		
+		this.reportsHandshakes = ccm.engineFactory.claimHandshakeReporter();
+		
 		GraphManager.addNota(graphManager, GraphManager.HEAVY_COMPUTE, GraphManager.HEAVY_COMPUTE, this);
 		
 		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "bisque1", this);
@@ -207,4 +211,19 @@ public class SSLEngineUnWrapStage extends PronghornStage {
 	}
 	
 
+	@Override
+	public int counterCount() {
+		return reportsHandshakes ? 2 : 0;
+	}
+
+	@Override
+	public String counterName(int idx) {
+		return 0==idx ? "tlsFullHandshakes" : "tlsAbbreviatedHandshakes";
+	}
+
+	@Override
+	public long counterValue(int idx) {
+		return 0==idx ? ccm.engineFactory.fullHandshakes() : ccm.engineFactory.abbreviatedHandshakes();
+	}
+
 }
@@ -1,14 +1,17 @@
 package com.ociweb.pronghorn.network;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +31,37 @@ public class SSLUtil {
 
     public static final long HANDSHAKE_TIMEOUT = 180_000_000_000L; // 120 sec, this is a very large timeout for handshake to complete.
     public static final long HANDSHAKE_POS = -123;
+
+    //only found on Java 9 and later or Java 8 with the ALPN backport
+    private static final Method setApplicationProtocols = lookupApplicationProtocols();
+
+    private static Method lookupApplicationProtocols() {
+    	try {
+    		return SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+    	} catch (NoSuchMethodException e) {
+    		return null;
+    	}
+    }
+
+    /**
+     * Offers these protocols in the handshake by ALPN, in order of preference.
+     * Must be called before any other parameters are set on the engine.
+     * @return false if this JDK does not support ALPN
+     */
+    public static boolean offerApplicationProtocols(SSLEngine engine, String ... protocols) {
+    	if (null == setApplicationProtocols) {
+    		return false;
+    	}
+    	try {
+    		SSLParameters params = engine.getSSLParameters();
+    		setApplicationProtocols.invoke(params, (Object)protocols);
+    		engine.setSSLParameters(params);
+    		return true;
+    	} catch (Exception e) {
+    		logger.warn("unable to set application protocols", e);
+    		return false;
+    	}
+    }
     
 	
 	public static boolean handShakeWrapIfNeeded(BaseConnection cc, Pipe<NetPayloadSchema> target, ByteBuffer buffer, boolean isServer, long arrivalTime) {
@@ -618,6 +652,9 @@ public class SSLUtil {
 				}
 			}
 			//logger.trace("handshake not needed now continue sending data");
+			if (HandshakeStatus.NOT_HANDSHAKING == cc.getEngine().getHandshakeStatus()) {
+				cc.countHandshake(ccm.engineFactory, isServer);
+			}
 			
 			int msgIdx = Pipe.takeMsgIdx(source);
 			assert( NetPayloadSchema.MSG_PLAIN_210==msgIdx);
@@ -759,6 +796,7 @@ public class SSLUtil {
 					assert(null!=cc);
 					
 				}
+				cc.countHandshake(ccm.engineFactory, isServer);
 			} else {
 				
 				//this is EOF or the Begin message to be relayed
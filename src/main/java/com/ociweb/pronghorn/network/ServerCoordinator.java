@@ -1,6 +1,7 @@
 package com.ociweb.pronghorn.network;
 
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
 
 import org.slf4j.Logger;
@@ -30,8 +31,8 @@ public class ServerCoordinator extends SSLConnectionHolder {
 	
 	private final static Logger logger = LoggerFactory.getLogger(ServerCoordinator.class);
     
-	private final ServiceObjectHolder<ServerConnection> socketHolder;
-    private Selector                              selectors;
+	private final ServiceObjectHolder<ServerConnection>[] socketHolders; //one for each acceptor
+    private final Selector[]                      selectors;
     private MemberHolder                          subscriptions;
     private int[]                                 upgradePipeLookup;
     private ConnectionContext[]                   connectionContext; //NOTE: ObjectArrays would work very well here!!
@@ -43,6 +44,23 @@ public class ServerCoordinator extends SSLConnectionHolder {
     private final int                                  port;
     private final String                               bindHost;
 
+    //new connections are accepted and read by this many independent stage groups
+    //the low bits of each channel id hold the acceptor so lookups need no locks
+    public final int                                  acceptorBits;
+    public final int                                  acceptors;
+    public final int                                  acceptorMask;
+    private final int                                  inputsPerAcceptor;
+    private ServerSocketChannel                        sharedServer; //only used when SO_REUSEPORT is not supported
+
+    //when set an HTTP2ConnectionStage is placed on each track
+    public final boolean                              http2;
+    
+    //limits for each HTTPResponseCacheStage
+    public final long                                 responseCacheBytes;
+    public final int                                  responseCacheEntryBytes;
+
+    public final static int DEFLATE_RESPONSE_SHIFT       = 25;//body is to be gzipped by the HTTPResponseDeflateStage
+    public final static int FILE_REGION_SHIFT            = 26;//payload is a FileRegions descriptor not the bytes
     public final static int BEGIN_RESPONSE_SHIFT         = 27;
     public final static int INCOMPLETE_RESPONSE_SHIFT    = 28;
     public final static int END_RESPONSE_SHIFT           = 29;//for multi message send this high bit marks the end
@@ -51,13 +69,15 @@ public class ServerCoordinator extends SSLConnectionHolder {
     
     public final static int UPGRADE_TARGET_PIPE_MASK     = (1<<21)-1; 
 
+    public final static int DEFLATE_RESPONSE_MASK        = 1<<DEFLATE_RESPONSE_SHIFT;
+    public final static int FILE_REGION_MASK             = 1<<FILE_REGION_SHIFT;
     public final static int BEGIN_RESPONSE_MASK          = 1<<BEGIN_RESPONSE_SHIFT;	
     public final static int INCOMPLETE_RESPONSE_MASK     = 1<<INCOMPLETE_RESPONSE_SHIFT;
 	public final static int END_RESPONSE_MASK            = 1<<END_RESPONSE_SHIFT;
 	public final static int CLOSE_CONNECTION_MASK        = 1<<CLOSE_CONNECTION_SHIFT;
 	public final static int UPGRADE_MASK                 = 1<<UPGRADE_CONNECTION_SHIFT;
 
-	private final PoolIdx responsePipeLinePool;
+	private final PoolIdx[] responsePipeLinePools; //one for each acceptor
 	private final int[] processorLookup;
 	private final int moduleParallelism;
 	private final int concurrentPerModules;
@@ -117,6 +137,14 @@ public class ServerCoordinator extends SSLConnectionHolder {
 		this.serverResponseWrapUnitsAndOutputs = serverPipesConfig.serverResponseWrapUnitsAndOutputs;
 		this.serverSocketWriters = serverPipesConfig.serverSocketWriters;
 		
+		this.acceptorBits = acceptorBits(serverPipesConfig, isTLS);
+		this.acceptors = 1<<acceptorBits;
+		this.acceptorMask = acceptors-1;
+		this.inputsPerAcceptor = maxConcurrentInputs>>acceptorBits;
+		this.http2 = serverPipesConfig.http2;
+		this.responseCacheBytes = serverPipesConfig.responseCacheBytes;
+		this.responseCacheEntryBytes = serverPipesConfig.responseCacheEntryBytes;
+		
 		this.requireClientAuth = requireClientAuth;
 		this.scs = scs;
         this.port              = port;
@@ -126,17 +154,26 @@ public class ServerCoordinator extends SSLConnectionHolder {
           
         this.serviceName       = serviceName;
         this.defaultPath       = defaultPath.startsWith("/") ? defaultPath.substring(1) : defaultPath;
-    	this.responsePipeLinePool = new PoolIdx(maxConcurrentInputs, moduleParallelism); 
     	
     	this.processorLookup = Pipe.splitGroups(moduleParallelism, maxConcurrentInputs);
         this.concurrentPerModules = maxConcurrentInputs/moduleParallelism;
     	//  0 0 0 0 1 1 1 1 
     	// 	logger.info("processorLookup to bind connections to tracks {}",Arrays.toString(processorLookup));
     	
-        this.socketHolder = new ServiceObjectHolder<ServerConnection>(
-        		channelBits, 
-        		ServerConnection.class, 
-        		new SocketValidator(), false/*Do not grow*/);
+        //each acceptor owns a contiguous block of input pipes and the tracks which read them
+        this.responsePipeLinePools = new PoolIdx[acceptors];
+        this.isOk = new PipeLineFilter[acceptors];
+        this.socketHolders = new ServiceObjectHolder[acceptors];
+        this.selectors = new Selector[acceptors];
+        int a = acceptors;
+        while (--a>=0) {
+        	this.responsePipeLinePools[a] = new PoolIdx(inputsPerAcceptor, moduleParallelism>>acceptorBits);
+        	this.isOk[a] = new PipeLineFilter(a*inputsPerAcceptor);
+	        this.socketHolders[a] = new ServiceObjectHolder<ServerConnection>(
+	        		channelBits-acceptorBits, 
+	        		ServerConnection.class, 
+	        		new SocketValidator(), false/*Do not grow*/);
+        }
 
         serverPipesConfig.pcm.addConfig(NetGraphBuilder.buildRoutertoModulePipeConfig(this, serverPipesConfig));
         serverPipesConfig.pcm.addConfig(serverPipesConfig.orderWrapConfig()); 
@@ -154,14 +191,15 @@ public class ServerCoordinator extends SSLConnectionHolder {
     	}
     }
             
-    private PronghornStage firstStage;
+    private PronghornStage[] firstStages = new PronghornStage[0];
     
     public void shutdown() {
     	
-    	if (null!=firstStage) {
-    		firstStage.requestShutdown();
-    		firstStage = null;
+    	int i = firstStages.length;
+    	while (--i>=0) {
+    		firstStages[i].requestShutdown();
     	}
+    	firstStages = new PronghornStage[0];
    
     	
     //	logger.trace("Server pipe pool:\n {}",responsePipeLinePool);
@@ -177,52 +215,66 @@ public class ServerCoordinator extends SSLConnectionHolder {
     }
     
 	public void setStart(PronghornStage startStage) {
-		this.firstStage = startStage;
+		//one for each acceptor
+		PronghornStage[] temp = Arrays.copyOf(firstStages, firstStages.length+1);
+		temp[firstStages.length] = startStage;
+		this.firstStages = temp;
 	}
 	
 	
 	public void debugResponsePipeLine() {
-		logger.info(responsePipeLinePool.toString());
+		int a = responsePipeLinePools.length;
+		while (--a>=0) {
+			logger.info(responsePipeLinePools[a].toString());
+		}
 	}
 	
-	private PipeLineFilter isOk = new PipeLineFilter();
+	private final PipeLineFilter[] isOk;
 
 	public long[] routeSLALimits = new long[0];
 
 
 	
-	//NOT thread safe only called by ServerSocketReaderStage
+	//NOT thread safe only called by the ServerSocketReaderStage of this connections acceptor
+	//the returned index is relative to the input pipes of that acceptor
 	public int responsePipeLineIdx(final long ccId) {
-	
-		isOk.setId(ccId); //object resuse prevents CG here
-		return responsePipeLinePool.get(ccId, isOk);
+		final int acceptor = (int)(acceptorMask & ccId);
+		PipeLineFilter filter = isOk[acceptor];
+		filter.setId(ccId); //object resuse prevents CG here
+		return responsePipeLinePools[acceptor].get(ccId, filter);
 
 	}
 	
 	public int checkForResponsePipeLineIdx(long ccId) {
-		return PoolIdx.getIfReserved(responsePipeLinePool,ccId);
+		return PoolIdx.getIfReserved(responsePipeLinePools[(int)(acceptorMask & ccId)],ccId);
 	}	
 	
 	public void releaseResponsePipeLineIdx(long ccId) {		
-		responsePipeLinePool.release(ccId);	
+		responsePipeLinePools[(int)(acceptorMask & ccId)].release(ccId);	
 		//logger.info("after release we have {} locks",responsePipeLinePool.locks());
 	}
 	
 	public int resposePoolSize() {
-		return responsePipeLinePool.length();
+		return inputsPerAcceptor*acceptors;
 	}
     
 	public void setFirstUsage(Runnable run) {
-		responsePipeLinePool.setFirstUsageCallback(run);
+		int a = responsePipeLinePools.length;
+		while (--a>=0) {
+			responsePipeLinePools[a].setFirstUsageCallback(run);
+		}
 	}
 	
 	public void setLastUsage(Runnable run) {
-		responsePipeLinePool.setNoLocksCallback(run);
+		int a = responsePipeLinePools.length;
+		while (--a>=0) {
+			responsePipeLinePools[a].setNoLocksCallback(run);
+		}
 	}
 
 	@Override
 	public <B extends BaseConnection> B connectionForSessionId(long id) {
-		return (B)socketHolder.get(id);		
+		return (B)getConnection(this, id);		
 	}
 
     public int port() {
@@ -235,22 +287,73 @@ public class ServerCoordinator extends SSLConnectionHolder {
     
     
     public static ServiceObjectHolder<ServerConnection> newSocketChannelHolder(ServerCoordinator that) {
-        that.connectionContext = new ConnectionContext[that.channelBitsSize];
-        //must also create these long lived instances, this would be a good use case for StructuredArray and ObjectLayout
-        int i = that.channelBitsSize;
-        while (--i >= 0) {
-            that.connectionContext[i] = new ConnectionContext();
-        }
-        
-        that.upgradePipeLookup = new int[that.channelBitsSize];
-        Arrays.fill(that.upgradePipeLookup, -1);//if not upgraded it remains -1
-        
-        return that.socketHolder;
+    	//every acceptor has a reader which calls this on startup but these are shared
+    	synchronized(that) {
+    		if (null == that.connectionContext) {
+		        ConnectionContext[] local = new ConnectionContext[that.channelBitsSize];
+		        //must also create these long lived instances, this would be a good use case for StructuredArray and ObjectLayout
+		        int i = that.channelBitsSize;
+		        while (--i >= 0) {
+		            local[i] = new ConnectionContext();
+		        }
+		        
+		        that.upgradePipeLookup = new int[that.channelBitsSize];
+		        Arrays.fill(that.upgradePipeLookup, -1);//if not upgraded it remains -1
+		        that.connectionContext = local;
+    		}
+    	}
+        return that.socketHolders[0];
         		
     }
     
+    /**
+     * Holder for the connections of the first acceptor, when more than one acceptor
+     * is in use the channel ids do not match the holder index so use getConnection.
+     */
     public static ServiceObjectHolder<ServerConnection> getSocketChannelHolder(ServerCoordinator that) {
-        return that.socketHolder;
+        return that.socketHolders[0];
+    }
+    
+    public static ServerConnection getConnection(ServerCoordinator that, long channelId) {
+    	return that.socketHolders[(int)(that.acceptorMask & channelId)].get(channelId>>>that.acceptorBits);
+    }
+    
+    public static ServerConnection removeConnection(ServerCoordinator that, long channelId) {
+    	return that.socketHolders[(int)(that.acceptorMask & channelId)].remove(channelId>>>that.acceptorBits);
+    }
+    
+    /**
+     * Only called by the ServerNewConnectionStage of this acceptor.
+     * @return new channel id or negative if there is no free position
+     */
+    public static long lookupInsertPosition(ServerCoordinator that, int acceptor) {
+    	long local = that.socketHolders[acceptor].lookupInsertPosition();
+    	return local>=0 ? (local<<that.acceptorBits)|acceptor : local;
+    }
+    
+    public static void setConnection(ServerCoordinator that, long channelId, ServerConnection connection) {
+    	that.socketHolders[(int)(that.acceptorMask & channelId)].setValue(channelId>>>that.acceptorBits, connection);
+    }
+    
+    /**
+     * Acceptors are only split when the tracks and inputs can be divided evenly between them.
+     * TLS unwrap units share ack pipes across tracks so TLS servers always use a single acceptor.
+     */
+    private static int acceptorBits(ServerPipesConfig config, boolean isTLS) {
+    	int requested = config.acceptors;
+    	if (requested<=1) {
+    		return 0;
+    	}
+    	if (isTLS) {
+    		logger.warn("multiple acceptors are not supported with TLS, using one acceptor");
+    		return 0;
+    	}
+    	if ((config.moduleParallelism%requested != 0) || (config.maxConcurrentInputs%requested != 0)
+    		|| (Integer.bitCount(requested)!=1) || (requested > (1<<config.maxConnectionBitsOnServer))) {
+    		logger.warn("{} acceptors can not evenly divide {} tracks, using one acceptor", requested, config.moduleParallelism);
+    		return 0;
+    	}
+    	return Integer.numberOfTrailingZeros(requested);
     }
     
     public MemberHolder newMemberHolder() {
@@ -259,19 +362,20 @@ public class ServerCoordinator extends SSLConnectionHolder {
     
     private final class PipeLineFilter implements PoolIdxPredicate {
 		
+    	private final int base;
     	private int idx;
 		private int validValue;
 
-		private PipeLineFilter() {
-			
+		private PipeLineFilter(int base) {
+			this.base = base;
 		}
 
 		public void setId(long ccId) {
 			assert(maxConcurrentInputs == processorLookup.length);
 
 			//each connection should be in the next modules group of input pipes.
-			this.idx = ((int)ccId*concurrentPerModules)%maxConcurrentInputs;			
-			this.validValue = processorLookup[idx];
+			this.idx = ((int)(ccId>>>acceptorBits)*concurrentPerModules)%inputsPerAcceptor;			
+			this.validValue = processorLookup[base+idx];
 			
 			///logger.info("PipeLineFilter set ccId {} idx {} validValue {}", ccId, idx, validValue);
 			
@@ -279,7 +383,7 @@ public class ServerCoordinator extends SSLConnectionHolder {
 
 		@Override
 		public boolean isOk(final int i) {
-			return validValue == processorLookup[i]; 
+			return validValue == processorLookup[base+i]; 
 		}
 	}
     
@@ -328,7 +432,11 @@ public class ServerCoordinator extends SSLConnectionHolder {
 	
     
     public static Selector getSelector(ServerCoordinator that) {
-        return that.selectors;
+        return that.selectors[0];
+    }
+    
+    public static Selector getSelector(ServerCoordinator that, int acceptor) {
+        return that.selectors[acceptor];
     }
     
     public static ConnectionContext selectorKeyContext(ServerCoordinator that, long channelId) {
@@ -341,8 +449,24 @@ public class ServerCoordinator extends SSLConnectionHolder {
 
 
     public void registerSelector(Selector selector) {
-    	assert(null==selectors) : "Should not already have a value";
-        selectors = selector;
+    	registerSelector(0, selector);
+    }
+    
+    public void registerSelector(int acceptor, Selector selector) {
+    	assert(null==selectors[acceptor]) : "Should not already have a value";
+        selectors[acceptor] = selector;
+    }
+    
+    /**
+     * When SO_REUSEPORT is not available all the acceptors share one bound server socket,
+     * each still registers it with its own selector. The first caller binds it.
+     */
+    ServerSocketChannel sharedServer() {
+    	return sharedServer;
+    }
+    
+    void sharedServer(ServerSocketChannel server) {
+    	sharedServer = server;
     }
 
 	public String serviceName() {
@@ -5,6 +5,7 @@ import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
 import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -25,7 +26,6 @@ import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 import com.ociweb.pronghorn.util.Appendables;
-import com.ociweb.pronghorn.util.ServiceObjectHolder;
 
 /**
  * General base class for server construction.
@@ -57,6 +57,10 @@ public class ServerNewConnectionStage extends PronghornStage{
     private Pipe<ServerConnectionSchema> newClientConnections;
     private final String label;
     private boolean needsToNotifyStartup;
+    private final int acceptor; //index of this acceptor, each has its own selector and readers
+    
+    //only available on Java 9 and newer, null when not supported
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
     
 	public static ServerNewConnectionStage newIntance(GraphManager graphManager, ServerCoordinator coordinator, Pipe<ServerConnectionSchema> newClientConnections, boolean isTLS) {
 		return new ServerNewConnectionStage(graphManager,coordinator,newClientConnections);
@@ -71,6 +75,7 @@ public class ServerNewConnectionStage extends PronghornStage{
     public ServerNewConnectionStage(GraphManager graphManager, ServerCoordinator coordinator, Pipe<ServerConnectionSchema> newClientConnections) {
         super(graphManager, NONE, newClientConnections);
         this.coordinator = coordinator;
+        this.acceptor = 0;
         this.startupTimeNS = graphManager.startupTimeNS;        
         this.label = coordinator.host()+":"+coordinator.port();
         
@@ -93,8 +98,19 @@ public class ServerNewConnectionStage extends PronghornStage{
 	}
 	
     public ServerNewConnectionStage(GraphManager graphManager, ServerCoordinator coordinator) {
+    	this(graphManager, coordinator, 0);
+    }
+    
+    /**
+     *
+     * @param graphManager
+     * @param coordinator
+     * @param acceptor index of this acceptor, connections are registered with the selector of the same index
+     */
+    public ServerNewConnectionStage(GraphManager graphManager, ServerCoordinator coordinator, int acceptor) {
         super(graphManager, NONE, NONE);
         this.coordinator = coordinator;
+        this.acceptor = acceptor;
         this.startupTimeNS = graphManager.startupTimeNS;  
         this.label = coordinator.host()+":"+coordinator.port();
         
@@ -129,17 +145,20 @@ public class ServerNewConnectionStage extends PronghornStage{
 
     	try {
     		
-            //logger.info("startup of new server");
-    		//channel is not used until connected
-    		//once channel is closed it can not be opened and a new one must be created.
-    		server = ServerSocketChannel.open();
-    		
-    		//to ensure that this port can be re-used quickly for testing and other reasons
-    		server.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
-    		server.socket().setPerformancePreferences(1, 2, 0);
-    		server.socket().setSoTimeout(0);
-    		    		
-    		endPoint = bindAddressPort(coordinator.host(), coordinator.port());
+    		if (coordinator.acceptors>1 && null==SO_REUSEPORT) {
+    			//without SO_REUSEPORT the acceptors share one socket, each with its own selector
+    			synchronized(coordinator) {
+    				server = coordinator.sharedServer();
+    				if (null == server) {
+    					endPoint = openServer();
+    					coordinator.sharedServer(server);
+    				} else {
+    					endPoint = server.getLocalAddress();
+    				}
+    			}
+    		} else {
+    			endPoint = openServer();
+    		}
             
             ServerSocketChannel channel = (ServerSocketChannel)server.configureBlocking(false);
 
@@ -178,6 +197,33 @@ public class ServerNewConnectionStage extends PronghornStage{
         
     }
 
+	private SocketAddress openServer() throws IOException {
+		//logger.info("startup of new server");
+		//channel is not used until connected
+		//once channel is closed it can not be opened and a new one must be created.
+		server = ServerSocketChannel.open();
+		
+		//to ensure that this port can be re-used quickly for testing and other reasons
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+		if (coordinator.acceptors>1) {
+			//each acceptor binds the same port and the kernel spreads the new connections
+			server.setOption(SO_REUSEPORT, Boolean.TRUE);
+		}
+		server.socket().setPerformancePreferences(1, 2, 0);
+		server.socket().setSoTimeout(0);
+		    		
+		return bindAddressPort(coordinator.host(), coordinator.port());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	private void extractHostString(SocketAddress endPoint) {
 		//trim of local domain name when present.
 		host = endPoint.toString();
@@ -196,6 +242,9 @@ public class ServerNewConnectionStage extends PronghornStage{
 	}
 
 	private void reportServerIsRunning(String host) {
+		if (acceptor>0) {
+			return;//only report once for the whole server
+		}
 		//ensure reporting is done together
 		synchronized(logger) {
 			System.out.println();
@@ -343,9 +392,7 @@ public class ServerNewConnectionStage extends PronghornStage{
 		int readyOps = key.readyOps();
 		                    
 		  if (0 != (SelectionKey.OP_ACCEPT & readyOps)) {
-		      ServiceObjectHolder<ServerConnection> holder = ServerCoordinator.getSocketChannelHolder(coordinator);
-
-		      long channelId = holder.lookupInsertPosition();	        
+		      long channelId = ServerCoordinator.lookupInsertPosition(coordinator, acceptor);	        
 		     // logger.info("\nnew connection {}",channelId);
 		      	                      
 		      if (channelId>=0) {		                    
@@ -354,6 +401,11 @@ public class ServerNewConnectionStage extends PronghornStage{
 		                                		          
 		          try {                          
 		        	  SocketChannel channel = server.accept();
+		        	  if (null == channel) {
+		        		  //another acceptor sharing this socket took the connection
+		        		  doneSelectors.add(key);
+		        		  return;
+		        	  }
 		              channel.configureBlocking(false);
 		              
 		              //TCP_NODELAY is required for HTTP/2 get used to it being on now.
@@ -364,6 +416,9 @@ public class ServerNewConnectionStage extends PronghornStage{
 		              if (coordinator.isTLS) {
 						  sslEngine = coordinator.engineFactory.createSSLEngine();//// not needed for server? host, port);
 						  sslEngine.setUseClientMode(false); //here just to be complete and clear
+						  if (coordinator.http2) {
+							  SSLUtil.offerApplicationProtocols(sslEngine, "h2", "http/1.1");
+						  }
 						  // sslEngine.setNeedClientAuth(true); //only if the auth is required to have a connection
 						  // sslEngine.setWantClientAuth(true); //the auth is optional
 						  sslEngine.setNeedClientAuth(coordinator.requireClientAuth); //required for openSSL/boringSSL
@@ -372,7 +427,7 @@ public class ServerNewConnectionStage extends PronghornStage{
 		              }
 					  							  
 					  
-		              holder.setValue(channelId, 
+		              ServerCoordinator.setConnection(coordinator, channelId, 
 		            		  		  new ServerConnection(sslEngine, 
 		            		  				  		       channel, channelId,
 		            				                       coordinator)
@@ -381,7 +436,7 @@ public class ServerNewConnectionStage extends PronghornStage{
 		             //logger.info("\naccepting new connection {}",channelId); 
 		        		                                                                                                                
 		             // logger.info("register new data to selector for pipe {}",targetPipeIdx);
-		              channel.register(ServerCoordinator.getSelector(coordinator), 
+		              channel.register(ServerCoordinator.getSelector(coordinator, acceptor), 
 							           SelectionKey.OP_READ, 
 							           ServerCoordinator.selectorKeyContext(coordinator, channelId));
 						
@@ -3,6 +3,7 @@ package com.ociweb.pronghorn.network;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ociweb.pronghorn.network.http.HTTPResponseCacheStage;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
 import com.ociweb.pronghorn.network.schema.ReleaseSchema;
@@ -54,6 +55,13 @@ public class ServerPipesConfig {
     public final PipeConfigManager pcm; //TODO: move all the above configs to this PCM...
     
 	public int writeBufferMultiplier;
+	
+	public int acceptors = 1; //count of acceptor and socket reader groups, must be a power of 2 which divides the tracks
+	
+	public boolean http2 = false; //when set HTTP/2 connections are accepted along with HTTP/1.1
+	
+	public long responseCacheBytes = HTTPResponseCacheStage.DEFAULT_CACHE_BYTES; //held by each response cache
+	public int responseCacheEntryBytes = HTTPResponseCacheStage.DEFAULT_ENTRY_BYTES; //larger responses are not cached
 
 	public ServerPipesConfig(LogFileConfig logFile, boolean isTLS, 
 							 int maxConnectionBits,
@@ -41,12 +41,16 @@ public class ServerSocketReaderStage extends PronghornStage {
     private final Pipe<NetPayloadSchema>[] output;
     private final Pipe<ReleaseSchema>[] releasePipes;
     private final ServerCoordinator coordinator;
+    private final int acceptor;
 
     private Selector selector;
     
     
     public static boolean showRequests = false;
     
+    //extra reads of one ready socket within a single pass, 0 reads once per select
+    public static int maxDrainReads = 4;
+    
     private boolean shutdownInProgress;
     private final String label;
 
@@ -66,8 +70,21 @@ public class ServerSocketReaderStage extends PronghornStage {
 	 * @param coordinator
 	 */
 	public ServerSocketReaderStage(GraphManager graphManager, Pipe<ReleaseSchema>[] ack, Pipe<NetPayloadSchema>[] output, ServerCoordinator coordinator) {
+		this(graphManager, ack, output, coordinator, 0);
+	}
+	
+	/**
+	 *
+	 * @param graphManager
+	 * @param ack _in_ The release acknowledgment from the routers of this acceptor.
+	 * @param output _out_ The read payload from the socket, only the input pipes of this acceptor.
+	 * @param coordinator
+	 * @param acceptor index of the acceptor whose connections are read by this stage
+	 */
+	public ServerSocketReaderStage(GraphManager graphManager, Pipe<ReleaseSchema>[] ack, Pipe<NetPayloadSchema>[] output, ServerCoordinator coordinator, int acceptor) {
         super(graphManager, ack, output);
         this.coordinator = coordinator;
+        this.acceptor = acceptor;
 
         this.label = "\n"+coordinator.host()+":"+coordinator.port()+"\n";
         
@@ -102,7 +119,7 @@ public class ServerSocketReaderStage extends PronghornStage {
         ServerCoordinator.newSocketChannelHolder(coordinator);
                 
         try {
-            coordinator.registerSelector(selector = Selector.open());
+            coordinator.registerSelector(acceptor, selector = Selector.open());
         } catch (IOException e) {
            throw new RuntimeException(e);
         }
@@ -296,6 +313,21 @@ public class ServerSocketReaderStage extends PronghornStage {
 							                                output[responsePipeLineIdx], 
 							                                newBeginning, 
 							                                cc, selection); 
+					
+					//the last read filled all the space we offered so the socket may hold more,
+					//drain it now as edge triggered epoll would instead of waiting for another select pass
+					int drains = maxDrainReads;
+					while (0 == pumpState 
+						   && --drains >= 0
+						   && selection.isValid()
+						   && cc.getPoolReservation() == responsePipeLineIdx
+						   && Pipe.hasRoomForWrite(output[responsePipeLineIdx])) {
+						pumpState = pumpByteChannelIntoPipe(socketChannel, channelId, 
+								                            cc.getSequenceNo(),
+								                            output[responsePipeLineIdx], 
+								                            false, 
+								                            cc, selection);
+					}
 		            					
 					if (pumpState > 0) { 
 		            	//logger.info("remove this selection "+channelId);
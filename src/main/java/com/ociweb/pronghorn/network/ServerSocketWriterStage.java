@@ -5,6 +5,7 @@ import java.net.StandardSocketOptions;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 
@@ -54,6 +55,22 @@ public class ServerSocketWriterStage extends PronghornStage {
     private int maxBatchCount;
 
 	private static final boolean enableWriteBatching = true;  
+	
+	//when true merged responses are sent with one gathering write over the pipe blob
+	//instead of being copied into the working buffer first, the pipe space is held until written
+	public static boolean gatherWrites = false;
+	public static int maxGatherSlices = 64;      //iovec limit for one write, each message uses 1 or 2
+	public static int maxGatherBytes  = 1<<20;   //bytes limit for one write
+	
+	private boolean       gather;
+	private ByteBuffer    gatherSlices[][];
+	private int           gatherCount[];
+	private long          gatherRemaining[];
+	
+	//file region being sent with transferTo, remaining is -1 when there is none
+	private FileChannel   regionChannel[];
+	private long          regionPosition[];
+	private long          regionRemaining[];
     
 
 	private final boolean debugWithSlowWrites = false; //TODO: set from coordinator, NOTE: this is a critical piece of the tests
@@ -134,6 +151,21 @@ public class ServerSocketWriterStage extends PronghornStage {
     	activeMessageIds = new int[c];
     	Arrays.fill(activeTails, -1);   	
     	
+    	regionChannel = new FileChannel[c];
+    	regionPosition = new long[c];
+    	regionRemaining = new long[c];
+    	Arrays.fill(regionRemaining, -1);
+    	
+    	gather = gatherWrites;
+    	if (gather) {
+    		if (maxGatherSlices<2) {
+    			throw new UnsupportedOperationException("maxGatherSlices must be at least 2");
+    		}
+    		gatherSlices = new ByteBuffer[c][maxGatherSlices];
+    		gatherCount = new int[c];
+    		gatherRemaining = new long[c];
+    	}
+    	
 		int j = c;
 		while (--j>=0) {
 			//warning: this is the entire ring and may be too large.
@@ -178,7 +210,9 @@ public class ServerSocketWriterStage extends PronghornStage {
 	 
 	    			ByteBuffer localWorkingBuffer = workingBuffers[x];
 	    			
-	    			boolean hasRoomToWrite = localWorkingBuffer.capacity()-localWorkingBuffer.limit() > localInput.maxVarLen;
+	    			boolean hasRoomToWrite = gather 
+	    					? hasRoomToGather(x)
+	    					: localWorkingBuffer.capacity()-localWorkingBuffer.limit() > localInput.maxVarLen;
 	    			//note writeToChannelBatchCountDown is set to zero when nothing else can be combined...
 	    			if (--writeToChannelBatchCountDown[x]<=0 
 	    				|| !hasRoomToWrite
@@ -188,6 +222,15 @@ public class ServerSocketWriterStage extends PronghornStage {
 		    			if (!(doingWork = writeDataToChannel(x))) {
 		    				break;//network blocked so try again later 
 		    			}	
+	    			} else if (gather) {
+	    				
+	    				while (isNextMessageMergeable(localInput, writeToChannelMsg[x], x, writeToChannelId[x], false) ) {
+	    					mergeNextMessage(writeToChannelMsg[x], x, localInput, writeToChannelId[x]);
+	    				}
+	    				if (Pipe.hasContentToRead(localInput)) {
+	    					writeToChannelBatchCountDown[x] = 0;//send now nothing else is mergable
+	    				}
+	    				
 	    			} else {
 	    				
 	    				//unflip
@@ -249,20 +292,15 @@ public class ServerSocketWriterStage extends PronghornStage {
 		    assert(Pipe.contentRemaining(input[idx])>=0);
 		 
 		    coordinator.releaseResponsePipeLineIdx(channelId);//upon disconnect let go of pipe reservation
-		    ServiceObjectHolder<ServerConnection> socketHolder = ServerCoordinator.getSocketChannelHolder(coordinator);
-    
-		    if (null!=socketHolder) {
-		    	//logger.info("removed server id {}",channelId);
-                //new Exception("removed server id "+channelId).printStackTrace();
-                
-		    	//we are disconnecting so we will remove the connection from the holder.
-		        ServerConnection serverConnection = socketHolder.remove(channelId);	          
-		        assert(null != serverConnection);
-		        if (null != serverConnection) {
-		        	//do not close since it is still known to sequence.
-		        	serverConnection.decompose();
-		        }
-		    }	     
+		    //logger.info("removed server id {}",channelId);
+		    //new Exception("removed server id "+channelId).printStackTrace();
+		    //we are disconnecting so we will remove the connection from the holder.
+		    ServerConnection serverConnection = ServerCoordinator.removeConnection(coordinator, channelId);	          
+		    assert(null != serverConnection);
+		    if (null != serverConnection) {
+		    	//do not close since it is still known to sequence.
+		    	serverConnection.decompose();
+		    }
 	   
 		    
 		    
@@ -327,7 +365,7 @@ public class ServerSocketWriterStage extends PronghornStage {
         ServiceObjectHolder<ServerConnection> socketHolder = ServerCoordinator.getSocketChannelHolder(coordinator);
         
         if (null!=socketHolder) {
-	        ServerConnection serverConnection = socketHolder.get(channelId);
+	        ServerConnection serverConnection = ServerCoordinator.getConnection(coordinator, channelId);
 	        	        
 	        //only write if this connection is still valid
 	        if (null != serverConnection) {        
@@ -344,9 +382,34 @@ public class ServerSocketWriterStage extends PronghornStage {
 	        	writeToChannelMsg[idx] = msgIdx;
 	        	writeToChannelBatchCountDown[idx] = maxBatchCount;
 
+	        	if (FileRegions.REGION_MARKER == arrivalTime && NetPayloadSchema.MSG_PLAIN_210 == msgIdx) {
+	        		loadFileRegion(idx, pipe, meta, len);
+	        		Pipe.confirmLowLevelRead(pipe, msgSize);
+	        		Pipe.releaseReadLock(pipe);
+	        		writeToChannelBatchCountDown[idx] = 0;//regions are never merged so send now
+	        		return;
+	        	}
 	        	
 		        ByteBuffer[] writeBuffs = Pipe.wrappedReadingBuffers(pipe, meta, len);
 		        
+		        if (gather) {
+		        	gatherCount[idx] = 0;
+		        	gatherRemaining[idx] = 0;
+		        	addGatherSlices(idx, writeBuffs);
+		        	
+		        	Pipe.confirmLowLevelRead(input[idx], msgSize);		        
+		        	Pipe.readNextWithoutReleasingReadLock(input[idx]);
+		        	
+		        	while (enableWriteBatching && isNextMessageMergeable(pipe, msgIdx, idx, channelId, false) ) {	
+		        		mergeNextMessage(msgIdx, idx, pipe, channelId);
+		        	}
+		        	if (Pipe.hasContentToRead(pipe)) {
+		        		writeToChannelBatchCountDown[idx] = 0;//send now nothing else is mergable
+		        	}
+		        	//the read lock is held until the slices are written
+		        	return;
+		        }
+		        
 		        checkBuffers(idx, pipe, writeToChannel[idx]);
 		        //lazy allocate since we need to wait for a socket to be created.
 		        if (null == workingBuffers[idx]) {
@@ -410,6 +473,55 @@ public class ServerSocketWriterStage extends PronghornStage {
                 
     }
 
+	private void loadFileRegion(int idx, Pipe<NetPayloadSchema> pipe, int meta, int len) {
+		assert(FileRegions.DESCRIPTOR_SIZE == len) : "bad file region descriptor length "+len;
+		byte[] blob = Pipe.byteBackingArray(meta, pipe);
+		int pos = Pipe.bytePosition(meta, pipe, len);
+		int mask = Pipe.blobMask(pipe);
+		
+		regionChannel[idx] = FileRegions.lookup(FileRegions.readId(blob, pos, mask));
+		regionPosition[idx] = FileRegions.readPosition(blob, pos, mask);
+		regionRemaining[idx] = FileRegions.readCount(blob, pos, mask);
+	}
+	
+	private boolean writeRegionToChannel(int idx) {
+		boolean done = true;
+		FileChannel file = regionChannel[idx];
+		if (null == file) {
+			//the module closed this file before we could send it, the response can not be completed
+			logger.warn("file region is no longer open, closing connection {}", writeToChannelId[idx]);
+			closeChannel(writeToChannel[idx]);
+		} else {
+			try {
+				long written = 0;
+				while (regionRemaining[idx]>0 
+					   && (written = file.transferTo(regionPosition[idx], regionRemaining[idx], writeToChannel[idx]))>0) {
+					regionPosition[idx] += written;
+					regionRemaining[idx] -= written;
+					totalBytesWritten += written;
+				}
+				if (regionRemaining[idx]>0) {
+					if (regionPosition[idx] >= file.size()) {
+						//file was truncated after the header was sent
+						logger.warn("file region ended early, closing connection {}", writeToChannelId[idx]);
+						closeChannel(writeToChannel[idx]);
+					} else {
+						done = false;//socket is full, try again later
+					}
+				}
+			} catch (IOException e) {
+				closeChannel(writeToChannel[idx]);
+				//unable to write to this socket, treat as closed
+			}
+		}
+		if (done) {
+			regionChannel[idx] = null;
+			regionRemaining[idx] = -1;
+			markDoneAndRelease(idx);
+		}
+		return done;
+	}
+
 	private void mergeNextMessage(final int msgIdx, final int idx, Pipe<NetPayloadSchema> pipe, final long channelId) {
 		
 		final boolean takeTail = NetPayloadSchema.MSG_PLAIN_210 == msgIdx;
@@ -431,8 +543,12 @@ public class ServerSocketWriterStage extends PronghornStage {
 		int len2 = Pipe.takeByteArrayLength(pipe);
 		ByteBuffer[] writeBuffs2 = Pipe.wrappedReadingBuffers(pipe, meta2, len2);
 		
-		workingBuffers[idx].put(writeBuffs2[0]);
-		workingBuffers[idx].put(writeBuffs2[1]);
+		if (gather) {
+			addGatherSlices(idx, writeBuffs2);
+		} else {
+			workingBuffers[idx].put(writeBuffs2[0]);
+			workingBuffers[idx].put(writeBuffs2[1]);
+		}
 		
 		assert(!writeBuffs2[0].hasRemaining());
 		assert(!writeBuffs2[1].hasRemaining());
@@ -454,9 +570,78 @@ public class ServerSocketWriterStage extends PronghornStage {
 		
 		return  Pipe.hasContentToRead(pipe) && 
 				Pipe.peekInt(pipe)==msgIdx && 
-				workingBuffers[idx].remaining()>pipe.maxVarLen && 
+				(NetPayloadSchema.MSG_PLAIN_210!=msgIdx || Pipe.peekLong(pipe, 3)!=FileRegions.REGION_MARKER) &&
+				(gather ? hasRoomToGather(idx) : workingBuffers[idx].remaining()>pipe.maxVarLen) && 
 				Pipe.peekLong(pipe, 1)==channelId;
 	}
+	
+	private boolean hasRoomToGather(int idx) {
+		return gatherCount[idx]+2 <= gatherSlices[idx].length 
+			&& gatherRemaining[idx] < maxGatherBytes;
+	}
+	
+	/**
+	 * Points the next gather slices at the same blob bytes as the wrapped reading buffers.
+	 * The slices wrap the whole blob array once and are only moved so no garbage is made.
+	 */
+	private void addGatherSlices(int idx, ByteBuffer[] source) {
+		int i = 0;
+		while (i<source.length) {
+			ByteBuffer src = source[i++];
+			int len = src.remaining();
+			if (len>0) {
+				ByteBuffer[] slices = gatherSlices[idx];
+				int c = gatherCount[idx]++;
+				ByteBuffer slice = slices[c];
+				if (null==slice || slice.array()!=src.array()) {
+					slices[c] = slice = ByteBuffer.wrap(src.array());
+				}
+				int start = src.arrayOffset()+src.position();
+				((Buffer)slice).limit(slice.capacity());
+				((Buffer)slice).position(start);
+				((Buffer)slice).limit(start+len);
+				((Buffer)src).position(src.limit());//consumed, same as the put into the working buffer
+				gatherRemaining[idx] += len;
+			}
+		}
+	}
+	
+	private boolean writeGatheredToChannel(int idx) {
+		boolean done = true;
+		try {
+			ByteBuffer[] slices = gatherSlices[idx];
+			int count = gatherCount[idx];
+			long bytesWritten = 0;
+			do {
+				bytesWritten = writeToChannel[idx].write(slices, 0, count);
+				if (bytesWritten>0) {
+					totalBytesWritten+=bytesWritten;
+					gatherRemaining[idx]-=bytesWritten;
+				} else {
+					break;
+				}
+			} while (gatherRemaining[idx]>0);
+			
+			if (gatherRemaining[idx]<=0) {
+				finishGather(idx);
+			} else {
+				done = false;
+			}
+		} catch (IOException e) {
+			closeChannel(writeToChannel[idx]);
+			//unable to write to this socket, treat as closed
+			finishGather(idx);
+		}
+		return done;
+	}
+
+	private void finishGather(int idx) {
+		gatherCount[idx] = 0;
+		gatherRemaining[idx] = 0;
+		//now that the bytes are in the socket the pipe space can be used again
+		Pipe.releaseAllPendingReadLock(input[idx]);
+		markDoneAndRelease(idx);
+	}
     
 	private void checkBuffers(int i, Pipe<NetPayloadSchema> pipe, SocketChannel socketChannel) {
 		if (!bufferChecked[i]) {
@@ -479,6 +664,13 @@ public class ServerSocketWriterStage extends PronghornStage {
 	}
 
     private boolean writeDataToChannel(int idx) {
+    	
+    		if (regionRemaining[idx]>=0) {
+    			return writeRegionToChannel(idx);
+    		}
+    		if (gather) {
+    			return writeGatheredToChannel(idx);
+    		}
 
     		boolean done = true;
     		if (!debugWithSlowWrites) {
@@ -18,4 +18,12 @@ public interface CompositeRouteFinish {
 	CompositeRouteFinish defaultDecimal(String key, long m, byte e);	
 	CompositeRouteFinish defaultRational(String key, long numerator, long denominator);
 	CompositeRouteFinish associatedObject(String key, Object associatedObject);
+	
+	/**
+	 * Successful GET responses for this route are kept for ttlMS and sent again
+	 * without calling the module when the same request arrives.
+	 * 
+	 * @param ttlMS time each response may be reused
+	 */
+	CompositeRouteFinish cacheResponses(long ttlMS);
 }
@@ -107,6 +107,7 @@ public class CompositeRouteImpl implements CompositeRoute {
 		TrieParser headerParser = new TrieParser(256,4,skipDeepChecks,supportsExtraction,ignoreCase);
 
 		HTTPUtil.addHeader(headerParser,HTTPSpecification.END_OF_HEADER_ID,"");
+		long[] headerFilter = HeaderScan.newFilter();
 		
 		boolean headerContentLength = false;
 		boolean headerTransferEncodeing = false;
@@ -133,18 +134,22 @@ public class CompositeRouteImpl implements CompositeRoute {
 				}
 				
 				HTTPUtil.addHeader(scs.registry, structId, headerParser, header);
+				HeaderScan.addToFilter(headerFilter, header);
 			}
 			
 		}
 		
 		if (!headerContentLength) {
 			HTTPUtil.addHeader(scs.registry, structId, headerParser, HTTPHeaderDefaults.CONTENT_LENGTH);
+			HeaderScan.addToFilter(headerFilter, HTTPHeaderDefaults.CONTENT_LENGTH);
 		}
 		if (!headerTransferEncodeing) {
 			HTTPUtil.addHeader(scs.registry, structId, headerParser, HTTPHeaderDefaults.TRANSFER_ENCODING);
+			HeaderScan.addToFilter(headerFilter, HTTPHeaderDefaults.TRANSFER_ENCODING);
 		}
 		if (!headerConnection) {
 			HTTPUtil.addHeader(scs.registry, structId, headerParser, HTTPHeaderDefaults.CONNECTION);
+			HeaderScan.addToFilter(headerFilter, HTTPHeaderDefaults.CONNECTION);
 		}
 				
 		HTTPHeader[] toEcho = scs.headersToEcho();
@@ -152,12 +157,13 @@ public class CompositeRouteImpl implements CompositeRoute {
 			int h = toEcho.length;
 			while (--h >= 0) {
 				HTTPUtil.addHeader(scs.registry, structId, headerParser, toEcho[h]);
+				HeaderScan.addToFilter(headerFilter, toEcho[h]);
 			}
 		}
 		
 		HTTPUtil.addHeader(headerParser,HTTPSpecification.UNKNOWN_HEADER_ID,"%b: %b");
 
-		config.storeRouteHeaders(routeId, headerParser);	
+		config.storeRouteHeaders(routeId, headerParser, headerFilter);	
 		
 	}
 
@@ -255,5 +261,11 @@ public class CompositeRouteImpl implements CompositeRoute {
 		return this;
 	}
 
+	@Override
+	public CompositeRouteFinish cacheResponses(long ttlMS) {
+		config.cacheRoute(routeId, ttlMS);
+		return this;
+	}
+
 
 }
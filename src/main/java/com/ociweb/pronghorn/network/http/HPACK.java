@@ -0,0 +1,600 @@
+package com.ociweb.pronghorn.network.http;
+
+import java.nio.charset.Charset;
+
+/**
+ * Header compression for HTTP/2 as defined in RFC 7541.
+ * One Decoder and one Encoder are held for each connection since both
+ * sides keep their own dynamic table in step with the peer.
+ *
+ * Both are garbage free after construction, the dynamic table is stored
+ * in a ring of bytes which is never larger than the max table size.
+ */
+public final class HPACK {
+
+	public static final int DEFAULT_TABLE_SIZE = 4096;
+	//each entry costs its name and value plus this overhead
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private static final String[][] STATIC = new String[][] {
+		{":authority", ""},
+		{":method", "GET"},
+		{":method", "POST"},
+		{":path", "/"},
+		{":path", "/index.html"},
+		{":scheme", "http"},
+		{":scheme", "https"},
+		{":status", "200"},
+		{":status", "204"},
+		{":status", "206"},
+		{":status", "304"},
+		{":status", "400"},
+		{":status", "404"},
+		{":status", "500"},
+		{"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"},
+		{"accept-language", ""},
+		{"accept-ranges", ""},
+		{"accept", ""},
+		{"access-control-allow-origin", ""},
+		{"age", ""},
+		{"allow", ""},
+		{"authorization", ""},
+		{"cache-control", ""},
+		{"content-disposition", ""},
+		{"content-encoding", ""},
+		{"content-language", ""},
+		{"content-length", ""},
+		{"content-location", ""},
+		{"content-range", ""},
+		{"content-type", ""},
+		{"cookie", ""},
+		{"date", ""},
+		{"etag", ""},
+		{"expect", ""},
+		{"expires", ""},
+		{"from", ""},
+		{"host", ""},
+		{"if-match", ""},
+		{"if-modified-since", ""},
+		{"if-none-match", ""},
+		{"if-range", ""},
+		{"if-unmodified-since", ""},
+		{"last-modified", ""},
+		{"link", ""},
+		{"location", ""},
+		{"max-forwards", ""},
+		{"proxy-authenticate", ""},
+		{"proxy-authorization", ""},
+		{"range", ""},
+		{"referer", ""},
+		{"refresh", ""},
+		{"retry-after", ""},
+		{"server", ""},
+		{"set-cookie", ""},
+		{"strict-transport-security", ""},
+		{"transfer-encoding", ""},
+		{"user-agent", ""},
+		{"vary", ""},
+		{"via", ""},
+		{"www-authenticate", ""}
+	};
+
+	private static final byte[][] STATIC_NAMES = new byte[STATIC.length][];
+	private static final byte[][] STATIC_VALUES = new byte[STATIC.length][];
+
+	//code lengths from RFC 7541 Appendix B, the codes are canonical so they are rebuilt from these
+	private static final byte[] HUFFMAN_LENGTHS = new byte[] {
+		13,23,28,28,28,28,28,28,28,24,30,28,28,30,28,28,28,28,28,28,28,28,30,28,28,28,28,28,28,28,28,28,
+		6,10,10,12,13,6,8,11,10,10,8,11,8,6,6,6,5,5,5,6,6,6,6,6,6,6,7,8,15,6,12,10,
+		13,6,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,8,7,8,13,19,13,14,6,
+		15,5,6,5,6,5,6,6,6,5,7,7,6,6,6,5,6,7,6,5,5,6,7,7,7,7,7,15,11,14,13,28,
+		20,22,20,20,22,22,22,23,22,23,23,23,23,23,24,23,24,24,22,23,24,23,23,23,23,21,22,23,22,23,23,24,
+		22,21,20,22,22,23,23,21,23,22,22,24,21,22,23,23,21,21,22,21,23,22,23,23,20,22,22,22,23,22,22,23,
+		26,26,20,19,22,23,22,25,26,26,26,27,27,26,24,25,19,21,26,27,27,26,27,24,21,21,26,26,28,27,27,27,
+		20,24,20,21,22,21,21,23,22,22,25,25,24,24,26,23,26,27,26,26,27,27,27,27,27,28,27,27,27,27,27,26,
+		30 //EOS
+	};
+	private static final int HUFFMAN_EOS = 256;
+	private static final int HUFFMAN_MAX_BITS = 30;
+
+	//canonical decoding tables, first code and first symbol offset for each length
+	private static final int[] huffFirstCode = new int[HUFFMAN_MAX_BITS+2];
+	private static final int[] huffCount = new int[HUFFMAN_MAX_BITS+2];
+	private static final int[] huffOffset = new int[HUFFMAN_MAX_BITS+2];
+	private static final int[] huffSymbols = new int[HUFFMAN_LENGTHS.length];
+
+	static {
+		int i = STATIC.length;
+		while (--i>=0) {
+			STATIC_NAMES[i] = STATIC[i][0].getBytes(US_ASCII);
+			STATIC_VALUES[i] = STATIC[i][1].getBytes(US_ASCII);
+		}
+
+		int s = HUFFMAN_LENGTHS.length;
+		while (--s>=0) {
+			huffCount[HUFFMAN_LENGTHS[s]]++;
+		}
+		int code = 0;
+		int offset = 0;
+		for (int len = 1; len <= HUFFMAN_MAX_BITS; len++) {
+			code = (code + huffCount[len-1]) << 1;
+			huffFirstCode[len] = code;
+			huffOffset[len] = offset;
+			offset += huffCount[len];
+		}
+		//symbols in canonical order, by length then by value
+		int[] fill = new int[HUFFMAN_MAX_BITS+2];
+		for (int sym = 0; sym < HUFFMAN_LENGTHS.length; sym++) {
+			int len = HUFFMAN_LENGTHS[sym];
+			huffSymbols[huffOffset[len]+fill[len]++] = sym;
+		}
+	}
+
+	private HPACK() {
+	}
+
+	/**
+	 * Receives each decoded header, name and value are both found in the given array.
+	 */
+	public interface HeaderListener {
+		void header(byte[] data, int nameStart, int nameLength, int valueStart, int valueLength);
+	}
+
+	/**
+	 * The dynamic table, newest entry is index 62 as seen from the outside.
+	 */
+	private static final class Table {
+
+		private final byte[] ring;
+		private final int ringMask;
+		private final int[] entryStart;
+		private final int[] entryName;
+		private final int[] entryValue;
+		private final int entryMask;
+
+		private int maxSize;
+		private int size;
+		private int count;
+		private int newest = -1;
+		private int writePos;
+
+		Table(int capacity) {
+			assert(1==Integer.bitCount(capacity));
+			this.ring = new byte[capacity];
+			this.ringMask = capacity-1;
+			int entries = Integer.highestOneBit(Math.max(1, capacity/ENTRY_OVERHEAD));
+			this.entryStart = new int[entries];
+			this.entryName = new int[entries];
+			this.entryValue = new int[entries];
+			this.entryMask = entries-1;
+			this.maxSize = capacity;
+		}
+
+		int capacity() {
+			return ring.length;
+		}
+
+		void setMaxSize(int value) {
+			maxSize = value;
+			evict(0);
+		}
+
+		void add(byte[] data, int nameStart, int nameLen, int valueStart, int valueLen) {
+			int entrySize = nameLen+valueLen+ENTRY_OVERHEAD;
+			if (entrySize>maxSize) {
+				//not an error, this empties the table
+				evict(maxSize+1);
+				return;
+			}
+			evict(entrySize);
+			newest = entryMask&(newest+1);
+			entryStart[newest] = writePos;
+			entryName[newest] = nameLen;
+			entryValue[newest] = valueLen;
+			copyIn(data, nameStart, nameLen);
+			copyIn(data, valueStart, valueLen);
+			size += entrySize;
+			count++;
+		}
+
+		private void copyIn(byte[] data, int start, int length) {
+			int i = 0;
+			while (i<length) {
+				ring[ringMask&writePos++] = data[start+i++];
+			}
+		}
+
+		private void evict(int room) {
+			while (count>0 && size+room>maxSize) {
+				int oldest = entryMask&(newest-count+1);
+				size -= (entryName[oldest]+entryValue[oldest]+ENTRY_OVERHEAD);
+				count--;
+			}
+		}
+
+		//idx is zero for the newest entry
+		private int slot(int idx) {
+			return entryMask&(newest-idx);
+		}
+
+		int copyName(int idx, byte[] target, int pos) {
+			int s = slot(idx);
+			return copyOut(entryStart[s], entryName[s], target, pos);
+		}
+
+		int copyValue(int idx, byte[] target, int pos) {
+			int s = slot(idx);
+			return copyOut(entryStart[s]+entryName[s], entryValue[s], target, pos);
+		}
+
+		private int copyOut(int start, int length, byte[] target, int pos) {
+			int i = 0;
+			while (i<length) {
+				target[pos++] = ring[ringMask&(start+i++)];
+			}
+			return length;
+		}
+
+		boolean nameEquals(int idx, byte[] data, int start, int length) {
+			int s = slot(idx);
+			return entryName[s]==length && ringEquals(entryStart[s], data, start, length);
+		}
+
+		boolean valueEquals(int idx, byte[] data, int start, int length) {
+			int s = slot(idx);
+			return entryValue[s]==length && ringEquals(entryStart[s]+entryName[s], data, start, length);
+		}
+
+		private boolean ringEquals(int ringStart, byte[] data, int start, int length) {
+			int i = length;
+			while (--i>=0) {
+				if (ring[ringMask&(ringStart+i)] != data[start+i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * Decodes header blocks sent by the peer.
+	 */
+	public static final class Decoder {
+
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+		private final byte[] scratch;
+		private int pos;
+		private boolean overflow;
+
+		/**
+		 * @param maxHeaderSize largest single header name plus value which will be passed to the listener
+		 */
+		public Decoder(int maxHeaderSize) {
+			//never smaller than the table so anything dropped would also have emptied the table
+			this.scratch = new byte[Math.max(maxHeaderSize, DEFAULT_TABLE_SIZE+ENTRY_OVERHEAD)];
+		}
+
+		/**
+		 * True if the last block had a header too large to be passed to the listener.
+		 * The table is still correct so decoding may continue with the next block.
+		 */
+		public boolean overflow() {
+			return overflow;
+		}
+
+		/**
+		 * @return false for a compression error, the connection must then be closed
+		 */
+		public boolean decode(byte[] block, int start, int length, HeaderListener listener) {
+			final int end = start+length;
+			pos = start;
+			overflow = false;
+			try {
+				while (pos<end) {
+					final int b = 0xFF&block[pos];
+					if (0 != (0x80&b)) {
+						int idx = readInt(block, end, 7);
+						if (!emitIndexed(idx, listener)) {
+							return false;
+						}
+					} else if (0 != (0x40&b)) {
+						if (!literal(block, end, 6, true, listener)) {
+							return false;
+						}
+					} else if (0 != (0x20&b)) {
+						int newSize = readInt(block, end, 5);
+						if (newSize>table.capacity()) {
+							return false;
+						}
+						table.setMaxSize(newSize);
+					} else {
+						//without indexing and never indexed are the same for us
+						if (!literal(block, end, 4, false, listener)) {
+							return false;
+						}
+					}
+				}
+				return true;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				//truncated integer or string
+				return false;
+			}
+		}
+
+		private boolean emitIndexed(int idx, HeaderListener listener) {
+			if (idx<=0) {
+				return false;
+			}
+			int nameLen;
+			int valueLen;
+			if (idx<=STATIC.length) {
+				byte[] n = STATIC_NAMES[idx-1];
+				byte[] v = STATIC_VALUES[idx-1];
+				System.arraycopy(n, 0, scratch, 0, n.length);
+				System.arraycopy(v, 0, scratch, n.length, v.length);
+				nameLen = n.length;
+				valueLen = v.length;
+			} else {
+				int d = idx-STATIC.length-1;
+				if (d>=table.count) {
+					return false;
+				}
+				nameLen = table.copyName(d, scratch, 0);
+				valueLen = table.copyValue(d, scratch, nameLen);
+			}
+			listener.header(scratch, 0, nameLen, nameLen, valueLen);
+			return true;
+		}
+
+		private boolean literal(byte[] block, int end, int prefixBits, boolean index, HeaderListener listener) {
+			int nameIdx = readInt(block, end, prefixBits);
+			int nameLen;
+			if (0 == nameIdx) {
+				nameLen = readString(block, end, 0);
+			} else if (nameIdx<=STATIC.length) {
+				byte[] n = STATIC_NAMES[nameIdx-1];
+				System.arraycopy(n, 0, scratch, 0, n.length);
+				nameLen = n.length;
+			} else {
+				int d = nameIdx-STATIC.length-1;
+				if (d>=table.count) {
+					return false;
+				}
+				nameLen = table.copyName(d, scratch, 0);
+			}
+			if (nameLen<0) {
+				return false;
+			}
+			int valueLen = readString(block, end, nameLen);
+			if (valueLen<0) {
+				return false;
+			}
+			if (overflow) {
+				if (index) {
+					//too large to hold so it is also larger than the table, this empties it
+					table.add(scratch, 0, 0, 0, table.capacity());
+				}
+				return true;
+			}
+			if (index) {
+				table.add(scratch, 0, nameLen, nameLen, valueLen);
+			}
+			listener.header(scratch, 0, nameLen, nameLen, valueLen);
+			return true;
+		}
+
+		/*
+		 * Reads the string into scratch at target, returns the length or -1 for a bad Huffman code.
+		 */
+		private int readString(byte[] block, int end, int target) {
+			final boolean huffman = 0 != (0x80&block[pos]);
+			final int length = readInt(block, end, 7);
+			if (pos+length>end) {
+				throw new ArrayIndexOutOfBoundsException();
+			}
+			final int start = pos;
+			pos += length;
+			if (overflow) {
+				return 0;
+			}
+			if (!huffman) {
+				if (target+length>scratch.length) {
+					overflow = true;
+					return 0;
+				}
+				System.arraycopy(block, start, scratch, target, length);
+				return length;
+			}
+			int result = huffmanDecode(block, start, length, scratch, target);
+			if (-2 == result) {
+				overflow = true;
+				return 0;
+			}
+			return result;
+		}
+
+		private int readInt(byte[] block, int end, int prefixBits) {
+			final int prefixMask = (1<<prefixBits)-1;
+			int value = prefixMask & block[pos++];
+			if (value<prefixMask) {
+				return value;
+			}
+			int shift = 0;
+			int b;
+			do {
+				if (pos>=end || shift>21) {
+					throw new ArrayIndexOutOfBoundsException();
+				}
+				b = block[pos++];
+				value += (0x7F&b)<<shift;
+				shift += 7;
+			} while (0 != (0x80&b));
+			return value;
+		}
+
+	}
+
+	/**
+	 * @return decoded length, -1 for an invalid code or -2 if the target is too small
+	 */
+	public static int huffmanDecode(byte[] source, int start, int length, byte[] target, int targetPos) {
+		final int origin = targetPos;
+		int code = 0;
+		int bits = 0;
+		final int end = start+length;
+		for (int i = start; i<end; i++) {
+			int b = 0xFF&source[i];
+			int j = 8;
+			while (--j>=0) {
+				code = (code<<1) | (1&(b>>j));
+				bits++;
+				int idx = code - huffFirstCode[bits];
+				if (idx>=0 && idx<huffCount[bits]) {
+					int sym = huffSymbols[huffOffset[bits]+idx];
+					if (HUFFMAN_EOS == sym) {
+						return -1;
+					}
+					if (targetPos>=target.length) {
+						return -2;
+					}
+					target[targetPos++] = (byte)sym;
+					code = 0;
+					bits = 0;
+				} else if (bits>=HUFFMAN_MAX_BITS) {
+					return -1;
+				}
+			}
+		}
+		//padding must be the high bits of EOS, all ones and less than a byte
+		if (bits>7 || code != (1<<bits)-1) {
+			return -1;
+		}
+		return targetPos-origin;
+	}
+
+	/**
+	 * Encodes header blocks for the peer. Strings are sent without Huffman coding,
+	 * repeated headers are made small by the dynamic table instead.
+	 */
+	public static final class Encoder {
+
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+		private int pendingSize = -1;
+
+		/**
+		 * Called with the SETTINGS_HEADER_TABLE_SIZE of the peer.
+		 */
+		public void setMaxSize(int peerSize) {
+			int value = Math.min(peerSize, table.capacity());
+			if (value != table.maxSize) {
+				table.setMaxSize(value);
+				pendingSize = value;
+			}
+		}
+
+		/**
+		 * Must be called at the start of each header block.
+		 */
+		public int beginBlock(byte[] target, int pos) {
+			if (pendingSize>=0) {
+				pos = writeInt(target, pos, 0x20, 5, pendingSize);
+				pendingSize = -1;
+			}
+			return pos;
+		}
+
+		/**
+		 * Name must be lower case.
+		 * @param index when false the header is sent as a literal which is not added to the table
+		 * @return the new position in target
+		 */
+		public int encode(byte[] target, int pos,
+				          byte[] data, int nameStart, int nameLen, int valueStart, int valueLen,
+				          boolean index) {
+
+			int nameIdx = 0;
+			int i = STATIC.length;
+			while (--i>=0) {
+				if (equals(STATIC_NAMES[i], data, nameStart, nameLen)) {
+					if (equals(STATIC_VALUES[i], data, valueStart, valueLen)) {
+						return writeInt(target, pos, 0x80, 7, i+1);
+					}
+					nameIdx = i+1;
+				}
+			}
+			int d = table.count;
+			while (--d>=0) {
+				if (table.nameEquals(d, data, nameStart, nameLen)) {
+					if (table.valueEquals(d, data, valueStart, valueLen)) {
+						return writeInt(target, pos, 0x80, 7, STATIC.length+1+d);
+					}
+					if (0 == nameIdx) {
+						nameIdx = STATIC.length+1+d;
+					}
+				}
+			}
+
+			if (index) {
+				pos = writeInt(target, pos, 0x40, 6, nameIdx);
+			} else {
+				pos = writeInt(target, pos, 0x00, 4, nameIdx);
+			}
+			if (0 == nameIdx) {
+				pos = writeString(target, pos, data, nameStart, nameLen);
+			}
+			pos = writeString(target, pos, data, valueStart, valueLen);
+			if (index) {
+				table.add(data, nameStart, nameLen, valueStart, valueLen);
+			}
+			return pos;
+		}
+
+		private static boolean equals(byte[] a, byte[] data, int start, int length) {
+			if (a.length != length) {
+				return false;
+			}
+			int i = length;
+			while (--i>=0) {
+				if (a[i] != data[start+i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int writeString(byte[] target, int pos, byte[] data, int start, int length) {
+			pos = writeInt(target, pos, 0x00, 7, length);
+			System.arraycopy(data, start, target, pos, length);
+			return pos+length;
+		}
+
+	}
+
+	/**
+	 * Largest size of one header once encoded, used to ensure there is room before encoding.
+	 */
+	public static int maxEncodedSize(int nameLen, int valueLen) {
+		return nameLen+valueLen+12;
+	}
+
+	static int writeInt(byte[] target, int pos, int flags, int prefixBits, int value) {
+		final int prefixMask = (1<<prefixBits)-1;
+		if (value<prefixMask) {
+			target[pos++] = (byte)(flags|value);
+			return pos;
+		}
+		target[pos++] = (byte)(flags|prefixMask);
+		value -= prefixMask;
+		while (value>=0x80) {
+			target[pos++] = (byte)(0x80|(0x7F&value));
+			value >>>= 7;
+		}
+		target[pos++] = (byte)value;
+		return pos;
+	}
+
+}
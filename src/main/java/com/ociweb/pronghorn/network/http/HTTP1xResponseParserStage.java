@@ -254,11 +254,16 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 					
 							logger.info("closed {} connection detected ",cc);
 							if (null != cc) {
+								if (cc.inFlightCount()>1) {
+									//dropped with pipelined requests outstanding
+									ccm.disablePipelining(cc);
+								}
 								
 								//publish closed to notify those down stream
 								Pipe<NetResponseSchema> targetPipe1 = output[(int)cc.readDestinationRouteId()];
 								
 								publishCloseMessage(cc.host, cc.port, targetPipe1);
+								publishCloseToFollowers(cc);
 							}
 							positionMemoData[lenIdx] = 0;//wipe out existing data
 							positionMemoData[stateIdx] = 0;
@@ -449,6 +454,11 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 							
 							break; //critical check
 						}
+						if (ClientCoordinator.singleFlight && !isFollowersReady(i, cc)) {
+							//nothing is written yet so let other connections use our output
+							outputOwner[(int)cc.readDestinationRouteId()] = -1;
+							break;
+						}
 						
 						int startingLength1 = TrieParserReader.savePositionMemo(trieReader, positionMemoData, memoIdx);
 						
@@ -461,6 +471,7 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 						if (revisionId>=0) {
 													
 							clearConnectionStateData(i);
+							claimFollowers(i, cc);
 							
 							//because we have started written the response we MUST do extra cleanup later.
 							Pipe.addMsgIdx(targetPipe, NetResponseSchema.MSG_RESPONSE_101);
@@ -586,7 +597,8 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 								break;
 							}
 							//in case targetPipe is needed must confirm room for 2 writes .
-							if (!Pipe.hasRoomForWrite(targetPipe, 2*Pipe.sizeOf(targetPipe, NetResponseSchema.MSG_CONTINUATION_102))) {
+							if (!Pipe.hasRoomForWrite(targetPipe, 2*Pipe.sizeOf(targetPipe, NetResponseSchema.MSG_CONTINUATION_102))
+								|| !isFollowersRoom(cc, 2*Pipe.sizeOf(targetPipe, NetResponseSchema.MSG_CONTINUATION_102))) {
 								break;
 							}
 							if (2==state) {
@@ -611,8 +623,9 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 										
 									if (lengthRemaining>0) {
 										DataOutputBlobWriter.commitBackData(writer2, cc.getStructureId());
-																			
+										final int start = writer2.absolutePosition()-writer2.length();
 										int len = writer2.closeLowLevelField();
+										fanOut(cc, targetPipe, ccId, start, len);
 										//logger.trace("conform low level write of len {} ",len);
 										Pipe.confirmLowLevelWrite(targetPipe); //uses auto size since we do not know type here
 										Pipe.publishWrites(targetPipe);
@@ -645,7 +658,7 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 									Pipe.releasePendingAsReadLock(localInputPipe, runningHeaderBytes[i]); 
 														
 									DataOutputBlobWriter.commitBackData(writer2,  cc.getStructureId());
-																	
+									final int start = writer2.absolutePosition()-writer2.length();
 									int length = writer2.closeLowLevelField(); //NetResponseSchema.MSG_RESPONSE_101_FIELD_PAYLOAD_3
 									//logger.info("length of full message written {} ",length);
 									
@@ -655,12 +668,14 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 									Pipe.orIntValue(ServerCoordinator.END_RESPONSE_MASK, 
 											         targetPipe, 
 											         Pipe.lastConfirmedWritePosition(targetPipe)+(0xFF&NetResponseSchema.MSG_RESPONSE_101_FIELD_CONTEXTFLAGS_5));
+									fanOut(cc, targetPipe, ccId, start, length);
 									
 									Pipe.confirmLowLevelWrite(targetPipe, SIZE_OF_MSG_RESPONSE);
 									int totalConsumed = Pipe.publishWrites(targetPipe);	
 									//logger.trace("total consumed msg response write {} internal field {} varlen {} ",totalConsumed, length, targetPipe.maxVarLen);					
 									//clear the usage of this pipe for use again by other connections
 									outputOwner[(int)cc.readDestinationRouteId()] = -1; 
+									releaseFollowers(cc);
 									long routeId = cc.consumeDestinationRouteId();////////WE ARE ALL DONE WITH THIS RESPONSE////////////
 
 									//NOTE: I think this is needed but is causing a hang...
@@ -731,7 +746,7 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 					
 										
 										DataOutputBlobWriter.commitBackData(writer3, cc.getStructureId());
-										
+										final int start = writer3.absolutePosition()-writer3.length();
 										int len = writer3.closeLowLevelField(); //NetResponseSchema.MSG_RESPONSE_101_FIELD_PAYLOAD_3
 										//logger.info("nothing remaing in this chunk moving to state 5");
 										positionMemoData[stateIdx] = state = 5;
@@ -741,12 +756,14 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 										Pipe.orIntValue(ServerCoordinator.END_RESPONSE_MASK, 
 												        targetPipe, 
 													    Pipe.lastConfirmedWritePosition(targetPipe)+(0xFF&NetResponseSchema.MSG_RESPONSE_101_FIELD_CONTEXTFLAGS_5));
+										fanOut(cc, targetPipe, ccId, start, len);
 										
 										Pipe.confirmLowLevelWrite(targetPipe); //uses auto size since we do not know type here
 										Pipe.publishWrites(targetPipe);	
 										
 										//clear the usage of this pipe for use again by other connections
 										outputOwner[(int)cc.readDestinationRouteId()] = -1; 
+										releaseFollowers(cc);
 										long routeId = cc.consumeDestinationRouteId();////////WE ARE ALL DONE WITH THIS RESPONSE////////////
 
 										//NOTE: I think this is needed but is causing a hang...
@@ -769,15 +786,16 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 										//ensure we do not override the indexes
 										if ((DataOutputBlobWriter.lastBackPositionOfIndex(writer3)-(writer3.length() + chunkRemaining))>0) {
 											DataOutputBlobWriter.commitBackData(writer3, cc.getStructureId());
-											
+											final int start = writer3.absolutePosition()-writer3.length();
 											int len = writer3.closeLowLevelField();
+											fanOut(cc, targetPipe, ccId, start, len);
 											//logger.trace("conform low level write of len {} ",len);
 											Pipe.confirmLowLevelWrite(targetPipe); //uses auto size since we do not know type here
 											Pipe.publishWrites(targetPipe);
 																						
 											//DO NOT consume route id we will still need it.
 											//state is already 3 so leave it there
-											if (Pipe.hasRoomForWrite(targetPipe)) {
+											if (Pipe.hasRoomForWrite(targetPipe) && isFollowersRoom(cc, Pipe.sizeOf(targetPipe, NetResponseSchema.MSG_CONTINUATION_102))) {
 												//logger.trace("begin new continuation");
 												
 												//prep new message for next time.
@@ -847,7 +865,7 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 							break;
 					case 4:
 						//if there is no room then stay on case 4 and wait
-						if (Pipe.hasRoomForWrite(targetPipe)) {
+						if (Pipe.hasRoomForWrite(targetPipe) && isFollowersRoom(cc, Pipe.sizeOf(targetPipe, NetResponseSchema.MSG_CONTINUATION_102))) {
 						
 							//logger.trace("begin new continuation");
 							
@@ -910,7 +928,9 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 		///////////////////////////////////
 		//server is behaving badly so shut the connection
 		//////////////////////////////////
+		ccm.disablePipelining(cc);
 		cc.close();		
+		publishCloseToFollowers(cc);
 		cc.clearPoolReservation();
 		ccm.releaseResponsePipeLineIdx(cc.id);
 		
@@ -931,6 +951,111 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 		return foundEnd;
 	}
 
+	/**
+	 * Single flight destinations parked on this response must have room and must not be in use
+	 * by a response from another connection before the response can begin.
+	 */
+	private boolean isFollowersReady(int i, HTTPClientConnection cc) {
+		int f = cc.beginFollowers();
+		while (--f>=0) {
+			int route = cc.followerRouteId(f);
+			if ((-1 != outputOwner[route] && i != outputOwner[route]) || !Pipe.hasRoomForWrite(output[route])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void claimFollowers(int i, HTTPClientConnection cc) {
+		int f = cc.followerCount();
+		while (--f>=0) {
+			outputOwner[cc.followerRouteId(f)] = i;
+		}
+	}
+	
+	private void releaseFollowers(HTTPClientConnection cc) {
+		int f = cc.followerCount();
+		while (--f>=0) {
+			outputOwner[cc.followerRouteId(f)] = -1;
+		}
+	}
+	
+	private boolean isFollowersRoom(HTTPClientConnection cc, int size) {
+		int f = cc.followerCount();
+		while (--f>=0) {
+			if (!Pipe.hasRoomForWrite(output[cc.followerRouteId(f)], size)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the fragment just closed on targetPipe to every single flight destination.
+	 * Must be called before the fragment is confirmed so its flags can still be read.
+	 */
+	private void fanOut(HTTPClientConnection cc, Pipe<NetResponseSchema> targetPipe, long ccId, int start, int len) {
+		int f = cc.followerCount();
+		if (f>0) {
+			final int[] slab = Pipe.slab(targetPipe);
+			final int fragment = (int)Pipe.lastConfirmedWritePosition(targetPipe);
+			final int msgIdx = slab[Pipe.slabMask(targetPipe)&fragment];
+			final int flags = slab[Pipe.slabMask(targetPipe)&(fragment+(0xFF&NetResponseSchema.MSG_RESPONSE_101_FIELD_CONTEXTFLAGS_5))];
+			
+			while (--f>=0) {
+				Pipe<NetResponseSchema> follower = output[cc.followerRouteId(f)];
+				assert(follower.maxVarLen == targetPipe.maxVarLen) : "all response pipes must share the same config";
+				
+				int size = Pipe.addMsgIdx(follower, msgIdx);
+				Pipe.addLongValue(ccId, follower);
+				Pipe.addIntValue(flags, follower);
+				DataOutputBlobWriter<NetResponseSchema> writer = Pipe.outputStream(follower);
+				DataOutputBlobWriter.openField(writer);
+				final int followerStart = writer.absolutePosition();
+				copyFragment(targetPipe, start, len, follower, followerStart, cc.totalSizeOfIndexes());
+				writer.absolutePosition(followerStart+len);
+				DataOutputBlobWriter.commitBackData(writer, cc.getStructureId());
+				writer.closeLowLevelField();
+				Pipe.confirmLowLevelWrite(follower, size);
+				Pipe.publishWrites(follower);
+			}
+		}
+	}
+	
+	/**
+	 * Copies the payload and the index data held at the end of the field, the unused space between is skipped.
+	 */
+	static void copyFragment(Pipe<NetResponseSchema> source, int sourceStart, int len,
+			                 Pipe<NetResponseSchema> target, int targetStart, int indexCount) {
+		final byte[] sourceBlob = Pipe.blob(source);
+		final byte[] targetBlob = Pipe.blob(target);
+		final int sourceMask = Pipe.blobMask(source);
+		final int targetMask = Pipe.blobMask(target);
+		Pipe.copyBytesFromToRing(sourceBlob, sourceStart, sourceMask, targetBlob, targetStart, targetMask, len);
+		
+		//one int for each indexed field
+		final int indexBytes = Math.min(4*indexCount, source.maxVarLen-len);
+		if (indexBytes>0) {
+			final int indexOffset = source.maxVarLen-indexBytes;
+			Pipe.copyBytesFromToRing(sourceBlob, sourceStart+indexOffset, sourceMask,
+					                 targetBlob, targetStart+indexOffset, targetMask, indexBytes);
+		}
+	}
+	
+	/**
+	 * The response will not be sent so destinations parked on it are told the connection closed.
+	 */
+	private void publishCloseToFollowers(HTTPClientConnection cc) {
+		if (ClientCoordinator.singleFlight) {
+			int f = cc.beginFollowers();
+			while (--f>=0) {
+				publishCloseMessage(cc.host, cc.port, output[cc.followerRouteId(f)]);
+			}
+			releaseFollowers(cc);
+			cc.dropFollowers();//only told once
+		}
+	}
+
 	private void publishCloseMessage(CharSequence host, int port, Pipe<NetResponseSchema> targetPipe) {
 		
 		Pipe.presumeRoomForWrite(targetPipe);
@@ -1144,6 +1269,10 @@ public class HTTP1xResponseParserStage extends PronghornStage {
 		   //DO NOT look at cc for the state since we have multiple messages in flight
 		    ) {
 			//logger.info("Client got close request so do it and push down stream");				
+			if (cc.inFlightCount()>0) {
+				//requests written behind this response will never be answered
+				ccm.disablePipelining(cc);
+			}
 			publishCloseMessage(cc.host, cc.port, targetPipe);
 			//close this connection but do not remove it yet.		
 			cc.close();			
@@ -814,6 +814,7 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
  
         int structId;
         TrieParser headerMap;
+        long[] headerFilter;
         
         if (config.UNMAPPED_ROUTE != pathId) {
         	
@@ -822,6 +823,7 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
           	TrieParserReader.writeCapturedValuesToDataOutput(trieReader, writer, config.paramIndexArray(pathId));
             
         	headerMap = config.headerParserRouteId( routeId );
+        	headerFilter = config.headerFilterRouteId( routeId );
         	        
         } else {
        	
@@ -831,6 +833,7 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
               
             
         	headerMap = config.unmappedHeaders;
+        	headerFilter = config.unmappedHeaderFilter;
       
         }
 
@@ -882,7 +885,8 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
       	
         
 	//	int countOfAllPreviousFields = extractionParser.getIndexCount()+indexOffsetCount;
-		int requestContext = parseHeaderFields(trieReader, pathId, headerMap, writer, serverConnection, 
+		int requestContext = parseHeaderFields(trieReader, pathId, headerMap, headerFilter, Pipe.blob(inputs[idx]),
+												writer, serverConnection, 
 												httpRevisionId, config,
 												errorReporter, arrivalTime);  // Write 2   10 //if header is presen
        
@@ -928,6 +932,7 @@ private int parseHTTP(TrieParserReader trieReader, final long channel, final int
 
 private static int parseHeaderFields(TrieParserReader trieReader, 
 		final int pathId, final TrieParser headerMap, 
+		final long[] headerFilter, final byte[] blob,
 		DataOutputBlobWriter<HTTPRequestSchema> writer, 
 		ServerConnection serverConnection, int httpRevisionId,
 		HTTP1xRouterStageConfig<?, ?, ?, ?> config,
@@ -951,6 +956,16 @@ private static int parseHeaderFields(TrieParserReader trieReader,
 			int remainingLen;
 			while ((remainingLen=TrieParserReader.parseHasContentLength(trieReader))>0){
 			
+				if (null != headerFilter) {
+					//browsers send many headers no route asked for, step over those lines without walking the trie
+					int skip = HeaderScan.unknownLineLength(headerFilter, blob, trieReader.sourcePos, remainingLen, trieReader.sourceMask);
+					if (skip>0) {
+						TrieParserReader.parseSkip(trieReader, skip);
+						iteration++;
+						continue;
+					}
+				}
+				
 				long headerToken = TrieParserReader.parseNext(trieReader, headerMap);
 				
 			    if (HTTPSpecification.END_OF_HEADER_ID == headerToken) { 
@@ -39,6 +39,8 @@ public class HTTP1xRouterStageConfig<T extends Enum<T> & HTTPContentType,
     private final int defaultLength = 4;
     
     private TrieParser[] headersParser = new TrieParser[4];    
+    private long[][] headerFilters = new long[4][];//header lines which can be skipped without the trie
+    private long[] responseCacheTTL = new long[4];//in ms, zero for routes which are not cached
     private JSONExtractorCompleted[] requestJSONExtractor = new JSONExtractorCompleted[defaultLength];    
     private FieldExtractionDefinitions[] pathDefinitions = new FieldExtractionDefinitions[defaultLength];
     
@@ -49,6 +51,7 @@ public class HTTP1xRouterStageConfig<T extends Enum<T> & HTTPContentType,
     final int UNMAPPED_ROUTE =   (1<<((32-2)-HTTPVerb.BITS))-1;//a large constant which fits in the verb field
     public final int UNMAPPED_STRUCT; 
     final TrieParser unmappedHeaders;
+    final long[] unmappedHeaderFilter;
     public final long unmappedPathField;
     public int[] unmappedIndexPos;
 
@@ -121,6 +124,11 @@ public class HTTP1xRouterStageConfig<T extends Enum<T> & HTTPContentType,
     			HTTPHeaderDefaults.TRANSFER_ENCODING,
     			HTTPHeaderDefaults.CONNECTION
 			);
+		unmappedHeaderFilter = HeaderScan.newFilter(
+				HTTPHeaderDefaults.CONTENT_LENGTH,
+				HTTPHeaderDefaults.TRANSFER_ENCODING,
+				HTTPHeaderDefaults.CONNECTION
+			);
 		
 	}
 
@@ -147,13 +155,24 @@ public class HTTP1xRouterStageConfig<T extends Enum<T> & HTTPContentType,
 	}
 
 	public void storeRouteHeaders(int routeId, TrieParser headerParser) {
+		storeRouteHeaders(routeId, headerParser, null);
+	}
+	
+	/**
+	 * @param headerFilter from HeaderScan holding every header the parser captures, null to give every line to the parser
+	 */
+	public void storeRouteHeaders(int routeId, TrieParser headerParser, long[] headerFilter) {
 		if (routeId>=headersParser.length) {
 			int i = headersParser.length;
 			TrieParser[] newArray = new TrieParser[i*2];
 			System.arraycopy(headersParser, 0, newArray, 0, i);
 			headersParser = newArray;
+			long[][] newFilters = new long[i*2][];
+			System.arraycopy(headerFilters, 0, newFilters, 0, i);
+			headerFilters = newFilters;
 		}
 		headersParser[routeId]=headerParser;
+		headerFilters[routeId]=headerFilter;
 	}
 	
 	void storeRequestExtractionParsers(int pathIdx, FieldExtractionDefinitions route) {
@@ -225,6 +244,39 @@ public class HTTP1xRouterStageConfig<T extends Enum<T> & HTTPContentType,
 	public TrieParser headerParserRouteId(int routeId) {
 		return headersParser[routeId];		
 	}
+	
+	public long[] headerFilterRouteId(int routeId) {
+		return headerFilters[routeId];
+	}
+	
+	/**
+	 * GET responses on this route are held by an HTTPResponseCacheStage for ttlMS and
+	 * returned again for requests with the same parameters and captured headers.
+	 */
+	public void cacheRoute(int routeId, long ttlMS) {
+		if (ttlMS<0) {
+			throw new UnsupportedOperationException("TTL must not be negative");
+		}
+		if (routeId>=responseCacheTTL.length) {
+			long[] newArray = new long[Math.max(routeId+1, responseCacheTTL.length*2)];
+			System.arraycopy(responseCacheTTL, 0, newArray, 0, responseCacheTTL.length);
+			responseCacheTTL = newArray;
+		}
+		responseCacheTTL[routeId] = ttlMS;
+	}
+	
+	public long responseCacheTTL(int routeId) {
+		return (routeId>=0 && routeId<responseCacheTTL.length) ? responseCacheTTL[routeId] : 0;
+	}
+	
+	public boolean isAnyRouteCached(int firstRouteId, int lastRouteId) {
+		for(int r = firstRouteId; r<lastRouteId; r++) {
+			if (responseCacheTTL(r)>0) {
+				return true;
+			}
+		}
+		return false;
+	}
 
 	public JSONExtractorCompleted JSONExtractor(int routeId) {
 		return routeId<requestJSONExtractor.length ? requestJSONExtractor[routeId] : null;
@@ -0,0 +1,1690 @@
+package com.ociweb.pronghorn.network.http;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.FileRegions;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * HTTP/2 for the server without any change to the router or the modules.
+ * One of these is placed on each track between the socket reader (or TLS unwrap) and the
+ * HTTP1xRouterStage and between the OrderSupervisorStage and the socket writer (or TLS wrap).
+ *
+ * Connections which begin with the HTTP/2 preface, either h2c with prior knowledge or h2 selected
+ * by ALPN, have each stream turned into an HTTP/1.1 request. Requests are sent to the router in the
+ * order their streams end so the router gives them the next sequence numbers and the OrderSupervisorStage
+ * returns the responses in that same order, each response is then framed for the stream it came from.
+ * All other connections pass through unchanged.
+ *
+ * DATA is only sent within the windows given by the peer. When a window is used up this stage stops
+ * reading that supervisor pipe so the back-pressure reaches the modules. Request bodies are held to the
+ * router pipe size by the stream window, the connection window is opened again only after the frames are
+ * taken so a full router pipe holds back the client.
+ *
+ * HTTP/2 connections keep their reader pipe until they close so they always return to this track.
+ *
+ * @author Nathan Tippy
+ * @see <a href="https://github.com/objectcomputing/Pronghorn">Pronghorn</a>
+ */
+public class HTTP2ConnectionStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(HTTP2ConnectionStage.class);
+
+	private static final int SIZE_OF_PLAIN = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_PLAIN_210);
+	private static final int SIZE_OF_DISCONNECT = Pipe.sizeOf(NetPayloadSchema.instance, NetPayloadSchema.MSG_DISCONNECT_203);
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+	private static final int FRAME_HEADER_SIZE = 9;
+	private static final int DEFAULT_FRAME_SIZE = 16384;
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final long MAX_WINDOW = Integer.MAX_VALUE;
+	public static final int MAX_STREAMS = 16;
+	//largest control output from a single frame plus the window update
+	private static final int CONTROL_RESERVE = 64;
+	private static final int MAX_RESPONSE_HEAD = 1<<16;
+	private static final int SWEEP_RUNS = 1<<12;
+
+	private static final int TYPE_DATA          = 0x0;
+	private static final int TYPE_HEADERS       = 0x1;
+	private static final int TYPE_PRIORITY      = 0x2;
+	private static final int TYPE_RST_STREAM    = 0x3;
+	private static final int TYPE_SETTINGS      = 0x4;
+	private static final int TYPE_PUSH_PROMISE  = 0x5;
+	private static final int TYPE_PING          = 0x6;
+	private static final int TYPE_GOAWAY        = 0x7;
+	private static final int TYPE_WINDOW_UPDATE = 0x8;
+	private static final int TYPE_CONTINUATION  = 0x9;
+
+	private static final int FLAG_END_STREAM  = 0x1;
+	private static final int FLAG_ACK         = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED      = 0x8;
+	private static final int FLAG_PRIORITY    = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE   = 0x6;
+
+	private static final int NO_ERROR           = 0x0;
+	private static final int PROTOCOL_ERROR     = 0x1;
+	private static final int INTERNAL_ERROR     = 0x2;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int STREAM_CLOSED      = 0x5;
+	private static final int FRAME_SIZE_ERROR   = 0x6;
+	private static final int REFUSED_STREAM     = 0x7;
+	private static final int COMPRESSION_ERROR  = 0x9;
+
+	private static final int MODE_DETECT = 0;
+	private static final int MODE_HTTP2  = 1;
+	private static final int MODE_CLOSED = 2;
+
+	private static final int STREAM_FREE      = 0;
+	private static final int STREAM_RECEIVING = 1;
+	private static final int STREAM_COMPLETE  = 2;
+	private static final int STREAM_FORWARDED = 3;
+
+	private static final int RESP_HEAD    = 0;
+	private static final int RESP_LENGTH  = 1;
+	private static final int RESP_CHUNKED = 2;
+
+	private static final int CHUNK_SIZE     = 0;
+	private static final int CHUNK_EXT      = 1;
+	private static final int CHUNK_DATA     = 2;
+	private static final int CHUNK_DATA_END = 3;
+	private static final int CHUNK_TRAILER  = 4;
+
+	private static final byte[] METHOD = ":method".getBytes();
+	private static final byte[] PATH = ":path".getBytes();
+	private static final byte[] AUTHORITY = ":authority".getBytes();
+	private static final byte[] STATUS = ":status".getBytes();
+	private static final byte[] HEAD = "HEAD".getBytes();
+	private static final byte[] HOST = "host".getBytes();
+	private static final byte[] HOST_LINE = "Host: ".getBytes();
+	private static final byte[] REVISION = " HTTP/1.1\r\n".getBytes();
+	private static final byte[] CONTENT_LENGTH_LINE = "Content-Length: ".getBytes();
+	private static final byte[] CHUNKED = "chunked".getBytes();
+
+	//connection specific headers are not allowed in HTTP/2, in either direction
+	private static final byte[][] DROPPED_HEADERS = new byte[][] {
+		"connection".getBytes(), "keep-alive".getBytes(), "proxy-connection".getBytes(),
+		"transfer-encoding".getBytes(), "upgrade".getBytes(), "te".getBytes(),
+		"content-length".getBytes()
+	};
+	//values which change with each response are not worth a place in the table
+	private static final byte[][] NOT_INDEXED_HEADERS = new byte[][] {
+		"content-length".getBytes(), "date".getBytes(), "etag".getBytes(), "last-modified".getBytes(),
+		"content-range".getBytes(), "set-cookie".getBytes(), "age".getBytes(), "expires".getBytes()
+	};
+	private static final byte[] CONTENT_LENGTH = DROPPED_HEADERS[6];
+	private static final byte[] TRANSFER_ENCODING = DROPPED_HEADERS[3];
+
+	private static final class Stream {
+		int id;
+		int state = STREAM_FREE;
+		boolean reset;
+		boolean isHead;
+		byte[] head = new byte[256];
+		int headLen;
+		byte[] body = new byte[0];
+		int bodyLen;
+		long sendWindow;
+	}
+
+	private static final class Connection {
+		final long id;
+		int mode = MODE_DETECT;
+		boolean sendSettings;
+		boolean disconnectSent;
+		long arrivalTime;
+
+		final byte[] inbound;
+		int inboundLen;
+
+		byte[] headerBlock = new byte[1024];
+		int headerBlockLen;
+		int headerStream;
+		int headerFlags;
+
+		final HPACK.Decoder decoder;
+		final HPACK.Encoder encoder = new HPACK.Encoder();
+
+		final Stream[] streams = new Stream[MAX_STREAMS];
+		//streams which have ended and wait for room on the router pipe
+		final int[] forward = new int[MAX_STREAMS];
+		int forwardHead;
+		int forwardCount;
+		//streams sent to the router, responses come back in this order
+		final int[] responses = new int[MAX_STREAMS];
+		int responseHead;
+		int responseCount;
+
+		int lastStreamId;
+		long sendWindow = DEFAULT_WINDOW;
+		int peerInitialWindow = DEFAULT_WINDOW;
+		int peerMaxFrame = DEFAULT_FRAME_SIZE;
+		int receivedUnacked;
+
+		//response now being framed
+		int respState = RESP_HEAD;
+		int respSlot = -1;
+		boolean respHeadComplete;
+		byte[] respHead = new byte[512];
+		int respHeadLen;
+		long respRemaining;
+		int chunkState;
+		long chunkRemaining;
+		int lineLength;
+
+		Connection(long id, int inboundSize, int maxHeaderSize) {
+			this.id = id;
+			this.inbound = new byte[inboundSize];
+			this.decoder = new HPACK.Decoder(maxHeaderSize);
+		}
+	}
+
+	private final ServerCoordinator coordinator;
+	private final Pipe<NetPayloadSchema>[] fromNet;
+	private final Pipe<NetPayloadSchema>[] toRouter;
+	private final Pipe<NetPayloadSchema>[] fromSupervisor;
+	private final Pipe<NetPayloadSchema>[] toNet;
+
+	private HashMap<Long, Connection> connections;
+	private Connection lastConnection;
+
+	//largest request head or body, one request must fit on the router pipe
+	private int maxRequest;
+	private int inboundSize;
+
+	private byte[] control;
+	private int controlLen;
+	private byte[] frames;
+	private int framesLen;
+	private byte[] headerBlock;
+	private int maxHeaderBlock;
+	private byte[] statusField;
+	private byte[] requestBuffer;
+
+	//collected from the header block of the stream being decoded
+	private boolean collecting;
+	private boolean headersTooLarge;
+	private boolean hostSeen;
+	private byte[] pseudo;
+	private int pseudoLen;
+	private int methodStart;
+	private int methodLen;
+	private int pathStart;
+	private int pathLen;
+	private int authorityStart;
+	private int authorityLen;
+	private byte[] headerLines;
+	private int headerLinesLen;
+
+	//connection with frames left to process, for each input from the network
+	private Connection[] pendingConnection;
+
+	//response data held while the flow control windows are closed, for each input from the supervisor
+	private Connection[] stallConnection;
+	private byte[][] stallBuffer;
+	private ByteBuffer[] stallByteBuffer;
+	private int[] stallPos;
+	private int[] stallLen;
+	private FileChannel[] stallRegion;
+	private long[] regionPosition;
+	private long[] regionRemaining;
+
+	private int eofCount;
+	private int sweepCountDown = SWEEP_RUNS;
+
+	private final HPACK.HeaderListener requestHeaders = new HPACK.HeaderListener() {
+		@Override
+		public void header(byte[] data, int nameStart, int nameLength, int valueStart, int valueLength) {
+			if (collecting) {
+				collectHeader(data, nameStart, nameLength, valueStart, valueLength);
+			}
+		}
+	};
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param coordinator
+	 * @param fromNet _in_ Plain bytes from the socket reader or TLS unwrap.
+	 * @param toRouter _out_ HTTP/1.1 requests for the router, one for each input from the network.
+	 * @param fromSupervisor _in_ HTTP/1.1 responses in request order from the OrderSupervisorStage.
+	 * @param toNet _out_ Bytes for the socket writer or TLS wrap, one for each input from the supervisor.
+	 */
+	public HTTP2ConnectionStage(GraphManager graphManager, ServerCoordinator coordinator,
+			                    Pipe<NetPayloadSchema>[] fromNet, Pipe<NetPayloadSchema>[] toRouter,
+			                    Pipe<NetPayloadSchema>[] fromSupervisor, Pipe<NetPayloadSchema>[] toNet) {
+		super(graphManager, join(fromNet, fromSupervisor), join(toRouter, toNet));
+		this.coordinator = coordinator;
+		this.fromNet = fromNet;
+		this.toRouter = toRouter;
+		this.fromSupervisor = fromSupervisor;
+		this.toNet = toNet;
+		assert(fromNet.length == toRouter.length);
+		assert(fromSupervisor.length == toNet.length);
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lightcyan", this);
+	}
+
+	@Override
+	public void startup() {
+		connections = new HashMap<Long, Connection>();
+
+		int maxRouter = Integer.MAX_VALUE;
+		int maxInput = 0;
+		int i = toRouter.length;
+		while (--i>=0) {
+			maxRouter = Math.min(maxRouter, toRouter[i].maxVarLen);
+			maxInput = Math.max(maxInput, fromNet[i].maxVarLen);
+		}
+		maxRequest = maxRouter;
+		inboundSize = FRAME_HEADER_SIZE+DEFAULT_FRAME_SIZE+maxInput;
+
+		int minNet = Integer.MAX_VALUE;
+		int maxSuper = 0;
+		i = toNet.length;
+		while (--i>=0) {
+			minNet = Math.min(minNet, toNet[i].maxVarLen);
+			maxSuper = Math.max(maxSuper, fromSupervisor[i].maxVarLen);
+		}
+		if (minNet < 4*CONTROL_RESERVE) {
+			throw new UnsupportedOperationException("pipes to the network must hold at least "+(4*CONTROL_RESERVE)+" bytes");
+		}
+		control = new byte[minNet];
+		frames = new byte[minNet];
+		headerBlock = new byte[minNet];
+		//room for the frame headers when the block is split into the smallest allowed frames
+		maxHeaderBlock = minNet - (FRAME_HEADER_SIZE*(1+(minNet/DEFAULT_FRAME_SIZE)));
+		statusField = new byte[STATUS.length+3];
+		System.arraycopy(STATUS, 0, statusField, 0, STATUS.length);
+		requestBuffer = new byte[(2*maxRequest)+64];
+		pseudo = new byte[maxRequest];
+		headerLines = new byte[maxRequest];
+
+		pendingConnection = new Connection[fromNet.length];
+
+		int count = fromSupervisor.length;
+		stallConnection = new Connection[count];
+		stallBuffer = new byte[count][];
+		stallByteBuffer = new ByteBuffer[count];
+		stallPos = new int[count];
+		stallLen = new int[count];
+		stallRegion = new FileChannel[count];
+		regionPosition = new long[count];
+		regionRemaining = new long[count];
+		i = count;
+		while (--i>=0) {
+			stallBuffer[i] = new byte[maxSuper];
+			stallByteBuffer[i] = ByteBuffer.wrap(stallBuffer[i]);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		int i = toRouter.length;
+		while (--i>=0) {
+			Pipe.publishEOF(toRouter[i]);
+		}
+		i = toNet.length;
+		while (--i>=0) {
+			Pipe.publishEOF(toNet[i]);
+		}
+	}
+
+	@Override
+	public void run() {
+		int i = fromNet.length;
+		while (--i>=0) {
+			processInbound(i, fromNet[i], toRouter[i]);
+		}
+		i = fromSupervisor.length;
+		while (--i>=0) {
+			processOutbound(i, fromSupervisor[i], toNet[i]);
+		}
+		if (--sweepCountDown<=0) {
+			sweepCountDown = SWEEP_RUNS;
+			sweepClosed();
+		}
+		if (eofCount == fromNet.length+fromSupervisor.length) {
+			requestShutdown();
+		}
+	}
+
+	private Connection lookup(long channelId) {
+		Connection c = lastConnection;
+		if (null!=c && channelId==c.id) {
+			return c;
+		}
+		c = connections.get(channelId);
+		if (null!=c) {
+			lastConnection = c;
+		}
+		return c;
+	}
+
+	private void remove(Connection conn) {
+		connections.remove(conn.id);
+		if (conn == lastConnection) {
+			lastConnection = null;
+		}
+	}
+
+	private void sweepClosed() {
+		Iterator<Connection> it = connections.values().iterator();
+		while (it.hasNext()) {
+			Connection c = it.next();
+			if (null == ServerCoordinator.getConnection(coordinator, c.id)) {
+				it.remove();
+				if (c == lastConnection) {
+					lastConnection = null;
+				}
+			}
+		}
+	}
+
+	private Pipe<NetPayloadSchema> netPipe(long channelId) {
+		//must match the pipe selected by the OrderSupervisorStage for this connection
+		return toNet[(int)(channelId % toNet.length)];
+	}
+
+	///////////////////////////////////////
+	//from the network to the router
+	///////////////////////////////////////
+
+	private void processInbound(int idx, Pipe<NetPayloadSchema> input, Pipe<NetPayloadSchema> output) {
+
+		Connection pending = pendingConnection[idx];
+		if (null != pending) {
+			if (!processFrames(pending, output)) {
+				return;
+			}
+			pendingConnection[idx] = null;
+		}
+
+		while (Pipe.hasRoomForWrite(output, 2*SIZE_OF_PLAIN) && Pipe.hasContentToRead(input)) {
+
+			final int msgIdx = Pipe.takeMsgIdx(input);
+			if (NetPayloadSchema.MSG_PLAIN_210 != msgIdx) {
+				if (!copyMessage(msgIdx, input, output)) {
+					return;
+				}
+				continue;
+			}
+
+			final long channelId = Pipe.takeLong(input);
+			final long arrivalTime = Pipe.takeLong(input);
+			final long position = Pipe.takeLong(input);
+			final int meta = Pipe.takeByteArrayMetaData(input);
+			final int len = Pipe.takeByteArrayLength(input);
+			final int mask = Pipe.blobMask(input);
+			final byte[] backing = Pipe.byteBackingArray(meta, input);
+			final int pos = Pipe.bytePosition(meta, input, len);
+
+			Connection conn = lookup(channelId);
+			if (null == conn && !prefaceMatches(backing, pos, mask, Math.min(len, PREFACE.length))) {
+				writePlain(output, channelId, arrivalTime, position, backing, pos, len, mask);
+			} else {
+				if (null == conn) {
+					conn = new Connection(channelId, inboundSize, maxRequest);
+					connections.put(channelId, conn);
+				}
+				conn.arrivalTime = arrivalTime;
+				if (MODE_CLOSED != conn.mode) {
+					Pipe.copyBytesFromToRing(backing, pos, mask, conn.inbound, conn.inboundLen, Integer.MAX_VALUE, len);
+					conn.inboundLen += len;
+				}
+				if (MODE_DETECT == conn.mode) {
+					detectPreface(conn, output, arrivalTime, position, len);
+				}
+				if (MODE_HTTP2 == conn.mode && !processFrames(conn, output)) {
+					pendingConnection[idx] = conn;
+				}
+			}
+
+			Pipe.confirmLowLevelRead(input, SIZE_OF_PLAIN);
+			Pipe.releaseReadLock(input);
+
+			if (null != pendingConnection[idx]) {
+				return;
+			}
+		}
+	}
+
+	private void detectPreface(Connection conn, Pipe<NetPayloadSchema> output, long arrivalTime, long position, int len) {
+		if (!prefaceMatches(conn.inbound, 0, Integer.MAX_VALUE, Math.min(conn.inboundLen, PREFACE.length))) {
+			//not HTTP/2 after all, send on what was held back
+			remove(conn);
+			int held = conn.inboundLen-len;
+			if (held>0) {
+				writePlain(output, conn.id, arrivalTime, 0, conn.inbound, 0, held, Integer.MAX_VALUE);
+			}
+			writePlain(output, conn.id, arrivalTime, position, conn.inbound, held, len, Integer.MAX_VALUE);
+			conn.inboundLen = 0;
+		} else if (conn.inboundLen >= PREFACE.length) {
+			conn.mode = MODE_HTTP2;
+			conn.sendSettings = true;
+			conn.inboundLen -= PREFACE.length;
+			System.arraycopy(conn.inbound, PREFACE.length, conn.inbound, 0, conn.inboundLen);
+		}
+		//else wait for the rest of the preface
+	}
+
+	private static boolean prefaceMatches(byte[] data, int pos, int mask, int length) {
+		int i = length;
+		while (--i>=0) {
+			if (PREFACE[i] != data[mask&(pos+i)]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if frames remain because there is no room to write the results
+	 */
+	private boolean processFrames(Connection conn, Pipe<NetPayloadSchema> routerOut) {
+		final Pipe<NetPayloadSchema> netOut = netPipe(conn.id);
+		if (!Pipe.hasRoomForWrite(netOut, SIZE_OF_PLAIN+SIZE_OF_DISCONNECT)) {
+			return false;
+		}
+		controlLen = 0;
+		if (conn.sendSettings) {
+			conn.sendSettings = false;
+			controlLen = writeFrameHeader(control, controlLen, 18, TYPE_SETTINGS, 0, 0);
+			controlLen = writeSetting(control, controlLen, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_STREAMS);
+			controlLen = writeSetting(control, controlLen, SETTINGS_INITIAL_WINDOW_SIZE, maxRequest);
+			controlLen = writeSetting(control, controlLen, SETTINGS_MAX_HEADER_LIST_SIZE, maxRequest);
+		}
+
+		boolean done = forwardRequests(conn, routerOut);
+		final byte[] in = conn.inbound;
+		int pos = 0;
+		while (done && MODE_HTTP2 == conn.mode && conn.inboundLen-pos >= FRAME_HEADER_SIZE) {
+			final int length = ((0xFF&in[pos])<<16) | ((0xFF&in[pos+1])<<8) | (0xFF&in[pos+2]);
+			if (length > DEFAULT_FRAME_SIZE) {
+				goAway(conn, FRAME_SIZE_ERROR);
+				break;
+			}
+			if (conn.inboundLen-pos < FRAME_HEADER_SIZE+length) {
+				break;//wait for the rest of the frame
+			}
+			if (controlLen+CONTROL_RESERVE > control.length) {
+				done = false;
+				break;
+			}
+			processFrame(conn, 0xFF&in[pos+3], 0xFF&in[pos+4], 0x7FFFFFFF&readInt32(in, pos+5), in, pos+FRAME_HEADER_SIZE, length);
+			pos += (FRAME_HEADER_SIZE+length);
+			done = forwardRequests(conn, routerOut);
+		}
+
+		if (MODE_HTTP2 == conn.mode) {
+			conn.inboundLen -= pos;
+			System.arraycopy(in, pos, in, 0, conn.inboundLen);
+			if (conn.receivedUnacked>0) {
+				//the bytes are now held by this stage so the client may send more
+				controlLen = writeWindowUpdate(control, controlLen, 0, conn.receivedUnacked);
+				conn.receivedUnacked = 0;
+			}
+		} else {
+			conn.inboundLen = 0;
+			done = true;
+		}
+
+		if (controlLen>0) {
+			writePlain(netOut, conn.id, 0, Pipe.getWorkingTailPosition(netOut), control, 0, controlLen, Integer.MAX_VALUE);
+			controlLen = 0;
+		}
+		if (MODE_CLOSED == conn.mode && !conn.disconnectSent) {
+			//kept until the sweep so any bytes still arriving are dropped
+			conn.disconnectSent = true;
+			writeDisconnect(netOut, conn.id);
+		}
+		return done;
+	}
+
+	private void processFrame(Connection conn, int type, int flags, int streamId, byte[] in, int start, int length) {
+
+		if (0 != conn.headerStream && (TYPE_CONTINUATION != type || streamId != conn.headerStream)) {
+			//nothing may come between the parts of a header block
+			goAway(conn, PROTOCOL_ERROR);
+			return;
+		}
+
+		switch (type) {
+			case TYPE_DATA:
+				processData(conn, flags, streamId, in, start, length);
+				break;
+			case TYPE_HEADERS:
+				processHeaders(conn, flags, streamId, in, start, length);
+				break;
+			case TYPE_CONTINUATION:
+				if (0 == conn.headerStream) {
+					goAway(conn, PROTOCOL_ERROR);
+				} else {
+					appendHeaderBlock(conn, in, start, length, flags);
+				}
+				break;
+			case TYPE_RST_STREAM:
+				if (4 != length) {
+					goAway(conn, FRAME_SIZE_ERROR);
+				} else {
+					resetStream(conn, streamId);
+				}
+				break;
+			case TYPE_SETTINGS:
+				processSettings(conn, flags, streamId, in, start, length);
+				break;
+			case TYPE_PING:
+				if (8 != length || 0 != streamId) {
+					goAway(conn, 8 != length ? FRAME_SIZE_ERROR : PROTOCOL_ERROR);
+				} else if (0 == (FLAG_ACK&flags)) {
+					controlLen = writeFrameHeader(control, controlLen, 8, TYPE_PING, FLAG_ACK, 0);
+					System.arraycopy(in, start, control, controlLen, 8);
+					controlLen += 8;
+				}
+				break;
+			case TYPE_GOAWAY:
+				//the client will close once it has the responses it wants
+				break;
+			case TYPE_WINDOW_UPDATE:
+				processWindowUpdate(conn, streamId, in, start, length);
+				break;
+			case TYPE_PUSH_PROMISE:
+				//clients may not push
+				goAway(conn, PROTOCOL_ERROR);
+				break;
+			case TYPE_PRIORITY:
+			default:
+				//priority is not used since responses are returned in request order, unknown types are ignored
+				break;
+		}
+	}
+
+	private void processData(Connection conn, int flags, int streamId, byte[] in, int start, int length) {
+		if (0 == streamId) {
+			goAway(conn, PROTOCOL_ERROR);
+			return;
+		}
+		conn.receivedUnacked += length;
+
+		int p = start;
+		int end = start+length;
+		if (0 != (FLAG_PADDED&flags)) {
+			if (length<1 || (0xFF&in[p]) >= length) {
+				goAway(conn, PROTOCOL_ERROR);
+				return;
+			}
+			end -= (0xFF&in[p++]);
+		}
+
+		int slot = findStream(conn, streamId);
+		if (slot<0 || STREAM_RECEIVING != conn.streams[slot].state) {
+			if (streamId > conn.lastStreamId) {
+				goAway(conn, PROTOCOL_ERROR);
+			}
+			//else data for a stream we have already reset or finished reading, dropped
+			return;
+		}
+		Stream s = conn.streams[slot];
+		int n = end-p;
+		if (n>0) {
+			if (s.bodyLen+n > maxRequest) {
+				//more than the window we gave
+				writeReset(streamId, FLOW_CONTROL_ERROR);
+				s.state = STREAM_FREE;
+				return;
+			}
+			if (s.bodyLen+n > s.body.length) {
+				s.body = grow(s.body, s.bodyLen, s.bodyLen+n, maxRequest);
+			}
+			System.arraycopy(in, p, s.body, s.bodyLen, n);
+			s.bodyLen += n;
+		}
+		if (0 != (FLAG_END_STREAM&flags)) {
+			completeStream(conn, slot);
+		}
+	}
+
+	private void processHeaders(Connection conn, int flags, int streamId, byte[] in, int start, int length) {
+		if (0 == streamId || 0 == (1&streamId)) {
+			goAway(conn, PROTOCOL_ERROR);
+			return;
+		}
+		int p = start;
+		int end = start+length;
+		if (0 != (FLAG_PADDED&flags)) {
+			if (length<1) {
+				goAway(conn, PROTOCOL_ERROR);
+				return;
+			}
+			end -= (0xFF&in[p++]);
+		}
+		if (0 != (FLAG_PRIORITY&flags)) {
+			p += 5;
+		}
+		if (p>end) {
+			goAway(conn, PROTOCOL_ERROR);
+			return;
+		}
+		conn.headerStream = streamId;
+		conn.headerFlags = flags;
+		conn.headerBlockLen = 0;
+		appendHeaderBlock(conn, in, p, end-p, flags);
+	}
+
+	private void appendHeaderBlock(Connection conn, byte[] in, int start, int length, int flags) {
+		if (conn.headerBlockLen+length > conn.headerBlock.length) {
+			if (conn.headerBlockLen+length > maxRequest) {
+				//we said this was too large in our settings
+				goAway(conn, PROTOCOL_ERROR);
+				return;
+			}
+			conn.headerBlock = grow(conn.headerBlock, conn.headerBlockLen, conn.headerBlockLen+length, maxRequest);
+		}
+		System.arraycopy(in, start, conn.headerBlock, conn.headerBlockLen, length);
+		conn.headerBlockLen += length;
+		if (0 != (FLAG_END_HEADERS&flags)) {
+			endHeaderBlock(conn);
+		}
+	}
+
+	private void endHeaderBlock(Connection conn) {
+		final int streamId = conn.headerStream;
+		final int flags = conn.headerFlags;
+		conn.headerStream = 0;
+
+		int slot = findStream(conn, streamId);
+		boolean isNew = slot<0;
+		if (isNew) {
+			if (streamId <= conn.lastStreamId) {
+				//stream already closed, the block is still decoded to keep the table in step
+				slot = -1;
+			} else {
+				conn.lastStreamId = streamId;
+				slot = allocateStream(conn, streamId);
+			}
+		}
+
+		collecting = isNew && slot>=0;
+		headersTooLarge = false;
+		hostSeen = false;
+		pseudoLen = 0;
+		methodLen = 0;
+		pathLen = 0;
+		authorityLen = 0;
+		headerLinesLen = 0;
+
+		boolean ok = conn.decoder.decode(conn.headerBlock, 0, conn.headerBlockLen, requestHeaders);
+		conn.headerBlockLen = 0;
+		collecting = false;
+		if (!ok) {
+			goAway(conn, COMPRESSION_ERROR);
+			return;
+		}
+
+		if (slot<0) {
+			writeReset(streamId, isNew && streamId == conn.lastStreamId ? REFUSED_STREAM : STREAM_CLOSED);
+			return;
+		}
+		Stream s = conn.streams[slot];
+		if (!isNew) {
+			//trailers are not passed on
+			if (STREAM_RECEIVING != s.state || 0 == (FLAG_END_STREAM&flags)) {
+				writeReset(streamId, STREAM_CLOSED);
+				s.reset = true;
+				if (STREAM_RECEIVING == s.state) {
+					s.state = STREAM_FREE;
+				}
+				return;
+			}
+		} else {
+			if (headersTooLarge || conn.decoder.overflow() || 0==methodLen || 0==pathLen || !composeHead(s)) {
+				writeReset(streamId, (0==methodLen || 0==pathLen) && !headersTooLarge ? PROTOCOL_ERROR : REFUSED_STREAM);
+				s.state = STREAM_FREE;
+				return;
+			}
+		}
+		if (0 != (FLAG_END_STREAM&flags)) {
+			completeStream(conn, slot);
+		}
+	}
+
+	private void collectHeader(byte[] data, int nameStart, int nameLength, int valueStart, int valueLength) {
+		if (nameLength>0 && ':'==data[nameStart]) {
+			if (pseudoLen+valueLength > pseudo.length) {
+				headersTooLarge = true;
+				return;
+			}
+			if (equals(METHOD, data, nameStart, nameLength)) {
+				methodStart = pseudoLen;
+				methodLen = valueLength;
+			} else if (equals(PATH, data, nameStart, nameLength)) {
+				pathStart = pseudoLen;
+				pathLen = valueLength;
+			} else if (equals(AUTHORITY, data, nameStart, nameLength)) {
+				authorityStart = pseudoLen;
+				authorityLen = valueLength;
+			} else {
+				return;//scheme is not needed
+			}
+			System.arraycopy(data, valueStart, pseudo, pseudoLen, valueLength);
+			pseudoLen += valueLength;
+			return;
+		}
+		if (isListed(DROPPED_HEADERS, data, nameStart, nameLength)) {
+			return;
+		}
+		if (equals(HOST, data, nameStart, nameLength)) {
+			hostSeen = true;
+		}
+		if (headerLinesLen+nameLength+valueLength+4 > headerLines.length) {
+			headersTooLarge = true;
+			return;
+		}
+		System.arraycopy(data, nameStart, headerLines, headerLinesLen, nameLength);
+		headerLinesLen += nameLength;
+		headerLines[headerLinesLen++] = ':';
+		headerLines[headerLinesLen++] = ' ';
+		System.arraycopy(data, valueStart, headerLines, headerLinesLen, valueLength);
+		headerLinesLen += valueLength;
+		headerLines[headerLinesLen++] = '\r';
+		headerLines[headerLinesLen++] = '\n';
+	}
+
+	/*
+	 * The request line and headers, Content-Length and the blank line are added when it is sent.
+	 */
+	private boolean composeHead(Stream s) {
+		int size = methodLen+1+pathLen+REVISION.length+headerLinesLen;
+		if (authorityLen>0 && !hostSeen) {
+			size += (HOST_LINE.length+authorityLen+2);
+		}
+		if (size > maxRequest) {
+			return false;
+		}
+		if (size > s.head.length) {
+			s.head = new byte[Math.max(size, s.head.length*2)];
+		}
+		byte[] h = s.head;
+		int p = 0;
+		System.arraycopy(pseudo, methodStart, h, p, methodLen);
+		p += methodLen;
+		h[p++] = ' ';
+		System.arraycopy(pseudo, pathStart, h, p, pathLen);
+		p += pathLen;
+		System.arraycopy(REVISION, 0, h, p, REVISION.length);
+		p += REVISION.length;
+		if (authorityLen>0 && !hostSeen) {
+			System.arraycopy(HOST_LINE, 0, h, p, HOST_LINE.length);
+			p += HOST_LINE.length;
+			System.arraycopy(pseudo, authorityStart, h, p, authorityLen);
+			p += authorityLen;
+			h[p++] = '\r';
+			h[p++] = '\n';
+		}
+		System.arraycopy(headerLines, 0, h, p, headerLinesLen);
+		p += headerLinesLen;
+		s.headLen = p;
+		s.isHead = equals(HEAD, pseudo, methodStart, methodLen);
+		return true;
+	}
+
+	private void completeStream(Connection conn, int slot) {
+		conn.streams[slot].state = STREAM_COMPLETE;
+		conn.forward[(conn.forwardHead+conn.forwardCount++)%MAX_STREAMS] = slot;
+	}
+
+	/**
+	 * Sends ended streams to the router as HTTP/1.1 requests.
+	 * @return false if there was not enough room on the router pipe
+	 */
+	private boolean forwardRequests(Connection conn, Pipe<NetPayloadSchema> routerOut) {
+		final int chunk = routerOut.maxVarLen;
+		while (conn.forwardCount>0) {
+			final int slot = conn.forward[conn.forwardHead];
+			final Stream s = conn.streams[slot];
+			if (!s.reset) {
+				int total = s.headLen + CONTENT_LENGTH_LINE.length + 12 + s.bodyLen;
+				if (!Pipe.hasRoomForWrite(routerOut, ((total+chunk-1)/chunk)*SIZE_OF_PLAIN)) {
+					return false;
+				}
+				total = buildRequest(s);
+				int p = 0;
+				while (p<total) {
+					int n = Math.min(chunk, total-p);
+					//position 0 never matches the reader pipe head so the pipe is held by this connection
+					writePlain(routerOut, conn.id, conn.arrivalTime, 0, requestBuffer, p, n, Integer.MAX_VALUE);
+					p += n;
+				}
+				s.state = STREAM_FORWARDED;
+				conn.responses[(conn.responseHead+conn.responseCount++)%MAX_STREAMS] = slot;
+			} else {
+				s.state = STREAM_FREE;
+			}
+			conn.forwardHead = (conn.forwardHead+1)%MAX_STREAMS;
+			conn.forwardCount--;
+		}
+		return true;
+	}
+
+	private int buildRequest(Stream s) {
+		byte[] r = requestBuffer;
+		System.arraycopy(s.head, 0, r, 0, s.headLen);
+		int p = s.headLen;
+		if (s.bodyLen>0) {
+			System.arraycopy(CONTENT_LENGTH_LINE, 0, r, p, CONTENT_LENGTH_LINE.length);
+			p += CONTENT_LENGTH_LINE.length;
+			p = writeDecimal(r, p, s.bodyLen);
+			r[p++] = '\r';
+			r[p++] = '\n';
+		}
+		r[p++] = '\r';
+		r[p++] = '\n';
+		System.arraycopy(s.body, 0, r, p, s.bodyLen);
+		return p+s.bodyLen;
+	}
+
+	private int allocateStream(Connection conn, int streamId) {
+		int i = MAX_STREAMS;
+		while (--i>=0) {
+			Stream s = conn.streams[i];
+			if (null == s) {
+				s = conn.streams[i] = new Stream();
+			}
+			if (STREAM_FREE == s.state) {
+				s.id = streamId;
+				s.state = STREAM_RECEIVING;
+				s.reset = false;
+				s.isHead = false;
+				s.headLen = 0;
+				s.bodyLen = 0;
+				s.sendWindow = conn.peerInitialWindow;
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int findStream(Connection conn, int streamId) {
+		int i = MAX_STREAMS;
+		while (--i>=0) {
+			Stream s = conn.streams[i];
+			if (null!=s && STREAM_FREE!=s.state && streamId==s.id) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void resetStream(Connection conn, int streamId) {
+		int slot = findStream(conn, streamId);
+		if (slot>=0) {
+			Stream s = conn.streams[slot];
+			s.reset = true;
+			if (STREAM_RECEIVING == s.state) {
+				s.state = STREAM_FREE;
+			}
+			//complete streams are dropped when forwarded, responses are read and dropped
+		}
+	}
+
+	private void processSettings(Connection conn, int flags, int streamId, byte[] in, int start, int length) {
+		if (0 != streamId) {
+			goAway(conn, PROTOCOL_ERROR);
+			return;
+		}
+		if (0 != (FLAG_ACK&flags)) {
+			if (0 != length) {
+				goAway(conn, FRAME_SIZE_ERROR);
+			}
+			return;
+		}
+		if (0 != (length%6)) {
+			goAway(conn, FRAME_SIZE_ERROR);
+			return;
+		}
+		int p = start;
+		final int end = start+length;
+		while (p<end) {
+			final int id = ((0xFF&in[p])<<8) | (0xFF&in[p+1]);
+			final long value = 0xFFFFFFFFL&readInt32(in, p+2);
+			p += 6;
+			switch (id) {
+				case SETTINGS_HEADER_TABLE_SIZE:
+					conn.encoder.setMaxSize((int)Math.min(value, Integer.MAX_VALUE));
+					break;
+				case SETTINGS_INITIAL_WINDOW_SIZE:
+					if (value > MAX_WINDOW) {
+						goAway(conn, FLOW_CONTROL_ERROR);
+						return;
+					}
+					int delta = (int)value - conn.peerInitialWindow;
+					conn.peerInitialWindow = (int)value;
+					int i = MAX_STREAMS;
+					while (--i>=0) {
+						Stream s = conn.streams[i];
+						if (null!=s && STREAM_FREE!=s.state) {
+							s.sendWindow += delta;
+						}
+					}
+					break;
+				case SETTINGS_MAX_FRAME_SIZE:
+					if (value < DEFAULT_FRAME_SIZE || value > 0xFFFFFF) {
+						goAway(conn, PROTOCOL_ERROR);
+						return;
+					}
+					conn.peerMaxFrame = (int)value;
+					break;
+				default:
+					//push is never used and the rest do not apply to a server
+					break;
+			}
+		}
+		controlLen = writeFrameHeader(control, controlLen, 0, TYPE_SETTINGS, FLAG_ACK, 0);
+	}
+
+	private void processWindowUpdate(Connection conn, int streamId, byte[] in, int start, int length) {
+		if (4 != length) {
+			goAway(conn, FRAME_SIZE_ERROR);
+			return;
+		}
+		final int increment = 0x7FFFFFFF&readInt32(in, start);
+		if (0 == streamId) {
+			if (0 == increment || conn.sendWindow+increment > MAX_WINDOW) {
+				goAway(conn, 0 == increment ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+			} else {
+				conn.sendWindow += increment;
+			}
+			return;
+		}
+		int slot = findStream(conn, streamId);
+		if (slot>=0) {
+			Stream s = conn.streams[slot];
+			if (0 == increment || s.sendWindow+increment > MAX_WINDOW) {
+				writeReset(streamId, 0 == increment ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+				s.reset = true;
+			} else {
+				s.sendWindow += increment;
+			}
+		}
+	}
+
+	private void writeReset(int streamId, int errorCode) {
+		controlLen = writeFrameHeader(control, controlLen, 4, TYPE_RST_STREAM, 0, streamId);
+		controlLen = writeInt32(control, controlLen, errorCode);
+	}
+
+	private void goAway(Connection conn, int errorCode) {
+		if (MODE_CLOSED != conn.mode) {
+			logger.info("closing HTTP/2 connection {} with error code {}", conn.id, errorCode);
+			controlLen = writeGoAway(control, controlLen, conn.lastStreamId, errorCode);
+			conn.mode = MODE_CLOSED;
+		}
+	}
+
+	///////////////////////////////////////
+	//from the supervisor to the network
+	///////////////////////////////////////
+
+	private void processOutbound(int idx, Pipe<NetPayloadSchema> input, Pipe<NetPayloadSchema> output) {
+
+		if (null != stallConnection[idx] && !drainStall(idx, output)) {
+			return;
+		}
+
+		while (Pipe.hasRoomForWrite(output, SIZE_OF_PLAIN+SIZE_OF_DISCONNECT) && Pipe.hasContentToRead(input)) {
+
+			if (!Pipe.peekMsg(input, NetPayloadSchema.MSG_PLAIN_210)
+				&& !Pipe.peekMsg(input, NetPayloadSchema.MSG_DISCONNECT_203)
+				&& !Pipe.peekMsg(input, NetPayloadSchema.MSG_UPGRADE_307)) {
+				if (!copyMessage(Pipe.takeMsgIdx(input), input, output)) {
+					return;
+				}
+				continue;
+			}
+
+			final Connection conn = lookup(Pipe.peekLong(input, 1));
+			if (null == conn || MODE_DETECT == conn.mode) {
+				copyMessage(Pipe.takeMsgIdx(input), input, output);
+				continue;
+			}
+
+			final int msgIdx = Pipe.takeMsgIdx(input);
+			final long channelId = Pipe.takeLong(input);
+
+			if (NetPayloadSchema.MSG_PLAIN_210 == msgIdx) {
+				final long arrivalTime = Pipe.takeLong(input);
+				final long position = Pipe.takeLong(input);
+				final int meta = Pipe.takeByteArrayMetaData(input);
+				final int len = Pipe.takeByteArrayLength(input);
+				final int mask = Pipe.blobMask(input);
+				final byte[] backing = Pipe.byteBackingArray(meta, input);
+				final int pos = Pipe.bytePosition(meta, input, len);
+
+				if (MODE_HTTP2 == conn.mode) {
+					stallPos[idx] = 0;
+					if (FileRegions.REGION_MARKER == arrivalTime) {
+						//the file bytes are read here since they must be framed
+						stallLen[idx] = 0;
+						stallRegion[idx] = FileRegions.lookup(FileRegions.readId(backing, pos, mask));
+						regionPosition[idx] = FileRegions.readPosition(backing, pos, mask);
+						regionRemaining[idx] = FileRegions.readCount(backing, pos, mask);
+					} else {
+						Pipe.copyBytesFromToRing(backing, pos, mask, stallBuffer[idx], 0, Integer.MAX_VALUE, len);
+						stallLen[idx] = len;
+						regionRemaining[idx] = 0;
+					}
+					stallConnection[idx] = conn;
+				}
+				//else closed, the response is dropped
+
+				Pipe.confirmLowLevelRead(input, SIZE_OF_PLAIN);
+				Pipe.releaseReadLock(input);
+
+				if (null != stallConnection[idx] && !drainStall(idx, output)) {
+					return;
+				}
+
+			} else if (NetPayloadSchema.MSG_DISCONNECT_203 == msgIdx) {
+				Pipe.confirmLowLevelRead(input, SIZE_OF_DISCONNECT);
+				Pipe.releaseReadLock(input);
+
+				if (MODE_HTTP2 == conn.mode) {
+					framesLen = writeGoAway(frames, 0, conn.lastStreamId, NO_ERROR);
+					writePlain(output, channelId, 0, Pipe.getWorkingTailPosition(output), frames, 0, framesLen, Integer.MAX_VALUE);
+					framesLen = 0;
+				}
+				remove(conn);
+				if (!conn.disconnectSent) {
+					writeDisconnect(output, channelId);
+				}
+
+			} else {
+				//NetPayloadSchema.MSG_UPGRADE_307, there is no upgrade from inside HTTP/2
+				Pipe.takeInt(input);
+				Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+				Pipe.releaseReadLock(input);
+				logger.warn("upgrade requested on HTTP/2 connection {}, ignored", channelId);
+			}
+		}
+	}
+
+	/**
+	 * @return false if the held response data could not all be sent
+	 */
+	private boolean drainStall(int idx, Pipe<NetPayloadSchema> output) {
+		final Connection conn = stallConnection[idx];
+		while (MODE_HTTP2 == conn.mode) {
+			if (stallPos[idx] == stallLen[idx]) {
+				if (regionRemaining[idx]<=0) {
+					break;
+				}
+				if (!readRegion(idx)) {
+					logger.warn("unable to read file region for HTTP/2 connection {}", conn.id);
+					framesLen = writeGoAway(frames, 0, conn.lastStreamId, INTERNAL_ERROR);
+					conn.mode = MODE_CLOSED;
+					break;
+				}
+			}
+			if (!Pipe.hasRoomForWrite(output, SIZE_OF_PLAIN+SIZE_OF_DISCONNECT)) {
+				return false;
+			}
+			framesLen = 0;
+			//frames is sized for the smallest pipe to the network
+			int consumed = translateResponse(conn, stallBuffer[idx], stallPos[idx], stallLen[idx]-stallPos[idx], frames.length);
+			stallPos[idx] += consumed;
+			if (framesLen>0) {
+				writePlain(output, conn.id, 0, Pipe.getWorkingTailPosition(output), frames, 0, framesLen, Integer.MAX_VALUE);
+				framesLen = 0;
+			}
+			if (0 == consumed && MODE_HTTP2 == conn.mode) {
+				//waiting for the client to open the window
+				return false;
+			}
+		}
+		if (MODE_CLOSED == conn.mode) {
+			if (framesLen>0) {
+				writePlain(output, conn.id, 0, Pipe.getWorkingTailPosition(output), frames, 0, framesLen, Integer.MAX_VALUE);
+				framesLen = 0;
+			}
+			if (!conn.disconnectSent) {
+				conn.disconnectSent = true;
+				writeDisconnect(output, conn.id);
+			}
+		}
+		stallConnection[idx] = null;
+		stallRegion[idx] = null;
+		stallPos[idx] = 0;
+		stallLen[idx] = 0;
+		regionRemaining[idx] = 0;
+		return true;
+	}
+
+	private boolean readRegion(int idx) {
+		FileChannel channel = stallRegion[idx];
+		if (null == channel) {
+			return false;
+		}
+		ByteBuffer buffer = stallByteBuffer[idx];
+		((Buffer)buffer).clear();
+		((Buffer)buffer).limit((int)Math.min(buffer.capacity(), regionRemaining[idx]));
+		try {
+			int count = channel.read(buffer, regionPosition[idx]);
+			if (count<=0) {
+				return false;
+			}
+			regionPosition[idx] += count;
+			regionRemaining[idx] -= count;
+			stallPos[idx] = 0;
+			stallLen[idx] = count;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Turns response bytes into frames written to the frames buffer.
+	 * @return count of bytes consumed, less than length if the window or the frames buffer is full
+	 */
+	private int translateResponse(Connection conn, byte[] data, int start, int length, int capacity) {
+		int p = start;
+		final int end = start+length;
+		while (MODE_HTTP2 == conn.mode) {
+			if (RESP_HEAD == conn.respState) {
+				if (!conn.respHeadComplete) {
+					if (p>=end) {
+						break;
+					}
+					p = collectResponseHead(conn, data, p, end);
+				} else if (!writeResponseHeaders(conn, capacity)) {
+					break;
+				}
+				continue;
+			}
+			if (p>=end) {
+				break;
+			}
+			int next = (RESP_LENGTH == conn.respState)
+					   ? lengthBody(conn, data, p, end, capacity)
+					   : chunkedBody(conn, data, p, end, capacity);
+			if (next == p) {
+				break;
+			}
+			p = next;
+		}
+		return p-start;
+	}
+
+	private int collectResponseHead(Connection conn, byte[] data, int p, int end) {
+		while (p<end) {
+			if (conn.respHeadLen == conn.respHead.length) {
+				if (conn.respHeadLen >= MAX_RESPONSE_HEAD) {
+					logger.warn("response header too large for HTTP/2 connection {}", conn.id);
+					framesLen = writeGoAway(frames, framesLen, conn.lastStreamId, INTERNAL_ERROR);
+					conn.mode = MODE_CLOSED;
+					return end;
+				}
+				conn.respHead = grow(conn.respHead, conn.respHeadLen, conn.respHeadLen+1, MAX_RESPONSE_HEAD);
+			}
+			final byte b = data[p++];
+			conn.respHead[conn.respHeadLen++] = b;
+			if ('\n'==b && conn.respHeadLen>=4
+				&& '\r'==conn.respHead[conn.respHeadLen-2]
+				&& '\n'==conn.respHead[conn.respHeadLen-3]
+				&& '\r'==conn.respHead[conn.respHeadLen-4]) {
+				conn.respHeadComplete = true;
+				break;
+			}
+		}
+		return p;
+	}
+
+	/*
+	 * Sends the HTTP/1.1 status and headers as HEADERS on the stream of the oldest request.
+	 * Always starts a new frames buffer so the encoder table is never changed for a block which is not sent.
+	 */
+	private boolean writeResponseHeaders(Connection conn, int capacity) {
+		if (framesLen>0) {
+			return false;
+		}
+		if (0 == conn.responseCount) {
+			logger.warn("response without a request on HTTP/2 connection {}", conn.id);
+			framesLen = writeGoAway(frames, framesLen, conn.lastStreamId, INTERNAL_ERROR);
+			conn.mode = MODE_CLOSED;
+			return false;
+		}
+
+		final int slot = conn.responses[conn.responseHead];
+		final Stream s = conn.streams[slot];
+		final byte[] h = conn.respHead;
+		final int headEnd = conn.respHeadLen-2;
+
+		//status line
+		int lineEnd = indexOf(h, 0, headEnd, (byte)'\r');
+		int statusStart = indexOf(h, 0, lineEnd, (byte)' ')+1;
+		if (statusStart<=0 || statusStart+3>lineEnd) {
+			logger.warn("bad status line on HTTP/2 connection {}", conn.id);
+			framesLen = writeGoAway(frames, framesLen, conn.lastStreamId, INTERNAL_ERROR);
+			conn.mode = MODE_CLOSED;
+			return false;
+		}
+		final int status = ((h[statusStart]-'0')*100) + ((h[statusStart+1]-'0')*10) + (h[statusStart+2]-'0');
+
+		if (conn.respHeadLen + (12*countLines(h, headEnd)) + 32 > maxHeaderBlock) {
+			logger.warn("response header too large for HTTP/2 connection {}", conn.id);
+			framesLen = writeGoAway(frames, framesLen, conn.lastStreamId, INTERNAL_ERROR);
+			conn.mode = MODE_CLOSED;
+			return false;
+		}
+
+		long contentLength = -1;
+		boolean chunked = false;
+		int blockLen = 0;
+		if (!s.reset) {
+			blockLen = conn.encoder.beginBlock(headerBlock, 0);
+			//name and value must be in one array for the encoder
+			System.arraycopy(h, statusStart, statusField, STATUS.length, 3);
+			blockLen = conn.encoder.encode(headerBlock, blockLen, statusField, 0, STATUS.length, STATUS.length, 3, true);
+		}
+
+		int lineStart = lineEnd+2;
+		while (lineStart < headEnd) {
+			lineEnd = indexOf(h, lineStart, headEnd, (byte)'\r');
+			int colon = indexOf(h, lineStart, lineEnd, (byte)':');
+			if (colon>lineStart) {
+				int i = colon;
+				while (--i>=lineStart) {
+					if (h[i]>='A' && h[i]<='Z') {
+						h[i] = (byte)(h[i]|0x20);
+					}
+				}
+				int valueStart = colon+1;
+				while (valueStart<lineEnd && (' '==h[valueStart] || '\t'==h[valueStart])) {
+					valueStart++;
+				}
+				int valueEnd = lineEnd;
+				while (valueEnd>valueStart && (' '==h[valueEnd-1] || '\t'==h[valueEnd-1])) {
+					valueEnd--;
+				}
+				final int nameLen = colon-lineStart;
+				if (equals(CONTENT_LENGTH, h, lineStart, nameLen)) {
+					contentLength = parseDecimal(h, valueStart, valueEnd);
+				} else if (equals(TRANSFER_ENCODING, h, lineStart, nameLen)) {
+					chunked = contains(h, valueStart, valueEnd, CHUNKED);
+				}
+				if (!s.reset && (!isListed(DROPPED_HEADERS, h, lineStart, nameLen) || equals(CONTENT_LENGTH, h, lineStart, nameLen))) {
+					blockLen = conn.encoder.encode(headerBlock, blockLen, h, lineStart, nameLen, valueStart, valueEnd-valueStart,
+							                       !isListed(NOT_INDEXED_HEADERS, h, lineStart, nameLen));
+				}
+			}
+			lineStart = lineEnd+2;
+		}
+
+		final boolean noBody = s.isHead || status<200 || 204==status || 304==status || (!chunked && contentLength<=0);
+
+		if (!s.reset) {
+			int off = 0;
+			boolean first = true;
+			do {
+				int n = Math.min(conn.peerMaxFrame, blockLen-off);
+				int flags = (off+n==blockLen ? FLAG_END_HEADERS : 0) | (first && noBody ? FLAG_END_STREAM : 0);
+				framesLen = writeFrameHeader(frames, framesLen, n, first ? TYPE_HEADERS : TYPE_CONTINUATION, flags, s.id);
+				System.arraycopy(headerBlock, off, frames, framesLen, n);
+				framesLen += n;
+				off += n;
+				first = false;
+			} while (off<blockLen);
+		}
+
+		conn.responseHead = (conn.responseHead+1)%MAX_STREAMS;
+		conn.responseCount--;
+		conn.respSlot = slot;
+		conn.respHeadComplete = false;
+		conn.respHeadLen = 0;
+
+		if (noBody) {
+			finishResponse(conn);
+		} else if (chunked) {
+			conn.respState = RESP_CHUNKED;
+			conn.chunkState = CHUNK_SIZE;
+			conn.chunkRemaining = 0;
+			conn.lineLength = 0;
+		} else {
+			conn.respState = RESP_LENGTH;
+			conn.respRemaining = contentLength;
+		}
+		return true;
+	}
+
+	private int lengthBody(Connection conn, byte[] data, int p, int end, int capacity) {
+		final Stream s = conn.streams[conn.respSlot];
+		int n = (int)Math.min(Math.min(end-p, conn.respRemaining), dataAllowance(conn, s, capacity));
+		if (n<=0) {
+			return p;
+		}
+		conn.respRemaining -= n;
+		final boolean last = 0 == conn.respRemaining;
+		writeData(conn, s, data, p, n, last);
+		if (last) {
+			finishResponse(conn);
+		}
+		return p+n;
+	}
+
+	private int chunkedBody(Connection conn, byte[] data, int p, int end, int capacity) {
+		final Stream s = conn.streams[conn.respSlot];
+		switch (conn.chunkState) {
+			case CHUNK_SIZE:
+			{
+				final byte b = data[p];
+				final int v = hexValue(b);
+				if (v>=0) {
+					conn.chunkRemaining = (conn.chunkRemaining<<4) | v;
+				} else if ('\n'==b) {
+					endChunkSize(conn);
+				} else {
+					conn.chunkState = CHUNK_EXT;
+				}
+				return p+1;
+			}
+			case CHUNK_EXT:
+				if ('\n'==data[p]) {
+					endChunkSize(conn);
+				}
+				return p+1;
+			case CHUNK_DATA:
+			{
+				int n = (int)Math.min(Math.min(end-p, conn.chunkRemaining), dataAllowance(conn, s, capacity));
+				if (n<=0) {
+					return p;
+				}
+				writeData(conn, s, data, p, n, false);
+				conn.chunkRemaining -= n;
+				if (0 == conn.chunkRemaining) {
+					conn.chunkState = CHUNK_DATA_END;
+				}
+				return p+n;
+			}
+			case CHUNK_DATA_END:
+				if ('\n'==data[p]) {
+					conn.chunkState = CHUNK_SIZE;
+					conn.chunkRemaining = 0;
+				}
+				return p+1;
+			default: //CHUNK_TRAILER
+			{
+				final byte b = data[p];
+				if ('\n'==b) {
+					if (0 == conn.lineLength) {
+						//end of the response, an empty DATA frame closes the stream
+						if (framesLen+FRAME_HEADER_SIZE > capacity) {
+							return p;
+						}
+						writeData(conn, s, data, p, 0, true);
+						finishResponse(conn);
+					}
+					conn.lineLength = 0;
+				} else if ('\r'!=b) {
+					conn.lineLength++;
+				}
+				return p+1;
+			}
+		}
+	}
+
+	private static void endChunkSize(Connection conn) {
+		conn.chunkState = 0 == conn.chunkRemaining ? CHUNK_TRAILER : CHUNK_DATA;
+		conn.lineLength = 0;
+	}
+
+	private int dataAllowance(Connection conn, Stream s, int capacity) {
+		if (s.reset) {
+			return Integer.MAX_VALUE;//nothing is sent so there is no limit
+		}
+		long window = Math.min(conn.sendWindow, s.sendWindow);
+		int room = capacity-framesLen-FRAME_HEADER_SIZE;
+		return (int)Math.max(0, Math.min(window, Math.min(conn.peerMaxFrame, room)));
+	}
+
+	private void writeData(Connection conn, Stream s, byte[] data, int p, int n, boolean endStream) {
+		if (!s.reset) {
+			framesLen = writeFrameHeader(frames, framesLen, n, TYPE_DATA, endStream ? FLAG_END_STREAM : 0, s.id);
+			System.arraycopy(data, p, frames, framesLen, n);
+			framesLen += n;
+			conn.sendWindow -= n;
+			s.sendWindow -= n;
+		}
+	}
+
+	private static void finishResponse(Connection conn) {
+		conn.streams[conn.respSlot].state = STREAM_FREE;
+		conn.respSlot = -1;
+		conn.respState = RESP_HEAD;
+	}
+
+	///////////////////////////////////////
+	//pipe helpers
+	///////////////////////////////////////
+
+	/**
+	 * Copies any message unchanged.
+	 * @return false if this input has reached its end
+	 */
+	private boolean copyMessage(int msgIdx, Pipe<NetPayloadSchema> input, Pipe<NetPayloadSchema> output) {
+		if (msgIdx<0) {
+			Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+			Pipe.releaseReadLock(input);
+			eofCount++;
+			return false;
+		}
+		if (NetPayloadSchema.MSG_PLAIN_210 == msgIdx) {
+			final long channelId = Pipe.takeLong(input);
+			final long arrivalTime = Pipe.takeLong(input);
+			final long position = Pipe.takeLong(input);
+			final int meta = Pipe.takeByteArrayMetaData(input);
+			final int len = Pipe.takeByteArrayLength(input);
+			writePlain(output, channelId, arrivalTime, position,
+					   Pipe.byteBackingArray(meta, input), Pipe.bytePosition(meta, input, len), len, Pipe.blobMask(input));
+		} else if (NetPayloadSchema.MSG_BEGIN_208 == msgIdx) {
+			int size = Pipe.addMsgIdx(output, msgIdx);
+			Pipe.addIntValue(Pipe.takeInt(input), output);
+			Pipe.confirmLowLevelWrite(output, size);
+			Pipe.publishWrites(output);
+		} else if (NetPayloadSchema.MSG_DISCONNECT_203 == msgIdx) {
+			writeDisconnect(output, Pipe.takeLong(input));
+		} else if (NetPayloadSchema.MSG_UPGRADE_307 == msgIdx) {
+			int size = Pipe.addMsgIdx(output, msgIdx);
+			Pipe.addLongValue(Pipe.takeLong(input), output);
+			Pipe.addIntValue(Pipe.takeInt(input), output);
+			Pipe.confirmLowLevelWrite(output, size);
+			Pipe.publishWrites(output);
+		} else {
+			logger.warn("unexpected message {} dropped", msgIdx);
+			Pipe.skipNextFragment(input, msgIdx);
+			return true;
+		}
+		Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+		Pipe.releaseReadLock(input);
+		return true;
+	}
+
+	private static void writePlain(Pipe<NetPayloadSchema> output, long channelId, long arrivalTime, long position,
+			                       byte[] data, int pos, int length, int mask) {
+		int size = Pipe.addMsgIdx(output, NetPayloadSchema.MSG_PLAIN_210);
+		Pipe.addLongValue(channelId, output);
+		Pipe.addLongValue(arrivalTime, output);
+		Pipe.addLongValue(position, output);
+		Pipe.addByteArrayWithMask(output, mask, length, data, pos);
+		Pipe.confirmLowLevelWrite(output, size);
+		Pipe.publishWrites(output);
+	}
+
+	private static void writeDisconnect(Pipe<NetPayloadSchema> output, long channelId) {
+		int size = Pipe.addMsgIdx(output, NetPayloadSchema.MSG_DISCONNECT_203);
+		Pipe.addLongValue(channelId, output);
+		Pipe.confirmLowLevelWrite(output, size);
+		Pipe.publishWrites(output);
+	}
+
+	///////////////////////////////////////
+	//frame and byte helpers
+	///////////////////////////////////////
+
+	static int writeFrameHeader(byte[] target, int pos, int length, int type, int flags, int streamId) {
+		target[pos++] = (byte)(length>>16);
+		target[pos++] = (byte)(length>>8);
+		target[pos++] = (byte)length;
+		target[pos++] = (byte)type;
+		target[pos++] = (byte)flags;
+		return writeInt32(target, pos, 0x7FFFFFFF&streamId);
+	}
+
+	private static int writeSetting(byte[] target, int pos, int id, int value) {
+		target[pos++] = (byte)(id>>8);
+		target[pos++] = (byte)id;
+		return writeInt32(target, pos, value);
+	}
+
+	private static int writeWindowUpdate(byte[] target, int pos, int streamId, int increment) {
+		pos = writeFrameHeader(target, pos, 4, TYPE_WINDOW_UPDATE, 0, streamId);
+		return writeInt32(target, pos, increment);
+	}
+
+	private static int writeGoAway(byte[] target, int pos, int lastStreamId, int errorCode) {
+		pos = writeFrameHeader(target, pos, 8, TYPE_GOAWAY, 0, 0);
+		pos = writeInt32(target, pos, lastStreamId);
+		return writeInt32(target, pos, errorCode);
+	}
+
+	private static int writeInt32(byte[] target, int pos, int value) {
+		target[pos++] = (byte)(value>>24);
+		target[pos++] = (byte)(value>>16);
+		target[pos++] = (byte)(value>>8);
+		target[pos++] = (byte)value;
+		return pos;
+	}
+
+	static int readInt32(byte[] source, int pos) {
+		return ((0xFF&source[pos])<<24) | ((0xFF&source[pos+1])<<16) | ((0xFF&source[pos+2])<<8) | (0xFF&source[pos+3]);
+	}
+
+	private static int writeDecimal(byte[] target, int pos, int value) {
+		int start = pos;
+		do {
+			target[pos++] = (byte)('0'+(value%10));
+			value /= 10;
+		} while (value>0);
+		//reverse the digits
+		int end = pos-1;
+		while (start<end) {
+			byte t = target[start];
+			target[start++] = target[end];
+			target[end--] = t;
+		}
+		return pos;
+	}
+
+	private static long parseDecimal(byte[] data, int start, int end) {
+		long value = 0;
+		for (int i = start; i<end; i++) {
+			int d = data[i]-'0';
+			if (d<0 || d>9) {
+				return -1;
+			}
+			value = (value*10)+d;
+		}
+		return end>start ? value : -1;
+	}
+
+	private static int hexValue(byte b) {
+		if (b>='0' && b<='9') {
+			return b-'0';
+		}
+		int lower = b|0x20;
+		if (lower>='a' && lower<='f') {
+			return 10+(lower-'a');
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] data, int start, int end, byte value) {
+		for (int i = start; i<end; i++) {
+			if (value == data[i]) {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	private static int countLines(byte[] data, int end) {
+		int count = 0;
+		int i = end;
+		while (--i>=0) {
+			if ('\n'==data[i]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static boolean contains(byte[] data, int start, int end, byte[] lowerTarget) {
+		int limit = end-lowerTarget.length;
+		for (int i = start; i<=limit; i++) {
+			int j = lowerTarget.length;
+			while (--j>=0 && lowerTarget[j]==(data[i+j]|0x20)) {
+			}
+			if (j<0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isListed(byte[][] names, byte[] data, int start, int length) {
+		int i = names.length;
+		while (--i>=0) {
+			if (equals(names[i], data, start, length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean equals(byte[] expected, byte[] data, int start, int length) {
+		if (expected.length != length) {
+			return false;
+		}
+		int i = length;
+		while (--i>=0) {
+			if (expected[i] != data[start+i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] grow(byte[] data, int used, int needed, int max) {
+		byte[] result = new byte[Math.min(max, Math.max(needed, data.length*2))];
+		System.arraycopy(data, 0, result, 0, used);
+		return result;
+	}
+
+}
@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ociweb.pronghorn.network.ClientConnection;
+import com.ociweb.pronghorn.network.ClientConnectionPool;
 import com.ociweb.pronghorn.network.ClientCoordinator;
 import com.ociweb.pronghorn.network.schema.ClientHTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
@@ -77,9 +78,47 @@ public class HTTPClientRequestStage extends PronghornStage {
 		
 		super.startup();		
 		ccf = new HTTPClientConnectionFactory(recordTypeData);
+		prewarmConnectionPools();
 
 	}
 	
+	/**
+	 * Opens the minimum connections of each pool so the first requests do not wait on the handshake.
+	 */
+	private void prewarmConnectionPools() {
+		int p = ccm.connectionPoolCount();
+		while (--p>=0) {
+			ClientConnectionPool pool = ccm.connectionPool(p);
+			int attempts = pool.minConnections;
+			while (pool.size()<pool.minConnections && --attempts>=0) {
+				ClientCoordinator.openConnection(ccm, pool.host, pool.port, pool.sessionId, output, -1, ccf);
+			}
+			if (pool.size()<pool.minConnections) {
+				logger.warn("only {} of {} connections could be opened to {}:{}", pool.size(), pool.minConnections, pool.host, pool.port);
+			}
+		}
+	}
+	
+	private int reapCountDown = REAP_INTERVAL;
+	private static final int REAP_INTERVAL = 1<<10;
+	
+	/**
+	 * Closes one pooled connection which has been idle too long, checked once every REAP_INTERVAL runs.
+	 */
+	private void reapIdlePooledConnection() {
+		if (--reapCountDown<=0 && hasRoomForEOF(output)) {
+			reapCountDown = REAP_INTERVAL;
+			ClientConnection idle = ccm.scanForIdlePooledConnection();
+			if (null!=idle) {
+				logger.trace("closing idle pooled connection {}", idle);
+				if (idle==activeConnection) {
+					activeConnection = null;
+				}
+				HTTPClientUtil.cleanCloseConnection(null, idle, output[idle.requestPipeLineIdx()]);
+			}
+		}
+	}
+	
 	@Override
 	public void shutdown() {
 		
@@ -109,6 +148,10 @@ public class HTTPClientRequestStage extends PronghornStage {
 		         return;
 			 }
 			
+			if (ccm.hasConnectionPools()) {
+				reapIdlePooledConnection();
+			}
+			
 			boolean hasWork;
 			
 			do {
@@ -144,6 +187,14 @@ public class HTTPClientRequestStage extends PronghornStage {
 			final long now = System.nanoTime();
 			activeConnection.setLastUsedTime(now);
 	       	
+		    if (ClientCoordinator.singleFlight && isParkedOnInFlight(requestPipe)) {
+		    	//an identical GET is outstanding, its response will also be sent to this destination
+		    	ClientCoordinator.singleFlightJoins++;
+		    	final int msgIdx = Pipe.takeMsgIdx(requestPipe);
+		    	Pipe.skipNextFragment(requestPipe, msgIdx);
+		    	return didWork;
+		    }
+		    
 		    final int msgIdx = Pipe.takeMsgIdx(requestPipe);
 		    		    
 		    //logger.info("\n ^^^^ send for active pipe {} with msg {} connection {}",requestPipe.id,msgIdx,activeConnection.id);
@@ -175,6 +226,40 @@ public class HTTPClientRequestStage extends PronghornStage {
 	}
 
 
+	/**
+	 * Joins this GET to an identical request already sent on the active connection,
+	 * otherwise opens it so later identical GETs can join it.
+	 * @return true if this request must not be sent
+	 */
+	private boolean isParkedOnInFlight(Pipe<ClientHTTPRequestSchema> requestPipe) {
+		
+		final int base;
+		if (Pipe.peekMsg(requestPipe, ClientHTTPRequestSchema.MSG_FASTHTTPGET_200)) {
+			base = 8; //path is after the connection id
+		} else if (Pipe.peekMsg(requestPipe, ClientHTTPRequestSchema.MSG_HTTPGET_100)) {
+			base = 6; //path is after the host
+		} else {
+			return false;
+		}
+		
+		final int routeId  = Pipe.peekInt(requestPipe, 1);
+		final int pathMeta = Pipe.peekInt(requestPipe, base);
+		final int pathLen  = Pipe.peekInt(requestPipe, base+1);
+		final int headMeta = Pipe.peekInt(requestPipe, base+2);
+		final int headLen  = Pipe.peekInt(requestPipe, base+3);
+		
+		final byte[] backing = Pipe.byteBackingArray(pathMeta, requestPipe);
+		final int mask = Pipe.blobMask(requestPipe);
+		final int pathPos = Pipe.convertToPosition(pathMeta, requestPipe);
+		final int headPos = Pipe.convertToPosition(headMeta, requestPipe);
+		
+		if (activeConnection.joinInFlight(routeId, backing, mask, pathPos, pathLen, headPos, headLen)) {
+			return true;
+		}
+		activeConnection.openInFlight(routeId, backing, mask, pathPos, pathLen, headPos, headLen);
+		return false;
+	}
+
 	private void processShutdownLogic(Pipe<ClientHTTPRequestSchema> requestPipe) {
 		ClientConnection connectionToKill = ccm.nextValidConnection();
 		final ClientConnection firstToKill = connectionToKill;					
@@ -225,6 +310,10 @@ public class HTTPClientRequestStage extends PronghornStage {
  			||Pipe.peekMsg(requestPipe, ClientHTTPRequestSchema.MSG_FASTHTTPPOST_201) ) {
  			connectionId = Pipe.peekLong(requestPipe, 6);//do not do lookup if it was already provided.
  			assert(-1 != connectionId);
+ 			if (ccm.hasConnectionPools()) {
+ 				//-1 when the pool should grow, the host is read again below to open it
+ 				connectionId = ccm.pooledConnectionId(connectionId, System.nanoTime());
+ 			}
  		} else {
  
  			if (Pipe.peekMsg(requestPipe, ClientHTTPRequestSchema.MSG_CLOSE_104) ) {
@@ -245,7 +334,13 @@ public class HTTPClientRequestStage extends PronghornStage {
  	 		hostBack = Pipe.byteBackingArray(hostMeta, requestPipe);
  	 		hostMask = Pipe.blobMask(requestPipe);
  						
-     		connectionId = ccm.lookup(ClientCoordinator.lookupHostId(hostBack, hostPos, hostLen, hostMask), port, userId);
+     		final int hostId = ClientCoordinator.lookupHostId(hostBack, hostPos, hostLen, hostMask);
+     		ClientConnectionPool pool;
+     		if (ccm.hasConnectionPools() && null!=(pool = ccm.connectionPool(hostId, port, userId))) {
+     			connectionId = ccm.selectPooledConnection(pool, System.nanoTime());
+     		} else {
+     			connectionId = ccm.lookup(hostId, port, userId);
+     		}
  		}
 		
  		if (null!=activeConnection
@@ -281,6 +376,10 @@ public class HTTPClientRequestStage extends PronghornStage {
  		
 		if (null != activeConnection) {
 			
+			if (activeConnection.inFlightCount() >= ccm.pipelineDepth(activeConnection.hostId)) {
+				return false;//pipeline is full, wait for a response
+			}
+			
 			if (activeConnection.isBusy()) {
 				//logger.info("\n ^^^ waiting for server to respond to connection");
 				return false;//must try again later when the server has responded.
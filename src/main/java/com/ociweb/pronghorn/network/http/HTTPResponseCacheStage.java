@@ -0,0 +1,557 @@
+package com.ociweb.pronghorn.network.http;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.CounterSource;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Holds complete responses for routes registered with cacheResponses(ttlMS).
+ * Placed between the router and a module on one track. GET requests for a cached route are
+ * keyed on the route, revision, request context and all the extracted parameters and headers.
+ * A fresh entry is written directly to the hits pipe with the sequence number of the new request,
+ * everything else is sent on to the module unchanged.
+ *
+ * Responses from the module pass through this stage so the 200 responses to requests which
+ * missed can be captured. They are stored off heap and the least recently used entries are dropped
+ * once maxCacheBytes is reached.
+ *
+ * Hits use their own pipe into the OrderSupervisorStage so they never wait behind a response
+ * still being built by the module.
+ *
+ * @author Nathan Tippy
+ * @see <a href="https://github.com/objectcomputing/Pronghorn">Pronghorn</a>
+ */
+public class HTTPResponseCacheStage extends PronghornStage implements CounterSource {
+
+	private static final Logger logger = LoggerFactory.getLogger(HTTPResponseCacheStage.class);
+
+	private static final int SIZE_OF_TO_CHANNEL = Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOCHANNEL_100);
+
+	public static final long DEFAULT_CACHE_BYTES = 1L<<24;
+	public static final int DEFAULT_ENTRY_BYTES = 1<<20;
+
+	private static final int NOT_CACHEABLE_MASK = ServerCoordinator.FILE_REGION_MASK | ServerCoordinator.UPGRADE_MASK;
+
+	private static final class Key {
+		byte[] bytes;
+		int length;
+		int hash;
+
+		Key(int size) {
+			bytes = new byte[size];
+		}
+
+		Key(Key source) {
+			bytes = new byte[source.length];
+			System.arraycopy(source.bytes, 0, bytes, 0, source.length);
+			length = source.length;
+			hash = source.hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key)obj;
+			if (that.length != length || that.hash != hash) {
+				return false;
+			}
+			int i = length;
+			while (--i>=0) {
+				if (that.bytes[i] != bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class Entry {
+		final ByteBuffer data;//direct, all the payloads one after the other
+		final int[] lengths;
+		final int[] contexts;
+		final long expires;
+
+		Entry(ByteBuffer data, int[] lengths, int[] contexts, long expires) {
+			this.data = data;
+			this.lengths = lengths;
+			this.contexts = contexts;
+			this.expires = expires;
+		}
+	}
+
+	private final HTTP1xRouterStageConfig<?,?,?,?> config;
+	private final Pipe<HTTPRequestSchema> fromRouter;
+	private final Pipe<HTTPRequestSchema> toModule;
+	private final Pipe<ServerResponseSchema> fromModule;
+	private final Pipe<ServerResponseSchema> toSupervisor;
+	private final Pipe<ServerResponseSchema> hits;
+	//bytes of cached responses held by this instance
+	private final long maxCacheBytes;
+	//larger responses are not cached
+	private final int maxEntryBytes;
+
+	private LinkedHashMap<Key, Entry> entries;
+	private Key probe;
+	private byte[] replay;
+	private long cachedBytes;
+
+	//requests sent to the module whose responses are captured
+	private long[] pendingChannel;
+	private int[] pendingSequence;
+	private Key[] pendingKey;
+	private long[] pendingTTL;
+	private byte[][] pendingData;
+	private int[] pendingLength;
+	private int[][] pendingLengths;
+	private int[][] pendingContexts;
+	private int[] pendingCount;
+	private boolean[] pendingCacheable;
+
+	private long cacheHits;
+	private long cacheMisses;
+	private int eofCount;
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param config holds the TTL of each route
+	 * @param fromRouter _in_ Requests from the router.
+	 * @param toModule _out_ Requests which were not answered from the cache.
+	 * @param fromModule _in_ Responses from the module.
+	 * @param toSupervisor _out_ Responses from the module, unchanged.
+	 * @param hits _out_ Responses answered from the cache.
+	 * @param maxCacheBytes total bytes of responses held, least recently used are dropped beyond this
+	 * @param maxEntryBytes larger responses are not cached
+	 */
+	public HTTPResponseCacheStage(GraphManager graphManager, HTTP1xRouterStageConfig<?,?,?,?> config,
+			                      Pipe<HTTPRequestSchema> fromRouter, Pipe<HTTPRequestSchema> toModule,
+			                      Pipe<ServerResponseSchema> fromModule, Pipe<ServerResponseSchema> toSupervisor,
+			                      Pipe<ServerResponseSchema> hits, long maxCacheBytes, int maxEntryBytes) {
+		super(graphManager, join(fromRouter, fromModule), join(toModule, toSupervisor, hits));
+		this.config = config;
+		this.fromRouter = fromRouter;
+		this.toModule = toModule;
+		this.fromModule = fromModule;
+		this.toSupervisor = toSupervisor;
+		this.hits = hits;
+		this.maxCacheBytes = maxCacheBytes;
+		this.maxEntryBytes = maxEntryBytes;
+
+		if (hits.maxVarLen < fromModule.maxVarLen) {
+			throw new UnsupportedOperationException("hits pipe must hold the largest response fragment of the module");
+		}
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon", this);
+	}
+
+	@Override
+	public void startup() {
+		entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);//access order for LRU
+		probe = new Key(fromRouter.maxVarLen+12);
+		replay = new byte[fromModule.maxVarLen];
+
+		//enough to track every request which can be in flight on the pipes around the module
+		int slots = toModule.sizeOfSlabRing/Pipe.sizeOf(toModule, HTTPRequestSchema.MSG_RESTREQUEST_300)
+				  + fromModule.sizeOfSlabRing/SIZE_OF_TO_CHANNEL;
+		pendingChannel = new long[slots];
+		pendingSequence = new int[slots];
+		pendingKey = new Key[slots];
+		pendingTTL = new long[slots];
+		pendingData = new byte[slots][];
+		pendingLength = new int[slots];
+		pendingLengths = new int[slots][];
+		pendingContexts = new int[slots][];
+		pendingCount = new int[slots];
+		pendingCacheable = new boolean[slots];
+		Arrays.fill(pendingChannel, -1);
+	}
+
+	@Override
+	public void shutdown() {
+		entries.clear();
+		cachedBytes = 0;
+		Pipe.publishEOF(toModule);
+		Pipe.publishEOF(toSupervisor);
+		Pipe.publishEOF(hits);
+	}
+
+	@Override
+	public void run() {
+		//responses first so entries are stored before the next requests are checked
+		processResponses();
+		processRequests();
+		if (2 == eofCount) {
+			requestShutdown();
+		}
+	}
+
+	private void processRequests() {
+		while (Pipe.hasContentToRead(fromRouter) && Pipe.hasRoomForWrite(toModule)) {
+
+			if (Pipe.peekMsg(fromRouter, HTTPRequestSchema.MSG_RESTREQUEST_300)) {
+				final int routeVerb = Pipe.peekInt(fromRouter, 4);
+				final int routeId = routeVerb >>> HTTPVerb.BITS;
+				final long ttlMS = config.responseCacheTTL(routeId);
+				if (ttlMS>0 && HTTPVerbDefaults.GET.ordinal() == (routeVerb & HTTPVerb.MASK)) {
+					if (!cachedRequest(ttlMS)) {
+						return;//no room for the hit
+					}
+					continue;
+				}
+			}
+			if (!copyRequest(-1)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return false if there was no room to write the cached response
+	 */
+	private boolean cachedRequest(long ttlMS) {
+		buildProbe();
+		Entry entry = entries.get(probe);
+		if (null!=entry && System.nanoTime()-entry.expires>0) {
+			removeEntry(probe, entry);
+			entry = null;
+		}
+		if (null == entry) {
+			cacheMisses++;
+			int slot = freePendingSlot();
+			if (slot>=0) {
+				pendingKey[slot] = new Key(probe);
+				pendingTTL[slot] = ttlMS;
+			}
+			return copyRequest(slot);
+		}
+		if (!Pipe.hasRoomForWrite(hits, entry.lengths.length*SIZE_OF_TO_CHANNEL)) {
+			return false;
+		}
+		cacheHits++;
+
+		final long channelId = Pipe.peekLong(fromRouter, 1);
+		final int sequence = Pipe.peekInt(fromRouter, 3);
+		//the request is answered here so the rest of it is not needed
+		Pipe.skipNextFragment(fromRouter);
+
+		ByteBuffer data = entry.data.duplicate();
+		int pos = 0;
+		for (int f = 0; f<entry.lengths.length; f++) {
+			int len = entry.lengths[f];
+			int size = Pipe.addMsgIdx(hits, ServerResponseSchema.MSG_TOCHANNEL_100);
+			Pipe.addLongValue(channelId, hits);
+			Pipe.addIntValue(sequence, hits);
+			((Buffer)data).position(pos);
+			data.get(replay, 0, len);
+			Pipe.addByteArray(replay, 0, len, hits);
+			Pipe.addIntValue(entry.contexts[f], hits);
+			Pipe.confirmLowLevelWrite(hits, size);
+			Pipe.publishWrites(hits);
+			pos += len;
+		}
+		return true;
+	}
+
+	/*
+	 * Key is the route and verb, revision, request context and every byte extracted by the router.
+	 */
+	private void buildProbe() {
+		final int routeVerb = Pipe.peekInt(fromRouter, 4);
+		final int meta = Pipe.peekInt(fromRouter, 5);
+		final int len = Pipe.peekInt(fromRouter, 6);
+		final int revision = Pipe.peekInt(fromRouter, 7);
+		final int context = Pipe.peekInt(fromRouter, 8);
+
+		byte[] k = probe.bytes;
+		int p = writeInt(k, 0, routeVerb);
+		p = writeInt(k, p, revision);
+		p = writeInt(k, p, context);
+		Pipe.copyBytesFromToRing(Pipe.byteBackingArray(meta, fromRouter), Pipe.bytePosition(meta, fromRouter, len), Pipe.blobMask(fromRouter),
+				                 k, p, Integer.MAX_VALUE, len);
+		probe.length = p+len;
+
+		int hash = 0;
+		int i = probe.length;
+		while (--i>=0) {
+			hash = (31*hash) + k[i];
+		}
+		probe.hash = hash;
+	}
+
+	private static int writeInt(byte[] target, int pos, int value) {
+		target[pos++] = (byte)(value>>24);
+		target[pos++] = (byte)(value>>16);
+		target[pos++] = (byte)(value>>8);
+		target[pos++] = (byte)value;
+		return pos;
+	}
+
+	/**
+	 * Copies the next request to the module, including the index data at the end of the params.
+	 * @param slot pending slot to capture the response, -1 for none
+	 * @return false if this input has ended
+	 */
+	private boolean copyRequest(int slot) {
+		final int msgIdx = Pipe.takeMsgIdx(fromRouter);
+		if (msgIdx<0) {
+			Pipe.confirmLowLevelRead(fromRouter, Pipe.EOF_SIZE);
+			Pipe.releaseReadLock(fromRouter);
+			eofCount++;
+			return false;
+		}
+
+		final int size = Pipe.addMsgIdx(toModule, msgIdx);
+		final long channelId = Pipe.takeLong(fromRouter);
+		final int sequence = Pipe.takeInt(fromRouter);
+		Pipe.addLongValue(channelId, toModule);
+		Pipe.addIntValue(sequence, toModule);
+		if (HTTPRequestSchema.MSG_RESTREQUEST_300 == msgIdx) {
+			Pipe.addIntValue(Pipe.takeInt(fromRouter), toModule); //verb
+			copyStructuredField();
+			Pipe.addIntValue(Pipe.takeInt(fromRouter), toModule); //revision
+			Pipe.addIntValue(Pipe.takeInt(fromRouter), toModule); //context
+		} else {
+			//HTTPRequestSchema.MSG_WEBSOCKETFRAME_100
+			Pipe.addIntValue(Pipe.takeInt(fromRouter), toModule); //finOpp
+			Pipe.addIntValue(Pipe.takeInt(fromRouter), toModule); //mask
+			copyStructuredField();
+		}
+		Pipe.confirmLowLevelWrite(toModule, size);
+		Pipe.publishWrites(toModule);
+
+		Pipe.confirmLowLevelRead(fromRouter, Pipe.sizeOf(fromRouter, msgIdx));
+		Pipe.releaseReadLock(fromRouter);
+
+		if (slot>=0) {
+			pendingChannel[slot] = channelId;
+			pendingSequence[slot] = sequence;
+			pendingLength[slot] = 0;
+			pendingCount[slot] = 0;
+			pendingCacheable[slot] = true;
+		}
+		return true;
+	}
+
+	private void copyStructuredField() {
+		DataInputBlobReader<HTTPRequestSchema> inputStream = Pipe.openInputStream(fromRouter);
+		DataOutputBlobWriter<HTTPRequestSchema> outputStream = Pipe.openOutputStream(toModule);
+		inputStream.readInto(outputStream, inputStream.available());
+		if (inputStream.isStructured()) {
+			inputStream.readFromEndInto(outputStream);
+		}
+		DataOutputBlobWriter.closeLowLevelField(outputStream);
+	}
+
+	private int freePendingSlot() {
+		int i = pendingChannel.length;
+		while (--i>=0) {
+			if (pendingChannel[i]<0 && null==pendingKey[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int findPendingSlot(long channelId, int sequence) {
+		int i = pendingChannel.length;
+		while (--i>=0) {
+			if (channelId==pendingChannel[i] && sequence==pendingSequence[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void processResponses() {
+		while (Pipe.hasContentToRead(fromModule) && Pipe.hasRoomForWrite(toSupervisor)) {
+
+			final int msgIdx = Pipe.takeMsgIdx(fromModule);
+			if (msgIdx<0) {
+				Pipe.confirmLowLevelRead(fromModule, Pipe.EOF_SIZE);
+				Pipe.releaseReadLock(fromModule);
+				eofCount++;
+				return;
+			}
+
+			final int size = Pipe.addMsgIdx(toSupervisor, msgIdx);
+			if (ServerResponseSchema.MSG_SKIP_300 == msgIdx) {
+				copyBytes();
+			} else {
+				//MSG_TOCHANNEL_100 and MSG_TOSUBSCRIPTION_200 share the same layout
+				final long channelId = Pipe.takeLong(fromModule);
+				final int sequence = Pipe.takeInt(fromModule);
+				Pipe.addLongValue(channelId, toSupervisor);
+				Pipe.addIntValue(sequence, toSupervisor);
+
+				final int meta = Pipe.takeByteArrayMetaData(fromModule);
+				final int len = Pipe.takeByteArrayLength(fromModule);
+				final byte[] backing = Pipe.byteBackingArray(meta, fromModule);
+				final int pos = Pipe.bytePosition(meta, fromModule, len);
+				final int mask = Pipe.blobMask(fromModule);
+				Pipe.addByteArrayWithMask(toSupervisor, mask, len, backing, pos);
+
+				final int context = Pipe.takeInt(fromModule);
+				Pipe.addIntValue(context, toSupervisor);
+
+				if (ServerResponseSchema.MSG_TOCHANNEL_100 == msgIdx) {
+					int slot = findPendingSlot(channelId, sequence);
+					if (slot>=0) {
+						capture(slot, backing, pos, len, mask, context);
+					}
+				}
+			}
+			Pipe.confirmLowLevelWrite(toSupervisor, size);
+			Pipe.publishWrites(toSupervisor);
+
+			Pipe.confirmLowLevelRead(fromModule, Pipe.sizeOf(fromModule, msgIdx));
+			Pipe.releaseReadLock(fromModule);
+		}
+	}
+
+	private void copyBytes() {
+		final int meta = Pipe.takeByteArrayMetaData(fromModule);
+		final int len = Pipe.takeByteArrayLength(fromModule);
+		Pipe.addByteArrayWithMask(toSupervisor, Pipe.blobMask(fromModule), len,
+				                  Pipe.byteBackingArray(meta, fromModule), Pipe.bytePosition(meta, fromModule, len));
+	}
+
+	private void capture(int slot, byte[] backing, int pos, int len, int mask, int context) {
+		if (pendingCacheable[slot]) {
+			if (0 != (NOT_CACHEABLE_MASK&context) || pendingLength[slot]+len > maxEntryBytes
+				|| (0==pendingCount[slot] && !isOK(backing, pos, len, mask))) {
+				pendingCacheable[slot] = false;
+			} else {
+				appendFragment(slot, backing, pos, len, mask, context);
+			}
+		}
+		if (0 != (ServerCoordinator.END_RESPONSE_MASK&context)) {
+			if (pendingCacheable[slot]) {
+				store(slot);
+			}
+			pendingChannel[slot] = -1;
+			pendingKey[slot] = null;
+		}
+	}
+
+	private static boolean isOK(byte[] backing, int pos, int len, int mask) {
+		//HTTP/1.x 200
+		return len>12 && '2'==backing[mask&(pos+9)] && '0'==backing[mask&(pos+10)] && '0'==backing[mask&(pos+11)];
+	}
+
+	private void appendFragment(int slot, byte[] backing, int pos, int len, int mask, int context) {
+		byte[] data = pendingData[slot];
+		int used = pendingLength[slot];
+		if (null==data || used+len > data.length) {
+			byte[] grown = new byte[Math.min(maxEntryBytes, Math.max(used+len, null==data ? 1024 : data.length*2))];
+			if (null!=data) {
+				System.arraycopy(data, 0, grown, 0, used);
+			}
+			pendingData[slot] = data = grown;
+		}
+		Pipe.copyBytesFromToRing(backing, pos, mask, data, used, Integer.MAX_VALUE, len);
+		pendingLength[slot] = used+len;
+
+		int count = pendingCount[slot];
+		if (null==pendingLengths[slot] || count==pendingLengths[slot].length) {
+			int[] lengths = new int[Math.max(4, count*2)];
+			int[] contexts = new int[lengths.length];
+			if (null!=pendingLengths[slot]) {
+				System.arraycopy(pendingLengths[slot], 0, lengths, 0, count);
+				System.arraycopy(pendingContexts[slot], 0, contexts, 0, count);
+			}
+			pendingLengths[slot] = lengths;
+			pendingContexts[slot] = contexts;
+		}
+		pendingLengths[slot][count] = len;
+		pendingContexts[slot][count] = context;
+		pendingCount[slot] = count+1;
+	}
+
+	private void store(int slot) {
+		final int total = pendingLength[slot];
+		final int count = pendingCount[slot];
+		if (total > maxCacheBytes || count*SIZE_OF_TO_CHANNEL > hits.sizeOfSlabRing) {
+			return;//too large to hold or to replay in one write
+		}
+		Key key = pendingKey[slot];
+		Entry old = entries.get(key);
+		if (null!=old) {
+			removeEntry(key, old);
+		}
+		while (cachedBytes+total > maxCacheBytes) {
+			Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+			Map.Entry<Key, Entry> eldest = it.next();
+			cachedBytes -= eldest.getValue().data.capacity();
+			it.remove();
+		}
+
+		ByteBuffer data = ByteBuffer.allocateDirect(total);
+		data.put(pendingData[slot], 0, total);
+		((Buffer)data).flip();
+		int[] lengths = new int[count];
+		int[] contexts = new int[count];
+		System.arraycopy(pendingLengths[slot], 0, lengths, 0, count);
+		System.arraycopy(pendingContexts[slot], 0, contexts, 0, count);
+
+		entries.put(key, new Entry(data, lengths, contexts, System.nanoTime()+(pendingTTL[slot]*1_000_000L)));
+		cachedBytes += total;
+		if (total>(maxEntryBytes>>2)) {
+			//large fragments are not held on to for the next response
+			pendingData[slot] = null;
+		}
+		logger.trace("cached response of {} bytes, now holding {} bytes", total, cachedBytes);
+	}
+
+	private void removeEntry(Key key, Entry entry) {
+		entries.remove(key);
+		cachedBytes -= entry.data.capacity();
+	}
+
+	@Override
+	public int counterCount() {
+		return 3;
+	}
+
+	@Override
+	public String counterName(int idx) {
+		switch (idx) {
+			case 0: return "responseCacheHits";
+			case 1: return "responseCacheMisses";
+			default: return "responseCacheBytes";
+		}
+	}
+
+	@Override
+	public long counterValue(int idx) {
+		switch (idx) {
+			case 0: return cacheHits;
+			case 1: return cacheMisses;
+			default: return cachedBytes;
+		}
+	}
+
+}
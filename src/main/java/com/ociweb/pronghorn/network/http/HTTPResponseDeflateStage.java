@@ -0,0 +1,378 @@
+package com.ociweb.pronghorn.network.http;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Gzips dynamic responses on the fly. Modules mark every message of a response with
+ * ServerCoordinator.DEFLATE_RESPONSE_MASK, this stage removes the Content-Length header,
+ * adds Content-Encoding: gzip and sends the body with chunked transfer encoding.
+ * Each input message is deflated with a sync flush so nothing is held back between messages.
+ * Unmarked messages are passed through unchanged.
+ *
+ * The module is responsible for only marking GET responses to HTTP/1.1 clients which accept gzip.
+ * NetGraphBuilder adds this stage for every ByteArrayPayloadResponseStage module where isDeflateUsed() is true.
+ * Not for the file server, it reuses bytes already on its output pipe so the pipe must not be replaced.
+ *
+ * @author Nathan Tippy
+ * @see <a href="https://github.com/objectcomputing/Pronghorn">Pronghorn</a>
+ */
+public class HTTPResponseDeflateStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(HTTPResponseDeflateStage.class);
+
+	private static final int SIZE_OF_TO_CHNL = Pipe.sizeOf(ServerResponseSchema.instance, ServerResponseSchema.MSG_TOCHANNEL_100);
+	//room for the added headers, chunk framing, the final zero chunk and the gzip header and trailer
+	public static final int CHUNK_OVERHEAD = 128;
+	//level used when the server graph places this stage after a module
+	public static int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private static final byte[] GZIP_HEADER = new byte[] {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xFF};
+	private static final byte[] HEADER_END = "\r\n\r\n".getBytes();
+	private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+	private static final byte[] TRANSFER_ENCODING = "transfer-encoding:".getBytes();
+	private static final byte[] ADDED_HEADERS = "Content-Encoding: gzip\r\nTransfer-Encoding: chunked\r\nVary: Accept-Encoding\r\n".getBytes();
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_GZIP = 1;
+	private static final int STATE_PASS = 2;
+
+	private final Pipe<ServerResponseSchema>[] inputs;
+	private final Pipe<ServerResponseSchema>[] outputs;
+	private final int level;
+
+	private Deflater[] deflaters;
+	private CRC32[] crcs;
+	private int[] rawSize;
+	private int[] state;
+
+	private byte[] inBuffer;
+	private byte[] outBuffer;
+	private byte[] chunkBuffer;
+	private int outLength;
+
+	private int eofCount;
+
+	/**
+	 * Wraps the given module outputs, the returned pipes are to be used in their place by the OrderSupervisorStage.
+	 */
+	public static Pipe<ServerResponseSchema>[] deflateResponses(GraphManager gm, Pipe<ServerResponseSchema>[] moduleOutputs, int level) {
+		Pipe<ServerResponseSchema>[] result = new Pipe[moduleOutputs.length];
+		int i = moduleOutputs.length;
+		while (--i>=0) {
+			result[i] = new Pipe<ServerResponseSchema>(ServerResponseSchema.instance.newPipeConfig(8, moduleOutputs[i].maxVarLen+CHUNK_OVERHEAD));
+		}
+		new HTTPResponseDeflateStage(gm, moduleOutputs, result, level);
+		return result;
+	}
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param inputs _in_ Responses from the modules, some marked to be deflated.
+	 * @param outputs _out_ Same responses with the marked ones gzipped, one output for each input.
+	 * @param level Deflater compression level
+	 */
+	public HTTPResponseDeflateStage(GraphManager graphManager,
+			                        Pipe<ServerResponseSchema>[] inputs,
+			                        Pipe<ServerResponseSchema>[] outputs,
+			                        int level) {
+		super(graphManager, inputs, outputs);
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.level = level;
+		assert(inputs.length == outputs.length);
+
+		int i = inputs.length;
+		while (--i>=0) {
+			if (outputs[i].maxVarLen < inputs[i].maxVarLen+CHUNK_OVERHEAD) {
+				throw new UnsupportedOperationException("output pipe var length must be at least "+(inputs[i].maxVarLen+CHUNK_OVERHEAD));
+			}
+		}
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lavenderblush", this);
+	}
+
+	@Override
+	public void startup() {
+		int count = inputs.length;
+		deflaters = new Deflater[count];
+		crcs = new CRC32[count];
+		rawSize = new int[count];
+		state = new int[count];
+
+		int maxVar = 0;
+		int maxOutVar = 0;
+		int i = count;
+		while (--i>=0) {
+			deflaters[i] = new Deflater(level, true);//raw, we write the gzip header and trailer
+			crcs[i] = new CRC32();
+			maxVar = Math.max(maxVar, inputs[i].maxVarLen);
+			maxOutVar = Math.max(maxOutVar, outputs[i].maxVarLen);
+		}
+		inBuffer = new byte[maxVar];
+		chunkBuffer = new byte[maxOutVar];
+		outBuffer = new byte[(maxVar*2)+CHUNK_OVERHEAD];
+	}
+
+	@Override
+	public void shutdown() {
+		int i = outputs.length;
+		while (--i>=0) {
+			deflaters[i].end();
+			Pipe.publishEOF(outputs[i]);
+		}
+	}
+
+	@Override
+	public void run() {
+		int i = inputs.length;
+		while (--i>=0) {
+			process(i, inputs[i], outputs[i]);
+		}
+		if (eofCount == inputs.length) {
+			requestShutdown();
+		}
+	}
+
+	private void process(int idx, Pipe<ServerResponseSchema> input, Pipe<ServerResponseSchema> output) {
+		//header, two data chunks and the final chunk is the most one input message can become
+		while (Pipe.hasRoomForWrite(output, 4*SIZE_OF_TO_CHNL) && Pipe.hasContentToRead(input)) {
+
+			final int msgIdx = Pipe.takeMsgIdx(input);
+			if (msgIdx<0) {
+				Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+				Pipe.releaseReadLock(input);
+				eofCount++;
+				return;
+			}
+			if (ServerResponseSchema.MSG_SKIP_300 == msgIdx) {
+				Pipe.skipNextFragment(input, msgIdx);
+				continue;
+			}
+
+			final long channelId = Pipe.takeLong(input);
+			final int sequence = Pipe.takeInt(input);
+			final int meta = Pipe.takeByteArrayMetaData(input);
+			final int len = Pipe.takeByteArrayLength(input);
+			final int mask = Pipe.blobMask(input);
+			final byte[] backing = Pipe.byteBackingArray(meta, input);
+			final int pos = Pipe.bytePosition(meta, input, len);
+			final int context = Pipe.takeInt(input);
+
+			Pipe.copyBytesFromToRing(backing, pos, mask, inBuffer, 0, Integer.MAX_VALUE, len);
+
+			Pipe.confirmLowLevelRead(input, Pipe.sizeOf(input, msgIdx));
+			Pipe.releaseReadLock(input);
+
+			if (ServerResponseSchema.MSG_TOCHANNEL_100 != msgIdx
+				|| (STATE_IDLE == state[idx] && 0 == (ServerCoordinator.DEFLATE_RESPONSE_MASK & context))) {
+				//not for us
+				publish(output, msgIdx, channelId, sequence, inBuffer, 0, len, context);
+				continue;
+			}
+
+			final boolean isEnd = 0 != (ServerCoordinator.END_RESPONSE_MASK & context);
+			final int outContext = context & ~ServerCoordinator.DEFLATE_RESPONSE_MASK;
+			int bodyStart = 0;
+
+			if (STATE_IDLE == state[idx]) {
+				int headerEnd = indexOf(inBuffer, len, HEADER_END);
+				if (headerEnd<0 || !rewriteHeader(headerEnd)) {
+					logger.warn("response marked for deflate but the header can not be rewritten, sent as is");
+					state[idx] = STATE_PASS;
+				} else {
+					state[idx] = STATE_GZIP;
+					publish(output, msgIdx, channelId, sequence, outBuffer, 0, outLength,
+							outContext & ~(ServerCoordinator.END_RESPONSE_MASK | ServerCoordinator.CLOSE_CONNECTION_MASK | ServerCoordinator.UPGRADE_MASK));
+					bodyStart = headerEnd + HEADER_END.length;
+
+					deflaters[idx].reset();
+					crcs[idx].reset();
+					rawSize[idx] = 0;
+
+					outLength = 0;
+					appendBytes(GZIP_HEADER, 0, GZIP_HEADER.length);
+				}
+			} else {
+				outLength = 0;
+			}
+
+			if (STATE_PASS == state[idx]) {
+				publish(output, msgIdx, channelId, sequence, inBuffer, 0, len, outContext);
+			} else {
+				deflateBody(idx, bodyStart, len-bodyStart, isEnd);
+				publishChunks(output, msgIdx, channelId, sequence, outContext, isEnd);
+			}
+
+			if (isEnd) {
+				state[idx] = STATE_IDLE;
+			}
+		}
+	}
+
+	private void deflateBody(int idx, int start, int length, boolean isEnd) {
+		Deflater deflater = deflaters[idx];
+		if (length>0) {
+			crcs[idx].update(inBuffer, start, length);
+			rawSize[idx] += length;
+			deflater.setInput(inBuffer, start, length);
+			int n;
+			do {
+				n = deflater.deflate(outBuffer, outLength, outBuffer.length-outLength, Deflater.SYNC_FLUSH);
+				outLength += n;
+			} while (outLength == outBuffer.length && growOutBuffer());
+		}
+		if (isEnd) {
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (outLength == outBuffer.length) {
+					growOutBuffer();
+				}
+				outLength += deflater.deflate(outBuffer, outLength, outBuffer.length-outLength);
+			}
+			appendIntLE((int)crcs[idx].getValue());
+			appendIntLE(rawSize[idx]);
+		}
+	}
+
+	private void publishChunks(Pipe<ServerResponseSchema> output, int msgIdx, long channelId, int sequence, int context, boolean isEnd) {
+		final int maxChunk = output.maxVarLen - CHUNK_OVERHEAD;
+		byte[] chunk = chunkBuffer;
+		int offset = 0;
+		do {
+			final int dataLen = Math.min(maxChunk, outLength-offset);
+			int chunkLen = 0;
+			if (dataLen>0) {
+				chunkLen = writeChunkHeader(chunk, dataLen);
+				System.arraycopy(outBuffer, offset, chunk, chunkLen, dataLen);
+				chunkLen += dataLen;
+				chunk[chunkLen++] = '\r';
+				chunk[chunkLen++] = '\n';
+				offset += dataLen;
+			}
+			final boolean isLast = offset == outLength;
+			if (isLast && isEnd) {
+				System.arraycopy(LAST_CHUNK, 0, chunk, chunkLen, LAST_CHUNK.length);
+				chunkLen += LAST_CHUNK.length;
+			}
+			if (chunkLen>0) {
+				publish(output, msgIdx, channelId, sequence, chunk, 0, chunkLen,
+						isLast ? context : (context & ~(ServerCoordinator.END_RESPONSE_MASK | ServerCoordinator.CLOSE_CONNECTION_MASK)));
+			}
+		} while (offset<outLength);
+	}
+
+	private static int writeChunkHeader(byte[] target, int length) {
+		int pos = 0;
+		int shift = 28;
+		while (shift>0 && 0==(0xF&(length>>shift))) {
+			shift -= 4;
+		}
+		while (shift>=0) {
+			int v = 0xF&(length>>shift);
+			target[pos++] = (byte)(v<10 ? '0'+v : 'a'+(v-10));
+			shift -= 4;
+		}
+		target[pos++] = '\r';
+		target[pos++] = '\n';
+		return pos;
+	}
+
+	/*
+	 * Copies the header into outBuffer without Content-Length, returns false if it is already chunked.
+	 */
+	private boolean rewriteHeader(int headerEnd) {
+		outLength = 0;
+		int lineStart = 0;
+		while (lineStart < headerEnd) {
+			int lineEnd = lineStart;
+			while (lineEnd < headerEnd && '\r' != inBuffer[lineEnd]) {
+				lineEnd++;
+			}
+			if (startsWithLowerCase(inBuffer, lineStart, lineEnd, TRANSFER_ENCODING)) {
+				return false;
+			}
+			if (!startsWithLowerCase(inBuffer, lineStart, lineEnd, CONTENT_LENGTH)) {
+				appendBytes(inBuffer, lineStart, (lineEnd-lineStart)+2);
+			}
+			lineStart = lineEnd+2;
+		}
+		appendBytes(ADDED_HEADERS, 0, ADDED_HEADERS.length);
+		appendBytes(HEADER_END, 2, 2);
+		return true;
+	}
+
+	private static boolean startsWithLowerCase(byte[] data, int start, int end, byte[] lowerPrefix) {
+		if (end-start < lowerPrefix.length) {
+			return false;
+		}
+		int i = lowerPrefix.length;
+		while (--i>=0) {
+			if (lowerPrefix[i] != (0x20|data[start+i]) && lowerPrefix[i] != data[start+i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] data, int length, byte[] target) {
+		int limit = length-target.length;
+		for (int i = 0; i <= limit; i++) {
+			int j = target.length;
+			while (--j>=0 && data[i+j]==target[j]) {
+			}
+			if (j<0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void appendBytes(byte[] source, int pos, int length) {
+		while (outLength+length > outBuffer.length) {
+			growOutBuffer();
+		}
+		System.arraycopy(source, pos, outBuffer, outLength, length);
+		outLength += length;
+	}
+
+	private void appendIntLE(int value) {
+		if (outLength+4 > outBuffer.length) {
+			growOutBuffer();
+		}
+		outBuffer[outLength++] = (byte)value;
+		outBuffer[outLength++] = (byte)(value>>8);
+		outBuffer[outLength++] = (byte)(value>>16);
+		outBuffer[outLength++] = (byte)(value>>24);
+	}
+
+	private boolean growOutBuffer() {
+		byte[] temp = new byte[outBuffer.length*2];
+		System.arraycopy(outBuffer, 0, temp, 0, outLength);
+		outBuffer = temp;
+		return true;
+	}
+
+	private static void publish(Pipe<ServerResponseSchema> output, int msgIdx, long channelId, int sequence,
+			                    byte[] data, int pos, int length, int context) {
+		int size = Pipe.addMsgIdx(output, msgIdx);
+		Pipe.addLongValue(channelId, output);
+		Pipe.addIntValue(sequence, output);
+		Pipe.addByteArray(data, pos, length, output);
+		Pipe.addIntValue(context, output);
+		Pipe.confirmLowLevelWrite(output, size);
+		Pipe.publishWrites(output);
+	}
+
+}
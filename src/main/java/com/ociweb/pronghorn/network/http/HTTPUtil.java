@@ -68,6 +68,170 @@ public class HTTPUtil {
 	protected static final byte[] CONTENT_CHUNKED = "Transfer-Encoding: chunked".getBytes();
 	
 	static final TrieParser chunkMap = buildChunkMap();
+	
+	private static final byte[] GZIP = "gzip".getBytes();
+	private static final byte[] BYTES_UNIT = "bytes=".getBytes();
+    
+	/**
+	 * Checks an Accept-Encoding value for gzip, an explicit q=0 is treated as refused.
+	 */
+	public static boolean acceptsGzip(CharSequence value) {
+		final int len = value.length();
+		int limit = len-GZIP.length;
+		int i = -1;
+		while (++i<=limit) {
+			if (matchesLowerCase(value, i, GZIP)) {
+				int end = i+GZIP.length;
+				//skip spaces before any parameters
+				while (end<len && ' '==value.charAt(end)) {
+					end++;
+				}
+				return !isQualityZero(value, end, len);
+			}
+		}
+		return false;
+	}
+
+	private static boolean matchesLowerCase(CharSequence value, int pos, byte[] token) {
+		int j = token.length;
+		while (--j>=0) {
+			if ((0x20|value.charAt(pos+j)) != token[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isQualityZero(CharSequence value, int pos, int limit) {
+		//looking for ;q=0 or ;q=0.0 with nothing else following but a separator
+		if (pos+4>limit || ';'!=value.charAt(pos) || 'q'!=(0x20|value.charAt(pos+1)) 
+			|| '='!=value.charAt(pos+2) || '0'!=value.charAt(pos+3)) {
+			return false;
+		}
+		int i = pos+4;
+		if (i<limit && '.'==value.charAt(i)) {
+			do {
+				i++;
+			} while (i<limit && '0'==value.charAt(i));
+		}
+		return i>=limit || ','==value.charAt(i) || ' '==value.charAt(i);
+	}
+
+	/**
+	 * Checks an If-None-Match or If-Range value against our etag, * matches any.
+	 * Weak and quoted tags are compared by the opaque value alone.
+	 */
+	public static boolean etagMatches(CharSequence value, byte[] etag) {
+		final int len = value.length();
+		int i = 0;
+		while (i<len) {
+			while (i<len && (' '==value.charAt(i) || ','==value.charAt(i))) {
+				i++;
+			}
+			int start = i;
+			while (i<len && ','!=value.charAt(i)) {
+				i++;
+			}
+			int end = i;
+			while (end>start && ' '==value.charAt(end-1)) {
+				end--;
+			}
+			if (1==end-start && '*'==value.charAt(start)) {
+				return true;
+			}
+			if (end-start>2 && 'W'==value.charAt(start) && '/'==value.charAt(start+1)) {
+				start += 2;
+			}
+			if (end-start>=2 && '"'==value.charAt(start) && '"'==value.charAt(end-1)) {
+				start++;
+				end--;
+			}
+			if (matchesBytes(value, start, end, etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static boolean matchesBytes(CharSequence value, int start, int end, byte[] bytes) {
+		if (end-start != bytes.length) {
+			return false;
+		}
+		int j = bytes.length;
+		while (--j>=0) {
+			if (value.charAt(start+j) != bytes[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a Range value like bytes=0-99,200-,-50 against the full size. Each satisfiable range
+	 * is stored as its first and last (inclusive) position, unsatisfiable ones are dropped.
+	 *
+	 * @return count of ranges, 0 when none can be satisfied and -1 when the value is
+	 *         not understood or holds more ranges than the arrays so it must be ignored.
+	 */
+	public static int parseRanges(CharSequence value, long size, long[] first, long[] last) {
+		final int len = value.length();
+		int i = 0;
+		while (i<len && ' '==value.charAt(i)) {
+			i++;
+		}
+		if (len-i<BYTES_UNIT.length || !matchesLowerCase(value, i, BYTES_UNIT)) {
+			return -1;
+		}
+		i += BYTES_UNIT.length;
+		
+		int count = 0;
+		while (i<len) {
+			while (i<len && (' '==value.charAt(i) || ','==value.charAt(i))) {
+				i++;
+			}
+			if (i>=len) {
+				break;
+			}
+			long a = -1;
+			int digits = 0;
+			while (i<len && value.charAt(i)>='0' && value.charAt(i)<='9' && ++digits<=18) {
+				a = (a<0 ? 0 : a*10) + (value.charAt(i++)-'0');
+			}
+			if (i>=len || '-'!=value.charAt(i++)) {
+				return -1;
+			}
+			long b = -1;
+			digits = 0;
+			while (i<len && value.charAt(i)>='0' && value.charAt(i)<='9' && ++digits<=18) {
+				b = (b<0 ? 0 : b*10) + (value.charAt(i++)-'0');
+			}
+			while (i<len && ' '==value.charAt(i)) {
+				i++;
+			}
+			if ((i<len && ','!=value.charAt(i)) || (a<0 && b<0) || (a>=0 && b>=0 && b<a)) {
+				return -1;
+			}
+			
+			long f, l;
+			if (a<0) {
+				//suffix, the last b bytes
+				f = Math.max(0, size-b);
+				l = size-1;
+			} else {
+				f = a;
+				l = (b<0 || b>=size) ? size-1 : b;
+			}
+			if (f<size && f<=l) {
+				if (count==first.length) {
+					return -1;
+				}
+				first[count] = f;
+				last[count] = l;
+				count++;
+			}
+		}
+		return count;
+	}
     
 	public static void publishStatus(long channelId, int sequence,
 	            					int status,
@@ -0,0 +1,131 @@
+package com.ociweb.pronghorn.network.http;
+
+import com.ociweb.pronghorn.network.config.HTTPHeader;
+
+/**
+ * Finds header line boundaries eight bytes at a time (SWAR) so header lines which no route
+ * asked for can be stepped over before the header trie is consulted.
+ *
+ * A filter holds one bit for each (first letter, name length) pair of the headers a route
+ * can capture. Lines whose pair is not set can not be one of those headers and are skipped whole,
+ * lines which collide with a set bit are given to the trie as before.
+ */
+public final class HeaderScan {
+
+	private static final long LOW_BITS  = 0x7F7F7F7F7F7F7F7FL;
+	private static final long COLONS    = 0x3A3A3A3A3A3A3A3AL;
+	private static final long NEWLINES  = 0x0A0A0A0A0A0A0A0AL;
+
+	private static final int FILTER_LONGS = 4;//256 bits
+
+	private HeaderScan() {
+	}
+
+	public static long[] newFilter(HTTPHeader ... headers) {
+		long[] filter = new long[FILTER_LONGS];
+		int i = headers.length;
+		while (--i>=0) {
+			addToFilter(filter, headers[i]);
+		}
+		return filter;
+	}
+
+	public static void addToFilter(long[] filter, HTTPHeader header) {
+		byte[] root = header.rootBytes();//lower case name followed by ": "
+		int nameLength = root.length-2;
+		int bit = filterBit(root[0], nameLength);
+		filter[bit>>6] |= (1L<<(bit&0x3F));
+	}
+
+	static boolean mayBeKnown(long[] filter, byte first, int nameLength) {
+		int bit = filterBit(first, nameLength);
+		return 0 != (filter[bit>>6] & (1L<<(bit&0x3F)));
+	}
+
+	private static int filterBit(byte first, int nameLength) {
+		//the trie ignores case so the first letter is folded to lower case
+		return (((first|0x20)*31) + nameLength) & 0xFF;
+	}
+
+	/**
+	 * Length of the header line starting at pos, including its CRLF, when it can not be any of the
+	 * headers in the filter. Zero when the line must go to the trie: a known or colliding name, the
+	 * blank line ending the headers, a folded line, or a line which has not fully arrived.
+	 */
+	public static int unknownLineLength(long[] filter, byte[] data, int pos, int length, int mask) {
+		if (length<=0) {
+			return 0;
+		}
+		byte first = data[mask&pos];
+		if ('\r'==first || '\n'==first || ' '==first || '\t'==first) {
+			return 0;
+		}
+		int colon = indexOf(data, pos, length, mask, COLONS);
+		if (colon<=0) {
+			return 0;
+		}
+		if (mayBeKnown(filter, first, colon)) {
+			return 0;
+		}
+		int end = indexOf(data, pos+colon, length-colon, mask, NEWLINES);
+		if (end<0) {
+			return 0;
+		}
+		//a newline in the name is left for the trie to reject
+		return indexOf(data, pos, colon, mask, NEWLINES)<0 ? colon+end+1 : 0;
+	}
+
+	/**
+	 * Offset from pos of the first byte matching the byte repeated in pattern, or -1.
+	 * Whole words are tested at once where the bytes do not wrap around the ring.
+	 */
+	static int indexOf(byte[] data, int pos, int length, int mask, long pattern) {
+		int i = 0;
+		final int words = length-8;
+		while (i<=words) {
+			int p = mask&(pos+i);
+			if (p+8 <= data.length) {
+				long found = matches(readWord(data, p), pattern);
+				if (0 != found) {
+					return i + (Long.numberOfTrailingZeros(found)>>3);
+				}
+				i += 8;
+			} else {
+				if ((byte)pattern == data[p]) {
+					return i;
+				}
+				i++;
+			}
+		}
+		while (i<length) {
+			if ((byte)pattern == data[mask&(pos+i)]) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Little endian so the first byte in memory is the lowest byte of the word.
+	 */
+	private static long readWord(byte[] data, int p) {
+		return (0xFFL&data[p])
+			 | ((0xFFL&data[p+1])<<8)
+			 | ((0xFFL&data[p+2])<<16)
+			 | ((0xFFL&data[p+3])<<24)
+			 | ((0xFFL&data[p+4])<<32)
+			 | ((0xFFL&data[p+5])<<40)
+			 | ((0xFFL&data[p+6])<<48)
+			 | ((0xFFL&data[p+7])<<56);
+	}
+
+	/**
+	 * High bit set in each byte of word equal to the pattern byte, exact with no false positives.
+	 */
+	private static long matches(long word, long pattern) {
+		long x = word ^ pattern;
+		return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+	}
+
+}
@@ -50,6 +50,8 @@ public abstract class ByteArrayPayloadResponseStage <
 	private int workingPosition = 0;
 	private Pipe<ServerResponseSchema> activeOutput = null;
 	protected int status = 200;
+	//set by payload() when the body should be gzipped by the HTTPResponseDeflateStage, see isDeflateUsed()
+	protected boolean deflateResponse = false;
 	
 	private int maximumAllocation = 1<<27; //128M largest file, should expose this
 
@@ -214,6 +216,7 @@ public abstract class ByteArrayPayloadResponseStage <
 		payloadBacking = null;
 		payloadLength = -1;
 		status = 200;
+		deflateResponse = false;
 		byte[] etagBytes = payload(graphManager, params, verb); //should return error and take args?
         assert(payloadLength>=0) : "definePayload must be called by payload";
 				
@@ -224,7 +227,10 @@ public abstract class ByteArrayPayloadResponseStage <
 		final boolean isServer = true;
 		
 		//NOTE: we can add extra headers here
-		HeaderWritable headers = null;
+		HeaderWritable headers = headers();
+		if (deflateResponse) {
+			activeFieldRequestContext |= ServerCoordinator.DEFLATE_RESPONSE_MASK;
+		}
 		
 		int length = prefixCount()+payloadLength+suffixCount();
 		
@@ -262,6 +268,21 @@ public abstract class ByteArrayPayloadResponseStage <
 		return 0;
 	}
 	
+	/**
+	 * Extra headers for the response defined by the last call to payload(), null for none.
+	 */
+	protected HeaderWritable headers() {
+		return null;
+	}
+	
+	/**
+	 * Return true when payload() may set deflateResponse, the server graph then places
+	 * an HTTPResponseDeflateStage between this module and the OrderSupervisorStage.
+	 */
+	public boolean isDeflateUsed() {
+		return false;
+	}
+	
 	protected abstract byte[] payload(GraphManager gm, DataInputBlobReader<HTTPRequestSchema> params, HTTPVerbDefaults verb);
 
 	protected abstract byte[] contentType();
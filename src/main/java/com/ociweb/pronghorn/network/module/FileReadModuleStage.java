@@ -3,19 +3,28 @@ package com.ociweb.pronghorn.network.module;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
+import java.util.TimeZone;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ociweb.pronghorn.network.FileRegions;
 import com.ociweb.pronghorn.network.ServerCoordinator;
 import com.ociweb.pronghorn.network.config.HTTPContentType;
 import com.ociweb.pronghorn.network.config.HTTPHeader;
@@ -29,6 +38,7 @@ import com.ociweb.pronghorn.network.http.HeaderWritable;
 import com.ociweb.pronghorn.network.http.HeaderWriter;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataInputBlobReader;
 import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.pipe.PipeConfig;
@@ -36,6 +46,7 @@ import com.ociweb.pronghorn.pipe.RawDataSchema;
 import com.ociweb.pronghorn.pipe.util.hash.IntHashTable;
 import com.ociweb.pronghorn.pipe.util.hash.PipeHashTable;
 import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.monitor.CounterSource;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 import com.ociweb.pronghorn.util.Appendables;
 import com.ociweb.pronghorn.util.ServiceObjectHolder;
@@ -53,21 +64,86 @@ import com.ociweb.pronghorn.util.TrieParserReader;
 public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                                         R extends Enum<R> & HTTPRevision,
                                         V extends Enum<V> & HTTPVerb,
-                                        H extends Enum<H> & HTTPHeader> extends PronghornStage {
+                                        H extends Enum<H> & HTTPHeader> extends PronghornStage implements CounterSource {
 
     
     private static final int SIZE_OF_RESTREQUEST = Pipe.sizeOf(HTTPRequestSchema.instance, HTTPRequestSchema.MSG_RESTREQUEST_300);
 
     protected final HTTPSpecification<T, R, V, H> httpSpec;
 
-   	private HeaderWritable headerWriterContentLoc = new HeaderWritable() {
-
-			@Override
-			public void write(HeaderWriter writer) {						
-				writer.writeUTF8(HTTPHeaderDefaults.CONTENT_LOCATION, defaultPathBytes);
+   	/**
+   	 * Headers the file route must capture for precompressed, conditional and range responses.
+   	 */
+   	public static final HTTPHeader[] REQUEST_HEADERS = new HTTPHeader[] {
+   			HTTPHeaderDefaults.ACCEPT_ENCODING,
+   			HTTPHeaderDefaults.IF_NONE_MATCH,
+   			HTTPHeaderDefaults.IF_MODIFIED_SINCE,
+   			HTTPHeaderDefaults.RANGE,
+   			HTTPHeaderDefaults.IF_RANGE};
+   	
+   	private static final byte[] ACCEPT_ENCODING_BYTES = "Accept-Encoding".getBytes();
+   	private static final byte[] GZIP_BYTES = "gzip".getBytes();
+   	private static final byte[] GZIP_EXTENSION = ".gz".getBytes();
+   	private static final byte[] BYTES_UNIT = "bytes".getBytes();
+   	
+   	//more ranges than this in one request are ignored and the full file is sent
+   	private static final int MAX_RANGES = 8;
+   	private static final String BOUNDARY = "PRONGHORN_BYTERANGES";
+   	private static final byte[] MULTIPART_TYPE = ("multipart/byteranges; boundary="+BOUNDARY).getBytes();
+   	
+   	//reused for every response, only one response is written at a time
+   	private final FileHeaders fileHeaders = new FileHeaders();
+   	
+   	private final class FileHeaders implements HeaderWritable {
+   		
+   		private boolean contentLocation;
+   		private boolean vary;
+   		private boolean gzip;
+   		private byte[] lastModified;
+   		private CharSequence contentRange;
+   		
+   		private FileHeaders select(boolean contentLocation, boolean vary, boolean gzip, byte[] lastModified) {
+   			this.contentLocation = contentLocation;
+   			this.vary = vary;
+   			this.gzip = gzip;
+   			this.lastModified = lastModified;
+   			this.contentRange = null;
+   			return this;
+   		}
+
+		@Override
+		public void write(HeaderWriter writer) {
+			//same case as the headers written by HTTPUtil.writeHeader
+			if (contentLocation) {
+				writer.writeUTF8("Content-Location", defaultPathBytes);
+			}
+			if (vary) {
+				writer.writeUTF8("Vary", ACCEPT_ENCODING_BYTES);
+			}
+			if (gzip) {
+				writer.writeUTF8("Content-Encoding", GZIP_BYTES);
+			}
+			if (null!=lastModified) {
+				writer.writeUTF8("Last-Modified", lastModified);
+			}
+			writer.writeUTF8("Accept-Ranges", BYTES_UNIT);
+			if (null!=contentRange) {
+				writer.write("Content-Range", contentRange);
 			}
-    		
-    	};
+		}
+   	}
+   	
+   	private final StringBuilder headerValue = new StringBuilder();
+   	private final StringBuilder contentRange = new StringBuilder();
+   	private final StringBuilder partHeader = new StringBuilder();
+   	private final SimpleDateFormat httpDate = newHTTPDateFormat();
+   	
+   	private final long[] rangeFirst = new long[MAX_RANGES];
+   	private final long[] rangeLast = new long[MAX_RANGES];
+   	private int rangeCount;  //zero when the full file is sent
+   	private int rangeIdx;
+   	private long activeRangeRemaining;
+   	private byte[] activePartType;
     	
 	public static class FileReadModuleStageData {
 		
@@ -77,6 +153,8 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		private long[] fcId;
 		private long[] fileSizes;
 		private byte[][] etagBytes;
+		private long[] lastModified;
+		private byte[][] lastModifiedBytes;
 		private int[] type;
 		public final FileSystem fileSystem = FileSystems.getDefault();
 
@@ -94,6 +172,8 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 	        setFcId(new long[maxFileCount]);
 	        setFileSizes(new long[maxFileCount]);
 	        setEtagBytes(new byte[maxFileCount][]);
+	        setLastModified(new long[maxFileCount]);
+	        setLastModifiedBytes(new byte[maxFileCount][]);
 	        setType(new int[maxFileCount]); 
 				        
 	        setReadOptions(new HashSet<OpenOption>());
@@ -151,6 +231,22 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 			this.etagBytes = etagBytes;
 		}
 
+		public long[] getLastModified() {
+			return lastModified;
+		}
+
+		public void setLastModified(long[] lastModified) {
+			this.lastModified = lastModified;
+		}
+
+		public byte[][] getLastModifiedBytes() {
+			return lastModifiedBytes;
+		}
+
+		public void setLastModifiedBytes(byte[][] lastModifiedBytes) {
+			this.lastModifiedBytes = lastModifiedBytes;
+		}
+
 		public int[] getType() {
 			return type;
 		}
@@ -205,6 +301,35 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     
     private FileReadModuleStageData data;
  
+	//when true the body is sent as a file region and the socket writer uses FileChannel.transferTo,
+	//the file bytes never enter the pipes. Plain (non-TLS) servers only.
+	public static boolean sendFileRegions = false;
+	
+	//pathId of the precompressed .gz file found next to each file, zero when there is none
+	private int[] gzipPathIds;
+	
+	private boolean fileRegions;
+	private long[] regionIds; //FileRegions id for each pathId, zero when not registered
+	private long activeRegionId; //zero when the body of the active response is sent as bytes
+	
+	//hot file cache, each instance maps up to this many bytes of its most requested files, zero to disable
+	public static long hotFileCacheBytes = 0;
+	//requests for a file before it is mapped into the cache
+	public static int hotFileAdmitCount = 2;
+	private static final long hotReplaceCheckNS = 1_000_000_000L;
+	
+	private long hotLimit;
+	private long hotBytes;
+	private long hotTick;
+	private MappedByteBuffer[] hotFiles;  //by pathId, null when not cached
+	private long[] hotLastUse;
+	private long[] hotModified;
+	private int[] hotRequests;
+	private MappedByteBuffer activeHotFile;
+	private long nextHotReplaceCheck;
+	private long hotHits;
+	private long hotMisses;
+	
 	private static final boolean supportInFlightCopy = true;
 	private static final boolean supportInFlightCopyByRef = false;  //TODO:still not working,  why do we only find a few of these?
 	
@@ -361,6 +486,14 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		}
 
         this.data = new FileReadModuleStageData(httpSpec, maxFileCount);
+        this.fileRegions = sendFileRegions;
+        this.regionIds = new long[maxFileCount];
+        
+        this.hotLimit = hotFileCacheBytes;
+        this.hotFiles = new MappedByteBuffer[maxFileCount];
+        this.hotLastUse = new long[maxFileCount];
+        this.hotModified = new long[maxFileCount];
+        this.hotRequests = new int[maxFileCount];
                 
         //TODO: pull out as common object for all instances
 		TrieParser pc = new TrieParser(initialMaxTotalPathLength, 2, false, false);
@@ -372,6 +505,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 		//when reading resources from inside a jar this will be null so we msut load them on the fly, eg when they are asked for.
 		if (null!=children) {
 			collectAllKnownFiles(rootSize, pc, children);
+			gzipPathIds = linkPrecompressedFiles(rootSize, pc, data.getPaths(), pathCount);
 		}
         
         activeFileChannel = null;//NOTE: above method sets activeFileChannel and it must be cleared before run starts.
@@ -395,6 +529,29 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         }
 	}
     
+    /*
+     * Every known file is checked for a sibling with the .gz extension, it is
+     * sent in place of the file when the client accepts gzip.
+     */
+    private int[] linkPrecompressedFiles(int rootSize, TrieParser pathCache, Path[] paths, int count) {
+    	int[] result = new int[paths.length];
+    	TrieParserReader reader = new TrieParserReader();
+    	int p = count+1;
+    	while (--p>=1) {
+    		if (null!=paths[p]) {
+	    		byte[] name = paths[p].toString().getBytes();
+	    		byte[] gz = Arrays.copyOf(name, name.length+GZIP_EXTENSION.length);
+	    		System.arraycopy(GZIP_EXTENSION, 0, gz, name.length, GZIP_EXTENSION.length);
+	    		
+	    		int gzId = (int)TrieParserReader.query(reader, pathCache, gz, rootSize, gz.length-rootSize, Integer.MAX_VALUE, -1);
+	    		if (gzId>0) {
+	    			result[p] = gzId;
+	    		}
+    		}
+    	}
+    	return result;
+    }
+    
     private int countAllKnownFiles(File[] children) {
 		int total = 0;
     	int i = children.length;
@@ -559,9 +716,142 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         
         //TODO: while the change over is in place only use strict checks of the trie.
         
-        
+        if (hotBytes>0) {
+        	long now = System.nanoTime();
+        	if (now>nextHotReplaceCheck) {
+        		nextHotReplaceCheck = now+hotReplaceCheckNS;
+        		invalidateChangedHotFiles();
+        	}
+        }
     }
 
+    /*
+     * Only the cached files are checked, a changed file is dropped from the cache
+     * and opened again so the new size and etag are used for the next response.
+     */
+	private void invalidateChangedHotFiles() {
+		int i = hotFiles.length;
+		while (--i>=0) {
+			if (null!=hotFiles[i]) {
+				File file = data.getPaths()[i].toFile();
+				if (file.lastModified()!=hotModified[i] || file.length()!=hotFiles[i].capacity()) {
+					dropHotFile(i);
+					if (file.isFile()) {
+						findAgainFileChannel(i); //new fcId so old in flight copies are not reused
+						activeFileChannel = null;
+						data.getEtagBytes()[i] = Appendables.appendHexDigits(new StringBuilder(), data.getFcId()[i]).toString().getBytes();
+						data.getLastModifiedBytes()[i] = null;
+					}
+				}
+			}
+		}
+	}
+
+	private MappedByteBuffer lookupHotFile(int pathId) {
+		if (hotLimit<=0) {
+			return null;
+		}
+		MappedByteBuffer hot = hotFiles[pathId];
+		if (null == hot) {
+			hotMisses++;
+			if (++hotRequests[pathId] >= hotFileAdmitCount) {
+				hot = admitHotFile(pathId);
+			}
+		} else {
+			hotHits++;
+		}
+		hotLastUse[pathId] = ++hotTick;
+		return hot;
+	}
+
+	private MappedByteBuffer admitHotFile(int pathId) {
+		final long size = data.getFileSizes()[pathId];
+		if (size<=0 || size>hotLimit || size>Integer.MAX_VALUE) {
+			return null;
+		}
+		while (hotBytes+size > hotLimit) {
+			evictColdestHotFile();
+		}
+		try {
+			MappedByteBuffer hot = activeFileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			hot.load();//fault the pages in now instead of while responding
+			hotFiles[pathId] = hot;
+			hotModified[pathId] = data.getPaths()[pathId].toFile().lastModified();
+			hotBytes += size;
+			return hot;
+		} catch (IOException e) {
+			logger.warn("unable to map file {}", data.getPaths()[pathId], e);
+			return null;
+		}
+	}
+
+	private void evictColdestHotFile() {
+		int coldest = -1;
+		long oldest = Long.MAX_VALUE;
+		int i = hotFiles.length;
+		while (--i>=0) {
+			if (null!=hotFiles[i] && hotLastUse[i]<oldest) {
+				oldest = hotLastUse[i];
+				coldest = i;
+			}
+		}
+		if (coldest>=0) {
+			dropHotFile(coldest);
+		}
+	}
+
+	private void dropHotFile(int pathId) {
+		//NOTE: the mapping is released by the GC once the buffer is unreachable
+		hotBytes -= hotFiles[pathId].capacity();
+		hotFiles[pathId] = null;
+		hotRequests[pathId] = 0;
+	}
+
+	/*
+	 * Copies from the given file position into the pipe blob, returns the count of bytes copied.
+	 */
+	private static int copyHotFile(ByteBuffer hot, long position, int max, ByteBuffer[] targets) {
+		int total = 0;
+		int i = 0;
+		while (i<targets.length && total<max) {
+			ByteBuffer target = targets[i++];
+			int len = (int)Math.min(Math.min(target.remaining(), max-total), hot.capacity()-position);
+			if (len>0) {
+				((Buffer)hot).clear();
+				((Buffer)hot).limit((int)position+len);
+				((Buffer)hot).position((int)position);
+				target.put(hot);
+				position += len;
+				total += len;
+			}
+		}
+		((Buffer)hot).clear();
+		return total;
+	}
+
+	@Override
+	public int counterCount() {
+		return 3;
+	}
+
+	@Override
+	public String counterName(int idx) {
+		switch (idx) {
+			case 0: return "hotFileHits";
+			case 1: return "hotFileMisses";
+			default: return "hotFileBytes";
+		}
+	}
+
+	@Override
+	public long counterValue(int idx) {
+		switch (idx) {
+			case 0: return hotHits;
+			case 1: return hotMisses;
+			default: return hotBytes;
+		}
+	}
+
     private void beginReadingNextRequest(Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
 
         activeChannelHigh = Pipe.takeInt(input);
@@ -573,11 +863,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         int routeId = routeVerb >> HTTPVerb.BITS;
         int verb = routeVerb & HTTPVerb.MASK;
         
-        int meta = Pipe.takeByteArrayMetaData(input);
-        int bytesLength    = Pipe.takeByteArrayLength(input);
-
-        byte[] bytesBackingArray = Pipe.byteBackingArray(meta, input);
-        int bytesPosition = Pipe.bytePosition(meta, input, bytesLength);
+        DataInputBlobReader<HTTPRequestSchema> params = Pipe.openInputStream(input);
+        
+        byte[] bytesBackingArray = Pipe.blob(input);
+        int bytesPosition = params.absolutePosition();
+        int bytesLength = params.available();
         int bytesMask = Pipe.blobMask(input);
            
         //logger.info("fetch file name: {}", Appendables.appendUTF8(new StringBuilder(), bytesBackingArray, bytesPosition+2, bytesLength-2, bytesMask));
@@ -591,8 +881,12 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                 
         assert(httpRevision <= HTTPRevisionDefaults.values().length) : "revision is too large found "+httpRevision;
         
-        int pathId = selectActiveFileChannel(pathCacheReader, data.getPathCache(), 
-        		                             bytesLength-2, bytesBackingArray, bytesPosition+2, bytesMask);
+        //the path is followed by the requested headers
+        int pathLength = Math.min(bytesLength-2, ((0xFF&bytesBackingArray[bytesMask&bytesPosition])<<8)
+        		                                 | (0xFF&bytesBackingArray[bytesMask&(bytesPosition+1)]));
+        
+        int pathId = selectPathId(pathCacheReader, data.getPathCache(), 
+        		                  pathLength, bytesBackingArray, bytesPosition+2, bytesMask);
                 
        // logger.info("pathId for file request {}", pathId);
 
@@ -607,22 +901,155 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         //	throw new UnsupportedOperationException("File not found: "+ Appendables.appendUTF8(new StringBuilder(), bytesBackingArray, bytesPosition, bytesLength, bytesMask).toString());
         } else {
 	        
-	        activePathId = pathId;
 	        //This value is ONLY sent on the last message that makes up this response, all others get a zero.
 	        activeRequestContext = context | ServerCoordinator.END_RESPONSE_MASK; 
   
+	        final int typeId = data.getType()[pathId];
+	        final int gzipPathId = null==gzipPathIds ? 0 : gzipPathIds[pathId];
+	        final boolean gzip = gzipPathId>0 
+	        		             && readHeader(params, HTTPHeaderDefaults.ACCEPT_ENCODING) 
+	        		             && HTTPUtil.acceptsGzip(headerValue);
+	        final boolean isDefault = pathId==defaultPathId;
+	        if (gzip) {
+	        	pathId = gzipPathId;
+	        }
+	        activePathId = pathId;
+	        FileHeaders headerWriter = fileHeaders.select(isDefault, gzipPathId>0, gzip, lastModifiedBytes(pathId));
+	        
+	        if (isNotModified(params, pathId)) {
+	        	//the client copy is current so the file is not touched
+	        	publishHeaderOnly(httpRevision, 304, pathId, data.getFileSizes()[pathId], headerWriter, input, output);
+	        	return;
+	        }
+	        
+	        rangeCount = (VERB_GET==verb) ? selectRanges(params, pathId) : 0;
+	        if (rangeCount<0) {
+	        	rangeCount = 0;
+	        	contentRange.setLength(0);
+	        	contentRange.append("bytes */").append(data.getFileSizes()[pathId]);
+	        	headerWriter.contentRange = contentRange;
+	        	publishHeaderOnly(httpRevision, 416, pathId, 0, headerWriter, input, output);
+	        	return;
+	        }
+	        if (1==rangeCount) {
+	        	contentRange.setLength(0);
+	        	contentRange.append("bytes ").append(rangeFirst[0]).append('-').append(rangeLast[0])
+	        	            .append('/').append(data.getFileSizes()[pathId]);
+	        	headerWriter.contentRange = contentRange;
+	        }
+	        
+	        activateFileChannel(pathId);
+	        
 	        //////////////////////////
 	        //ready to read the file from fileChannel and use type in type[pathId]
 	        //////////////////////////
-	        if (pathId>=0) {
-	            beginSendingFile(httpRevision, activeRequestContext, pathId, verb, activeSequenceId, input, output);
-	        } else {
-	            publishErrorHeader(activeRequestContext, 0, activeSequenceId, null, output);
-	        }
+	        beginSendingFile(httpRevision, activeRequestContext, pathId, typeId, headerWriter, verb, activeSequenceId, input, output);
         }
     }
+    
+    private boolean readHeader(DataInputBlobReader<HTTPRequestSchema> params, HTTPHeader header) {
+    	if (!params.isStructured() || params.structured().isNull(header)) {
+    		return false;
+    	}
+    	headerValue.setLength(0);
+    	header.consumeValue(params.structured().read(header), headerValue);
+    	return true;
+    }
+    
+    /*
+     * If-None-Match wins when both are sent, the date is only checked to the second.
+     */
+    private boolean isNotModified(DataInputBlobReader<HTTPRequestSchema> params, int pathId) {
+    	if (readHeader(params, HTTPHeaderDefaults.IF_NONE_MATCH)) {
+    		return HTTPUtil.etagMatches(headerValue, data.getEtagBytes()[pathId]);
+    	}
+    	byte[] modified = data.getLastModifiedBytes()[pathId];
+    	if (null!=modified && readHeader(params, HTTPHeaderDefaults.IF_MODIFIED_SINCE)) {
+    		if (HTTPUtil.matchesBytes(headerValue, 0, headerValue.length(), modified)) {
+    			return true;//most clients send back exactly what we sent
+    		}
+    		long since = parseHTTPDate(headerValue);
+    		return since>=0 && (data.getLastModified()[pathId]/1000) <= (since/1000);
+    	}
+    	return false;
+    }
+    
+    /*
+     * @return count of ranges to send, 0 for the full file or -1 when none can be satisfied.
+     */
+    private int selectRanges(DataInputBlobReader<HTTPRequestSchema> params, int pathId) {
+    	if (!readHeader(params, HTTPHeaderDefaults.RANGE)) {
+    		return 0;
+    	}
+    	int count = HTTPUtil.parseRanges(headerValue, data.getFileSizes()[pathId], rangeFirst, rangeLast);
+    	if (count<0 || (count>1 && fileRegions)) {
+    		return 0; //not understood, or more than one region which the writer can not send
+    	}
+    	if (readHeader(params, HTTPHeaderDefaults.IF_RANGE)) {
+    		byte[] modified = data.getLastModifiedBytes()[pathId];
+    		if (!HTTPUtil.etagMatches(headerValue, data.getEtagBytes()[pathId])
+    			&& (null==modified || !HTTPUtil.matchesBytes(headerValue, 0, headerValue.length(), modified))) {
+    			return 0; //file has changed so the full file is sent
+    		}
+    	}
+    	return 0==count ? -1 : count;
+    }
+    
+    private byte[] lastModifiedBytes(int pathId) {
+    	byte[] result = data.getLastModifiedBytes()[pathId];
+    	Path path;
+    	if (null==result && null!=(path = data.getPaths()[pathId])) {
+    		long modified = path.toFile().lastModified();
+    		data.getLastModified()[pathId] = modified;
+    		data.getLastModifiedBytes()[pathId] = result = httpDate.format(new Date(modified)).getBytes();
+    	}
+    	return result;
+    }
+    
+    private long parseHTTPDate(CharSequence value) {
+    	try {
+    		return httpDate.parse(value.toString()).getTime();
+    	} catch (ParseException e) {
+    		return -1; //invalid dates are ignored
+    	}
+    }
+    
+    private static SimpleDateFormat newHTTPDateFormat() {
+    	SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    	format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    	return format;
+    }
+    
+    /*
+     * Header with no body for 304 and 416, the file channel is not used.
+     */
+    private void publishHeaderOnly(int httpRevision, int status, int pathId, long length, HeaderWritable headerWriter,
+    		                       Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
+    	
+    	int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+    	Pipe.addIntValue(activeChannelHigh, output);
+    	Pipe.addIntValue(activeChannelLow, output);
+    	Pipe.addIntValue(activeSequenceId, output);
+    	
+    	DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.outputStream(output);
+    	writer.openField();
+    	HTTPUtil.writeHeader(httpSpec.revisions[httpRevision].getBytes(), 
+    			    status, activeRequestContext, data.getEtagBytes()[pathId],
+    			    null, (int)length,
+    			    false, true, writer,
+    			    1&(activeRequestContext>>ServerCoordinator.CLOSE_CONNECTION_SHIFT),
+    			    headerWriter);
+    	writer.closeLowLevelField();
+    	
+    	Pipe.addIntValue(activeRequestContext, output);
+    	Pipe.confirmLowLevelWrite(output, size);
+    	totalBytesWritten = totalBytesWritten + Pipe.publishWrites(output);
+    	
+    	Pipe.confirmLowLevelRead(input, activeReadMessageSize);
+    	Pipe.releaseReadLock(input);
+    }
 
-    private int selectActiveFileChannel(TrieParserReader trieReader, TrieParser trie,
+    private int selectPathId(TrieParserReader trieReader, TrieParser trie,
             int bytesLength, final byte[] bytesBackingArray,  int bytesPosition, final int bytesMask) {
 
         if (File.separatorChar == bytesBackingArray[bytesMask&bytesPosition]) {//Always do this?? not sure yet.
@@ -640,12 +1067,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
        	    pathId = defaultPathId;       		
         }
         
-        if (pathId >= 0) {
-            if (null!=(activeFileChannel = channelHolder.getValid(data.getFcId()[pathId]))) {
-            } else {
-                findAgainFileChannel(pathId);
-            }
-        } else {
+        if (pathId < 0) {
         	//if bytesLength is 0 then use the defaultPathFile
         	//System.err.println("default: "+	defaultPathFile);
         
@@ -679,6 +1101,13 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         
     }
 
+    private void activateFileChannel(int pathId) {
+        if (null!=(activeFileChannel = channelHolder.getValid(data.getFcId()[pathId]))) {
+        } else {
+            findAgainFileChannel(pathId);
+        }
+    }
+
     private void findAgainFileChannel(int pathId) {
         ///////////////
         //we lost our file channel and need to request a new one.
@@ -698,7 +1127,8 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         }
     }
 
-    private void beginSendingFile(int httpRevision, int requestContext, int pathId, int verb, int sequence, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
+    private void beginSendingFile(int httpRevision, int requestContext, int pathId, int typeId, HeaderWritable headerWriter,
+    		                      int verb, int sequence, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
         try {                                               
             //reposition to beginning of the file to be loaded and sent.
             activePayloadSizeRemaining = data.getFileSizes()[pathId];
@@ -708,18 +1138,24 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
             int status = 200;
             boolean reportServer = true;
                         
-	        HeaderWritable headerWriter = null;
-        
-            if (pathId==defaultPathId) {
-            	//redirect to the correct request location...
-		        headerWriter = headerWriterContentLoc; 
-            }
+            //headerWriter adds the content location for the default path and the encoding when gzip is sent
             
           //  logger.info("begin file response for channel {} {}", activeChannelHigh, activeChannelLow);
 
             //TODO: slow...
             byte[] revision = httpSpec.revisions[httpRevision].getBytes();
-            byte[] contentType = httpSpec.contentTypes[data.getType()[pathId]].getBytes();
+            byte[] contentType = httpSpec.contentTypes[typeId].getBytes();
+            
+            if (1==rangeCount) {
+            	status = 206;
+            	activePayloadSizeRemaining = 1+rangeLast[0]-rangeFirst[0];
+            } else if (rangeCount>1) {
+            	//each range is sent as one part of a multipart body
+            	status = 206;
+            	activePartType = contentType;
+            	contentType = MULTIPART_TYPE;
+            	activePayloadSizeRemaining = multipartLength(data.getFileSizes()[pathId]);
+            }
             
             assert(data.getFileSizes()[pathId]<Integer.MAX_VALUE) : "Can not support files larger than 2G at this time.";
             boolean chunked = false;
@@ -736,7 +1172,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
 
 					HTTPUtil.writeHeader(revision, 
 			        		    status, requestContext, data.getEtagBytes()[pathId],  
-			        		    contentType, (int)data.getFileSizes()[pathId],
+			        		    contentType, (int)activePayloadSizeRemaining,
 			        		    chunked, reportServer, writer, 
 			        		    1&(requestContext>>ServerCoordinator.CLOSE_CONNECTION_SHIFT),
 			        		    headerWriter);
@@ -770,6 +1206,69 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
         }        
     }
 
+    private long multipartLength(long fileSize) {
+    	long total = 0;
+    	int i = rangeCount+1;//one more for the closing boundary
+    	while (--i>=0) {
+    		total += partHeader(i, fileSize).length();
+    		if (i<rangeCount) {
+    			total += 1+rangeLast[i]-rangeFirst[i];
+    		}
+    	}
+    	return total;
+    }
+    
+    /*
+     * Boundary and headers written before each range, after the last range only the closing boundary.
+     */
+    private CharSequence partHeader(int idx, long fileSize) {
+    	partHeader.setLength(0);
+    	partHeader.append("\r\n--").append(BOUNDARY);
+    	if (idx<rangeCount) {
+    		partHeader.append("\r\nContent-Type: ");
+    		int i = 0;
+    		while (i<activePartType.length) {
+    			partHeader.append((char)activePartType[i++]);
+    		}
+    		partHeader.append("\r\nContent-Range: bytes ").append(rangeFirst[idx]).append('-').append(rangeLast[idx])
+    		          .append('/').append(fileSize).append("\r\n\r\n");
+    	} else {
+    		partHeader.append("--\r\n");
+    	}
+    	return partHeader;
+    }
+    
+    private void publishPartHeader(int channelHigh, int channelLow, int sequence, Pipe<ServerResponseSchema> output, CharSequence text) {
+    	int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+    	Pipe.addIntValue(channelHigh, output);
+    	Pipe.addIntValue(channelLow, output);
+    	Pipe.addIntValue(sequence, output);
+    	
+    	DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.outputStream(output);
+    	writer.openField();
+    	writer.append(text);
+    	activePayloadSizeRemaining -= writer.closeLowLevelField();
+    	
+    	Pipe.addIntValue(activePayloadSizeRemaining>0 ? 0 : activeRequestContext, output);
+    	Pipe.confirmLowLevelWrite(output, size);
+    	totalBytesWritten = totalBytesWritten + Pipe.publishWrites(output);
+    }
+    
+    /*
+     * Only read up to the end of the active range.
+     */
+    private static ByteBuffer[] limitBuffers(ByteBuffer[] targets, long max) {
+    	int i = 0;
+    	while (i<targets.length) {
+    		ByteBuffer target = targets[i++];
+    		if (target.remaining()>max) {
+    			((Buffer)target).limit(target.position()+(int)max);
+    		}
+    		max -= target.remaining();
+    	}
+    	return targets;
+    }
+
 	private long positionOfFileDataBegin(Pipe<ServerResponseSchema> output) {
 		return PipeHashTable.getLowerBounds(outputHash)+output.blobMask;
 	}
@@ -813,8 +1312,13 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     private static void publishBodiesMessage(FileReadModuleStage that, int verb, int sequence, int pathId, Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) throws IOException {
             if (VERB_GET == verb) { //head does not get body
 
-                that.activePosition = 0; 
+                that.activePosition = that.rangeCount>0 ? that.rangeFirst[0] : 0; 
                 that.activeNeedsStartReposition = true;
+                //multipart begins with the part header so no range is active yet
+                that.rangeIdx = that.rangeCount>1 ? -1 : 0;
+                that.activeRangeRemaining = 1==that.rangeCount ? that.activePayloadSizeRemaining : 0;
+                that.activeRegionId = that.fileRegions ? that.regionId(that.activeFileChannel, pathId) : 0;
+                that.activeHotFile = 0!=that.activeRegionId ? null : that.lookupHotFile(pathId);
                
                 that.writeBodiesWhileRoom(that.activeChannelHigh, that.activeChannelLow, sequence, that.activeFileChannel, pathId, input, output);                             
 
@@ -854,6 +1358,9 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     	boolean didWork = false;
     	
        if (null != localFileChannel) {
+    	 if (0!=activeRegionId) {
+    		 return writeFileRegion(channelHigh, channelLow, sequence, activeRegionId, input, output);
+    	 }
          long localPos = activePosition;
        //  logger.info("write body {} {}",Pipe.hasRoomForWrite(localOutput), localOutput);
          
@@ -865,6 +1372,23 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                            
         	 didWork = true;
         	 
+        	 if (rangeCount>0 && activeRangeRemaining<=0) {
+        		 //this range is done, send the next part header or the closing boundary
+        		 if (++rangeIdx<rangeCount) {
+        			 localPos = rangeFirst[rangeIdx];
+        			 activeRangeRemaining = 1+rangeLast[rangeIdx]-rangeFirst[rangeIdx];
+        			 activeNeedsStartReposition = true;
+        		 }
+        		 publishPartHeader(channelHigh, channelLow, sequence, output, partHeader(rangeIdx, data.getFileSizes()[pathId]));
+        		 if (activePayloadSizeRemaining<=0) {
+        			 Pipe.confirmLowLevelRead(input, activeReadMessageSize);
+        			 Pipe.releaseReadLock(input);
+        			 activeFileChannel = null;
+        			 return didWork;
+        		 }
+        		 continue;
+        	 }
+        	 
              final long fcId = data.getFcId()[pathId];
              
              final int oldBlobPosition = (int)PipeHashTable.getItem(outputHash, fcId);
@@ -873,6 +1397,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
             int blobMask = Pipe.blobMask(output);
 			final long fileSize = data.getFileSizes()[pathId];
 			if (supportInFlightCopy && 
+					/*Ranges are read from the file*/ 0==rangeCount &&
 					/*Only use if the file was written previously*/ oldBlobPosition>0 && 
 					/*Only use if the full file can be found */fileSize<blobMask) { 
             
@@ -971,9 +1496,18 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                // System.err.println("coped data body from "+(output.blobMask&prevBlobPos)+" to "+(output.blobMask&headBlobPosInPipe)+" remaining "+activePayloadSizeRemaining);
                 
 				localPos += len;
+            } else if (null != activeHotFile) {
+            	
+            	int len = copyHotFile(activeHotFile, localPos, 
+            			              (int)Math.min(rangeCount>0 ? activeRangeRemaining : activePayloadSizeRemaining, output.maxVarLen),
+            			              Pipe.wrappedWritingBuffers(headBlobPosInPipe, output));
+            	activeMessageStart = publishBodyPart(channelHigh, channelLow, sequence, output, len, data.getFcId()[pathId]);
+            	
+            	localPos += len;
+            	activeRangeRemaining -= len;
             } else {
             	if (activeNeedsStartReposition) {
-            		activeFileChannel.position(0); //NOTE: we are careful to only do this when we are reading from disk.
+            		activeFileChannel.position(localPos); //NOTE: we are careful to only do this when we are reading from disk.
             		activeNeedsStartReposition = false;
             	}
             	fromDisk++;
@@ -983,7 +1517,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
             	
             	//must read from file system
                 long len;
-                if ((len=localFileChannel.read(Pipe.wrappedWritingBuffers(headBlobPosInPipe, output))) >= 0) {
+                ByteBuffer[] targets = Pipe.wrappedWritingBuffers(headBlobPosInPipe, output);
+                if (rangeCount>0) {
+                	limitBuffers(targets, activeRangeRemaining);
+                }
+                if ((len=localFileChannel.read(targets)) >= 0) {
                     
                 	//logger.info("FileReadStage wrote out {} total file size {} curpos {} ",len,localFileChannel.size(),localFileChannel.position());
                                     	
@@ -991,6 +1529,7 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                 	activeMessageStart = publishBodyPart(channelHigh, channelLow, sequence, output, (int)len, data.getFcId()[pathId]);    
                     
                 	localPos += len;
+                	activeRangeRemaining -= len;
                                         
                 } else {
                 	//len is < 0 marking the end of the file. We have nothing to publish.
@@ -1010,8 +1549,10 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                     //this is a file write because the data is no where to be found on the pipe previously
                     assert(activeMessageStart>=0);
                    
-                    long dataPos = positionOfFileDataBegin(output);
-                    PipeHashTable.replaceItem(outputHash, data.getFcId()[pathId], dataPos);
+                    if (0==rangeCount) {
+                    	long dataPos = positionOfFileDataBegin(output);
+                    	PipeHashTable.replaceItem(outputHash, data.getFcId()[pathId], dataPos);
+                    }
 
                     //clear value
                     activeMessageStart=-1;
@@ -1034,9 +1575,11 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
                 //now store the location of this new data so we can use it as the cache later   
                 assert(activeMessageStart>=0);
                 
-                long dataPos = positionOfFileDataBegin(output);
-                
-                PipeHashTable.replaceItem(outputHash, data.getFcId()[pathId], dataPos);
+                if (0==rangeCount) {
+                	//only a full file can be copied again from the pipe
+                	long dataPos = positionOfFileDataBegin(output);
+                	PipeHashTable.replaceItem(outputHash, data.getFcId()[pathId], dataPos);
+                }
 
                 //clear value
                 activeMessageStart=-1;
@@ -1053,6 +1596,52 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
        return didWork;
     }
 
+    /*
+     * @return FileRegions id for this channel, zero when every region is in use and the bytes must be sent
+     */
+    private long regionId(FileChannel localFileChannel, int pathId) {
+    	long regionId = regionIds[pathId];
+    	if (FileRegions.lookup(regionId) != localFileChannel) {
+    		//first use or the channel was opened again, the old region is left for descriptors still in flight
+    		regionIds[pathId] = regionId = FileRegions.register(localFileChannel);
+    	}
+    	return regionId;
+    }
+    
+    /*
+     * Publishes one small descriptor for the whole body in place of the file bytes.
+     */
+    private boolean writeFileRegion(int channelHigh, int channelLow, int sequence, long regionId,
+    		                        Pipe<HTTPRequestSchema> input, Pipe<ServerResponseSchema> output) {
+    	
+    	if (!Pipe.hasRoomForWrite(output)) {
+    		return false;
+    	}
+    	
+    	final long count = activePayloadSizeRemaining;
+    	activePayloadSizeRemaining = 0;
+    	
+    	int size = Pipe.addMsgIdx(output, ServerResponseSchema.MSG_TOCHANNEL_100);
+    	Pipe.addIntValue(channelHigh, output);
+    	Pipe.addIntValue(channelLow, output);
+    	Pipe.addIntValue(sequence, output);
+    	
+    	DataOutputBlobWriter<ServerResponseSchema> writer = Pipe.outputStream(output);
+    	writer.openField();
+    	FileRegions.writeDescriptor(writer, regionId, activePosition, count);
+    	writer.closeLowLevelField();
+    	
+    	//this is always the last message of the response
+    	Pipe.addIntValue(activeRequestContext | ServerCoordinator.FILE_REGION_MASK, output);
+    	Pipe.confirmLowLevelWrite(output, size);
+    	totalBytesWritten = totalBytesWritten + Pipe.publishWrites(output);
+    	
+    	Pipe.confirmLowLevelRead(input, activeReadMessageSize);
+    	Pipe.releaseReadLock(input);
+    	activeFileChannel = null;
+    	return true;
+    }
+
 	private void useInFlightData(Pipe<ServerResponseSchema> output, int headBlobPosInPipe, int blobMask, int len,
 			int prevBlobPos, final byte[] blob, boolean foundFile, int countOfBytesToSkip) {
 		
@@ -1190,6 +1779,12 @@ public class FileReadModuleStage<       T extends Enum<T> & HTTPContentType,
     @Override
     public void shutdown() {
     	assert(reportRecordedStates(getClass().getSimpleName()));
+    	if (null!=regionIds) {
+    		int i = regionIds.length;
+    		while (--i>=0) {
+    			FileRegions.release(regionIds[i]);
+    		}
+    	}
     	if (totalRunCalls!=0) {
     		logger.trace("total calls to run: {} avgFilesPerRun: {}",totalRunCalls,(totalFiles/totalRunCalls));
     		logger.trace("total bytes out {} inFlightRef {} inFlightCopy {} fromDisk {} ",totalBytesWritten, inFlightRef, inFlightCopy, fromDisk);
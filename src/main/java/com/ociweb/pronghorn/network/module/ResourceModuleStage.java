@@ -1,18 +1,24 @@
 package com.ociweb.pronghorn.network.module;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ociweb.pronghorn.network.config.HTTPContentType;
 import com.ociweb.pronghorn.network.config.HTTPHeader;
+import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
 import com.ociweb.pronghorn.network.config.HTTPRevision;
 import com.ociweb.pronghorn.network.config.HTTPSpecification;
 import com.ociweb.pronghorn.network.config.HTTPVerb;
 import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTPUtil;
+import com.ociweb.pronghorn.network.http.HeaderWritable;
+import com.ociweb.pronghorn.network.http.HeaderWriter;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
 import com.ociweb.pronghorn.pipe.DataInputBlobReader;
@@ -51,6 +57,25 @@ public class ResourceModuleStage<   T extends Enum<T> & HTTPContentType,
 	private byte[][] type = new byte[0][];
 	private byte[][] resource = new byte[0][];	
 	private URL[] resourceURL = new URL[0];
+	//gzip of each resource made once when loaded, null when it does not save enough to be worth it
+	private byte[][] resourceGzip = new byte[0][];
+	private byte[][] eTagGzip = new byte[0][];
+	
+	private static final byte[] ACCEPT_ENCODING_BYTES = "Accept-Encoding".getBytes();
+	private static final byte[] GZIP_BYTES = "gzip".getBytes();
+	private final StringBuilder encodingValue = new StringBuilder();
+	private boolean activeVary;
+	private boolean activeGzip;
+	
+	private final HeaderWritable encodingHeaders = new HeaderWritable() {
+		@Override
+		public void write(HeaderWriter writer) {
+			writer.writeUTF8("Vary", ACCEPT_ENCODING_BYTES);
+			if (activeGzip) {
+				writer.writeUTF8("Content-Encoding", GZIP_BYTES);
+			}
+		}
+	};
 		
 	private final String prefix;
 	private String defaultName;
@@ -113,6 +138,8 @@ public class ResourceModuleStage<   T extends Enum<T> & HTTPContentType,
 			                 HTTPVerbDefaults verb) {
 		
 		activeFileIdx = -1;//default
+		activeVary = false;
+		activeGzip = false;
 		
 		if ((verb != HTTPVerbDefaults.GET) && (verb != HTTPVerbDefaults.POST)) {
 			logger.warn("unsupported verb {} when requesting a resource, this should be GET", verb);
@@ -128,6 +155,12 @@ public class ResourceModuleStage<   T extends Enum<T> & HTTPContentType,
 			}
 			//logger.info("request for {} len {}",fileName,fileName.length());
 		}
+		boolean acceptsGzip = false;
+		if (params.isStructured() && !params.structured().isNull(HTTPHeaderDefaults.ACCEPT_ENCODING)) {
+			encodingValue.setLength(0);
+			HTTPHeaderDefaults.ACCEPT_ENCODING.consumeValue(params.structured().read(HTTPHeaderDefaults.ACCEPT_ENCODING), encodingValue);
+			acceptsGzip = HTTPUtil.acceptsGzip(encodingValue);
+		}
 		int fileIdx = (int)TrieParserReader.query(parserReader, parser, fileName);
 
 		//logger.info("request for {} fileIdx {} ",fileName,fileIdx);
@@ -159,6 +192,8 @@ public class ResourceModuleStage<   T extends Enum<T> & HTTPContentType,
 			type = grow(type, fileCount);
 			resource = grow(resource, fileCount);
 			resourceURL = grow(resourceURL, fileCount);
+			resourceGzip = grow(resourceGzip, fileCount);
+			eTagGzip = grow(eTagGzip, fileCount);
 			
 			
 		    //logger.info("loading resource {} ",resourceName);
@@ -203,15 +238,47 @@ public class ResourceModuleStage<   T extends Enum<T> & HTTPContentType,
 			Appendables.appendHexDigits(temp.append("R-"), jenny).append("-00");
 			eTag[fileIdx] = temp.toString().getBytes();
 			
+			resourceGzip[fileIdx] = gzip(resource[fileIdx]);
+			if (null!=resourceGzip[fileIdx]) {
+				temp.setLength(0);
+				Appendables.appendHexDigits(temp.append("R-"), jenny).append("-gz");
+				eTagGzip[fileIdx] = temp.toString().getBytes();
+			}
 		}
 		
 		activeFileIdx = fileIdx;
+		activeVary = null!=resourceGzip[fileIdx];
+		activeGzip = activeVary && acceptsGzip;
 				
 		//logger.info("request for {} sent {} ",fileName, resource[fileIdx].length);
+		if (activeGzip) {
+			definePayload(resourceGzip[fileIdx], 0, resourceGzip[fileIdx].length, Integer.MAX_VALUE);
+			return eTagGzip[fileIdx];
+		}
 		definePayload(resource[fileIdx], 0, resource[fileIdx].length, Integer.MAX_VALUE);		
 		return eTag[fileIdx];
 	}
 	
+	/*
+	 * Compressed once when the resource is loaded, only kept if it saves at least 10%.
+	 */
+	private static byte[] gzip(byte[] data) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+			GZIPOutputStream gz = new GZIPOutputStream(out);
+			gz.write(data);
+			gz.close();
+			return out.size() < (data.length-(data.length/10)) ? out.toByteArray() : null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	@Override
+	protected HeaderWritable headers() {
+		return activeVary ? encodingHeaders : null;
+	}
+	
 	private final URL[] grow(URL[] in, int idx) {
 		URL[] result = new URL[idx];
 		System.arraycopy(in, 0, result, 0, in.length);
@@ -0,0 +1,351 @@
+package com.ociweb.pronghorn.stage.file;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeReader;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.file.schema.BlockStorageReceiveSchema;
+import com.ociweb.pronghorn.stage.file.schema.BlockStorageXmitSchema;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Store blocks at specific positions within the backing file, same messages as BlockStorageStage.
+ * Reads and writes are done with positional calls on a small shared pool of I/O threads so the
+ * thread running this stage never waits on the disk. Many requests may be in flight at once and
+ * each response is sent as soon as its request completes, so they may arrive out of order.
+ * The position in each response identifies the request it answers.
+ *
+ * Requests whose ranges overlap and where either one is a write are still done in the order sent.
+ *
+ * @author Nathan Tippy
+ * @see <a href="https://github.com/objectcomputing/Pronghorn">Pronghorn</a>
+ */
+public class AsyncBlockStorageStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncBlockStorageStage.class);
+
+	public static int ioThreads = 2;
+	public static int maxInFlight = 32;
+
+	private static ExecutorService executor;
+
+	private static final int SLOT_FREE = 0;
+	private static final int SLOT_SUBMITTED = 1;
+	private static final int SLOT_DONE = 2;
+
+	private static final byte TYPE_WRITE = 1;
+	private static final byte TYPE_READ = 2;
+
+	private final String filePath;
+	private final Pipe<BlockStorageXmitSchema>[] input;
+	private final Pipe<BlockStorageReceiveSchema>[] output;
+	private RandomAccessFile raf;
+	private FileChannel fileChannel;
+	private int shutdownCountdown;
+
+	//fragment was read but is waiting on a slot or on an overlapping request
+	private boolean[] held;
+
+	private AtomicIntegerArray slotState;
+	private byte[] slotType;
+	private int[] slotPipe;
+	private long[] slotPosition;
+	private int[] slotLength;
+	private byte[][] slotData;
+	private ByteBuffer[] slotBuffer;
+	private String[] slotError;
+	private Runnable[] slotTask;
+	private int inFlight;
+
+	public static AsyncBlockStorageStage newInstance(GraphManager graphManager,
+			                             String filePath, //single file accessed by multiple pipes
+							             Pipe<BlockStorageXmitSchema>[] input,
+							             Pipe<BlockStorageReceiveSchema>[] output) {
+		return new AsyncBlockStorageStage(graphManager, filePath, input, output);
+	}
+
+	public static AsyncBlockStorageStage newInstance(GraphManager graphManager,
+							             String filePath, //single file accessed by multiple pipes
+							             Pipe<BlockStorageXmitSchema> input,
+							             Pipe<BlockStorageReceiveSchema> output) {
+		return new AsyncBlockStorageStage(graphManager, filePath,
+				                     new Pipe[]{input},
+				                     new Pipe[]{output});
+	}
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param filePath
+	 * @param input _in_ Pipes containing BlockStorageXmitSchema
+	 * @param output _out_ Pipes that will receive released blocks
+	 */
+	public AsyncBlockStorageStage(GraphManager graphManager,
+			                    String filePath, //single file accessed by multiple pipes
+			                    Pipe<BlockStorageXmitSchema>[] input,
+			                    Pipe<BlockStorageReceiveSchema>[] output) {
+
+		super(graphManager, input, output);
+
+		this.filePath = filePath;
+		this.input = input;
+		this.output = output;
+		assert(null!=filePath && filePath.trim().length()>0);
+		assert(input.length == output.length);
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "cornsilk2", this);
+
+	}
+
+	public String toString() {
+		String parent = super.toString();
+		return parent+" "+filePath;
+	}
+
+	@Override
+	public void startup() {
+		try {
+			shutdownCountdown = input.length;
+			raf = new RandomAccessFile(filePath, "rws");
+			fileChannel = raf.getChannel();
+		} catch (FileNotFoundException e) {
+			logger.info("unable to open file {} for writing", filePath);
+			throw new RuntimeException(e);
+		}
+
+		int maxLength = 0;
+		int i = input.length;
+		while (--i>=0) {
+			maxLength = Math.max(maxLength, Math.max(input[i].maxVarLen, output[i].maxVarLen));
+		}
+		held = new boolean[input.length];
+
+		int s = maxInFlight;
+		slotState = new AtomicIntegerArray(s);
+		slotType = new byte[s];
+		slotPipe = new int[s];
+		slotPosition = new long[s];
+		slotLength = new int[s];
+		slotData = new byte[s][];
+		slotBuffer = new ByteBuffer[s];
+		slotError = new String[s];
+		slotTask = new Runnable[s];
+		while (--s>=0) {
+			slotData[s] = new byte[maxLength];
+			slotBuffer[s] = ByteBuffer.wrap(slotData[s]);
+			slotTask[s] = new IOTask(s);
+		}
+
+		synchronized (AsyncBlockStorageStage.class) {
+			if (null==executor) {
+				executor = Executors.newFixedThreadPool(ioThreads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "BlockStorageIO");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+
+		publishCompleted();
+
+		if (0 == shutdownCountdown) {
+			if (inFlight>0) {
+				return;//wait for the disk
+			}
+			int j = output.length;
+			while (--j>=0) {
+				if (!PipeWriter.hasRoomForWrite(output[j])) {
+					return;
+				}
+			}
+			PipeWriter.publishEOF(output);
+			requestShutdown();
+			return;
+		}
+
+		int i = input.length;
+		while (--i >= 0) {
+			submitRequests(i);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		try {
+			if (null!=raf) {
+				raf.close();
+			}
+		} catch (IOException e) {
+			logger.warn("unable to close file {}", filePath, e);
+		}
+	}
+
+	private void submitRequests(int idx) {
+		Pipe<BlockStorageXmitSchema> localInput = input[idx];
+
+		while (held[idx] || PipeReader.tryReadFragment(localInput)) {
+			held[idx] = true;
+		    int msgIdx = PipeReader.getMsgIdx(localInput);
+
+		    if (-1 == msgIdx) {
+	        	logger.trace("shutdown count now {}", shutdownCountdown);
+	        	shutdownCountdown--;
+	        	held[idx] = false;
+	        	PipeReader.releaseReadLock(localInput);
+	        	return;
+		    }
+
+		    final byte type;
+		    final long position;
+		    final int length;
+		    if (BlockStorageXmitSchema.MSG_WRITE_1 == msgIdx) {
+		    	type = TYPE_WRITE;
+		    	position = PipeReader.readLong(localInput, BlockStorageXmitSchema.MSG_WRITE_1_FIELD_POSITION_12);
+		    	length = PipeReader.readBytesLength(localInput, BlockStorageXmitSchema.MSG_WRITE_1_FIELD_PAYLOAD_11);
+		    } else {
+		    	type = TYPE_READ;
+		    	position = PipeReader.readLong(localInput, BlockStorageXmitSchema.MSG_READ_2_FIELD_POSITION_12);
+		    	length = PipeReader.readInt(localInput, BlockStorageXmitSchema.MSG_READ_2_FIELD_READLENGTH_10);
+		    	assert(length>0) : "found value "+length+" file read must be a postitive value.";
+		    	assert(length<=output[idx].maxVarLen) : "read of "+length+" is larger than the response pipe allows";
+		    }
+
+		    int slot = freeSlot();
+		    if (slot<0 || isBlockedByEarlier(type, position, length)) {
+		    	return;//held until the earlier requests finish
+		    }
+
+		    slotType[slot] = type;
+		    slotPipe[slot] = idx;
+		    slotPosition[slot] = position;
+		    slotLength[slot] = length;
+		    slotError[slot] = null;
+		    if (TYPE_WRITE == type) {
+		    	//copied so the pipe can be released before the disk is done
+		    	PipeReader.inputStream(localInput, BlockStorageXmitSchema.MSG_WRITE_1_FIELD_PAYLOAD_11)
+		    	          .read(slotData[slot], 0, length);
+		    }
+
+		    slotState.set(slot, SLOT_SUBMITTED);
+		    inFlight++;
+		    executor.execute(slotTask[slot]);
+
+		    held[idx] = false;
+		    PipeReader.releaseReadLock(localInput);
+		}
+	}
+
+	private int freeSlot() {
+		int s = slotTask.length;
+		while (--s>=0) {
+			if (SLOT_FREE == slotState.get(s)) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isBlockedByEarlier(byte type, long position, int length) {
+		int s = slotTask.length;
+		while (--s>=0) {
+			if (SLOT_SUBMITTED == slotState.get(s)
+				&& (TYPE_WRITE == type || TYPE_WRITE == slotType[s])
+				&& position < slotPosition[s]+slotLength[s]
+				&& slotPosition[s] < position+length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void publishCompleted() {
+		int s = slotTask.length;
+		while (--s>=0) {
+			if (SLOT_DONE == slotState.get(s)) {
+				Pipe<BlockStorageReceiveSchema> localOutput = output[slotPipe[s]];
+				if (!PipeWriter.hasRoomForWrite(localOutput)) {
+					continue;//try again on the next run
+				}
+				if (null != slotError[s]) {
+					BlockStorageReceiveSchema.publishError(localOutput, slotPosition[s], slotError[s]);
+				} else if (TYPE_WRITE == slotType[s]) {
+					BlockStorageReceiveSchema.publishWriteAck(localOutput, slotPosition[s]);
+				} else {
+					PipeWriter.presumeWriteFragment(localOutput, BlockStorageReceiveSchema.MSG_DATARESPONSE_1);
+					PipeWriter.writeLong(localOutput,
+							BlockStorageReceiveSchema.MSG_DATARESPONSE_1_FIELD_POSITION_12,
+							slotPosition[s]);
+					PipeWriter.writeBytes(localOutput,
+							BlockStorageReceiveSchema.MSG_DATARESPONSE_1_FIELD_PAYLOAD_11,
+							slotData[s], 0, slotLength[s]);
+					PipeWriter.publishWrites(localOutput);
+				}
+				slotState.set(s, SLOT_FREE);
+				inFlight--;
+			}
+		}
+	}
+
+	private final class IOTask implements Runnable {
+		private final int slot;
+
+		IOTask(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = slotBuffer[slot];
+			buffer.clear();
+			buffer.limit(slotLength[slot]);
+			long position = slotPosition[slot];
+			try {
+				if (TYPE_WRITE == slotType[slot]) {
+					//positional writes may be partial so continue until all of it is written
+					while (buffer.hasRemaining()) {
+						position += fileChannel.write(buffer, position);
+					}
+				} else {
+					while (buffer.hasRemaining()) {
+						int count = fileChannel.read(buffer, position);
+						if (count<0) {
+							//end of file, the rest is sent as zeros
+							Arrays.fill(slotData[slot], buffer.position(), slotLength[slot], (byte)0);
+							break;
+						}
+						position += count;
+					}
+				}
+			} catch (IOException e) {
+				slotError[slot] = String.valueOf(e.getMessage());
+			} catch (RuntimeException e) {
+				//must still finish or the slot would be lost
+				logger.warn("unable to access file {}", filePath, e);
+				slotError[slot] = String.valueOf(e.getMessage());
+			}
+			slotState.set(slot, SLOT_DONE);
+		}
+	}
+
+}
@@ -107,7 +107,6 @@ public class FileBlobReadStage extends PronghornStage {
 	        this.provider = fileSystem.provider();
 	        this.readOptions = new HashSet<OpenOption>();
 	        this.readOptions.add(StandardOpenOption.READ);
-	        this.readOptions.add(StandardOpenOption.SYNC);
 	        
 	        try {
 	        	fileChannel = provider.newFileChannel(fileSystem.getPath(inputPathString), readOptions);
@@ -63,6 +63,9 @@ public class FileBlobWriteStage extends PronghornStage{
     private final String extension;
     
     private final boolean append;
+    private final FileDurability durability;
+    private long unsyncedBytes;
+    private long firstUnsyncedNS;
     private StringBuilder pathBuilder;
     private ISOTimeFormatterLowGC formatter;
 
@@ -94,12 +97,33 @@ public class FileBlobWriteStage extends PronghornStage{
     		                  boolean append, 
     		                  String pathBase,
     		                  int maxFileCount) {
+    	this(graphManager, input, fileRotateSize, append, pathBase, maxFileCount, FileDurability.SYNC_EACH_WRITE);
+    }
+    
+    /**
+     *
+     * @param graphManager
+     * @param input _in_ RawDataSchema that will be written  to file.
+     * @param fileRotateSize ignored if there is only 1 file
+     * @param append
+     * @param pathBase
+     * @param maxFileCount
+     * @param durability when writes are forced to the device
+     */
+    public FileBlobWriteStage(GraphManager graphManager,
+    		                  Pipe<RawDataSchema> input,
+    		                  long fileRotateSize, //ignored if file count is 1
+    		                  boolean append, 
+    		                  String pathBase,
+    		                  int maxFileCount,
+    		                  FileDurability durability) {
     	
     	
     	//TODO: add second constructor to add control pipe.
     	
         super(graphManager, input, NONE);
         assert(pathBase!=null);
+        this.durability = durability;
         this.append = append;
         this.fileRotateSize = fileRotateSize;
         this.input = input;
@@ -125,7 +149,7 @@ public class FileBlobWriteStage extends PronghornStage{
         this.provider = fileSystem.provider();
         this.writeOptions = new HashSet<OpenOption>();
 
-        this.writeOptions.add(StandardOpenOption.SYNC);
+        durability.addOpenOptions(this.writeOptions);
         this.writeOptions.add(StandardOpenOption.CREATE);
 
         if (append) {
@@ -172,8 +196,35 @@ public class FileBlobWriteStage extends PronghornStage{
              
         writeProcessing();
         
+        if (0!=unsyncedBytes 
+        	&& FileDurability.GROUP_COMMIT == durability
+        	&& FileDurability.isGroupCommitDue(unsyncedBytes, firstUnsyncedNS, System.nanoTime())) {
+        	try {
+        		fileChannel.force(false);
+        	} catch (IOException e) {
+        		if (!(e instanceof ClosedChannelException)) {
+        			throw new RuntimeException(e);
+        		}
+        	}
+        	unsyncedBytes = 0;
+        }
+        
     }
 
+	private void recordUnsynced(int bytes) {
+		if (0==unsyncedBytes) {
+			firstUnsyncedNS = System.nanoTime();
+		}
+		unsyncedBytes += bytes;
+	}
+
+	private void forceBeforeClose() throws IOException {
+		if (FileDurability.SYNC_EACH_WRITE != durability) {
+			fileChannel.force(false);
+			unsyncedBytes = 0;
+		}
+	}
+
 	private void writeProcessing() {
 		do {
         
@@ -194,6 +245,7 @@ public class FileBlobWriteStage extends PronghornStage{
 					long fileSize = fileChannel.size();
 					if (fileSize>fileRotateSize) {
 						//close file
+						forceBeforeClose();
 						fileChannel.close();
 						
 						//rotate to next file.
@@ -269,7 +321,7 @@ public class FileBlobWriteStage extends PronghornStage{
         if (null!=buffA) {
             try {
                 
-                 fileChannel.write(buffA);
+                recordUnsynced(fileChannel.write(buffA));
                 if (0==buffA.remaining()) {
                     buffA = null;
                 } else {
@@ -290,7 +342,7 @@ public class FileBlobWriteStage extends PronghornStage{
         
         if (null!=buffB) {
             try {                
-                fileChannel.write(buffB);
+                recordUnsynced(fileChannel.write(buffB));
                 if (0==buffB.remaining()) {
                     buffB = null;
                 }
@@ -311,6 +363,7 @@ public class FileBlobWriteStage extends PronghornStage{
         }
         if (fileChannel.isOpen()) {
         	try {
+        		forceBeforeClose();
 				fileChannel.close();
 			} catch (IOException e) {
 				logger.info("unable to close ",e);
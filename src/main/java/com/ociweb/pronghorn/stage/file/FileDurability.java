@@ -0,0 +1,45 @@
+package com.ociweb.pronghorn.stage.file;
+
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * When written bytes are forced to the device by the file stages.
+ */
+public enum FileDurability {
+
+	/**
+	 * Channel is opened with SYNC so every write waits on the device, this was the only behavior before.
+	 */
+	SYNC_EACH_WRITE,
+
+	/**
+	 * One fsync covers all the writes made since the last one. It is done once groupCommitBytes have been
+	 * written or the oldest unsynced write is groupCommitMicros old. Acks are only sent after their sync.
+	 */
+	GROUP_COMMIT,
+
+	/**
+	 * Left to the OS, only forced when the file is closed. Writes may be lost on power failure.
+	 */
+	OS_BUFFERED;
+
+	public static long groupCommitBytes = 1L<<20;
+	public static long groupCommitMicros = 2_000;
+
+	public void addOpenOptions(Set<OpenOption> options) {
+		if (SYNC_EACH_WRITE == this) {
+			options.add(StandardOpenOption.SYNC);
+		}
+	}
+
+	/**
+	 * @return true if a group commit is due for these unsynced bytes, first written at firstUnsyncedNS
+	 */
+	public static boolean isGroupCommitDue(long unsyncedBytes, long firstUnsyncedNS, long nowNS) {
+		return unsyncedBytes >= groupCommitBytes
+			|| (nowNS-firstUnsyncedNS) >= groupCommitMicros*1_000L;
+	}
+
+}
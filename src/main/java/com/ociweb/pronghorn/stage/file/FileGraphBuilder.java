@@ -21,6 +21,9 @@ import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 
 public class FileGraphBuilder {
 
+	//when true the encrypted tail files are read and written off the stage threads by AsyncBlockStorageStage
+	public static boolean asyncBlockStorage = false;
+
 	public static void buildSequentialReplayer(GraphManager gm,
 			Pipe<PersistedBlobLoadReleaseSchema>  fromStoreRelease,
 			Pipe<PersistedBlobLoadConsumerSchema> fromStoreConsumer,
@@ -30,6 +33,49 @@ public class FileGraphBuilder {
 			short inFlightCount, int largestBlock,
 			File targetDirectory, NoiseProducer noiseProducer, 
 			PronghornStageProcessor stageProcessor) {
+		buildSequentialReplayer(gm, fromStoreRelease, fromStoreConsumer, fromStoreProducer,
+				                toStoreConsumer, toStoreProducer, inFlightCount, largestBlock,
+				                targetDirectory, noiseProducer, stageProcessor, FileDurability.SYNC_EACH_WRITE);
+	}
+
+	/**
+	 * Store acks are only sent once the write is durable as defined by the durability,
+	 * with GROUP_COMMIT many stores share one fsync.
+	 */
+	public static void buildSequentialReplayer(GraphManager gm,
+			Pipe<PersistedBlobLoadReleaseSchema>  fromStoreRelease,
+			Pipe<PersistedBlobLoadConsumerSchema> fromStoreConsumer,
+			Pipe<PersistedBlobLoadProducerSchema> fromStoreProducer,
+			Pipe<PersistedBlobStoreConsumerSchema> toStoreConsumer,
+			Pipe<PersistedBlobStoreProducerSchema> toStoreProducer,
+			short inFlightCount, int largestBlock,
+			File targetDirectory, NoiseProducer noiseProducer, 
+			PronghornStageProcessor stageProcessor,
+			FileDurability durability) {
+		buildSequentialReplayer(gm, fromStoreRelease, fromStoreConsumer, fromStoreProducer,
+				                toStoreConsumer, toStoreProducer, inFlightCount, largestBlock,
+				                targetDirectory, noiseProducer, stageProcessor, durability,
+				                SequentialReplayerStage.DEFAULT_COMPACTION_LIVE_RATIO, 0,
+				                SequentialReplayerStage.DEFAULT_COMPACTION_BYTES_PER_RUN);
+	}
+
+	/**
+	 * Compaction copies the live blocks to the other data file once the active one is past
+	 * compactionFileSize, or 10 times the largest blob ring when 0, and no more than
+	 * compactionLiveRatio of its blocks are live. Each run copies compactionBytesPerRun
+	 * along with as many bytes as were written.
+	 */
+	public static void buildSequentialReplayer(GraphManager gm,
+			Pipe<PersistedBlobLoadReleaseSchema>  fromStoreRelease,
+			Pipe<PersistedBlobLoadConsumerSchema> fromStoreConsumer,
+			Pipe<PersistedBlobLoadProducerSchema> fromStoreProducer,
+			Pipe<PersistedBlobStoreConsumerSchema> toStoreConsumer,
+			Pipe<PersistedBlobStoreProducerSchema> toStoreProducer,
+			short inFlightCount, int largestBlock,
+			File targetDirectory, NoiseProducer noiseProducer, 
+			PronghornStageProcessor stageProcessor,
+			FileDurability durability,
+			double compactionLiveRatio, int compactionFileSize, int compactionBytesPerRun) {
 				
 		assert(null!=fromStoreRelease);
 		assert(null!=fromStoreConsumer);
@@ -64,18 +110,27 @@ public class FileGraphBuilder {
 				             new Pipe<RawDataSchema>(releaseConfig)};
 		
 		String[] paths = null;
-		try {
-			paths = new String[]{	
-					File.createTempFile("seqRep", ".dat0", targetDirectory).getAbsolutePath(),
-					File.createTempFile("seqRep", ".dat1", targetDirectory).getAbsolutePath(),
-					File.createTempFile("seqRep", ".idx",  targetDirectory).getAbsolutePath()};
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (null!=targetDirectory) {
+			//same files on each start so the stored blocks can be replayed after a restart
+			targetDirectory.mkdirs();
+			paths = new String[]{
+					new File(targetDirectory, "seqRep.dat0").getAbsolutePath(),
+					new File(targetDirectory, "seqRep.dat1").getAbsolutePath(),
+					new File(targetDirectory, "seqRep.idx").getAbsolutePath()};
+		} else {
+			try {
+				paths = new String[]{	
+						File.createTempFile("seqRep", ".dat0").getAbsolutePath(),
+						File.createTempFile("seqRep", ".dat1").getAbsolutePath(),
+						File.createTempFile("seqRep", ".idx").getAbsolutePath()};
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 		
 		SequentialFileReadWriteStage readWriteStage = new SequentialFileReadWriteStage(gm, control, response, 
 									     fileDataToSave, fileDataToLoad, 
-									     paths);
+									     paths, durability);
 		
 		if (null!=stageProcessor) {
 			stageProcessor.process(gm,  readWriteStage);
@@ -110,9 +165,15 @@ public class FileGraphBuilder {
 				Pipe<BlockStorageReceiveSchema> doFinalReceive2 = BlockStorageReceiveSchema.instance.newPipe(7, largestBlock);
 				Pipe<BlockStorageXmitSchema> doFinalXmit2 = BlockStorageXmitSchema.instance.newPipe(7, largestBlock);
 				
-				BlockStorageStage.newInstance(gm, paths[i]+".tail", 
-						              new Pipe[] {doFinalXmit1, doFinalXmit2},
-						              new Pipe[] {doFinalReceive1, doFinalReceive2});
+				if (asyncBlockStorage) {
+					AsyncBlockStorageStage.newInstance(gm, paths[i]+".tail", 
+				                      new Pipe[] {doFinalXmit1, doFinalXmit2},
+				                      new Pipe[] {doFinalReceive1, doFinalReceive2});
+				} else {
+					BlockStorageStage.newInstance(gm, paths[i]+".tail", 
+							              new Pipe[] {doFinalXmit1, doFinalXmit2},
+							              new Pipe[] {doFinalReceive1, doFinalReceive2});
+				}
 				
 				RawDataCryptAESCBCPKCS5Stage crypt1 = new RawDataCryptAESCBCPKCS5Stage(gm, 
 						cypherBlock, true, cypherDataToSave[i], fileDataToSave[i],
@@ -136,7 +197,8 @@ public class FileGraphBuilder {
 			SequentialReplayerStage stage = new SequentialReplayerStage(gm, 
 					toStoreConsumer, toStoreProducer, 
 					fromStoreRelease, fromStoreConsumer, fromStoreProducer, 
-					control, response, cypherDataToSave, cypherDataToLoad, noiseProducer);
+					control, response, cypherDataToSave, cypherDataToLoad, noiseProducer,
+					compactionLiveRatio, compactionFileSize, compactionBytesPerRun);
 			
 			
 			if (null!=stageProcessor) {
@@ -147,7 +209,8 @@ public class FileGraphBuilder {
 			SequentialReplayerStage stage = new SequentialReplayerStage(gm, 
 					toStoreConsumer, toStoreProducer, 
 					fromStoreRelease, fromStoreConsumer, fromStoreProducer, 
-					control, response, fileDataToSave, fileDataToLoad, null);
+					control, response, fileDataToSave, fileDataToLoad, null,
+					compactionLiveRatio, compactionFileSize, compactionBytesPerRun);
 			
 			if (null!=stageProcessor) {
 				stageProcessor.process(gm,  stage);
@@ -156,4 +219,28 @@ public class FileGraphBuilder {
 		}
 	}
 
+	/**
+	 * Same requests as buildSequentialReplayer but stored in memory mapped segment files,
+	 * replay reads the segments directly and released space is recovered by deleting whole segments.
+	 */
+	public static SegmentLogReplayerStage buildSegmentLogReplayer(GraphManager gm,
+			Pipe<PersistedBlobLoadReleaseSchema>  fromStoreRelease,
+			Pipe<PersistedBlobLoadConsumerSchema> fromStoreConsumer,
+			Pipe<PersistedBlobLoadProducerSchema> fromStoreProducer,
+			Pipe<PersistedBlobStoreConsumerSchema> toStoreConsumer,
+			Pipe<PersistedBlobStoreProducerSchema> toStoreProducer,
+			File targetDirectory, int segmentSize, FileDurability durability,
+			PronghornStageProcessor stageProcessor) {
+
+		SegmentLogReplayerStage stage = new SegmentLogReplayerStage(gm,
+				toStoreConsumer, toStoreProducer,
+				fromStoreRelease, fromStoreConsumer, fromStoreProducer,
+				targetDirectory, segmentSize, durability);
+
+		if (null!=stageProcessor) {
+			stageProcessor.process(gm, stage);
+		}
+		return stage;
+	}
+
 }
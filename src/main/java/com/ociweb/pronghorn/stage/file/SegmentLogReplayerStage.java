@@ -0,0 +1,853 @@
+package com.ociweb.pronghorn.stage.file;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.pipe.FragmentWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobLoadConsumerSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobLoadProducerSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobLoadReleaseSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobStoreConsumerSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobStoreProducerSchema;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+/**
+ * Same store, release and replay requests as the SequentialReplayerStage but kept in memory mapped
+ * segment files of a fixed size. On startup the segments are scanned once to build an index from
+ * block id to segment and offset, replay then reads the mapped blocks directly.
+ *
+ * Releases are appended to the active segment. A segment file is deleted as soon as none of its blocks
+ * are live and none of its releases are still needed, so space is reclaimed without rewriting blocks.
+ *
+ * Blocks are kept as plain bytes, there is no noise or struct index as with the SequentialReplayerStage.
+ *
+ * @author Nathan Tippy
+ * @see <a href="https://github.com/objectcomputing/Pronghorn">Pronghorn</a>
+ */
+public class SegmentLogReplayerStage extends PronghornStage {
+
+	private static final Logger logger = LoggerFactory.getLogger(SegmentLogReplayerStage.class);
+
+	static final byte TYPE_END = 0;
+	static final byte TYPE_BLOCK = 1;
+	static final byte TYPE_RELEASE = 2;
+	//type, payload length, block id then the crc of length, id and payload
+	static final int HEADER_SIZE = 1+4+8+4;
+	private static final int CRC_OFFSET = 1+4+8;
+
+	private static final String PREFIX = "segment";
+	private static final String EXTENSION = ".log";
+
+	private static final int SIZE_OF_ACK_WRITE = Pipe.sizeOf(PersistedBlobLoadProducerSchema.instance, PersistedBlobLoadProducerSchema.MSG_ACKWRITE_11);
+	private static final int SIZE_OF_ACK_RELEASE = Pipe.sizeOf(PersistedBlobLoadReleaseSchema.instance, PersistedBlobLoadReleaseSchema.MSG_ACKRELEASE_10);
+
+	private final Pipe<PersistedBlobStoreConsumerSchema> storeConsumerRequests;
+	private final Pipe<PersistedBlobStoreProducerSchema> storeProducerRequests;
+	private final Pipe<PersistedBlobLoadReleaseSchema>  loadReleaseResponses;
+	private final Pipe<PersistedBlobLoadConsumerSchema> loadConsumerResponses;
+	private final Pipe<PersistedBlobLoadProducerSchema> loadProducerResponses;
+
+	private final File directory;
+	private final int segmentSize;
+	private final FileDurability durability;
+
+	static final class Segment {
+		final int seq;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer map;
+		final ByteBuffer window; //positioned for bulk reads and writes, map stays untouched
+		int end;
+		int liveBlocks;
+		int pins; //releases written here for blocks of other segments still on disk
+
+		//segments holding releases of blocks in this one, with a count for each
+		private int[] holders = new int[4];
+		private int[] holderCounts = new int[4];
+		private int holderCount;
+
+		Segment(int seq, File file, int size) throws IOException {
+			this.seq = seq;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.window = map.duplicate();
+		}
+
+		void addHolder(int holderSeq) {
+			if (holderCount>0 && holders[holderCount-1]==holderSeq) {
+				holderCounts[holderCount-1]++;
+				return;
+			}
+			if (holderCount==holders.length) {
+				holders = Arrays.copyOf(holders, holderCount*2);
+				holderCounts = Arrays.copyOf(holderCounts, holderCount*2);
+			}
+			holders[holderCount] = holderSeq;
+			holderCounts[holderCount++] = 1;
+		}
+
+		void resetCounts() {
+			liveBlocks = 0;
+			pins = 0;
+			holderCount = 0;
+		}
+
+		ByteBuffer window(int position, int length) {
+			((Buffer)window).limit(window.capacity());
+			((Buffer)window).position(position);
+			((Buffer)window).limit(position+length);
+			return window;
+		}
+	}
+
+	/**
+	 * Open addressing map from block id to location, 0 is never a location so it means missing.
+	 * Unlike the pipe hash tables entries can be removed, ids are reused by the producers.
+	 */
+	static final class IdTable {
+		private long[] keys;
+		private long[] values;
+		private int mask;
+		private int size;
+
+		IdTable(int bits) {
+			keys = new long[1<<bits];
+			values = new long[1<<bits];
+			mask = (1<<bits)-1;
+		}
+
+		private int slot(long key) {
+			return (int)((key*0x9E3779B97F4A7C15L)>>>32) & mask;
+		}
+
+		long get(long key) {
+			int i = slot(key);
+			while (0!=values[i]) {
+				if (keys[i]==key) {
+					return values[i];
+				}
+				i = (i+1) & mask;
+			}
+			return 0;
+		}
+
+		/**
+		 * @return the location replaced or 0 if the id was not found
+		 */
+		long put(long key, long value) {
+			assert(0!=value);
+			if ((size+1)*2 > values.length) {
+				grow();
+			}
+			int i = slot(key);
+			while (0!=values[i]) {
+				if (keys[i]==key) {
+					long old = values[i];
+					values[i] = value;
+					return old;
+				}
+				i = (i+1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			size++;
+			return 0;
+		}
+
+		void remove(long key) {
+			int i = slot(key);
+			while (0!=values[i]) {
+				if (keys[i]==key) {
+					values[i] = 0;
+					size--;
+					//move back any later entries of this run which could no longer be found
+					int j = i;
+					while (0!=values[j = (j+1) & mask]) {
+						int home = slot(keys[j]);
+						if (((j-home)&mask) >= ((j-i)&mask)) {
+							keys[i] = keys[j];
+							values[i] = values[j];
+							values[j] = 0;
+							i = j;
+						}
+					}
+					return;
+				}
+				i = (i+1) & mask;
+			}
+		}
+
+		int size() {
+			return size;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = new long[oldKeys.length*2];
+			values = new long[oldValues.length*2];
+			mask = keys.length-1;
+			size = 0;
+			int i = oldKeys.length;
+			while (--i>=0) {
+				if (0!=oldValues[i]) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+	}
+
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private Segment active;
+	private int nextSeq = 1; //location 0 is never used so it can mean missing
+
+	//only live blocks, an id is removed once released
+	private IdTable index;
+	private final CRC32 crc = new CRC32();
+	private byte[] crcScratch;
+
+	private boolean replaying;
+	private int replayIdx;
+	private int replayPos;
+	private byte[] scratch;
+
+	//group commit, acks held back until the force covering them
+	private long[] pendingWrites;
+	private int pendingWriteCount;
+	private long[] pendingReleases;
+	private int pendingReleaseCount;
+	private long unsyncedBytes;
+	private long firstUnsyncedNS;
+
+	private boolean shutdownInProgress;
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param storeConsumerRequests _in_ Release, replay and clear requests.
+	 * @param storeProducerRequests _in_ Blocks to be stored.
+	 * @param loadReleaseResponses _out_ Ack for each release once it is durable.
+	 * @param loadConsumerResponses _out_ Replayed blocks.
+	 * @param loadProducerResponses _out_ Ack for each block once it is durable.
+	 * @param directory holds the segment files, created if missing
+	 * @param segmentSize size of new segment files, must hold the largest block
+	 * @param durability when writes are forced to the device
+	 */
+	public SegmentLogReplayerStage(GraphManager graphManager,
+			Pipe<PersistedBlobStoreConsumerSchema> storeConsumerRequests,
+			Pipe<PersistedBlobStoreProducerSchema> storeProducerRequests,
+			Pipe<PersistedBlobLoadReleaseSchema>  loadReleaseResponses,
+			Pipe<PersistedBlobLoadConsumerSchema> loadConsumerResponses,
+			Pipe<PersistedBlobLoadProducerSchema> loadProducerResponses,
+			File directory, int segmentSize, FileDurability durability) {
+
+		super(graphManager, join(storeConsumerRequests, storeProducerRequests),
+				            join(loadReleaseResponses, loadConsumerResponses, loadProducerResponses));
+
+		this.storeConsumerRequests = storeConsumerRequests;
+		this.storeProducerRequests = storeProducerRequests;
+		this.loadReleaseResponses = loadReleaseResponses;
+		this.loadConsumerResponses = loadConsumerResponses;
+		this.loadProducerResponses = loadProducerResponses;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.durability = durability;
+
+		if (segmentSize < HEADER_SIZE+storeProducerRequests.maxVarLen) {
+			throw new UnsupportedOperationException("segment size must be larger than the largest block of "+storeProducerRequests.maxVarLen);
+		}
+
+		GraphManager.addNota(graphManager, GraphManager.DOT_BACKGROUND, "lemonchiffon3", this);
+	}
+
+	@Override
+	public void startup() {
+
+		scratch = new byte[loadConsumerResponses.maxVarLen];
+		crcScratch = new byte[1<<12];
+		if (FileDurability.GROUP_COMMIT == durability) {
+			pendingWrites = new long[Math.max(1, loadProducerResponses.sizeOfSlabRing/SIZE_OF_ACK_WRITE)];
+			pendingReleases = new long[Math.max(1, loadReleaseResponses.sizeOfSlabRing/SIZE_OF_ACK_RELEASE)];
+		}
+
+		directory.mkdirs();
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(EXTENSION);
+			}
+		});
+		if (null==files) {
+			throw new RuntimeException("unable to list "+directory);
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Integer.compare(sequence(a), sequence(b));
+			}
+		});
+
+		try {
+			for(int i=0; i<files.length; i++) {
+				int seq = sequence(files[i]);
+				segments.add(new Segment(seq, files[i], (int)files[i].length()));
+				nextSeq = seq+1;
+			}
+			if (segments.isEmpty()) {
+				active = openSegment();
+			} else {
+				active = segments.get(segments.size()-1);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		long start = System.nanoTime();
+		buildIndex();
+		reclaimSegments();
+		logger.trace("indexed {} segments in {} ms", segments.size(), (System.nanoTime()-start)/1_000_000);
+	}
+
+	private static int sequence(File file) {
+		String name = file.getName();
+		return Integer.parseInt(name.substring(PREFIX.length(), name.length()-EXTENSION.length()));
+	}
+
+	private Segment openSegment() throws IOException {
+		int seq = nextSeq++;
+		StringBuilder name = new StringBuilder(PREFIX);
+		String digits = Integer.toString(seq);
+		int pad = 10-digits.length();
+		while (--pad>=0) {
+			name.append('0');
+		}
+		name.append(digits).append(EXTENSION);
+
+		Segment segment = new Segment(seq, new File(directory, name.toString()), segmentSize);
+		segments.add(segment);
+		return segment;
+	}
+
+	private Segment findSegment(int seq) {
+		int low = 0;
+		int high = segments.size()-1;
+		while (low<=high) {
+			int mid = (low+high)>>>1;
+			int midSeq = segments.get(mid).seq;
+			if (midSeq<seq) {
+				low = mid+1;
+			} else if (midSeq>seq) {
+				high = mid-1;
+			} else {
+				return segments.get(mid);
+			}
+		}
+		return null;
+	}
+
+	///////////////////////
+	//index
+	///////////////////////
+
+	private void buildIndex() {
+		index = new IdTable(15);
+		int s = segments.size();
+		for(int i=0; i<s; i++) {
+			Segment segment = segments.get(i);
+			segment.resetCounts();
+			segment.end = scan(segment);
+		}
+	}
+
+	/**
+	 * Records every block and release found in the segment.
+	 * @return position after the last whole record
+	 */
+	private int scan(Segment segment) {
+		MappedByteBuffer map = segment.map;
+		int limit = map.capacity();
+		int pos = 0;
+		while (pos+HEADER_SIZE <= limit) {
+			byte type = map.get(pos);
+			if (TYPE_END == type) {
+				break;
+			}
+			int len = map.getInt(pos+1);
+			long id = map.getLong(pos+5);
+			if (TYPE_BLOCK == type && len>=0 && pos+HEADER_SIZE+len <= limit
+				&& map.getInt(pos+CRC_OFFSET) == checksum(segment, pos, len)) {
+				recordBlock(id, segment, pos);
+				pos += HEADER_SIZE+len;
+			} else if (TYPE_RELEASE == type && 0==len
+					   && map.getInt(pos+CRC_OFFSET) == checksum(segment, pos, 0)) {
+				recordRelease(id, segment);
+				pos += HEADER_SIZE;
+			} else {
+				//pages of a mapped file may reach the disk in any order so a torn
+				//record is only found by its crc, new records will replace it
+				logger.warn("segment {} has a torn or corrupt record at {}, the records after it are ignored", segment.file, pos);
+				//cleared so no older record after this point can reappear once new records are written over it
+				int p = limit;
+				while (--p>=pos) {
+					map.put(p, TYPE_END);
+				}
+				break;
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Crc of the length, id and payload of the record at pos, read back from the mapped segment.
+	 * The crc field itself sits between the id and the payload so it is stepped over.
+	 */
+	private int checksum(Segment segment, int pos, int len) {
+		crc.reset();
+		updateChecksum(segment, pos+1, CRC_OFFSET-1);
+		updateChecksum(segment, pos+HEADER_SIZE, len);
+		return (int)crc.getValue();
+	}
+
+	private void updateChecksum(Segment segment, int position, int remaining) {
+		while (remaining>0) {
+			int count = Math.min(remaining, crcScratch.length);
+			segment.window(position, count).get(crcScratch, 0, count);
+			crc.update(crcScratch, 0, count);
+			position += count;
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * @return segment holding the older copy of this id which is no longer live, or null
+	 */
+	private Segment recordBlock(long id, Segment segment, int pos) {
+		long old = index.put(id, (((long)segment.seq)<<32) | pos);
+		segment.liveBlocks++;
+		if (0!=old) {
+			//id was stored again before it was released, the older block is replaced
+			Segment previous = findSegment((int)(old>>>32));
+			if (null!=previous) {
+				previous.liveBlocks--;
+			}
+			return previous;
+		}
+		return null;
+	}
+
+	private Segment liveSegment(long id) {
+		long location = index.get(id);
+		if (0==location) {
+			return null;
+		}
+		return findSegment((int)(location>>>32)); //null once the segment is deleted
+	}
+
+	/**
+	 * @return segment which held the block or null if it was not live
+	 */
+	private Segment recordRelease(long id, Segment holder) {
+		Segment target = liveSegment(id);
+		if (null!=target) {
+			//removed so the id can be stored again
+			index.remove(id);
+			target.liveBlocks--;
+			if (target!=holder) {
+				//this release must be kept until the target is gone
+				holder.pins++;
+				target.addHolder(holder.seq);
+			}
+		}
+		return target;
+	}
+
+	private void reclaimSegments() {
+		boolean found;
+		do {
+			found = false;
+			int i = segments.size();
+			while (--i>=0) {
+				Segment segment = segments.get(i);
+				if (segment!=active && 0==segment.liveBlocks && 0==segment.pins) {
+					deleteSegment(i);
+					found = true;
+				}
+			}
+		} while (found);
+	}
+
+	private void deleteSegment(int i) {
+		Segment segment = segments.remove(i);
+		if (replaying) {
+			//keep the replay on the same segment, or start the next one if it was the one being read
+			if (i<replayIdx) {
+				replayIdx--;
+			} else if (i==replayIdx) {
+				replayPos = 0;
+			}
+		}
+		int h = segment.holderCount;
+		while (--h>=0) {
+			Segment holder = findSegment(segment.holders[h]);
+			if (null!=holder) {
+				holder.pins -= segment.holderCounts[h];
+			}
+		}
+		close(segment);
+		if (!segment.file.delete()) {
+			logger.warn("unable to delete segment {}", segment.file);
+		}
+	}
+
+	private void close(Segment segment) {
+		try {
+			segment.raf.close();
+		} catch (IOException e) {
+			logger.warn("unable to close segment {}", segment.file, e);
+		}
+		//closing the file does not release the mapping, without this it is held until gc
+		unmap(segment.map);
+	}
+
+	/**
+	 * Frees the mapping now, the buffer must not be used again. There is no public API for this so
+	 * the JDK internals are used when they can be reached, otherwise it is left for the gc.
+	 */
+	private static void unmap(MappedByteBuffer map) {
+		try {
+			//Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), map);
+			return;
+		} catch (NoSuchMethodException e) {
+			//Java 8 and earlier below
+		} catch (Exception e) {
+			logger.trace("unable to unmap segment", e);
+			return;
+		}
+		try {
+			Method cleanerMethod = map.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(map);
+			if (null!=cleaner) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			logger.trace("unable to unmap segment", e);
+		}
+	}
+
+	///////////////////////
+	//writes
+	///////////////////////
+
+	private void ensureRoom(int length) {
+		if (active.end+length > active.map.capacity()) {
+			if (FileDurability.GROUP_COMMIT == durability) {
+				//pending acks may cover this segment
+				active.map.force();
+			}
+			try {
+				active = openSegment();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			reclaimSegments();
+		}
+	}
+
+	private void storeBlock(long id, int meta, int len) {
+		len = Math.max(0, len);
+		ensureRoom(HEADER_SIZE+len);
+		int pos = active.end;
+		MappedByteBuffer map = active.map;
+		map.putInt(pos+1, len);
+		map.putLong(pos+5, id);
+		ByteBuffer target = active.window(pos+HEADER_SIZE, len);
+		target.put(Pipe.wrappedBlobReadingRingA(storeProducerRequests, meta, len));
+		target.put(Pipe.wrappedBlobReadingRingB(storeProducerRequests, meta, len));
+		map.putInt(pos+CRC_OFFSET, checksum(active, pos, len));
+		//type is written last so a partial record usually reads as the end, the crc
+		//catches the rest since the pages are not written to disk in order
+		map.put(pos, TYPE_BLOCK);
+
+		Segment previous = recordBlock(id, active, pos);
+		active.end = pos+HEADER_SIZE+len;
+		recordUnsynced(HEADER_SIZE+len);
+		if (null!=previous && previous!=active && 0==previous.liveBlocks && 0==previous.pins) {
+			reclaimSegments();
+		}
+	}
+
+	private void storeRelease(long id) {
+		if (null==liveSegment(id)) {
+			return;//unknown or already released
+		}
+		ensureRoom(HEADER_SIZE);
+		int pos = active.end;
+		MappedByteBuffer map = active.map;
+		map.putInt(pos+1, 0);
+		map.putLong(pos+5, id);
+		map.putInt(pos+CRC_OFFSET, checksum(active, pos, 0));
+		map.put(pos, TYPE_RELEASE);
+		active.end = pos+HEADER_SIZE;
+		recordUnsynced(HEADER_SIZE);
+
+		Segment target = recordRelease(id, active);
+		if (target!=active && 0==target.liveBlocks && 0==target.pins) {
+			reclaimSegments();
+		}
+	}
+
+	private void clearAllStoredData() {
+		int i = segments.size();
+		while (--i>=0) {
+			deleteSegment(i);
+		}
+		try {
+			active = openSegment();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		buildIndex();
+	}
+
+	private void recordUnsynced(int bytes) {
+		if (0==unsyncedBytes && 0==pendingWriteCount && 0==pendingReleaseCount) {
+			firstUnsyncedNS = System.nanoTime();
+		}
+		unsyncedBytes += bytes;
+	}
+
+	///////////////////////
+	//acks
+	///////////////////////
+
+	private boolean hasRoomForAck(Pipe<?> pipe, int pendingCount, long[] pending) {
+		return FileDurability.GROUP_COMMIT == durability ? pendingCount<pending.length : Pipe.hasRoomForWrite(pipe);
+	}
+
+	private void ackWrite(long id) {
+		if (FileDurability.GROUP_COMMIT == durability) {
+			pendingWrites[pendingWriteCount++] = id;
+		} else {
+			if (FileDurability.SYNC_EACH_WRITE == durability) {
+				active.map.force();
+			}
+			Pipe.presumeRoomForWrite(loadProducerResponses);
+			FragmentWriter.writeL(loadProducerResponses, PersistedBlobLoadProducerSchema.MSG_ACKWRITE_11, id);
+		}
+	}
+
+	private void ackRelease(long id) {
+		if (FileDurability.GROUP_COMMIT == durability) {
+			pendingReleases[pendingReleaseCount++] = id;
+		} else {
+			if (FileDurability.SYNC_EACH_WRITE == durability) {
+				active.map.force();
+			}
+			Pipe.presumeRoomForWrite(loadReleaseResponses);
+			FragmentWriter.writeL(loadReleaseResponses, PersistedBlobLoadReleaseSchema.MSG_ACKRELEASE_10, id);
+		}
+	}
+
+	/**
+	 * One force of the active segment for every write and release since the last one, then their acks.
+	 * @return true if no acks are waiting
+	 */
+	private boolean groupCommit(boolean required) {
+		if (0==pendingWriteCount && 0==pendingReleaseCount) {
+			return true;
+		}
+		if (!required && !FileDurability.isGroupCommitDue(unsyncedBytes, firstUnsyncedNS, System.nanoTime())) {
+			return false;
+		}
+		if (!Pipe.hasRoomForWrite(loadProducerResponses, pendingWriteCount*SIZE_OF_ACK_WRITE)
+			|| !Pipe.hasRoomForWrite(loadReleaseResponses, pendingReleaseCount*SIZE_OF_ACK_RELEASE)) {
+			return false;
+		}
+		active.map.force();
+		for(int i=0; i<pendingWriteCount; i++) {
+			FragmentWriter.writeL(loadProducerResponses, PersistedBlobLoadProducerSchema.MSG_ACKWRITE_11, pendingWrites[i]);
+		}
+		for(int i=0; i<pendingReleaseCount; i++) {
+			FragmentWriter.writeL(loadReleaseResponses, PersistedBlobLoadReleaseSchema.MSG_ACKRELEASE_10, pendingReleases[i]);
+		}
+		pendingWriteCount = 0;
+		pendingReleaseCount = 0;
+		unsyncedBytes = 0;
+		return true;
+	}
+
+	///////////////////////
+	//stage
+	///////////////////////
+
+	@Override
+	public void run() {
+
+		if (shutdownInProgress) {
+			if (groupCommit(true)
+				&& Pipe.hasRoomForWrite(loadConsumerResponses, Pipe.EOF_SIZE)
+				&& Pipe.hasRoomForWrite(loadProducerResponses, Pipe.EOF_SIZE)
+				&& Pipe.hasRoomForWrite(loadReleaseResponses, Pipe.EOF_SIZE)) {
+
+				Pipe.publishEOF(loadConsumerResponses);
+				Pipe.publishEOF(loadProducerResponses);
+				Pipe.publishEOF(loadReleaseResponses);
+				requestShutdown();
+			}
+			return;
+		}
+
+		boolean didWork;
+		do {
+			didWork = false;
+			if (0!=pendingWriteCount || 0!=pendingReleaseCount) {
+				didWork |= groupCommit(false);
+			}
+			if (replaying) {
+				didWork |= replayPhase();
+			} else {
+				didWork |= writePhase();
+				didWork |= consumerPhase();
+			}
+		} while (didWork && !shutdownInProgress);
+	}
+
+	private boolean writePhase() {
+		boolean didWork = false;
+		while (Pipe.hasContentToRead(storeProducerRequests)
+			   && hasRoomForAck(loadProducerResponses, pendingWriteCount, pendingWrites)) {
+
+			didWork = true;
+			int msgIdx = Pipe.takeMsgIdx(storeProducerRequests);
+			if (PersistedBlobStoreProducerSchema.MSG_BLOCK_1 == msgIdx) {
+				long id = Pipe.takeLong(storeProducerRequests);
+				int meta = Pipe.takeByteArrayMetaData(storeProducerRequests);
+				int len = Pipe.takeByteArrayLength(storeProducerRequests);
+				storeBlock(id, meta, len);
+				ackWrite(id);
+			}
+			//on -1 nothing to do, shutdown is requested by the consumer side
+			Pipe.confirmLowLevelRead(storeProducerRequests, Pipe.sizeOf(PersistedBlobStoreProducerSchema.instance, msgIdx));
+			Pipe.releaseReadLock(storeProducerRequests);
+		}
+		return didWork;
+	}
+
+	private boolean consumerPhase() {
+		boolean didWork = false;
+		while (!replaying && !shutdownInProgress && Pipe.hasContentToRead(storeConsumerRequests)) {
+
+			if (Pipe.peekMsg(storeConsumerRequests, PersistedBlobStoreConsumerSchema.MSG_RELEASE_7)) {
+				if (!hasRoomForAck(loadReleaseResponses, pendingReleaseCount, pendingReleases)) {
+					return didWork;
+				}
+			} else if (!groupCommit(true) || !Pipe.hasRoomForWrite(loadConsumerResponses)) {
+				//replay, clear and shutdown come after everything before them is durable
+				return didWork;
+			}
+
+			didWork = true;
+			int msgIdx = Pipe.takeMsgIdx(storeConsumerRequests);
+			switch (msgIdx) {
+				case PersistedBlobStoreConsumerSchema.MSG_RELEASE_7:
+					long id = Pipe.takeLong(storeConsumerRequests);
+					storeRelease(id);
+					ackRelease(id);
+				break;
+				case PersistedBlobStoreConsumerSchema.MSG_REQUESTREPLAY_6:
+					Pipe.presumeRoomForWrite(loadConsumerResponses);
+					FragmentWriter.write(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_BEGINREPLAY_8);
+					replaying = true;
+					replayIdx = 0;
+					replayPos = 0;
+				break;
+				case PersistedBlobStoreConsumerSchema.MSG_CLEAR_12:
+					clearAllStoredData();
+				break;
+				case -1:
+					shutdownInProgress = true;
+				break;
+			}
+			Pipe.confirmLowLevelRead(storeConsumerRequests, Pipe.sizeOf(PersistedBlobStoreConsumerSchema.instance, msgIdx));
+			Pipe.releaseReadLock(storeConsumerRequests);
+		}
+		return didWork;
+	}
+
+	private boolean replayPhase() {
+		boolean didWork = false;
+		while (replaying && Pipe.hasRoomForWrite(loadConsumerResponses)) {
+			didWork = true;
+
+			if (replayIdx >= segments.size()) {
+				FragmentWriter.write(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_FINISHREPLAY_9);
+				replaying = false;
+				break;
+			}
+			Segment segment = segments.get(replayIdx);
+			if (replayPos >= segment.end) {
+				replayIdx++;
+				replayPos = 0;
+				continue;
+			}
+
+			MappedByteBuffer map = segment.map;
+			byte type = map.get(replayPos);
+			int len = map.getInt(replayPos+1);
+			long id = map.getLong(replayPos+5);
+
+			if (TYPE_BLOCK == type
+				&& index.get(id) == ((((long)segment.seq)<<32) | replayPos)) {
+
+				assert(len<=scratch.length) : "block is larger than the replay pipe";
+				segment.window(replayPos+HEADER_SIZE, len).get(scratch, 0, len);
+
+				int size = Pipe.addMsgIdx(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_BLOCK_1);
+				Pipe.addLongValue(id, loadConsumerResponses);
+				Pipe.addByteArray(scratch, 0, len, loadConsumerResponses);
+				Pipe.confirmLowLevelWrite(loadConsumerResponses, size);
+				Pipe.publishWrites(loadConsumerResponses);
+			}
+			replayPos += (TYPE_BLOCK == type) ? HEADER_SIZE+len : HEADER_SIZE;
+		}
+		return didWork;
+	}
+
+	@Override
+	public void shutdown() {
+		int i = segments.size();
+		while (--i>=0) {
+			Segment segment = segments.get(i);
+			if (FileDurability.SYNC_EACH_WRITE != durability) {
+				segment.map.force();
+			}
+			close(segment);
+		}
+		segments.clear();
+	}
+
+}
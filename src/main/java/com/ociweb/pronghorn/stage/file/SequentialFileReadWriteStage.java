@@ -34,6 +34,7 @@ import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 public class SequentialFileReadWriteStage extends PronghornStage {
 
     private static final int SIZE = RawDataSchema.FROM.fragDataSize[0];
+    private static final int SIZE_OF_WRITE_ACK = Pipe.sizeOf(SequentialRespSchema.instance, SequentialRespSchema.MSG_WRITEACK_3);
         
     private static final Logger logger = LoggerFactory.getLogger(SequentialFileReadWriteStage.class);
     
@@ -61,6 +62,13 @@ public class SequentialFileReadWriteStage extends PronghornStage {
     private FileSystemProvider provider;
     private FileSystem fileSystem;
     private Set<OpenOption> options;
+    
+    private final FileDurability durability;
+    //group commit, acks held back until the sync covering their write
+    private long[][] pendingAcks;
+    private int[] pendingCount;
+    private long[] unsyncedBytes;
+    private long[] firstUnsyncedNS;
 
 	/**
 	 *
@@ -77,9 +85,30 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 	    						 Pipe<RawDataSchema>[] input,
 	    		                 Pipe<RawDataSchema>[] output, 
 	    		                 String[] paths) {
+    	this(graphManager, control, response, input, output, paths, FileDurability.SYNC_EACH_WRITE);
+    }
+    
+	/**
+	 *
+	 * @param graphManager
+	 * @param control _in_ Schemas defining sequential control.
+	 * @param response _out_ Schemas defining sequential response, write acks are sent once the write is durable.
+	 * @param input _in_ Data being read.
+	 * @param output _out_ Data being written.
+	 * @param paths
+	 * @param durability when writes are forced to the device
+	 */
+    public SequentialFileReadWriteStage(GraphManager graphManager,
+	    						 Pipe<SequentialCtlSchema>[] control,
+	    						 Pipe<SequentialRespSchema>[] response,
+	    						 Pipe<RawDataSchema>[] input,
+	    		                 Pipe<RawDataSchema>[] output, 
+	    		                 String[] paths,
+	    		                 FileDurability durability) {
     	
         super(graphManager, join(control, input), join(response, output));
         
+        this.durability = durability;
         this.paths = paths;
         this.output = output;
         this.input = input;
@@ -122,8 +151,20 @@ public class SequentialFileReadWriteStage extends PronghornStage {
     	this.fileSystem = FileSystems.getDefault();
         this.provider = fileSystem.provider();
         
+        this.pendingAcks = new long[output.length][];
+        this.pendingCount = new int[output.length];
+        this.unsyncedBytes = new long[output.length];
+        this.firstUnsyncedNS = new long[output.length];
+        if (FileDurability.GROUP_COMMIT == durability) {
+        	int p = output.length;
+        	while (--p>=0) {
+        		//never hold more acks than the response pipe can take at once
+        		pendingAcks[p] = new long[Math.max(1, response[p].sizeOfSlabRing/SIZE_OF_WRITE_ACK)];
+        	}
+        }
+        
         this.options = new HashSet<OpenOption>();
-        this.options.add(StandardOpenOption.SYNC);
+        durability.addOpenOptions(this.options);
         this.options.add(StandardOpenOption.CREATE);
        	this.options.add(StandardOpenOption.WRITE);
         this.options.add(StandardOpenOption.READ);
@@ -165,6 +206,7 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 	    		if (shutdownInProgress[i]>0) {
 	    				    		
 	    			if (shutdownInProgress[i] == 1 &&
+	    				groupCommit(i, true) &&
 	    			    Pipe.hasRoomForWrite(output[i], Pipe.EOF_SIZE) && 
 	    			    Pipe.hasRoomForWrite(response[i], Pipe.EOF_SIZE)) {
 	    				
@@ -173,6 +215,9 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 	    				
 	    				try {
 	            			if (null != fileChannel[i]) {
+	            				if (FileDurability.OS_BUFFERED == durability) {
+	            					fileChannel[i].force(false);
+	            				}
 	            				fileChannel[i].close();
 	            			}        			
 	            		} catch (IOException e) {
@@ -187,6 +232,10 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 	    				shutdownInProgress[i] = 3;//only send EOF once
 	    			}
 	    		} else {
+	    			
+	    			if (0!=pendingCount[i] || 0!=unsyncedBytes[i]) {
+	    				didWork |= groupCommit(i, false);
+	    			}
 	    		
 		    		//each of the possible activities will only require one response
 		    		if (Pipe.hasRoomForWrite(response[i])) {
@@ -219,6 +268,7 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 		if ((-1==idToWriteToFile[idx]) 
 				&& Pipe.hasContentToRead(localControl)
 				&& Pipe.hasRoomForWrite(output[idx], READ_CTL_REQUIRED_SIZE)
+				&& isReadyForControl(idx, localControl)
 				) {
 		    int msgIdx = Pipe.takeMsgIdx(localControl);
 		    		
@@ -241,6 +291,8 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 		        	if (MODE_WRITE == mode[idx]) {
 		        		//due to the above logic clear is only called after the write pipe is empty.
 		        		positionToBeginning(idx);
+		        		//old data past the new writes would otherwise be read back by the next replay
+		        		truncate(idx);
 		        		//no more data should be written until this gets consumed
 		        		SequentialRespSchema.publishClearAck(response[idx]);		        		
 		        	} else {
@@ -282,6 +334,57 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 		return continueWithIdx;
 	}
 
+	private boolean isReadyForControl(int idx, Pipe<SequentialCtlSchema> localControl) {
+		if (0 == pendingCount[idx]) {
+			return true;
+		}
+		if (pendingCount[idx] < pendingAcks[idx].length
+			&& Pipe.peekMsg(localControl, SequentialCtlSchema.MSG_IDTOSAVE_4)) {
+			return true;
+		}
+		//replay, clear, meta and shutdown must follow every earlier write to the device
+		return groupCommit(idx, true) && Pipe.hasRoomForWrite(response[idx]);
+	}
+
+	/**
+	 * Forces the file once for all the writes since the last sync then sends their acks.
+	 * 
+	 * @return true if nothing is left waiting on a sync
+	 */
+	private boolean groupCommit(int idx, boolean required) {
+		if (0 == pendingCount[idx] && 0 == unsyncedBytes[idx]) {
+			return true;
+		}
+		if (!required && !FileDurability.isGroupCommitDue(unsyncedBytes[idx], firstUnsyncedNS[idx], System.nanoTime())) {
+			return false;
+		}
+		if (!Pipe.hasRoomForWrite(response[idx], pendingCount[idx]*SIZE_OF_WRITE_ACK)) {
+			return false;
+		}
+		try {
+			fileChannel[idx].force(false);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		long[] acks = pendingAcks[idx];
+		int count = pendingCount[idx];
+		for(int a=0; a<count; a++) {
+			SequentialRespSchema.publishWriteAck(response[idx], acks[a]);
+		}
+		pendingCount[idx] = 0;
+		unsyncedBytes[idx] = 0;
+		return true;
+	}
+
+	private void recordUnsynced(int idx, long bytes) {
+		if (FileDurability.GROUP_COMMIT == durability) {
+			if (0 == pendingCount[idx] && 0 == unsyncedBytes[idx]) {
+				firstUnsyncedNS[idx] = System.nanoTime();
+			}
+			unsyncedBytes[idx] += bytes;
+		}
+	}
+
 	private void positionToBeginning(int idx) {
 		try {
 			fileChannel[idx].position(0);
@@ -300,6 +403,14 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 		
 	}
 
+	private void truncate(int idx) {
+		try {
+			fileChannel[idx].truncate(0);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private boolean readProcessing(int idx) {
 		////////////////////////////////////
 		//reading from the file and write out to the stream
@@ -414,7 +525,7 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 	        if (hasDataToWrite(idx)) {
 	            try {
 	                
-	            	localFileChannel.write(buffA[idx]);
+	            	recordUnsynced(idx, localFileChannel.write(buffA[idx]));
 	                if (0==buffA[idx].remaining()) {
 	                    buffA[idx] = null;
 	                } else {   	//do not write B because we did not finish A
@@ -428,7 +539,7 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 	        
 	        if (null!=buffB[idx]) {
 	            try {                
-	            	localFileChannel.write(buffB[idx]);
+	            	recordUnsynced(idx, localFileChannel.write(buffB[idx]));
 	                if (0==buffB[idx].remaining()) {
 	                    buffB[idx] = null;
 	                }
@@ -445,7 +556,13 @@ public class SequentialFileReadWriteStage extends PronghornStage {
 	private boolean ackFinishedWrite(int idx) {
 		if (-1 != idToWriteToFile[idx]) {
 			//logger.info("finished write of block {} ", idToWriteToFile[idx]);
-			SequentialRespSchema.publishWriteAck(response[idx], idToWriteToFile[idx]);
+			if (FileDurability.GROUP_COMMIT == durability) {
+				//room was reserved by isReadyForControl before this id was taken
+				recordUnsynced(idx, 0);
+				pendingAcks[idx][pendingCount[idx]++] = idToWriteToFile[idx];
+			} else {
+				SequentialRespSchema.publishWriteAck(response[idx], idToWriteToFile[idx]);
+			}
 			idToWriteToFile[idx] = -1;
 			return true;
 		}
@@ -1,5 +1,8 @@
 package com.ociweb.pronghorn.stage.file;
 
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,17 +45,74 @@ public class SequentialReplayerStage extends PronghornStage {
 	private final Pipe<RawDataSchema>[] fileOutput;
 	private final Pipe<RawDataSchema>[] fileInput;
 	
+	//compaction starts once the active file is past its size limit and no more than this part of it is live
+	public static final double DEFAULT_COMPACTION_LIVE_RATIO = 0.5;
+	//bytes of the old file copied by each call to run, so writes are never held up for long
+	public static final int DEFAULT_COMPACTION_BYTES_PER_RUN = 1<<16;
+	//most releases remembered for the next checkpoint, past this the release file is not trimmed
+	public static int checkpointReleaseLimit = 1<<20;
+	
+	//each block is stored as [version][id][length][payload][crc of all before it]
+	static final byte RECORD_VERSION = 1;
+	static final int RECORD_HEADER_SIZE = 1+8+4;
+	static final int RECORD_CRC_SIZE = 4;
+	
+	private static final int RECORD_INCOMPLETE = -1;
+	private static final int RECORD_CORRUPT = -2;
+	
+	//acks for checkpoint writes carry this id and are not passed on
+	private static final long CHECKPOINT_ID = -2;
+	//acks for blocks copied by compaction carry this id, the producer already had the ack for that block
+	private static final long COPY_ID = -3;
+	
+	private final CRC32 crc = new CRC32();
+	private long recordId;
+	private boolean recordIncomplete;
+	private boolean tornTail;
+	private boolean repairNeeded;
+	private int pendingBytes;
+	
+	//releases since compaction began, written again as the checkpoint once it ends
+	private long[] recentReleases = new long[64];
+	private int recentReleaseCount;
+	private boolean recentReleasesOverflow;
+	private boolean checkpointing;
+	private int checkpointPos;
+	//release file is only cleared for the checkpoint once the old data file is cleared
+	private boolean checkpointCleared;
+	
+	//both data files held blocks at startup so a compaction was cut short, see beginRecovery
+	private boolean recovering;
+	private int recoveryScans;
+	//blocks already in the file the other one is merged into are not copied again
+	private boolean mergingRecovery;
+	private final long[] startupFileSize = new long[2];
+	
 	private LongHashSet mapSet;
-	private int activeFile;
 	private int waitCount;
 	
 	private final static byte MODE_WRITE = 0;
 	private final static byte MODE_READ_RELEASES = 1;
 	private final static byte MODE_READ_DATA = 2;
-	private final static byte MODE_COMPACT_READ_RELEASES = 3;
-	private final static byte MODE_COMPACT_READ_DATA = 4;
 			
 	private int mode = MODE_WRITE;
+	
+	//compaction runs along side MODE_WRITE
+	private final static byte COMPACT_NONE = 0;
+	private final static byte COMPACT_READ_RELEASES = 1;
+	private final static byte COMPACT_COPY = 2;
+	private final static byte COMPACT_SCAN = 3;
+	private final static byte COMPACT_CLEAR = 4;
+	
+	private int compactState = COMPACT_NONE;
+	private int compactFromIdx = -1;
+	private int compactBudget;
+	//the old file is only cleared once every copy made from it is durable
+	private int copiesInFlight;
+	//ids held by each data file, each release is only counted against the file holding that block
+	private final LongHashSet[] idsInFile = new LongHashSet[2];
+	private final int[] blocksInFile = new int[2];
+	private final int[] liveBlocksInFile = new int[2];
 		
 	private int activeIdx = -1;
 	private int requestsInFlight = 0;
@@ -64,7 +124,9 @@ public class SequentialReplayerStage extends PronghornStage {
 	
 	private byte clearInProgress = 0;
 	private boolean isDirty = true;
-	private int fileSizeLimit;
+	private final int fileSizeLimit;
+	private final double compactionLiveRatio;
+	private final int compactionBytesPerRun;
 	private int fileSizeWritten;
 	private long maxId = 0;
 	private final NoiseProducer noiseProducer;
@@ -103,6 +165,48 @@ public class SequentialReplayerStage extends PronghornStage {
 					
 					NoiseProducer noiseProducer	
 	            ) {
+		this(graphManager, storeConsumerRequests, storeProducerRequests,
+			 loadReleaseResponses, loadConsumerResponses, loadProducerResponses,
+			 fileControl, fileResponse, fileWriteData, fileReadData, noiseProducer,
+			 DEFAULT_COMPACTION_LIVE_RATIO, 0, DEFAULT_COMPACTION_BYTES_PER_RUN);
+	}
+
+	/**
+	 *
+	 * @param graphManager
+	 * @param storeConsumerRequests _in_
+	 * @param storeProducerRequests _in_
+	 * @param loadReleaseResponses _out_
+	 * @param loadConsumerResponses _out_
+	 * @param loadProducerResponses _out_
+	 * @param fileControl _out_
+	 * @param fileResponse _in_
+	 * @param fileWriteData _out_
+	 * @param fileReadData _in
+	 * @param noiseProducer
+	 * @param compactionLiveRatio compaction starts once no more than this part of the active file is live
+	 * @param compactionFileSize size limit of the active file, when 0 it is 10 times the largest blob ring
+	 * @param compactionBytesPerRun bytes of the old file copied by each run in addition to those written
+	 */
+	protected SequentialReplayerStage(GraphManager graphManager, 
+			
+		            Pipe<PersistedBlobStoreConsumerSchema> storeConsumerRequests, 
+		            Pipe<PersistedBlobStoreProducerSchema> storeProducerRequests, 
+		            
+		            Pipe<PersistedBlobLoadReleaseSchema>  loadReleaseResponses,
+		            Pipe<PersistedBlobLoadConsumerSchema> loadConsumerResponses,
+		            Pipe<PersistedBlobLoadProducerSchema> loadProducerResponses,
+		            
+					Pipe<SequentialCtlSchema>[] fileControl,//last file is the ack index file
+					Pipe<SequentialRespSchema>[] fileResponse,
+					Pipe<RawDataSchema>[] fileWriteData,
+					Pipe<RawDataSchema>[] fileReadData,
+					
+					NoiseProducer noiseProducer,
+					double compactionLiveRatio,
+					int compactionFileSize,
+					int compactionBytesPerRun
+	            ) {
 				
 		super(graphManager, join(join(fileResponse, storeConsumerRequests, storeProducerRequests),fileReadData),
 				            join(join(fileControl, loadReleaseResponses, loadConsumerResponses, loadProducerResponses),fileWriteData));
@@ -126,8 +230,11 @@ public class SequentialReplayerStage extends PronghornStage {
 		assert(fileWriteData.length == fileReadData.length);
 		assert(fileControl.length>0) : "no need to create since it is not used";
 		
-		this.fileSizeLimit = 10 * Math.max(storeProducerRequests.sizeOfBlobRing,
+		this.fileSizeLimit = compactionFileSize>0 ? compactionFileSize
+				             : 10 * Math.max(storeProducerRequests.sizeOfBlobRing,
 				            	    loadConsumerResponses.sizeOfBlobRing);
+		this.compactionLiveRatio = compactionLiveRatio;
+		this.compactionBytesPerRun = compactionBytesPerRun;
 	}
 
 	@Override 
@@ -147,6 +254,8 @@ public class SequentialReplayerStage extends PronghornStage {
 		
 		//will grow as needed
 		mapSet = new LongHashSet(15);
+		idsInFile[0] = new LongHashSet(15);
+		idsInFile[1] = new LongHashSet(15);
 		
 	}
 	
@@ -163,7 +272,7 @@ public class SequentialReplayerStage extends PronghornStage {
 		if (shutdownInProgress) {
 		
 			//only shutdown if we are not in the process of doing some non normal task.
-			if (MODE_WRITE == mode && requestsInFlight==0) {
+			if (MODE_WRITE == mode && isMaintenanceDone() && requestsInFlight==0) {
 			
 				int i = fileControl.length;			
 				while (--i >= 0) {
@@ -185,6 +294,7 @@ public class SequentialReplayerStage extends PronghornStage {
 			}
 		}
 		
+		compactBudget = compactionBytesPerRun;
 		boolean didWork;
 		do {
 			didWork = false;
@@ -193,15 +303,28 @@ public class SequentialReplayerStage extends PronghornStage {
 				fileResponseProcessing();				
 				
 				if (MODE_WRITE == mode) { //most common case
-					didWork |= writePhase();
+					if (recovering) {
+						//writes wait until it is known which file they go to
+						didWork |= recoveryPhase();
+					} else if (repairNeeded) {
+						//no writes may follow the torn tail so this is done first
+						didWork |= repairTornTail();
+					} else {
+						didWork |= writePhase();
+						if (COMPACT_NONE != compactState) {
+							//one slice at a time between the writes
+							didWork |= compactPhase();
+						} else if (checkpointing) {
+							didWork |= checkpointPhase();
+						}
+					}
 				} else if (MODE_READ_DATA == mode) { //second most common case
 					didWork |= replayPhase();					
-				} else if (MODE_COMPACT_READ_DATA == mode) { //third most common 
-					didWork |= compactDataPhase();					
 				} else if (MODE_READ_RELEASES == mode) { //only needed when dirty
-					didWork |= readReleasedBlockIdsPhase(MODE_READ_DATA);					
-				} else if (MODE_COMPACT_READ_RELEASES == mode) {  //only needed when dirty
-					didWork |= readReleasedBlockIdsPhase(MODE_COMPACT_READ_DATA);
+					didWork |= readReleasedBlockIdsPhase();
+					if (!isDirty) {
+						mode = MODE_READ_DATA;
+					}
 				}
 				
 			} else {
@@ -210,13 +333,12 @@ public class SequentialReplayerStage extends PronghornStage {
 		}while (didWork);
 	}
 	
-	private boolean readReleasedBlockIdsPhase(int nextMode) {
+	private boolean readReleasedBlockIdsPhase() {
 
-		assert(isDirty) : "only call when dirty";
 		boolean didWork = false;
 		Pipe<RawDataSchema> input = fileInput[fileInput.length-1];
 		
-	    while ( mode != nextMode && 
+	    while ( isDirty && 
 	    		Pipe.hasContentToRead(input)) {
 	    	
 	    	didWork = true;
@@ -235,18 +357,16 @@ public class SequentialReplayerStage extends PronghornStage {
 	        		}
 		        	if (endOfDataDetected) {
 		        		logger.trace("finished read of all releases");
-		        		isDirty = false;
 		        		//all the data  has been consumed go to next step.
-			        	mode = nextMode;
+		        		isDirty = false;
 		        	}
 		        	Pipe.confirmLowLevelRead(input, Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
 				        	
 		        break;
 		        case -1:
 		        	logger.trace("finished read of all releases");
-		        	isDirty = false;
 		            //all the data  has been consumed go to next step.
-		        	mode = nextMode;
+		        	isDirty = false;
 		        	Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);				    
 		        break;
 		    }
@@ -264,15 +384,56 @@ public class SequentialReplayerStage extends PronghornStage {
 		LongHashSet.clear(mapSet);
 	}
 	
-	private void recordReleaseId(long releasedId) {
+	/**
+	 * @return true if this block was not already released
+	 */
+	private boolean recordReleaseId(long releasedId) {
 		if (LongHashSet.isFull(mapSet)) {
 			mapSet = LongHashSet.doubleClone(mapSet);
 		}
-		LongHashSet.setItem(mapSet, releasedId);
+		return LongHashSet.setItem(mapSet, idKey(releasedId));
 	}
 	
 	private boolean isReleased(long fieldBlockId) {
-		return LongHashSet.hasItem(mapSet, fieldBlockId);
+		return LongHashSet.hasItem(mapSet, idKey(fieldBlockId));
+	}
+	
+	//zero marks an empty slot of the LongHashSet so block zero could not be held as is
+	private static long idKey(long blockId) {
+		return ~blockId;
+	}
+	
+	private void holdBlock(int idx, long blockId, boolean live) {
+		if (LongHashSet.isFull(idsInFile[idx])) {
+			idsInFile[idx] = LongHashSet.doubleClone(idsInFile[idx]);
+		}
+		LongHashSet.setItem(idsInFile[idx], idKey(blockId));
+		blocksInFile[idx]++;
+		if (live) {
+			liveBlocksInFile[idx]++;
+		}
+	}
+	
+	private boolean isHeld(int idx, long blockId) {
+		return LongHashSet.hasItem(idsInFile[idx], idKey(blockId));
+	}
+	
+	private void forgetBlocks(int idx) {
+		LongHashSet.clear(idsInFile[idx]);
+		blocksInFile[idx] = 0;
+		liveBlocksInFile[idx] = 0;
+	}
+	
+	private void countRelease(long releasedId) {
+		//while compacting a copied block is in both files, the new copy is the one kept
+		if (isHeld(activeIdx, releasedId)) {
+			liveBlocksInFile[activeIdx]--;
+		} else {
+			int otherIdx = 1&(activeIdx+1);
+			if (isHeld(otherIdx, releasedId)) {
+				liveBlocksInFile[otherIdx]--;
+			}
+		}
 	}
 
 	//////////////////////
@@ -294,6 +455,7 @@ public class SequentialReplayerStage extends PronghornStage {
 			    	case SequentialRespSchema.MSG_METARESPONSE_2:
 			    		long fieldSize = Pipe.takeLong(input);
 			    		long fieldDate = Pipe.takeLong(input);
+			    		startupFileSize[i] = fieldSize;
 			    	
 			    		//logger.info("meta response for {} field size {}, fielddate {} ",i,fieldSize,fieldDate);
 			    		
@@ -318,6 +480,9 @@ public class SequentialReplayerStage extends PronghornStage {
 			    				activeIdx = 0;//just pick zero.
 			    			}
 			    			assert(activeIdx>=0);
+			    			//compaction always clears the old file when done, so if both
+			    			//hold blocks it was cut short and they must be merged
+			    			recovering = startupFileSize[0]>0 && startupFileSize[1]>0;
 			    		}
 			    		assert(waitCount>=0) : "Bad response data detected";
 			    	break;
@@ -356,13 +521,17 @@ public class SequentialReplayerStage extends PronghornStage {
 						logger.info("got back a meta response but at this point we are not expecting one");
 					break;
 			        case SequentialRespSchema.MSG_WRITEACK_3:
-			        	
+			        	//only sent once the sync covering this write is done, see FileDurability
 			        	requestsInFlight--;
 			        	long ackId = Pipe.takeLong(input);
 			           	if (0==i || 1==i) {
-			           		Pipe.presumeRoomForWrite(loadProducerResponses);			           		
-							FragmentWriter.writeL(loadProducerResponses, PersistedBlobLoadProducerSchema.MSG_ACKWRITE_11, ackId);	
-			        	} else {
+			           		if (COPY_ID != ackId) {
+			           			Pipe.presumeRoomForWrite(loadProducerResponses);			           		
+			           			FragmentWriter.writeL(loadProducerResponses, PersistedBlobLoadProducerSchema.MSG_ACKWRITE_11, ackId);
+			           		} else {
+			           			copiesInFlight--;
+			           		}
+			        	} else if (CHECKPOINT_ID != ackId) {
 			        		Pipe.presumeRoomForWrite(loadReleaseResponses);
 			        		FragmentWriter.writeL(loadReleaseResponses, PersistedBlobLoadReleaseSchema.MSG_ACKRELEASE_10, ackId);
 			        	}
@@ -385,11 +554,18 @@ public class SequentialReplayerStage extends PronghornStage {
 	private boolean replayPhase() {
 
 		boolean didWork = false;
-		Pipe<RawDataSchema> input = fileInput[activeFile];
+		Pipe<RawDataSchema> input = fileInput[activeIdx];
+		DataInputBlobReader<RawDataSchema> reader = Pipe.inputStream(input);
 				
-		logger.trace("replay of file {} data {}",activeFile,input);
+		logger.trace("replay of file {} data {}",activeIdx,input);
+		
+		if (pendingBytes>0) {
+			//finish the blocks left from the last call before taking more
+			didWork |= replayRecords(input, reader);
+		}
 		
 		while ( MODE_READ_DATA == mode &&
+				(0==pendingBytes || recordIncomplete) &&
 				Pipe.hasRoomForWrite(loadConsumerResponses) &&
 				Pipe.hasRoomForWrite(loadProducerResponses) &&
 				Pipe.hasContentToRead(input)) {
@@ -402,42 +578,27 @@ public class SequentialReplayerStage extends PronghornStage {
 		    switch(msgIdx) {
 		        case RawDataSchema.MSG_CHUNKEDSTREAM_1:
 	
-		        	DataInputBlobReader<RawDataSchema> reader = Pipe.inputStream(input);
 		        	int payloadLen = Pipe.peekInt(input, 1); //length is after meta data
-		        	
+		        	//taken in both cases so the end marker is read past like any other chunk
 		        	reader.accumLowLevelAPIField();
 		        	
-		        	int consumed = 0;
 		        	if (payloadLen>=0) {		        		        		
-			        	consumed = consumeBlock(reader);			        	
+		        		Pipe.confirmLowLevelRead(input, Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+		        		Pipe.readNextWithoutReleasingReadLock(input);
+		        		replayRecords(input, reader);
 		        	} else {
 		        		//logger.info("end of replay");
 			        	//when payloadlen == -1 then
 		        		//we publish end of replay...			        	
-		        		
-		        		Pipe.presumeRoomForWrite(loadConsumerResponses);
-		        		int size = Pipe.addMsgIdx(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_FINISHREPLAY_9);
-		        		Pipe.confirmLowLevelWrite(loadConsumerResponses, size);
-		        		Pipe.publishWrites(loadConsumerResponses);
-		        	
-		        		mode = MODE_WRITE;
-		        		requestsInFlight--;
+		        		int leftover = finishReplay(reader);
+		        		Pipe.confirmLowLevelRead(input, Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+		        		Pipe.readNextWithoutReleasingReadLock(input);
+		        		Pipe.releasePendingAsReadLock(input, leftover);
 		        	}
-		        	Pipe.confirmLowLevelRead(input, Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
-		        	Pipe.readNextWithoutReleasingReadLock(input);
-		        	Pipe.releasePendingAsReadLock(input, consumed);
-		        	 
 		        	break;
 		        case -1:
 		        	logger.trace("end of replay and shutdown request");
-	        		
-		        	Pipe.presumeRoomForWrite(loadConsumerResponses);
-	        		int size = Pipe.addMsgIdx(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_FINISHREPLAY_9);
-	        		Pipe.confirmLowLevelWrite(loadConsumerResponses, size);
-	        		Pipe.publishWrites(loadConsumerResponses);
-	        		
-	        		mode = MODE_WRITE;
-	        		requestsInFlight--;
+		        	finishReplay(reader);
 		        	Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
 		        	Pipe.releaseReadLock(input);
 	        		break;
@@ -448,61 +609,181 @@ public class SequentialReplayerStage extends PronghornStage {
 	
 	}
 
-	private int consumeBlock(DataInputBlobReader<RawDataSchema> reader) {
+	private boolean replayRecords(Pipe<RawDataSchema> input, DataInputBlobReader<RawDataSchema> reader) {
+		int consumed = 0;
+		recordIncomplete = false;
+		while (reader.available()>0 && Pipe.hasRoomForWrite(loadConsumerResponses)) {
+			int length = consumeBlock(input, reader);
+			if (length<=0) {
+				break;
+			}
+			consumed += length;
+		}
+		pendingBytes = reader.available();
+		if (consumed>0) {
+			Pipe.releasePendingAsReadLock(input, consumed);
+		}
+		return consumed>0;
+	}
+
+	/**
+	 * @return bytes of a partial block left at the end which must be released
+	 */
+	private int finishReplay(DataInputBlobReader<RawDataSchema> reader) {
+		final int leftover = dropPartialBlock(reader);
+		if (leftover>0) {
+			//the last block was only partly written before the crash
+			markTornTail(activeIdx);
+			pendingBytes = 0;
+		}
+		if (tornTail) {
+			//copy the good blocks to the other file so the damaged tail is dropped
+			repairNeeded = true;
+			tornTail = false;
+		}
 		
-    	int mark = reader.position();
+		Pipe.presumeRoomForWrite(loadConsumerResponses);
+		int size = Pipe.addMsgIdx(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_FINISHREPLAY_9);
+		Pipe.confirmLowLevelWrite(loadConsumerResponses, size);
+		Pipe.publishWrites(loadConsumerResponses);
+		
+		mode = MODE_WRITE;
+		requestsInFlight--;
+		return leftover;
+	}
+
+	/**
+	 * The reader keeps accumulating across chunks, so the bytes of a partial block left at the
+	 * end of a file are skipped or the next pass over a file would begin with them.
+	 *
+	 * @return bytes skipped which must be released
+	 */
+	private int dropPartialBlock(DataInputBlobReader<RawDataSchema> reader) {
+		final int leftover = pendingBytes;
+		if (leftover>0) {
+			reader.skipBytes(leftover);
+		}
+		return leftover;
+	}
+
+	private void markTornTail(int idx) {
+		if (!tornTail) {
+			logger.warn("data file {} has a torn or corrupt tail, the blocks after it are dropped", idx);
+			tornTail = true;
+		}
+	}
+
+	/**
+	 * Checks the version, length and crc of the record at the reader position. The reader is
+	 * left on the payload when valid and must be reset to the start of the record otherwise.
+	 *
+	 * @return length of the payload, RECORD_INCOMPLETE or RECORD_CORRUPT
+	 */
+	private int readRecordHeader(Pipe<RawDataSchema> input, DataInputBlobReader<RawDataSchema> reader) {
+		if (reader.available() < RECORD_HEADER_SIZE) {
+			return RECORD_INCOMPLETE;
+		}
+		final int start = reader.absolutePosition();
+		if (RECORD_VERSION != reader.readByte()) {
+			return RECORD_CORRUPT;
+		}
+		recordId = reader.readLong();
+		final int totalLength = reader.readInt();
+		if (recordId<0 || totalLength<0 || totalLength>fileOutput[0].maxVarLen) {
+			return RECORD_CORRUPT;
+		}
+		if (reader.available() < totalLength+RECORD_CRC_SIZE) {
+			return RECORD_INCOMPLETE;
+		}
+		final int payload = reader.absolutePosition();
+		reader.absolutePosition(payload+totalLength);
+		final int expected = reader.readInt();
+		reader.absolutePosition(payload);
+		
+		if (expected != checksum(crc, input.blobRing, input.blobMask, start, RECORD_HEADER_SIZE+totalLength)) {
+			return RECORD_CORRUPT;
+		}
+		if (recordId > maxId) {
+			//after a restart this is only known from what was stored
+			maxId = recordId;
+		}
+		return totalLength;
+	}
+
+	static int checksum(CRC32 crc, byte[] ring, int mask, int position, int length) {
+		crc.reset();
+		int from = position & mask;
+		int first = Math.min(length, (mask+1)-from);
+		crc.update(ring, from, first);
+		if (first<length) {
+			crc.update(ring, 0, length-first);
+		}
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * @return bytes consumed, 0 if the block is not yet complete
+	 */
+	private int consumeBlock(Pipe<RawDataSchema> input, DataInputBlobReader<RawDataSchema> reader) {
+		
+    	final int mark = reader.position();
     	
-    	final long id = reader.readPackedLong();
-    	final int totalLength = reader.readInt();
-    			
-		if (reader.available() < totalLength) {
+    	if (tornTail) {
+    		//nothing after a bad record can be trusted
+    		reader.position(mark+reader.available());
+    		return reader.position()-mark;
+    	}
+    	
+    	final int totalLength = readRecordHeader(input, reader);
+		if (RECORD_INCOMPLETE == totalLength) {
 			//we have not yet accumulated all the data so try again later.
 			reader.position(mark);
+			recordIncomplete = true;
 			return 0;
 		}
+		if (RECORD_CORRUPT == totalLength) {
+			reader.position(mark);
+			markTornTail(activeIdx);
+			return consumeBlock(input, reader);
+		}
 		
-		//without this check we might go off into strange data
-		if ((id<0) || (id>maxId)) {
-			logger.info(" Reading the active data file, and discovered it is corrupt, send request to clean");
-		    throw new UnsupportedOperationException();
-		} else { 		
+		final long id = recordId;
+		final boolean live = !isReleased(id);
+		holdBlock(activeIdx, id, live);
 			
-			if (!isReleased(id)) {
-				//noise data stored to reduce data leakage.
-				final int skipLength = reader.readPackedInt();
-				reader.absolutePosition(reader.absolutePosition()+skipLength);
-				
-				final int dataLength = reader.readPackedInt();
-				
-				//not released so this must be sent back to the caller
-			    Pipe.presumeRoomForWrite(loadConsumerResponses);
-			    int size = Pipe.addMsgIdx(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_BLOCK_1);
-			    Pipe.addLongValue(id, loadConsumerResponses);
-
-			    DataOutputBlobWriter<PersistedBlobLoadConsumerSchema> outStr = Pipe.outputStream(loadConsumerResponses);
-			    DataOutputBlobWriter.openField(outStr);
-			
-			    reader.readInto(outStr, dataLength);
-			    					    	    
-			    final int structLength = reader.readPackedInt();
-			    if (structLength>0) {					    	    	
-			    	outStr.structured().fullIndexWriteFrom(structLength, reader);
-			    	DataOutputBlobWriter.setStructType(outStr, reader.readPackedInt());
-			    }
-			    
-			    DataOutputBlobWriter.closeLowLevelField(outStr);
-			    
-			    
-			    Pipe.confirmLowLevelWrite(loadConsumerResponses, size);
-			    Pipe.publishWrites(loadConsumerResponses);
-			    //logger.info("reading block for replay");	
-			    
-			} else {
-				//released so do not repeat back to the caller
-				reader.absolutePosition(reader.absolutePosition()+totalLength);
-			}
+		if (live) {
+			//noise data stored to reduce data leakage.
+			final int skipLength = reader.readPackedInt();
+			reader.absolutePosition(reader.absolutePosition()+skipLength);
+			
+			final int dataLength = reader.readPackedInt();
 			
+			//not released so this must be sent back to the caller
+		    Pipe.presumeRoomForWrite(loadConsumerResponses);
+		    int size = Pipe.addMsgIdx(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_BLOCK_1);
+		    Pipe.addLongValue(id, loadConsumerResponses);
+
+		    DataOutputBlobWriter<PersistedBlobLoadConsumerSchema> outStr = Pipe.outputStream(loadConsumerResponses);
+		    DataOutputBlobWriter.openField(outStr);
+		
+		    reader.readInto(outStr, dataLength);
+		    					    	    
+		    final int structLength = reader.readPackedInt();
+		    if (structLength>0) {					    	    	
+		    	outStr.structured().fullIndexWriteFrom(structLength, reader);
+		    	DataOutputBlobWriter.setStructType(outStr, reader.readPackedInt());
+		    }
+		    
+		    DataOutputBlobWriter.closeLowLevelField(outStr);
+		    
+		    
+		    Pipe.confirmLowLevelWrite(loadConsumerResponses, size);
+		    Pipe.publishWrites(loadConsumerResponses);
+		    //logger.info("reading block for replay");	
+		    
 		}
+		//released blocks are not repeated back to the caller
+		reader.position(mark+RECORD_HEADER_SIZE+totalLength+RECORD_CRC_SIZE);
 		
 		return reader.position()-mark;
 	}
@@ -542,7 +823,8 @@ public class SequentialReplayerStage extends PronghornStage {
 				    		   Pipe.openInputStream(storeProducerRequests), 
 				    		   fileOutput[activeIdx], 
 				    		   fileControl[activeIdx]);		        	
-	
+					holdBlock(activeIdx, blockId, true);
+					
 				    detectAndTriggerCompaction();
 				break;
 		        case -1:
@@ -563,7 +845,7 @@ public class SequentialReplayerStage extends PronghornStage {
 				//for release do not need to wait but replay and clear must wait for in flight to settle down first
 				(Pipe.peekMsg(storeConsumerRequests,
 						PersistedBlobStoreConsumerSchema.MSG_RELEASE_7) ||
-						0==requestsInFlight) &&
+						(0==requestsInFlight && isMaintenanceDone())) &&
 				
 				Pipe.hasRoomForWrite(loadConsumerResponses) &&
 				Pipe.hasRoomForWrite(fileOutput[0]) &&
@@ -617,6 +899,11 @@ public class SequentialReplayerStage extends PronghornStage {
 		clearIdMap();
 		isDirty = false;
 		fileSizeWritten = 0;
+		forgetBlocks(0);
+		forgetBlocks(1);
+		recentReleaseCount = 0;
+		recentReleasesOverflow = false;
+		repairNeeded = false;
 		while (--i>=0) {
 			//clear every file
 			Pipe<SequentialCtlSchema> output = fileControl[i];
@@ -647,6 +934,9 @@ public class SequentialReplayerStage extends PronghornStage {
 		//////////
 	
 		requestsInFlight++;//will be cleared at the end of the replay
+		forgetBlocks(activeIdx);//counted again as they are replayed
+		pendingBytes = 0;
+		tornTail = false;
 		if (isDirty) {
 			//clear known release so we can reload them from storage.
 			clearIdMap();
@@ -673,7 +963,10 @@ public class SequentialReplayerStage extends PronghornStage {
 	private void storeReleaseOfId(long fieldBlockId) {
 
 		 //keep in sync				     
-		 recordReleaseId(fieldBlockId);
+		 if (recordReleaseId(fieldBlockId)) {
+			 countRelease(fieldBlockId);
+		 }
+		 rememberForCheckpoint(fieldBlockId);
 		 
 		 //write this id in case of power drop
 		 Pipe<RawDataSchema> out = fileOutput[fileOutput.length-1];
@@ -708,11 +1001,13 @@ public class SequentialReplayerStage extends PronghornStage {
 		DataOutputBlobWriter<RawDataSchema> str = Pipe.outputStream(pipe);
 		DataOutputBlobWriter.openField(str);
 				
-		str.writePackedLong(blockId);/////packed LONG for the ID
+		int recordStart = str.absolutePosition();
+		str.writeByte(RECORD_VERSION);
+		str.writeLong(blockId);/////fixed size header so a torn one can be detected
 			
 		int dataLength = data.available();		
 			
-		assert(dataLength+15<pipe.maxVarLen) : "Outgoing pipe to filesystem is too small";
+		assert(dataLength+RECORD_HEADER_SIZE+RECORD_CRC_SIZE+15<pipe.maxVarLen) : "Outgoing pipe to filesystem is too small";
 		
 		//NOTE: must write total packed length up front or the messages will get split
 		int indexOfLength = str.absolutePosition();
@@ -724,7 +1019,7 @@ public class SequentialReplayerStage extends PronghornStage {
 			str.writePackedInt(0);	
 		} else {
 			//Noise must NOT push us past the maxVarLen size so compute how big it can be.
-			int realDataSize = 8+dataLength+(3*10); //for length packed ints
+			int realDataSize = RECORD_HEADER_SIZE+RECORD_CRC_SIZE+dataLength+(3*10); //for length packed ints
 			if (data.isStructured()) {
 				realDataSize += data.structured().fullIndexSizeInBytes();
 			}
@@ -750,14 +1045,18 @@ public class SequentialReplayerStage extends PronghornStage {
 			str.writePackedInt(0);
 		}
 		
+		int totalLength = str.position()-dataBeginPosition;
 		DataOutputBlobWriter.write32(
 				pipe.blobRing, pipe.blobMask,
-				indexOfLength, str.position()-dataBeginPosition);
-	
+				indexOfLength, totalLength);
+		//crc32 is used in place of crc32c which is not found in Java 7, both are intrinsics
+		str.writeInt(checksum(crc, pipe.blobRing, pipe.blobMask, recordStart, RECORD_HEADER_SIZE+totalLength));
 		
 		DataOutputBlobWriter.closeLowLevelField(str);
 		
 		fileSizeWritten += str.length();
+		//copying keeps pace with the writes or the old file may never be cleared
+		compactBudget += str.length();
 		
 		Pipe.confirmLowLevelWrite(pipe, size);
 		Pipe.publishWrites(pipe);
@@ -771,54 +1070,118 @@ public class SequentialReplayerStage extends PronghornStage {
 
 	private void detectAndTriggerCompaction() {
 		//if the file size is large it is time to roll-over to the next one
-		//but if the released count is empty there is no point
-		//if the map set is large and mostly full then also compact.
-		if ( ((fileSizeWritten > fileSizeLimit) || (LongHashSet.size(mapSet)>(1<<21)))				
-				&& (LongHashSet.isPctFull(mapSet,.33))			
+		//but if most of the blocks are still live there is no point
+		//if the map set is large then also compact.
+		if ( isMaintenanceDone()
+			 && ((fileSizeWritten > fileSizeLimit) || (LongHashSet.size(mapSet)>(1<<21)))				
+			 && isMostlyReleased(activeIdx)
 	    	) {		        	
-        	//ensure new file is clear
-        	clearInProgress = 1;
-			Pipe<SequentialCtlSchema> output2 = fileControl[1&(activeIdx+1)];
-			
-			Pipe.presumeRoomForWrite(output2);
-			FragmentWriter.write(output2, SequentialCtlSchema.MSG_CLEAR_2);
-			
-        	fileSizeWritten = 0;
-			if (isDirty) {
-				//clear known release so we can reload them from storage.
-				clearIdMap();
-				//switch to to read releases mode
-				mode = MODE_COMPACT_READ_RELEASES;
-				Pipe<SequentialCtlSchema> output1 = fileControl[fileControl.length-1];
-				//request these two files to be played back to us
-				Pipe.presumeRoomForWrite(output1);
-				FragmentWriter.write(output1, SequentialCtlSchema.MSG_REPLAY_1);
-	
-			    //when it is done it will change mode to MODE_COMPACT_READ_DATA
-			} else {
-				mode = MODE_COMPACT_READ_DATA;
-			}
-			Pipe<SequentialCtlSchema> output = fileControl[activeIdx];
-			//both cases need this data
-			Pipe.presumeRoomForWrite(output);
-			FragmentWriter.write(output, SequentialCtlSchema.MSG_REPLAY_1);
+			beginCompaction();
+		}
+	}
+
+	private boolean repairTornTail() {
+		//the damaged file is truncated by copying its good blocks to the other file
+		if (0 == clearInProgress &&
+			Pipe.hasRoomForWrite(fileControl[0]) &&
+			Pipe.hasRoomForWrite(fileControl[1]) &&
+			Pipe.hasRoomForWrite(fileControl[2])) {
+			repairNeeded = false;
+			beginCompaction();
+			return true;
 		}
+		return false;
+	}
+
+	private void beginCompaction() {
+		compactFromIdx = activeIdx;
+		activeIdx = 1&(activeIdx+1);
+		
+    	//ensure new file is clear, new blocks go there while the old one is copied over
+    	clearInProgress++;
+		Pipe<SequentialCtlSchema> output2 = fileControl[activeIdx];
+		Pipe.presumeRoomForWrite(output2);
+		FragmentWriter.write(output2, SequentialCtlSchema.MSG_CLEAR_2);
+		
+    	fileSizeWritten = 0;
+    	forgetBlocks(activeIdx);
+    	pendingBytes = 0;
+    	tornTail = false;
+    	//earlier releases are only for blocks that will not be copied
+    	recentReleaseCount = 0;
+    	recentReleasesOverflow = false;
+    	
+		if (isDirty) {
+			//clear known release so we can reload them from storage.
+			clearIdMap();
+			compactState = COMPACT_READ_RELEASES;
+			Pipe<SequentialCtlSchema> output1 = fileControl[fileControl.length-1];
+			//request these two files to be played back to us
+			Pipe.presumeRoomForWrite(output1);
+			FragmentWriter.write(output1, SequentialCtlSchema.MSG_REPLAY_1);
+		} else {
+			compactState = COMPACT_COPY;
+		}
+		Pipe<SequentialCtlSchema> output = fileControl[compactFromIdx];
+		//both cases need this data
+		Pipe.presumeRoomForWrite(output);
+		FragmentWriter.write(output, SequentialCtlSchema.MSG_REPLAY_1);
+	}
+
+	private boolean isMostlyReleased(int idx) {
+		return liveBlocksInFile[idx] <= (long)(blocksInFile[idx]*compactionLiveRatio);
+	}
+
+	private boolean isMaintenanceDone() {
+		return COMPACT_NONE == compactState && !checkpointing && !recovering;
 	}
 
     /////////////
 	////////////
 	/////////	
 	
-	private boolean compactDataPhase() {		
+	/**
+	 * Copies the live blocks of the old file into the active one. Only compactionBytesPerRun, plus
+	 * the bytes written in the same call, are done per call so writes are only held up for a short
+	 * time while compacting yet the copy never falls behind them.
+	 */
+	private boolean compactPhase() {		
 		
-		boolean didWork = false;
+		if (COMPACT_READ_RELEASES == compactState) {
+			boolean didWork = readReleasedBlockIdsPhase();
+			if (!isDirty) {
+				compactState = recovering ? COMPACT_SCAN : COMPACT_COPY;
+			}
+			return didWork;
+		}
+		if (COMPACT_SCAN == compactState) {
+			return scanPhase();
+		}
+		if (COMPACT_CLEAR == compactState) {
+			return clearCompactedPhase();
+		}
 		
-		int newActiveIdx = 1&(activeIdx+1);
+		boolean didWork = false;
+		Pipe<RawDataSchema> input = fileInput[compactFromIdx];
+		DataInputBlobReader<RawDataSchema> reader = Pipe.inputStream(input);
 		
-		Pipe<RawDataSchema> input = fileInput[activeFile];
+		if (pendingBytes>0) {
+			//finish what was left from the last slice before taking more
+			int consumed = copyLiveBlocks(input, reader);
+			pendingBytes = reader.available();
+			if (consumed>0) {
+				didWork = true;
+				Pipe.releasePendingAsReadLock(input, consumed);
+			}
+		}
 		
-		while ( mode != MODE_WRITE &&
-				Pipe.hasRoomForWrite(fileOutput[newActiveIdx]) &&
+		while ( COMPACT_COPY == compactState &&
+				compactBudget > 0 &&
+				0 == clearInProgress &&
+				Pipe.hasRoomForWrite(fileOutput[activeIdx]) &&
+				Pipe.hasRoomForWrite(fileControl[activeIdx]) &&
+				Pipe.hasRoomForWrite(fileControl[compactFromIdx]) &&
+				Pipe.hasRoomForWrite(fileControl[fileControl.length-1]) &&
 				Pipe.hasContentToRead(input)) {
 			
 		    didWork = true;
@@ -826,60 +1189,376 @@ public class SequentialReplayerStage extends PronghornStage {
 		    switch(msgIdx) {
 		        case RawDataSchema.MSG_CHUNKEDSTREAM_1:
 	
-		        	DataInputBlobReader<RawDataSchema> reader = Pipe.inputStream(input);
-		        	int payloadLen = Pipe.peekInt(input, 1);
-		        	int len = reader.openLowLevelAPIField();
-		        	assert(payloadLen==len || (len==0 && payloadLen==-1));
+		        	int payloadLen = Pipe.peekInt(input, 1); //length is after meta data
+		        	
+		        	reader.accumLowLevelAPIField();
 		        	
+		        	int consumed = 0;
 		        	if (payloadLen>=0) {
-			        	final long id = reader.readPackedLong();
-			        	final int length = reader.readPackedInt();
-			        	
-			        	//without this check we might go off into strange data
-			        	if ((length!=reader.available()) || (id<0) || (id>maxId)) {
-			        		logger.info("ERROR 2, the data files are corrupt, send request to clean");
-			        	} else {
-			        	
-					    	if (!isReleased(id)) {
-					    		//not released so keep this and write to the new file
-					    					
-					    	    //store new block.
-					    		writeBlock(id, reader, fileOutput[newActiveIdx], fileControl[newActiveIdx]);
-		        		
-				        	} else {
-				        		//released so do not repeat back to the caller
-				        		reader.skipBytes(length);
-				        	}
-			        	}
+		        		consumed = copyLiveBlocks(input, reader);
+		        		pendingBytes = reader.available();
 		        	} else {
-			        	//when payloadlen == -1 then
-		        		//we publish end of replay...
-						Pipe.presumeRoomForWrite(loadConsumerResponses);
-						FragmentWriter.write(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_FINISHREPLAY_9);
-						
-		        		activeIdx = newActiveIdx;
-		        		mode = MODE_WRITE;
+		        		//a partial block at the end is dropped
+		        		consumed = dropPartialBlock(reader);
+		        		finishCompaction();
 		        	}
-		        	
 		        	Pipe.confirmLowLevelRead(input, Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+		        	Pipe.readNextWithoutReleasingReadLock(input);
+		        	Pipe.releasePendingAsReadLock(input, consumed);
 		        	
 		        	break;
-		        case -1:		        	
-					Pipe.presumeRoomForWrite(loadConsumerResponses);
-					FragmentWriter.write(loadConsumerResponses, PersistedBlobLoadConsumerSchema.MSG_FINISHREPLAY_9);
-
-	        		activeIdx = newActiveIdx;
-	        		mode = MODE_WRITE;
-	        		
+		        case -1:
+		        	finishCompaction();
 		        	Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
-		        	        		
+		        	Pipe.releaseReadLock(input);
 	        		break;
 		    }
-		    Pipe.releaseReadLock(input);
 		}
 		return didWork;
 	}
 
+	private int copyLiveBlocks(Pipe<RawDataSchema> input, DataInputBlobReader<RawDataSchema> reader) {
+		int consumed = 0;
+		Pipe<RawDataSchema> output = fileOutput[activeIdx];
+		Pipe<SequentialCtlSchema> control = fileControl[activeIdx];
+		
+		while (compactBudget > 0 &&
+			   reader.available() > 0 &&
+			   Pipe.hasRoomForWrite(output) &&
+			   Pipe.hasRoomForWrite(control)) {
+			
+			int mark = reader.position();
+			
+			if (tornTail) {
+				//nothing after a bad record is copied
+				reader.position(mark+reader.available());
+				consumed += reader.position()-mark;
+				break;
+			}
+			
+			final int totalLength = readRecordHeader(input, reader);
+			if (RECORD_INCOMPLETE == totalLength) {
+				//we have not yet accumulated all the data so try again later.
+				reader.position(mark);
+				break;
+			}
+			if (RECORD_CORRUPT == totalLength) {
+				reader.position(mark);
+				markTornTail(compactFromIdx);
+				continue;
+			}
+			
+			final int recordLength = RECORD_HEADER_SIZE+totalLength+RECORD_CRC_SIZE;
+			if (!isReleased(recordId) && !(mergingRecovery && isHeld(activeIdx, recordId))) {
+				//not released so keep this and write to the new file
+				reader.position(mark);
+				copyBlock(recordLength, reader, output, control);
+			} else {
+				reader.position(mark+recordLength);
+			}
+			
+			consumed += recordLength;
+			compactBudget -= recordLength;
+		}
+		return consumed;
+	}
+
+	private void copyBlock(int recordLength,
+			               DataInputBlobReader<RawDataSchema> reader,
+			               Pipe<RawDataSchema> pipe,
+			               Pipe<SequentialCtlSchema> control) {
+		
+		//already in the stored form, noise and crc included, so it is moved as is
+		int size = Pipe.addMsgIdx(pipe, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+		DataOutputBlobWriter<RawDataSchema> str = Pipe.outputStream(pipe);
+		DataOutputBlobWriter.openField(str);
+		
+		reader.readInto(str, recordLength);
+		
+		DataOutputBlobWriter.closeLowLevelField(str);
+		
+		fileSizeWritten += str.length();
+		holdBlock(activeIdx, recordId, true);
+		
+		Pipe.confirmLowLevelWrite(pipe, size);
+		Pipe.publishWrites(pipe);
+		
+		//the id may already be reused by the producer so this ack must not reach it
+		Pipe.presumeRoomForWrite(control);
+		FragmentWriter.writeL(control, SequentialCtlSchema.MSG_IDTOSAVE_4, COPY_ID);
+	
+		requestsInFlight++;
+		copiesInFlight++;
+	}
+
+	private void finishCompaction() {
+		if (pendingBytes>0 && !tornTail) {
+			markTornTail(compactFromIdx);
+		}
+		//every live block is now in the active file so the old one is no longer needed
+		//clearing it also keeps startup from picking the old file as the biggest
+		forgetBlocks(compactFromIdx);
+		pendingBytes = 0;
+		tornTail = false;
+		mergingRecovery = false;
+		compactState = COMPACT_CLEAR;
+	}
 	
+	private boolean clearCompactedPhase() {
+		//until the copies are acked a crash could lose them along with the old file
+		if (0 == copiesInFlight &&
+			0 == clearInProgress &&
+			Pipe.hasRoomForWrite(fileControl[compactFromIdx])) {
+			clearInProgress++;
+			Pipe<SequentialCtlSchema> output = fileControl[compactFromIdx];
+			Pipe.presumeRoomForWrite(output);
+			FragmentWriter.write(output, SequentialCtlSchema.MSG_CLEAR_2);
+			
+			if (!recentReleasesOverflow) {
+				//older releases were for blocks which are now gone, so the release
+				//file is cleared and only those since compaction began are written back
+				checkpointing = true;
+				checkpointCleared = false;
+				checkpointPos = 0;
+			}
+			
+			compactState = COMPACT_NONE;
+			compactFromIdx = -1;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Both data files hold blocks so the process stopped while compacting. Neither can be cleared
+	 * since the old one may have live blocks not yet copied and the new one has blocks written
+	 * since. The file without a torn tail is scanned for the ids it holds, then the live blocks
+	 * of the other file not already found are copied into it as done by compaction.
+	 */
+	private boolean recoveryPhase() {
+		if (COMPACT_NONE != compactState) {
+			return compactPhase();
+		}
+		if (0 == clearInProgress &&
+			Pipe.hasRoomForWrite(fileControl[0]) &&
+			Pipe.hasRoomForWrite(fileControl[1]) &&
+			Pipe.hasRoomForWrite(fileControl[2])) {
+			beginRecovery();
+			return true;
+		}
+		return false;
+	}
+	
+	private void beginRecovery() {
+		logger.warn("both data files hold blocks, merging file {} into file {}", 1&(activeIdx+1), activeIdx);
+		recoveryScans = 0;
+		forgetBlocks(0);
+		forgetBlocks(1);
+		pendingBytes = 0;
+		tornTail = false;
+		recentReleaseCount = 0;
+		recentReleasesOverflow = false;
+		
+		if (isDirty) {
+			clearIdMap();
+			compactState = COMPACT_READ_RELEASES;
+			Pipe<SequentialCtlSchema> output1 = fileControl[fileControl.length-1];
+			Pipe.presumeRoomForWrite(output1);
+			FragmentWriter.write(output1, SequentialCtlSchema.MSG_REPLAY_1);
+		} else {
+			compactState = COMPACT_SCAN;
+		}
+		Pipe<SequentialCtlSchema> output = fileControl[activeIdx];
+		Pipe.presumeRoomForWrite(output);
+		FragmentWriter.write(output, SequentialCtlSchema.MSG_REPLAY_1);
+	}
+	
+	private boolean scanPhase() {
+		boolean didWork = false;
+		Pipe<RawDataSchema> input = fileInput[activeIdx];
+		DataInputBlobReader<RawDataSchema> reader = Pipe.inputStream(input);
+		
+		if (pendingBytes>0) {
+			didWork |= scanRecords(input, reader);
+		}
+		
+		while ( COMPACT_SCAN == compactState &&
+				(0==pendingBytes || recordIncomplete) &&
+				Pipe.hasRoomForWrite(fileControl[0]) &&
+				Pipe.hasRoomForWrite(fileControl[1]) &&
+				Pipe.hasContentToRead(input)) {
+			
+		    didWork = true;
+			int msgIdx = Pipe.takeMsgIdx(input);
+		    switch(msgIdx) {
+		        case RawDataSchema.MSG_CHUNKEDSTREAM_1:
+		        	
+		        	int payloadLen = Pipe.peekInt(input, 1); //length is after meta data
+		        	reader.accumLowLevelAPIField();
+		        	
+		        	if (payloadLen>=0) {
+		        		Pipe.confirmLowLevelRead(input, Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+		        		Pipe.readNextWithoutReleasingReadLock(input);
+		        		scanRecords(input, reader);
+		        	} else {
+		        		int leftover = dropPartialBlock(reader);
+		        		finishScan();
+		        		Pipe.confirmLowLevelRead(input, Pipe.sizeOf(RawDataSchema.instance, RawDataSchema.MSG_CHUNKEDSTREAM_1));
+		        		Pipe.readNextWithoutReleasingReadLock(input);
+		        		Pipe.releasePendingAsReadLock(input, leftover);
+		        	}
+		        	break;
+		        case -1:
+		        	finishScan();
+		        	Pipe.confirmLowLevelRead(input, Pipe.EOF_SIZE);
+		        	Pipe.releaseReadLock(input);
+		        	break;
+		    }
+		}
+		return didWork;
+	}
+	
+	private boolean scanRecords(Pipe<RawDataSchema> input, DataInputBlobReader<RawDataSchema> reader) {
+		int consumed = 0;
+		recordIncomplete = false;
+		while (reader.available()>0) {
+			int mark = reader.position();
+			
+			if (tornTail) {
+				reader.position(mark+reader.available());
+				consumed += reader.position()-mark;
+				break;
+			}
+			
+			final int totalLength = readRecordHeader(input, reader);
+			if (RECORD_INCOMPLETE == totalLength) {
+				reader.position(mark);
+				recordIncomplete = true;
+				break;
+			}
+			if (RECORD_CORRUPT == totalLength) {
+				reader.position(mark);
+				markTornTail(activeIdx);
+				continue;
+			}
+			
+			holdBlock(activeIdx, recordId, !isReleased(recordId));
+			
+			final int recordLength = RECORD_HEADER_SIZE+totalLength+RECORD_CRC_SIZE;
+			reader.position(mark+recordLength);
+			consumed += recordLength;
+		}
+		pendingBytes = reader.available();
+		if (consumed>0) {
+			Pipe.releasePendingAsReadLock(input, consumed);
+		}
+		return consumed>0;
+	}
+	
+	private void finishScan() {
+		if (pendingBytes>0) {
+			markTornTail(activeIdx);
+		}
+		pendingBytes = 0;
+		final int otherIdx = 1&(activeIdx+1);
+		
+		if (!tornTail) {
+			//blocks can be added after the last one so the other file is merged into this one
+			fileSizeWritten = (int)Math.min(Integer.MAX_VALUE, startupFileSize[activeIdx]);
+			compactFromIdx = otherIdx;
+			compactState = COMPACT_COPY;
+			recovering = false;
+			mergingRecovery = true;
+			Pipe<SequentialCtlSchema> output = fileControl[compactFromIdx];
+			Pipe.presumeRoomForWrite(output);
+			FragmentWriter.write(output, SequentialCtlSchema.MSG_REPLAY_1);
+		} else if (0 == recoveryScans++) {
+			//new blocks would be lost behind the torn tail, try the other file
+			tornTail = false;
+			forgetBlocks(activeIdx);
+			activeIdx = otherIdx;
+			Pipe<SequentialCtlSchema> output = fileControl[activeIdx];
+			Pipe.presumeRoomForWrite(output);
+			FragmentWriter.write(output, SequentialCtlSchema.MSG_REPLAY_1);
+		} else {
+			logger.warn("both data files have torn tails, only the good blocks of file {} are kept", activeIdx);
+			tornTail = false;
+			compactState = COMPACT_NONE;
+			recovering = false;
+			repairNeeded = true;
+		}
+	}
+
+	private void rememberForCheckpoint(long releasedId) {
+		if ((COMPACT_NONE == compactState && (!checkpointing || checkpointCleared)) || recentReleasesOverflow) {
+			//only those released before the checkpoint clears the file must be kept by it,
+			//later ones are written after the checkpoint has cleared the file
+			return;
+		}
+		if (recentReleaseCount == recentReleases.length) {
+			if (recentReleaseCount >= checkpointReleaseLimit) {
+				recentReleasesOverflow = true;
+				return;
+			}
+			recentReleases = Arrays.copyOf(recentReleases, recentReleaseCount*2);
+		}
+		recentReleases[recentReleaseCount++] = releasedId;
+	}
+
+	/**
+	 * Writes the releases kept since compaction began to the cleared release file.
+	 * After a restart only this checkpoint and the releases after it are read back.
+	 */
+	private boolean checkpointPhase() {
+		boolean didWork = false;
+		Pipe<RawDataSchema> out = fileOutput[fileOutput.length-1];
+		Pipe<SequentialCtlSchema> control = fileControl[fileControl.length-1];
+		final int idsPerChunk = Math.max(1, out.maxVarLen/10);
+		
+		if (!checkpointCleared) {
+			//until the old data file is cleared a restart still needs every release
+			if (0 == clearInProgress && Pipe.hasRoomForWrite(control)) {
+				clearInProgress++;
+				Pipe.presumeRoomForWrite(control);
+				FragmentWriter.write(control, SequentialCtlSchema.MSG_CLEAR_2);
+				checkpointCleared = true;
+				return true;
+			}
+			return false;
+		}
+		
+		while (0 == clearInProgress &&
+			   checkpointPos < recentReleaseCount &&
+			   Pipe.hasRoomForWrite(out) &&
+			   Pipe.hasRoomForWrite(control)) {
+			didWork = true;
+			
+			int chunkSize = Pipe.addMsgIdx(out, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+			DataOutputBlobWriter<RawDataSchema> chunkStr = Pipe.outputStream(out);
+			DataOutputBlobWriter.openField(chunkStr);
+			int limit = Math.min(recentReleaseCount, checkpointPos+idsPerChunk);
+			while (checkpointPos < limit) {
+				chunkStr.writePackedLong(recentReleases[checkpointPos++]);
+			}
+			DataOutputBlobWriter.closeLowLevelField(chunkStr);
+			Pipe.confirmLowLevelWrite(out, chunkSize);
+			Pipe.publishWrites(out);
+			
+			Pipe.presumeRoomForWrite(control);
+			FragmentWriter.writeL(control, SequentialCtlSchema.MSG_IDTOSAVE_4, CHECKPOINT_ID);
+			requestsInFlight++;
+		}
+		if (0 == clearInProgress && checkpointPos >= recentReleaseCount) {
+			checkpointing = false;
+			recentReleaseCount = 0;
+			//releases made while compacting may already call for the next one, even if no more writes come
+			if (Pipe.hasRoomForWrite(fileControl[0]) &&
+				Pipe.hasRoomForWrite(fileControl[1]) &&
+				Pipe.hasRoomForWrite(fileControl[2])) {
+				detectAndTriggerCompaction();
+			}
+		}
+		return didWork;
+	}
 	
 }
@@ -0,0 +1,16 @@
+package com.ociweb.pronghorn.stage.monitor;
+
+/**
+ * Stages implementing this expose running counters (hits, misses, bytes)
+ * which are gathered by the PipeMonitorCollectorStage along with the pipe data.
+ * Values are read by the telemetry thread without locks so they may be slightly stale.
+ */
+public interface CounterSource {
+
+	int counterCount();
+
+	String counterName(int idx);
+
+	long counterValue(int idx);
+
+}
@@ -11,6 +11,7 @@ import com.ociweb.pronghorn.pipe.PipeConfig;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
 import com.ociweb.pronghorn.util.AppendableByteWriter;
+import com.ociweb.pronghorn.util.Appendables;
 
 /**
  * _no-docs_
@@ -45,6 +46,8 @@ public class PipeMonitorCollectorStage extends PronghornStage {
 	
 	
 	
+    private CounterSource[] counterSources;
+    
     private int position;
     private final int batchSize;
 	private int reportSlowSpeed = 10;
@@ -95,6 +98,8 @@ public class PipeMonitorCollectorStage extends PronghornStage {
 		lastFragments = new long[inputs.length];
 		lastTime      = new long[inputs.length];
 		
+		counterSources = collectCounterSources(graphManager);
+		
 		
 		////////////////////////////
 		//What pipe is this input monitoring??
@@ -132,6 +137,43 @@ public class PipeMonitorCollectorStage extends PronghornStage {
 		position = pos;
 	}
 
+	private static CounterSource[] collectCounterSources(GraphManager gm) {
+		PronghornStage[] stages = GraphManager.allStages(gm);
+		int count = 0;
+		int i = stages.length;
+		while (--i>=0) {
+			if (stages[i] instanceof CounterSource) {
+				count++;
+			}
+		}
+		CounterSource[] result = new CounterSource[count];
+		i = stages.length;
+		while (--i>=0) {
+			if (stages[i] instanceof CounterSource) {
+				result[--count] = (CounterSource)stages[i];
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Sum of the named counter across all the stages which report it.
+	 */
+	public long counter(String name) {
+		long total = 0;
+		int s = counterSources.length;
+		while (--s>=0) {
+			CounterSource source = counterSources[s];
+			int c = source.counterCount();
+			while (--c>=0) {
+				if (name.equals(source.counterName(c))) {
+					total += source.counterValue(c);
+				}
+			}
+		}
+		return total;
+	}
+	
 	private static final int  MA_BITS = 7;
 	private static final int  MA_TOTAL = 1<<MA_BITS; //128;
 	private static final long MA_MULTI = MA_TOTAL-1; //127;
@@ -259,5 +301,24 @@ public class PipeMonitorCollectorStage extends PronghornStage {
 	public void writeAsSummary(GraphManager gm, AppendableByteWriter<?> payload) {
 		GraphManager.writeAsSummary(gm, payload, percentileFullValues);
 	}	
+	
+	/**
+	 * One line per counter of each reporting stage, eg "FileReadModuleStage hotFileHits 42"
+	 */
+	public void writeCounters(AppendableByteWriter<?> payload) {
+		int s = counterSources.length;
+		while (--s>=0) {
+			CounterSource source = counterSources[s];
+			int c = source.counterCount();
+			while (--c>=0) {
+				payload.append(source.toString());
+				payload.append(' ');
+				payload.append(source.counterName(c));
+				payload.append(' ');
+				Appendables.appendValue(payload, source.counterValue(c));
+				payload.append('\n');
+			}
+		}
+	}
 
 }
@@ -8,13 +8,30 @@ public class DidWorkMonitor extends PipePublishListener {
 	private long beginNS;
 	private Thread runningThread;
 	
+	//history of how often the stages found work, only written by the running thread
+	//but read by the rebalancer so these are volatile to publish each update
+	private volatile long runCount;
+	private volatile long workCount;
+	
 	public static boolean didWork(DidWorkMonitor that) {
 		//note has side effect of clearing the timer
 		that.beginNS = 0;
 		that.runningThread = null;
+		that.runCount++;
+		if (that.didWork) {
+			that.workCount++;
+		}
 		return that.didWork;
 	}
 	
+	public static long runCount(DidWorkMonitor that) {
+		return that.runCount;
+	}
+	
+	public static long workCount(DidWorkMonitor that) {
+		return that.workCount;
+	}
+	
 	
 	//TODO: all the did work monitors are also to be monitored to find if any 
 	//      threads have blocked and not returned.  if so break them and capture the stack trace
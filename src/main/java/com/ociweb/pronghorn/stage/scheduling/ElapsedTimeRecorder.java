@@ -47,6 +47,18 @@ public class ElapsedTimeRecorder {
 		return target;
 	}
 	
+	/**
+	 * Sum of every recorded value, this is the total time spent in the recorded work.
+	 */
+	public static long totalElapsed(ElapsedTimeRecorder that) {
+		long total = 0;
+		int i = that.sums.length;
+		while (--i>=0) {
+			total += that.sums[i];
+		}
+		return total;
+	}
+	
 	public static void record(ElapsedTimeRecorder that, long valueNS) {
 
 		int base = 64 - Long.numberOfLeadingZeros(valueNS);
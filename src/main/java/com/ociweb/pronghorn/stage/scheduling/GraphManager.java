@@ -124,6 +124,8 @@ public class GraphManager {
 	
 	public final static String UNSCHEDULED   = "UNSCHEDULED";//new nota for stages that should never get a thread (experimental)
 	public final static String THREAD_GROUP  = "THREAD_GROUP";   //new nota for stages that do not give threads back (experimental)
+	public final static String CPU_CORE      = "CPU_CORE";       //core this stage thread is pinned to, only set when pinning is enabled
+	public final static String IDLE_STRATEGY = "IDLE_STRATEGY";  //name from IdleStrategies used by the thread running this stage
 	
 	
 	private final static Logger log = LoggerFactory.getLogger(GraphManager.class);
@@ -219,7 +221,9 @@ public class GraphManager {
 	}
 	
 	public static long elapsedAtPercentile(GraphManager gm, int stageId, float pct) {
-		return ElapsedTimeRecorder.elapsedAtPercentile(gm.stageElapsed[stageId], pct);
+		ElapsedTimeRecorder[] local = gm.stageElapsed;
+		//nothing is recorded until telemetry or a scheduler turns on elapsed time recording
+		return stageId<local.length ? ElapsedTimeRecorder.elapsedAtPercentile(local[stageId], pct) : 0;
 	}
 	
 	private Map<Object, StringBuilder> cachedRanks;
@@ -2347,6 +2351,10 @@ public class GraphManager {
 				stageDisplayName+=(" Thread:"+group.toString()+"\n");
 			}
 		}
+		Object core = GraphManager.getNota(m, stage.stageId, GraphManager.CPU_CORE, null);
+		if (null!=core) {
+			stageDisplayName+=(" Core:"+core.toString()+"\n");
+		}
 		
 		return m.stageDOTNames[stage.stageId] = stageDisplayName.getBytes();
 	}
@@ -2735,6 +2743,11 @@ public class GraphManager {
 		buldStageDOTName(graphManager, stage);
 	}
 
+	public static void recordCore(PronghornStage stage, final int core, final GraphManager graphManager) {
+		addNota(graphManager, CPU_CORE, core, stage);
+		buldStageDOTName(graphManager, stage);
+	}
+
 	public static void spinLockUntilStageOfTypeStarted(GraphManager gm, Class<?> stageClass) {
         boolean isStarted;
         do {
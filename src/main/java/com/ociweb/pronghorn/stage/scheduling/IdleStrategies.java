@@ -0,0 +1,147 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Built in idle strategies. A strategy can be set directly on a ScriptedNonThreadScheduler
+ * or selected by name with the GraphManager.IDLE_STRATEGY nota on any stage of the group.
+ *
+ * BUSY_SPIN   never gives up the core, lowest latency, use for socket reader/writer threads.
+ * SPIN_YIELD  spins briefly then yields, low latency but shares the core.
+ * BACKOFF     parks for longer and longer as the idle time grows, lowest CPU for batch work.
+ * ADAPTIVE    spins and yields while work is arriving and switches to backoff once idle.
+ */
+public final class IdleStrategies {
+
+	public static final String BUSY_SPIN  = "BUSY_SPIN";
+	public static final String SPIN_YIELD = "SPIN_YIELD";
+	public static final String BACKOFF    = "BACKOFF";
+	public static final String ADAPTIVE   = "ADAPTIVE";
+
+	private static final int defaultSpins = 100;
+	private static final long minParkNS = 1_000;       //1 micro
+	private static final long maxParkNS = 20_000_000;  //20 ms, under human perception
+	private static final long parkThresholdNS = 500_000; //ns timer only accurate above this
+	private static final long adaptiveIdleLimit = 1000; //checks without work before we back off
+
+	private IdleStrategies() {
+	}
+
+	/**
+	 * @return new instance of the named strategy or null if the name is not known
+	 */
+	public static IdleStrategy newStrategy(String name) {
+		if (BUSY_SPIN.equals(name)) {
+			return new BusySpin();
+		} else if (SPIN_YIELD.equals(name)) {
+			return new SpinYield(defaultSpins);
+		} else if (BACKOFF.equals(name)) {
+			return new BackoffPark(minParkNS, maxParkNS);
+		} else if (ADAPTIVE.equals(name)) {
+			return new Adaptive(adaptiveIdleLimit);
+		}
+		return null;
+	}
+
+	public static class BusySpin implements IdleStrategy {
+
+		@Override
+		public void idle(long waitNS, long noWorkCount, boolean canSleep) {
+			if (waitNS>0) {
+				final long limit = System.nanoTime()+waitNS;
+				while (System.nanoTime()<limit) {
+					//spin until the block is due
+				}
+			}
+		}
+	}
+
+	public static class SpinYield implements IdleStrategy {
+
+		private final int spins;
+
+		public SpinYield(int spins) {
+			this.spins = spins;
+		}
+
+		@Override
+		public void idle(long waitNS, long noWorkCount, boolean canSleep) {
+			if (waitNS>0) {
+				final long limit = System.nanoTime()+waitNS;
+				int s = spins;
+				long remaining;
+				while ((remaining = limit-System.nanoTime())>0) {
+					if (remaining>parkThresholdNS) {
+						//long timer waits are not worth the CPU
+						LockSupport.parkNanos(remaining);
+					} else if (--s<0) {
+						Thread.yield();
+					}
+				}
+			} else if (noWorkCount>spins) {
+				Thread.yield();
+			}
+		}
+	}
+
+	public static class BackoffPark implements IdleStrategy {
+
+		private final long minNS;
+		private final long maxNS;
+		private long parkNS;
+
+		public BackoffPark(long minNS, long maxNS) {
+			this.minNS = minNS;
+			this.maxNS = maxNS;
+			this.parkNS = minNS;
+		}
+
+		@Override
+		public void idle(long waitNS, long noWorkCount, boolean canSleep) {
+			long duration = parkDuration(waitNS, noWorkCount, canSleep);
+			if (duration>0) {
+				LockSupport.parkNanos(duration);
+			}
+		}
+
+		/**
+		 * Advances the backoff.
+		 * @return nanoseconds to park for this call, zero or less for none
+		 */
+		long parkDuration(long waitNS, long noWorkCount, boolean canSleep) {
+			if (0==noWorkCount) {
+				parkNS = minNS; //work was found so start over
+				return waitNS;
+			}
+			long limit = canSleep ? maxNS : Math.min(maxNS, Math.max(waitNS, minNS));
+			//double each time we find nothing, never shorter than the schedule
+			long duration = Math.min(Math.max(waitNS, parkNS), limit);
+			parkNS = Math.min(parkNS<<1, limit);
+			return duration;
+		}
+	}
+
+	public static class Adaptive implements IdleStrategy {
+
+		private final long idleLimit;
+		private final SpinYield active = new SpinYield(defaultSpins);
+		private final BackoffPark idle = new BackoffPark(minParkNS, maxParkNS);
+
+		public Adaptive(long idleLimit) {
+			this.idleLimit = idleLimit;
+		}
+
+		@Override
+		public void idle(long waitNS, long noWorkCount, boolean canSleep) {
+			if (noWorkCount<idleLimit) {
+				active.idle(waitNS, noWorkCount, canSleep);
+				if (0==noWorkCount) {
+					idle.idle(0, 0, canSleep);//reset the backoff
+				}
+			} else {
+				idle.idle(waitNS, noWorkCount, canSleep);
+			}
+		}
+	}
+
+}
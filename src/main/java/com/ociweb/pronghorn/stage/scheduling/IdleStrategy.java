@@ -0,0 +1,16 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+/**
+ * Decides how a scheduler thread waits between blocks of its script.
+ * Each instance is used by a single thread so it may keep state.
+ */
+public interface IdleStrategy {
+
+	/**
+	 * @param waitNS time until the next block is due, zero or less if it is already due
+	 * @param noWorkCount consecutive blocks where no stage did work and none of the input pipes had data
+	 * @param canSleep false when the group has producers, we can not see their work so long sleeps are unsafe
+	 */
+	void idle(long waitNS, long noWorkCount, boolean canSleep);
+
+}
@@ -32,6 +32,7 @@ import com.ociweb.pronghorn.stage.monitor.PipeMonitorCollectorStage;
 import com.ociweb.pronghorn.stage.monitor.PipeMonitorStage;
 import com.ociweb.pronghorn.util.Appendables;
 import com.ociweb.pronghorn.util.BloomFilter;
+import com.ociweb.pronghorn.util.PinningUtil;
 import com.ociweb.pronghorn.util.primitive.IntArrayHolder;
 
 public class ScriptedFixedThreadsScheduler extends StageScheduler {
@@ -41,7 +42,7 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 	private ExecutorService executorService;
 	private volatile Throwable firstException;//will remain null if nothing is wrong
 	static final Logger logger = LoggerFactory.getLogger(ScriptedFixedThreadsScheduler.class);
-	private ScriptedNonThreadScheduler[] ntsArray;
+	volatile ScriptedNonThreadScheduler[] ntsArray; //replaced when rebalanced
 
 	private StageVisitor longRunVisitor = new StageVisitor() {
 		
@@ -193,6 +194,188 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		
 		
 	}
+	//////////////////////////////
+	//core affinity, when enabled every thread in the process is first moved to
+	//the reserved cores then each script thread pins itself to its own core.
+	//////////////////////////////
+	
+	private static int[] reservedCores = null;
+	
+	/**
+	 * Pin each scheduler thread to a dedicated core, must be called before startup.
+	 * @param housekeepingCores cores kept for GC, JIT and all other threads, eg 0
+	 */
+	public static void enableCorePinning(int ... housekeepingCores) {
+		reservedCores = housekeepingCores;
+	}
+	
+	public static void disableCorePinning() {
+		reservedCores = null;
+	}
+	
+	private int[] pinnedCores;
+	
+	private void pinThread(int ntsIdx, ScriptedNonThreadScheduler nts) {
+		final int[] cores = pinnedCores;
+		if (null!=cores && cores.length>0) {
+			//if there are more threads than cores they will share
+			int core = cores[ntsIdx%cores.length];
+			if (PinningUtil.pinCurrentThread(core)) {
+				int s = nts.stages.length;
+				while (--s>=0) {
+					GraphManager.recordCore(nts.stages[s], core, graphManager);
+				}
+				logger.info("thread {} pinned to core {}", nts.name(), core);
+			}
+		}
+	}
+	
+	//////////////////////////////
+	//online rebalancing, traffic moves between modules over time so the 
+	//grouping chosen at startup is not always right. On a fixed period the 
+	//hottest group is split at its slowest stage and the two coldest groups 
+	//are merged so the split off stages can take over the freed thread.
+	//////////////////////////////
+	
+	//zero disables rebalancing, set before startup
+	public static long defaultRebalancePeriodNS = 0;
+	
+	private long rebalancePeriodNS = defaultRebalancePeriodNS;
+	private static final int hotPctLimit = 70;  //thread busy over this pct is hot
+	private static final int coldPctLimit = 5;  //thread busy under this pct is cold
+	private static final int coldWorkPctLimit = 10; //stage runs finding work under this pct
+	
+	private long[] lastElapsedTotal;
+	private long[] lastRunCount;
+	private long[] lastWorkCount;
+	private DidWorkMonitor[] lastMonitor;
+	
+	public void setRebalancePeriod(long periodNS) {
+		rebalancePeriodNS = periodNS;
+	}
+	
+	private Runnable buildRebalancer() {
+		return new NamedRunnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (!isShutdownRequested()) {
+						Thread.sleep(rebalancePeriodNS/1_000_000L, (int)(rebalancePeriodNS%1_000_000L));
+						rebalance(rebalancePeriodNS);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public String name() {
+				return "Rebalancer";
+			}
+
+			@Override
+			public void setThreadId(long id) {
+			}
+		};
+	}
+	
+	private boolean isShutdownRequested() {
+		int i = ntsArray.length;
+		while (--i>=0) {
+			if (ScriptedNonThreadScheduler.isShutdownRequested(ntsArray[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * One rebalance step, called only from the rebalancer thread.
+	 * @return true if the groups were changed
+	 */
+	boolean rebalance(long periodNS) {
+		final ScriptedNonThreadScheduler[] localArray = ntsArray;
+		final int count = localArray.length;
+		if (null==lastElapsedTotal) {
+			lastElapsedTotal = new long[count];
+			lastRunCount = new long[count];
+			lastWorkCount = new long[count];
+			lastMonitor = new DidWorkMonitor[count];
+		}
+
+		int hotIdx = -1;
+		long hotBusy = (periodNS*hotPctLimit)/100;
+		int coldA = -1;
+		int coldB = -1;
+		long coldABusy = Long.MAX_VALUE;
+		long coldBBusy = Long.MAX_VALUE;
+		
+		int i = count;
+		while (--i>=0) {
+			ScriptedNonThreadScheduler nts = localArray[i];
+			DidWorkMonitor monitor = nts.didWorkMonitor();
+			long elapsed = nts.elapsedTotal();
+			long runs = DidWorkMonitor.runCount(monitor);
+			long work = DidWorkMonitor.workCount(monitor);
+			
+			if (monitor == lastMonitor[i] && !nts.isEmpty()) {
+				long busy = elapsed-lastElapsedTotal[i];
+				long runDelta = runs-lastRunCount[i];
+				long workPct = runDelta<=0 ? 0 : (100*(work-lastWorkCount[i]))/runDelta;
+				
+				if (busy>hotBusy && nts.stages.length>1) {
+					hotBusy = busy;
+					hotIdx = i;
+				} else if (busy < (periodNS*coldPctLimit)/100 && workPct < coldWorkPctLimit) {
+					if (busy<coldABusy) {
+						coldB = coldA;
+						coldBBusy = coldABusy;
+						coldA = i;
+						coldABusy = busy;
+					} else if (busy<coldBBusy) {
+						coldB = i;
+						coldBBusy = busy;
+					}
+				}
+			}
+			//when the monitor changes the group was rebuilt so history starts over
+			lastMonitor[i] = monitor;
+			lastElapsedTotal[i] = elapsed;
+			lastRunCount[i] = runs;
+			lastWorkCount[i] = work;
+		}
+		
+		if (hotIdx<0 || coldA<0 || coldB<0) {
+			return false;
+		}
+		
+		ScriptedNonThreadScheduler hot = localArray[hotIdx];
+		//the stage run times are written by the thread running hot, so they are read
+		//while holding its lock which also keeps the split point valid until we split
+		hot.takeOwnership();
+		try {
+			int splitIdx = hot.recommendedSplitPoint(graphManager);
+			if (splitIdx<=0 || hot.reverseOrder) {
+				return false; //nothing would remain on the old thread
+			}
+	
+			//both cold groups now run on coldA's thread
+			localArray[coldA].merge(localArray[coldB]);		
+			//the hot stage and those following it take over coldB's thread
+			ScriptedNonThreadScheduler isolated = hot.splitOn(splitIdx);
+			
+			ScriptedNonThreadScheduler[] newArray = localArray.clone();
+			newArray[coldB] = isolated;
+			ntsArray = newArray;
+			
+			logger.info("rebalanced, isolated {} and merged into {}", isolated.name(), localArray[coldA].name());
+			return true;
+		} finally {
+			hot.releaseOwnership();
+		}
+	}
+	
 	//////////////////////////////
 	//////////////////////////////
 	
@@ -228,6 +411,12 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		
 	}
 
+	//each array of stages becomes one thread, used to test with known groups
+	ScriptedFixedThreadsScheduler(GraphManager graphManager, PronghornStage[][] stageArrays) {
+		super(graphManager);
+		createSchedulers(graphManager, stageArrays);
+	}
+
 	public static PronghornStage[][] buildStageGroups(final GraphManager graphManager, int targetThreadCount, boolean enforceLimit) {
 		//must add 1 for the tree of roots also adding 1 more to make hash more efficient.
 	    final int countStages = GraphManager.countStages(graphManager);  
@@ -1371,6 +1560,14 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 			}        	
         };
         
+        if (null!=reservedCores && PinningUtil.isSupported()) {
+        	//read before moving this thread onto the reserved cores
+        	pinnedCores = PinningUtil.availableCores(reservedCores);
+        	int moved = PinningUtil.pinAllThreads(reservedCores);
+        	logger.info("{} threads kept on reserved cores {}, scheduler threads use {}", 
+        			    moved, PinningUtil.cpuList(reservedCores), PinningUtil.cpuList(pinnedCores));
+        }
+        
         this.executorService = Executors.newCachedThreadPool(threadFactory);
     
 
@@ -1378,7 +1575,7 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 		
 		int i = ntsArray.length;
 		while (--i>=0) {
-			executorService.execute(buildRunnable(allStagesLatch, ntsArray[i]));
+			executorService.execute(buildRunnable(allStagesLatch, ntsArray[i], i));
 		}		
 		
 		logger.trace("waiting for startup");
@@ -1390,21 +1587,28 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
         }
 		logger.trace("all stages started up");
 		
-		//once code is complete we can scan for all the NIds which are needed for core affinity.
-		//PinningUtil.visitStacks();
+		if (rebalancePeriodNS>0 && ntsArray.length>=3) {
+			executorService.execute(buildRebalancer());
+		}
+		
 		
 	}
 
 	
-	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final ScriptedNonThreadScheduler nts) {
+	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final ScriptedNonThreadScheduler nts, final int ntsIdx) {
 		assert(null!=allStagesLatch);
 		assert(null!=nts);
+		
+		if (rebalancePeriodNS>0) {
+			nts.recordElapsedTime(true);
+		}
 	
 		return new NamedRunnable() {
 
 			@Override
 			public void run() {
 				
+				pinThread(ntsIdx, nts);
 				nts.startup();
 				
 				try {
@@ -1413,18 +1617,25 @@ public class ScriptedFixedThreadsScheduler extends StageScheduler {
 			        } catch (BrokenBarrierException e) {
 			        }
 				
-	
+				ScriptedNonThreadScheduler active = nts;
 				try {
 					long c = 0;
-					while (!ScriptedNonThreadScheduler.isShutdownRequested(nts)) {
-						ScriptedNonThreadScheduler.playScript(nts);
+					while (!ScriptedNonThreadScheduler.isShutdownRequested(active)) {
+						ScriptedNonThreadScheduler.playScript(active);
 						if ((++c&0xFFFF)==0) {
 							hangDetection(System.nanoTime());
 						}
+						//a rebalance emptied this script and gave this thread new work
+						if (active.isEmpty() && active != ntsArray[ntsIdx]) {
+							active.releaseOwnership();
+							active = ntsArray[ntsIdx];
+							active.takeOwnership();
+							pinThread(ntsIdx, active);
+						}
 					}		
 				} catch (InterruptedException e) {
 					Thread.currentThread().interrupt();	
-					nts.shutdown();
+					active.shutdown();
 					return;
 				}
 
@@ -92,6 +92,19 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 	
     private byte[] stateArray;
     
+    //when true run times are recorded even if telemetry is not enabled
+    private boolean recordElapsed = false;
+    //total ns of work done by this script, only written by the thread running it
+    private volatile long elapsedNS;
+    //run times of each stage in this script, indexed like stages and rebuilt with them
+    private ElapsedTimeRecorder[] stageElapsed;
+    
+    //name from IdleStrategies used when no stage in the group has an IDLE_STRATEGY nota, 
+    //null falls back to the original fixed timing heuristics
+    public static String defaultIdleStrategy = IdleStrategies.ADAPTIVE;
+    private IdleStrategy idleStrategy;
+    private boolean idleStrategyFixed = false;
+    
     public int indexOfStage(PronghornStage stage) {
     	int i = stages.length;
     	while (--i>=0) {
@@ -112,9 +125,10 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
     	int groupId = threadGroupIdGen.incrementAndGet();
     	
     	this.didWorkMonitor = new DidWorkMonitor();
+    	this.stageElapsed = recordElapsed ? newElapsedRecorders(stages) : null;
     	
     	
-    	if (null==stages) {
+    	if (null==stages || 0==stages.length) {
     		schedule = new ScriptedSchedule(0, new int[0], 0);
     		//skipScript = new int[0];
     		return;
@@ -179,6 +193,10 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
             rates[k] = scheduleRate;
         }
 
+        if (!idleStrategyFixed) {
+        	idleStrategy = selectIdleStrategy(graphManager, stages);
+        }
+
         // Build the script.
         schedule = PMath.buildScriptedSchedule(rates, reverseOrder);
 
@@ -629,7 +647,7 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 						waitBeforeRun(that, System.nanoTime());
 		
 						scheduleIdx = that.runBlock(scheduleIdx, script, that.stages, that.graphManager,
-								GraphManager.isTelemetryEnabled(that.graphManager));
+								that.recordElapsed || GraphManager.isTelemetryEnabled(that.graphManager));
 		        }
 		
 				checkForLongRun(that);
@@ -641,7 +659,10 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		final long wait = that.blockStartTime - now;
 		assert(wait<=that.schedule.commonClock) : "wait for next cycle was longer than cycle definition";
 
-		if (Thread.currentThread().getPriority()==Thread.MAX_PRIORITY) {
+		if (null!=that.idleStrategy) {
+			boolean canSleep = that.accumulateWorkHistory();
+			that.idleStrategy.idle(wait, that.noWorkCounter, canSleep);
+		} else if (Thread.currentThread().getPriority()==Thread.MAX_PRIORITY) {
 			boolean isNormalCase = that.accumulateWorkHistory();
 			if (that.noWorkCounter > 100_000) { //TODO: base on time passing...
 				//System.err.println("zzzz.. "+that.noWorkCounter);
@@ -663,6 +684,35 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		}
 	}
 
+	private static IdleStrategy selectIdleStrategy(GraphManager graphManager, PronghornStage[] stages) {
+		int i = stages.length;
+		while (--i>=0) {
+			Object name = GraphManager.getNota(graphManager, stages[i].stageId, GraphManager.IDLE_STRATEGY, null);
+			if (null!=name) {
+				IdleStrategy result = IdleStrategies.newStrategy(String.valueOf(name));
+				if (null!=result) {
+					return result;
+				}
+				logger.warn("unknown idle strategy {} on stage {}", name, stages[i]);
+			}
+		}
+		return IdleStrategies.newStrategy(defaultIdleStrategy);
+	}
+
+	/**
+	 * Replace the idle strategy chosen from the IDLE_STRATEGY notas, this choice is kept
+	 * when the schedule is rebuilt. Null restores the original fixed timing heuristics.
+	 * Must be called by the thread running this scheduler or before it is started.
+	 */
+	public void setIdleStrategy(IdleStrategy idleStrategy) {
+		this.idleStrategy = idleStrategy;
+		this.idleStrategyFixed = true;
+	}
+
+	public IdleStrategy idleStrategy() {
+		return idleStrategy;
+	}
+
 	private static void checkForLongRun(ScriptedNonThreadScheduler that) {
 		//this must NOT be inside the lock because this visit can cause a modification
 		//to this same scheduler which will require the lock.
@@ -696,6 +746,7 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 	//based on the presence of work load
 	long totalRequiredSleep = 0;
 	long noWorkCounter = 0;
+	boolean blockDidWork = true;
 	/////////////////
 	
 	private void waitForBatch(long local) throws InterruptedException {
@@ -799,28 +850,20 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 
 	@SuppressWarnings("unchecked")
 	private boolean accumulateWorkHistory() {
+		//stages without inputs are only seen through their did work reports
+		boolean hasWork = blockDidWork;
+		blockDidWork = false;
 		int p = inputPipes.length;
-		if (p==0) {
+		while (!hasWork && --p>=0) {
+			//this does dirty checks so we must be sure no asserts are used
+			hasWork = !Pipe.isEmpty(inputPipes[p]);
+		}
+		if (hasWork) {
 			noWorkCounter = 0;
-			return false;
 		} else {
-		
-			boolean hasData=false;
-			while (--p>=0) {		
-				//this does dirty checks so we must be sure no asserts are used
-				if (!Pipe.isEmpty(inputPipes[p])) {
-					hasData=true;
-					break;
-				}
-			}
-			if (hasData) {
-				noWorkCounter = 0;	
-			} else {			
-				noWorkCounter++;
-			}
-			return producersIdx.length==0;
+			noWorkCounter++;
 		}
-		
+		return inputPipes.length>0 && producersIdx.length==0;
 	}
 	
 	private int runBlock(int scheduleIdx, int[] script, 
@@ -884,6 +927,7 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		shutDownRequestedHere = runStageImpl(this, gm, shutDownRequestedHere, start, stage);		
 		if (!DidWorkMonitor.didWork(localDidWork)) {		
 		} else {
+			blockDidWork = true;
 			ScriptedNonThreadScheduler.recordRunResults(
 					         this, gm, recordTime, 
 					         inProgressIdx, start, SLAStart, stage);
@@ -959,6 +1003,9 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 
 			if (!GraphManager.accumRunTimeNS(gm, stage.stageId, duration, now)){
 				assert(reportLowAccuracyClock(that));
+			} else if (that.recordElapsed) {
+				ElapsedTimeRecorder.record(that.stageElapsed[inProgressIdx], duration);
+				that.elapsedNS += duration;
 			}
 		}
 	}
@@ -1217,6 +1264,32 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		return sum;
 	}
 	
+	/**
+	 * Total ns of work done by all the stages of this script. Only collected
+	 * after recordElapsedTime(true) was called, safe to read from any thread.
+	 */
+	public long elapsedTotal() {
+		return elapsedNS;
+	}
+	
+	/**
+	 * Sum the run time of this script for elapsedTotal(), this does not turn on
+	 * the elapsed time histograms of the GraphManager which telemetry uses.
+	 */
+	public void recordElapsedTime(boolean value) {
+		recordElapsed = value;
+		stageElapsed = value ? newElapsedRecorders(stages) : null;
+	}
+	
+	private static ElapsedTimeRecorder[] newElapsedRecorders(PronghornStage[] stages) {
+		int i = null==stages ? 0 : stages.length;
+		ElapsedTimeRecorder[] result = new ElapsedTimeRecorder[i];
+		while (--i>=0) {
+			result[i] = new ElapsedTimeRecorder();
+		}
+		return result;
+	}
+	
 	//if this stage has no inputs which came from this
 	//same array of stages then yes it has no local inputs
 	private boolean hasNoLocalInputs(int idx) {
@@ -1248,7 +1321,9 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 				
 		int i = stages.length;
 		while (--i>=0) {
-			long elap = GraphManager.elapsedAtPercentile(gm,stages[i].stageId, .80f);
+			//when this script records its own run times they are read under the modification lock
+			long elap = null!=stageElapsed ? ElapsedTimeRecorder.elapsedAtPercentile(stageElapsed[i], .80f)
+					                       : GraphManager.elapsedAtPercentile(gm,stages[i].stageId, .80f);
 		
 			//find the general largest
 			if (elap > aMax) {
@@ -1299,15 +1374,11 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 			}
 
 			//clear old monitor before we build new ones.
-			int k = stages.length;
-			while (--k>=0) {
-				if (null!=stages[k]) {
-		    		GraphManager.removePublishFromListener(graphManager, stages[k], didWorkMonitor);
-				}
-			}
+			removeWorkMonitor();
 			/////////////////////
     		
 			result = new ScriptedNonThreadScheduler(graphManager, reverseOrder, resultStages);
+			result.recordElapsedTime(recordElapsed);
 			buildSchedule(graphManager, localStages, reverseOrder);
 	        setupHousekeeping();
 
@@ -1319,6 +1390,75 @@ public class ScriptedNonThreadScheduler extends StageScheduler implements Runnab
 		}
 	}
 
+	////////////////////
+	//the modification lock is held by the thread running this script, these
+	//allow a whole script to be handed from one thread to another. Because only
+	//the lock holder runs the script each pipe keeps a single producer and consumer.
+	////////////////////
+	boolean tryTakeOwnership() {
+		return modificationLock.tryLock();
+	}
+	
+	void takeOwnership() {
+		modificationLock.lock();
+	}
+	
+	void releaseOwnership() {
+		if (modificationLock.isHeldByCurrentThread()) {
+			modificationLock.unlock();
+		}
+	}
+	
+	/**
+	 * Moves all the stages of the other script onto the end of this one. The other
+	 * script is left empty so the thread running it can be given new work.
+	 */
+	public void merge(ScriptedNonThreadScheduler other) {
+		
+		logger.info("-------------- merging schedulers -------------------------");
+		
+		assert(other!=this);
+		modificationLock.lock();
+		try {
+			other.modificationLock.lock();
+			try {
+				PronghornStage[] joined = new PronghornStage[stages.length+other.stages.length];
+				System.arraycopy(stages, 0, joined, 0, stages.length);
+				System.arraycopy(other.stages, 0, joined, stages.length, other.stages.length);
+				
+				removeWorkMonitor();
+				other.removeWorkMonitor();
+				
+				buildSchedule(graphManager, joined, reverseOrder);
+				setupHousekeeping();
+				
+				other.buildSchedule(graphManager, new PronghornStage[0], other.reverseOrder);
+				other.setupHousekeeping();
+			} finally {
+				other.modificationLock.unlock();
+			}
+		} finally {
+			modificationLock.unlock();
+		}
+	}
+
+	private void removeWorkMonitor() {
+		int k = stages.length;
+		while (--k>=0) {
+			if (null!=stages[k]) {
+	    		GraphManager.removePublishFromListener(graphManager, stages[k], didWorkMonitor);
+			}
+		}
+	}
+	
+	public boolean isEmpty() {
+		return null==stages || 0==stages.length;
+	}
+	
+	public DidWorkMonitor didWorkMonitor() {
+		return didWorkMonitor;
+	}
+	
 	//                                        ms  mi ns  must use longs!
 	private final static long hangTimeNS = 1_000_000_000L * 20L;//20 sec;
 	public PronghornStage hungStage(long nowNS) {
@@ -74,6 +74,16 @@ public abstract class StageScheduler {
 
 	
 
+	private static boolean workStealing = false;
+	
+	/**
+	 * When enabled defaultScheduler will build a WorkStealingScheduler so idle
+	 * threads can take stage groups from busy ones as the load shifts.
+	 */
+	public static void useWorkStealing(boolean value) {
+		workStealing = value;
+	}
+	
 	private static int idealThreadCount() {
 		return Runtime.getRuntime().availableProcessors()*2;
 	}
@@ -99,6 +109,9 @@ public abstract class StageScheduler {
 			      //      more efficient however this scheduler is much simpler.
 				  logger.info("Threads in use {}, one per stage.", countStages);
 		          return new ThreadPerStageScheduler(gm);
+		} else if (workStealing) {
+				  logger.info("Targeted threads in use {}, fixed limit with stage groups moved between threads as load changes.", targetThreadCountLimit);
+				  return new WorkStealingScheduler(gm, targetThreadCountLimit, threadLimitHard);
 		} else {
 				  logger.info("Targeted threads in use {}, fixed limit with fixed script. NOTE: More threads may be used use to graph complexity and telemetry usage.", targetThreadCountLimit);
 				  return new ScriptedFixedThreadsScheduler(gm, targetThreadCountLimit, threadLimitHard);
@@ -109,6 +122,10 @@ public abstract class StageScheduler {
 		return new ThreadPerStageScheduler(gm);
 	}
 	
+	public static StageScheduler workStealing(GraphManager gm, int threadCountLimit, boolean isHardLimit) {
+		return new WorkStealingScheduler(gm, threadCountLimit, isHardLimit);
+	}
+	
 	public static StageScheduler fixedThreads(GraphManager gm, int threadCountLimit, boolean isHardLimit) {
 		return new FixedThreadsScheduler(gm, threadCountLimit, isHardLimit);
 	}
@@ -0,0 +1,375 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.util.Appendables;
+import com.ociweb.pronghorn.util.BloomFilter;
+
+/**
+ * Variant of the ScriptedFixedThreadsScheduler where the stage groups are not bound
+ * to a single thread for the life of the graph. The graph is split into more groups
+ * than threads and each thread starts with a share of them. Every balance period each
+ * thread measures the work done by its groups from the ElapsedTimeRecorder data and
+ * when it is carrying less than the busiest thread it takes one whole group from it.
+ *
+ * Groups are always moved whole and are only run by the thread holding the group
+ * modification lock so every pipe keeps its single producer and single consumer.
+ */
+public class WorkStealingScheduler extends StageScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(WorkStealingScheduler.class);
+
+	//groups are built finer than the thread count so there is something to steal
+	public static int groupsPerThread = 2;
+
+	private static final long balancePeriodNS = 100_000_000L;//100ms
+	private static final long idleParkNS = 100_000L;
+
+	private final ScriptedNonThreadScheduler[] groups;
+	private final int threadCount;
+
+	//worker index which is to run each group, only changed by a steal
+	private final AtomicIntegerArray assignment;
+	//ns of work done by each group over the last balance period
+	private final AtomicLongArray groupLoad;
+	//sum of groupLoad for each worker over the last balance period
+	private final AtomicLongArray workerLoad;
+	//elapsed total at the start of the period, handed over with the group lock
+	private final long[] groupElapsedBase;
+
+	private ExecutorService executorService;
+	private volatile boolean shutdownRequested;
+	private final BloomFilter hangman = new BloomFilter(10000, .00001);
+
+	public WorkStealingScheduler(GraphManager graphManager, int targetThreadCount, boolean enforceLimit) {
+		this(graphManager, targetThreadCount, enforceLimit, null);
+	}
+
+	//each array of stages becomes one group, null to build them from the graph
+	WorkStealingScheduler(GraphManager graphManager, int targetThreadCount, boolean enforceLimit, PronghornStage[][] stageArrays) {
+		super(graphManager);
+
+		if (null==stageArrays) {
+			stageArrays = ScriptedFixedThreadsScheduler.buildStageGroups(graphManager,
+				                                  targetThreadCount*groupsPerThread, enforceLimit);
+		}
+
+		int count = 0;
+		int j = stageArrays.length;
+		while (--j>=0) {
+			if (null!=stageArrays[j]) {
+				count++;
+			}
+		}
+
+		groups = new ScriptedNonThreadScheduler[count];
+		int g = 0;
+		int k = stageArrays.length;
+		while (--k>=0) {
+			if (null!=stageArrays[k]) {
+				groups[g] = new ScriptedNonThreadScheduler(graphManager, false, stageArrays[k]);
+				groups[g].recordElapsedTime(true);
+				g++;
+			}
+		}
+
+		threadCount = Math.max(1, Math.min(targetThreadCount, count));
+		assignment = new AtomicIntegerArray(count);
+		groupLoad = new AtomicLongArray(count);
+		workerLoad = new AtomicLongArray(threadCount);
+		groupElapsedBase = new long[count];
+
+		//no history yet so just deal them out
+		int i = count;
+		while (--i>=0) {
+			assignment.set(i, i%threadCount);
+		}
+
+		logger.info("work stealing across {} threads with {} stage groups", threadCount, count);
+	}
+
+	@Override
+	public void startup() {
+
+		if (groups.length==0) {
+			logger.info("no stages to schedule");
+			return;
+		}
+
+		executorService = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			private int id;
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "WorkStealing-"+(id++));
+			}
+		});
+
+		CyclicBarrier allStagesLatch = new CyclicBarrier(threadCount+1);
+		int w = threadCount;
+		while (--w>=0) {
+			executorService.execute(buildRunnable(allStagesLatch, w));
+		}
+
+		//force wait for all stages to complete startup before this method returns.
+		try {
+			allStagesLatch.await();
+		} catch (InterruptedException e) {
+		} catch (BrokenBarrierException e) {
+		}
+		logger.trace("all stages started up");
+	}
+
+	private Runnable buildRunnable(final CyclicBarrier allStagesLatch, final int worker) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				final boolean[] owned = new boolean[groups.length];
+
+				//each group is started on the thread which first owns it
+				int g = groups.length;
+				while (--g>=0) {
+					if (worker == assignment.get(g)) {
+						groups[g].startup();
+						owned[g] = true;
+					}
+				}
+
+				try {
+					allStagesLatch.await();
+				} catch (InterruptedException e) {
+				} catch (BrokenBarrierException e) {
+				}
+
+				try {
+					runWorker(worker, owned);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					//allow any remaining owner to finish the shutdown
+					int r = owned.length;
+					while (--r>=0) {
+						if (owned[r]) {
+							groups[r].releaseOwnership();
+						}
+					}
+				}
+			}
+		};
+	}
+
+	private void runWorker(final int worker, final boolean[] owned) throws InterruptedException {
+		long nextBalance = System.nanoTime()+balancePeriodNS;
+		long c = 0;
+		while (!isComplete()) {
+			boolean ran = false;
+			int g = groups.length;
+			while (--g>=0) {
+				ScriptedNonThreadScheduler nts = groups[g];
+				if (worker == assignment.get(g)) {
+					//a stolen group can only be run once the old owner lets go of it
+					if (owned[g] || (owned[g] = nts.tryTakeOwnership())) {
+						if (!ScriptedNonThreadScheduler.isShutdownRequested(nts)) {
+							ScriptedNonThreadScheduler.playScript(nts);
+							ran = true;
+						}
+					}
+				} else if (owned[g]) {
+					//this group was stolen, hand it over now that the pass is done
+					owned[g] = false;
+					nts.releaseOwnership();
+				}
+			}
+
+			long now = System.nanoTime();
+			if (now > nextBalance) {
+				measureLoad(worker, owned);
+				steal(worker);
+				nextBalance = now+balancePeriodNS;
+			}
+
+			if (!ran) {
+				LockSupport.parkNanos(idleParkNS);
+			}
+			if ((++c&0xFFFF)==0) {
+				hangDetection(now);
+			}
+		}
+	}
+
+	private boolean isComplete() {
+		if (shutdownRequested) {
+			return true;
+		}
+		int g = groups.length;
+		while (--g>=0) {
+			if (!ScriptedNonThreadScheduler.isShutdownRequested(groups[g])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void measureLoad(int worker, boolean[] owned) {
+		long sum = 0;
+		int g = groups.length;
+		while (--g>=0) {
+			if (owned[g]) {
+				long total = groups[g].elapsedTotal();
+				long load = total-groupElapsedBase[g];
+				groupElapsedBase[g] = total;
+				groupLoad.set(g, load);
+				sum += load;
+			}
+		}
+		workerLoad.set(worker, sum);
+	}
+
+	/**
+	 * Take the largest group from the busiest worker which still leaves that
+	 * worker carrying more than this one. At most one group is taken per period.
+	 */
+	private void steal(int thief) {
+		int victim = -1;
+		long victimLoad = workerLoad.get(thief);
+		int w = threadCount;
+		while (--w>=0) {
+			long load = workerLoad.get(w);
+			if (load > victimLoad) {
+				victimLoad = load;
+				victim = w;
+			}
+		}
+		if (victim<0) {
+			return;
+		}
+		long gap = victimLoad - workerLoad.get(thief);
+
+		int best = -1;
+		long bestLoad = 0;
+		int victimGroups = 0;
+		int g = groups.length;
+		while (--g>=0) {
+			if (victim == assignment.get(g)) {
+				victimGroups++;
+				long load = groupLoad.get(g);
+				//only move if the result is more even than what we have now
+				if (load > bestLoad && (load<<1) < gap) {
+					bestLoad = load;
+					best = g;
+				}
+			}
+		}
+
+		if (best>=0 && victimGroups>1 && assignment.compareAndSet(best, victim, thief)) {
+			workerLoad.addAndGet(victim, -bestLoad);
+			workerLoad.addAndGet(thief, bestLoad);
+			if (logger.isDebugEnabled()) {
+				logger.debug("worker {} took group {} from worker {}", thief, groups[best].name(), victim);
+			}
+		}
+	}
+
+	private void hangDetection(long nowNS) {
+		int c = groups.length;
+		while (--c>=0) {
+			PronghornStage hungStage = groups[c].hungStage(nowNS);
+			if (null != hungStage) {
+				synchronized(hangman) {
+					String stageName = hungStage.toString();
+					if (!hangman.mayContain(stageName)) {
+						long hangTime = groups[c].hangTime(nowNS);
+						logger.info("{} Hung stage {}", Appendables.appendNearestTimeUnit(new StringBuilder(), hangTime), hungStage);
+						hangman.addValue(stageName);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Worker index currently assigned to run the group holding this stage, -1 if not found.
+	 */
+	public int workerOf(PronghornStage stage) {
+		int g = groups.length;
+		while (--g>=0) {
+			if (groups[g].indexOfStage(stage)>=0) {
+				return assignment.get(g);
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean checkForException() {
+		int i = groups.length;
+		while (--i>=0) {
+			groups[i].checkForException();
+		}
+		return true;
+	}
+
+	@Override
+	public void shutdown() {
+		int i = groups.length;
+		while (--i>=0) {
+			if (!ScriptedNonThreadScheduler.isShutdownRequested(groups[i])) {
+				groups[i].shutdown();
+			}
+		}
+		shutdownRequested = true;
+	}
+
+	@Override
+	public void awaitTermination(long timeout, TimeUnit unit, Runnable clean, Runnable dirty) {
+		if (awaitTermination(timeout, unit)) {
+			clean.run();
+		} else {
+			dirty.run();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		int i = groups.length;
+		boolean cleanExit = true;
+		while (--i>=0) {
+			cleanExit &= groups[i].awaitTermination(timeout, unit);
+		}
+		if (!cleanExit) {
+			validShutdownState();
+			return false;
+		}
+		//will be null upon empty project, this is ok, just exit.
+		if (null!=executorService) {
+			executorService.shutdownNow();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean TerminateNow() {
+		shutdown();
+		try {
+			//give the stages 1 full second to shut down cleanly
+			return null==executorService || executorService.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			executorService.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+}
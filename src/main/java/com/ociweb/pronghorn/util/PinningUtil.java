@@ -1,47 +1,218 @@
 package com.ociweb.pronghorn.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Core affinity for threads on Linux. The native thread id is read from 
+ * /proc/thread-self and the affinity is applied with taskset (util-linux) so
+ * no native library is required. On any other platform every call returns
+ * false and threads are left where the OS puts them.
+ */
 public class PinningUtil {
 
-	//new core afinity scheduler? for the ScriptedFixedThread...
-	//switch all threads to 1 or 2 of the cores.
-	//the remaining cores are each matched to a specific scheduler 
-	//rebalance the work every minute or so based on time and load.
-	//1, count cores, reduce threads to match, and assign.
-	//if we have too many threads group them on cores anyway?
-	
-	
-	//get the pid first
-	//pgrep java
-	//
-	//thread dump for this process
-	//jstack -l 9291
-    //
-	//find the name of the thread we want to pin.
-	//grep main <stack dump> | grep nid
-	//
-	//get the nid and convert from hex to decimal
-	//awk -F'nid=| runnable' '{printf "%d",$2}'
-	//
-	///all together
-	//jstack -l `pgrep java` | grep main | grep nid | awk -F'nid=| runnable' '{printf "%d",$2}'
-    //take value
-	
-	//pin the thread to this core
-	//taskset -p 0x00000001 <java thread pid>
-	//read afinity
-	//taskset -p <java thread pid>
-	//NOTE: for general use FF is used for all cores.
-	
-	///perf stat
-	//nate@Noah:~$ pgrep java
-	//9291
-	//nate@Noah:~$ perf stat -p 9291
+	private static final Logger logger = LoggerFactory.getLogger(PinningUtil.class);
+	
+	private static final Path threadSelf = Paths.get("/proc/thread-self");
+	private static final File processTasks = new File("/proc/self/task");
+	private static final String CPUS_ALLOWED_LIST = "Cpus_allowed_list:";
+	private static Boolean supported;
+	
+	public static boolean isSupported() {
+		if (null==supported) {
+			supported = System.getProperty("os.name", "").toLowerCase().indexOf("linux")>=0 
+					    && nativeThreadId()>=0
+					    && setAffinity(nativeThreadId(), null);
+			if (!supported) {
+				logger.info("core pinning is not supported on this platform, requires Linux with taskset");
+			}
+		}
+		return supported;
+	}
+	
+	/**
+	 * @return the OS thread id of the calling thread or -1 if it can not be found
+	 */
+	public static int nativeThreadId() {
+		try {
+			//link is of the form <pid>/task/<tid>
+			String link = Files.readSymbolicLink(threadSelf).toString();
+			return Integer.parseInt(link.substring(link.lastIndexOf('/')+1));
+		} catch (Throwable t) {
+			return -1;
+		}
+	}
+	
+	public static boolean pinCurrentThread(int core) {
+		int tid = nativeThreadId();
+		return tid>=0 && setAffinity(tid, Integer.toString(core));
+	}
+	
+	/**
+	 * Moves every thread currently in this process onto the given cores. Called once
+	 * before the scheduler threads are pinned so GC, JIT and other housekeeping
+	 * threads stay off the cores given to the scheduler. 
+	 * @return count of threads moved
+	 */
+	public static int pinAllThreads(int[] cores) {
+		String cpuList = cpuList(cores);
+		String[] tasks = processTasks.list();
+		int count = 0;
+		if (null!=tasks) {
+			int i = tasks.length;
+			while (--i>=0) {
+				try {
+					if (setAffinity(Integer.parseInt(tasks[i]), cpuList)) {
+						count++;
+					}
+				} catch (NumberFormatException nfe) {
+					//not a task entry
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * @param cpuList cores in taskset list form eg 0,2-3, when null the affinity is only read
+	 */
+	public static boolean setAffinity(int tid, String cpuList) {
+		ProcessBuilder builder = null==cpuList 
+				? new ProcessBuilder("taskset", "-p", Integer.toString(tid))
+				: new ProcessBuilder("taskset", "-p", "-c", cpuList, Integer.toString(tid));
+		builder.redirectErrorStream(true);
+		try {
+			Process process = builder.start();
+			InputStream stream = process.getInputStream();
+			while (stream.read()>=0) {
+				//drain so the process can exit
+			}
+			return 0 == process.waitFor();
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	public static String cpuList(int[] cores) {
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; i<cores.length; i++) {
+			if (i>0) {
+				builder.append(',');
+			}
+			Appendables.appendValue(builder, cores[i]);
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * All the cores the calling thread may run on which are not in the reserved list.
+	 */
+	public static int[] availableCores(int[] reserved) {
+		int[] allowed = allowedCores();
+		int[] temp = new int[allowed.length];
+		int count = 0;
+		for(int i = 0; i<allowed.length; i++) {
+			boolean isReserved = false;
+			int r = reserved.length;
+			while (--r>=0) {
+				isReserved |= (reserved[r]==allowed[i]);
+			}
+			if (!isReserved) {
+				temp[count++] = allowed[i];
+			}
+		}
+		int[] result = new int[count];
+		System.arraycopy(temp, 0, result, 0, count);
+		return result;
+	}
+	
+	/**
+	 * Cores in the affinity mask of the calling thread. Core ids need not start at 0 or be
+	 * contiguous when the JVM runs under taskset or in a cpuset so the mask is read rather
+	 * than counted. When it can not be read 0 up to availableProcessors is assumed.
+	 */
+	public static int[] allowedCores() {
+		int[] result = affinity("thread-self");
+		if (null==result) {
+			int total = Runtime.getRuntime().availableProcessors();
+			result = new int[total];
+			while (--total>=0) {
+				result[total] = total;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return cores in the affinity mask of this thread or null if it can not be read
+	 */
+	public static int[] affinity(int tid) {
+		return affinity("self/task/"+tid);
+	}
+	
+	private static int[] affinity(String task) {
+		try {
+			for(String line: Files.readAllLines(Paths.get("/proc/"+task+"/status"), StandardCharsets.US_ASCII)) {
+				if (line.startsWith(CPUS_ALLOWED_LIST)) {
+					return parseCpuList(line.substring(CPUS_ALLOWED_LIST.length()).trim());
+				}
+			}
+		} catch (Throwable t) {
+			//not Linux or not readable
+		}
+		return null;
+	}
+	
+	/**
+	 * @param cpuList cores in list form eg 0,2-3
+	 * @return the cores in ascending order 
+	 */
+	public static int[] parseCpuList(String cpuList) {
+		int[] temp = new int[16];
+		int count = 0;
+		String[] parts = cpuList.split(",");
+		for(int i = 0; i<parts.length; i++) {
+			String part = parts[i].trim();
+			if (part.length()==0) {
+				continue;
+			}
+			int dash = part.indexOf('-');
+			int first = Integer.parseInt(dash<0 ? part : part.substring(0, dash));
+			int last = dash<0 ? first : Integer.parseInt(part.substring(dash+1));
+			for(int c = first; c<=last; c++) {
+				if (count == temp.length) {
+					int[] grow = new int[count*2];
+					System.arraycopy(temp, 0, grow, 0, count);
+					temp = grow;
+				}
+				temp[count++] = c;
+			}
+		}
+		int[] result = new int[count];
+		System.arraycopy(temp, 0, result, 0, count);
+		Arrays.sort(result);
+		return result;
+	}
+	
+	//Manual equivalent for checking the results from the command line
+	//jstack -l `pgrep java` | grep <thread name> | grep nid   (nid is the tid in hex)
+	//taskset -p <tid>
 
 	public static boolean visitStacks() {
 		
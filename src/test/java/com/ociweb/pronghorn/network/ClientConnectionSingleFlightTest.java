@@ -0,0 +1,94 @@
+package com.ociweb.pronghorn.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ClientConnectionSingleFlightTest {
+
+	private static final byte[] BACKING = new byte[64];
+	private static final int MASK = BACKING.length-1;
+	private static final int PATH_LEN = 6;
+	private static final int HEAD_LEN = 9;
+	
+	static {
+		byte[] request = "/a/b/c/x/y/zHost: x\r\n".getBytes();
+		System.arraycopy(request, 0, BACKING, 0, request.length);
+	}
+	
+	private static void open(ClientConnection cc, int routeId, int pathPos) {
+		cc.openInFlight(routeId, BACKING, MASK, pathPos, PATH_LEN, 12, HEAD_LEN);
+		cc.recordDestinationRouteId(routeId);
+	}
+	
+	private static boolean join(ClientConnection cc, int routeId, int pathPos) {
+		return cc.joinInFlight(routeId, BACKING, MASK, pathPos, PATH_LEN, 12, HEAD_LEN);
+	}
+	
+	@Test
+	public void joinIdenticalRequestTest() throws IOException {
+		ClientConnection cc = new ClientConnection(null, "127.0.0.1", 0, 8089, 0, 0, 1, 0);
+		try {
+			open(cc, 1, 0);
+			assertTrue(join(cc, 2, 0));
+			assertTrue(join(cc, 3, 0));
+			//each destination only gets one copy
+			assertFalse(join(cc, 2, 0));
+			assertFalse(join(cc, 1, 0));
+			//different path
+			assertFalse(join(cc, 4, 6));
+			
+			assertEquals(2, cc.beginFollowers());
+			assertEquals(2, cc.followerRouteId(0));
+			assertEquals(3, cc.followerRouteId(1));
+			//the response has begun so no more may join
+			assertFalse(join(cc, 5, 0));
+		} finally {
+			cc.close();
+		}
+	}
+	
+	@Test
+	public void slotReusedAfterFollowersCopiedTest() throws IOException {
+		ClientConnection cc = new ClientConnection(null, "127.0.0.1", 0, 8089, 0, 0, 1, 0);
+		try {
+			open(cc, 1, 0);
+			assertTrue(join(cc, 2, 0));
+			assertEquals(1, cc.beginFollowers());
+			
+			//the freed slot is opened again for the next request while the first response is in progress
+			open(cc, 6, 0);
+			assertTrue(join(cc, 7, 0));
+			assertEquals(1, cc.followerCount());
+			assertEquals(2, cc.followerRouteId(0));
+			
+			assertEquals(1, cc.consumeDestinationRouteId());
+			assertEquals(1, cc.beginFollowers());
+			assertEquals(7, cc.followerRouteId(0));
+		} finally {
+			cc.close();
+		}
+	}
+	
+	@Test
+	public void droppedFollowersTest() throws IOException {
+		ClientConnection cc = new ClientConnection(null, "127.0.0.1", 0, 8089, 0, 0, 1, 0);
+		try {
+			open(cc, 1, 0);
+			assertTrue(join(cc, 2, 0));
+			assertEquals(1, cc.beginFollowers());
+			
+			//after being told of the failure they are not told again
+			cc.dropFollowers();
+			assertEquals(0, cc.followerCount());
+			assertEquals(0, cc.beginFollowers());
+		} finally {
+			cc.close();
+		}
+	}
+	
+}
@@ -0,0 +1,46 @@
+package com.ociweb.pronghorn.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class DNSResolverTest {
+
+	private static InetAddress[] await(int hostId, String host) throws InterruptedException {
+		long limit = System.currentTimeMillis()+10_000;
+		InetAddress[] result;
+		while (null==(result = DNSResolver.resolve(hostId, host)) && System.currentTimeMillis()<limit) {
+			Thread.sleep(2);
+		}
+		return result;
+	}
+
+	@Test
+	public void resolveIsCachedTest() throws InterruptedException {
+		int hostId = 1000;
+		InetAddress[] first = await(hostId, "localhost");
+		assertNotNull(first);
+		assertTrue(first.length>0);
+		//answered from the cache without starting another lookup
+		assertSame(first, DNSResolver.resolve(hostId, "localhost"));
+
+		DNSResolver.invalidate(hostId);
+		assertNotNull(await(hostId, "localhost"));
+	}
+
+	@Test
+	public void unknownHostTest() throws InterruptedException {
+		int hostId = 1001;
+		InetAddress[] result = await(hostId, "unknown-host.invalid");
+		assertNotNull(result);
+		assertEquals(0, result.length);
+		//failure is remembered
+		assertEquals(0, DNSResolver.resolve(hostId, "unknown-host.invalid").length);
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.ociweb.pronghorn.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+
+public class FileRegionsTest {
+
+	@Test
+	public void lookupRegisteredChannelTest() throws IOException {
+		File f = File.createTempFile("region", "test");
+		f.deleteOnExit();
+		FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+		try {
+			long id = FileRegions.register(channel);
+			assertSame(channel, FileRegions.lookup(id));
+			assertNull(FileRegions.lookup(0));
+
+			FileRegions.release(id);
+			assertNull(FileRegions.lookup(id));
+
+			long id2 = FileRegions.register(channel);
+			assertTrue(id2!=id);
+			channel.close();
+			assertNull(FileRegions.lookup(id2));
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Test
+	public void liveRegionIsNeverReplacedTest() throws IOException {
+		File f = File.createTempFile("region", "test");
+		f.deleteOnExit();
+		FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+		FileChannel other = new RandomAccessFile(f, "r").getChannel();
+		try {
+			long id = FileRegions.register(channel);
+
+			//fill every other slot, the table is full once zero is returned
+			int count = 0;
+			while (0 != FileRegions.register(other)) {
+				assertTrue("more ids than slots", ++count < (1<<12));
+			}
+			assertEquals(0, FileRegions.register(other));
+			assertSame(channel, FileRegions.lookup(id));
+
+			//closed channels give up their slots
+			other.close();
+			FileChannel third = new RandomAccessFile(f, "r").getChannel();
+			try {
+				long id3 = FileRegions.register(third);
+				assertTrue(0 != id3);
+				assertSame(third, FileRegions.lookup(id3));
+				assertSame(channel, FileRegions.lookup(id));
+				FileRegions.release(id3);
+			} finally {
+				third.close();
+			}
+			FileRegions.release(id);
+		} finally {
+			other.close();
+			channel.close();
+		}
+	}
+
+	@Test
+	public void readDescriptorTest() {
+		ByteBuffer buf = ByteBuffer.allocate(32);
+		buf.putLong(123456789012L).putLong(42).putLong(1L<<40);
+		byte[] blob = buf.array();
+
+		//read across the end of the ring
+		int mask = blob.length-1;
+		byte[] ring = new byte[blob.length];
+		int start = 20;
+		int i = 24;
+		while (--i>=0) {
+			ring[mask&(start+i)] = blob[i];
+		}
+
+		assertEquals(123456789012L, FileRegions.readId(ring, start, mask));
+		assertEquals(42, FileRegions.readPosition(ring, start, mask));
+		assertEquals(1L<<40, FileRegions.readCount(ring, start, mask));
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.ociweb.pronghorn.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import org.junit.Test;
+
+public class SSLEngineFactoryTest {
+
+	private static final int PORT = 8443;
+
+	@Test
+	public void resumedHandshakeTest() throws SSLException, InterruptedException {
+		SSLEngineFactory factory = new SSLEngineFactory(TLSCertificates.defaultCerts);
+		factory.initTLSService();
+
+		connect(factory, "localhost");
+		assertEquals(2, factory.fullHandshakes());
+		assertEquals(0, factory.abbreviatedHandshakes());
+
+		//same peer so both sides resume the cached session
+		connect(factory, "localhost");
+		connect(factory, "localhost");
+		assertEquals(2, factory.fullHandshakes());
+		assertEquals(4, factory.abbreviatedHandshakes());
+
+		//new peer is a new session
+		connect(factory, "127.0.0.1");
+		assertEquals(4, factory.fullHandshakes());
+		assertEquals(4, factory.abbreviatedHandshakes());
+	}
+
+	private static void connect(SSLEngineFactory factory, String host) throws SSLException, InterruptedException {
+		Thread.sleep(2);//session creation times only have ms resolution
+		long beginMS = System.currentTimeMillis();
+		SSLEngine client = factory.createSSLEngine(host, PORT);
+		SSLEngine server = factory.createSSLEngine();
+		client.setUseClientMode(true);
+		server.setUseClientMode(false);
+
+		int size = Math.max(client.getSession().getPacketBufferSize(), client.getSession().getApplicationBufferSize());
+		ByteBuffer toServer = ByteBuffer.allocate(size);
+		ByteBuffer toClient = ByteBuffer.allocate(size);
+		ByteBuffer plain = ByteBuffer.allocate(size);
+
+		client.beginHandshake();
+		server.beginHandshake();
+		int limit = 1000;
+		while (isHandshaking(client) || isHandshaking(server)) {
+			assertTrue("handshake did not finish", --limit>=0);
+			step(client, toServer, toClient, plain);
+			step(server, toClient, toServer, plain);
+		}
+
+		//session tickets are sent after the handshake so pass some data back
+		server.wrap(ByteBuffer.wrap("ok".getBytes()), toClient);
+		((Buffer)toClient).flip();
+		while (toClient.hasRemaining()) {
+			((Buffer)plain).clear();
+			if (0 == client.unwrap(toClient, plain).bytesConsumed()) {
+				break;
+			}
+		}
+		toClient.compact();
+
+		factory.handshakeFinished(client, beginMS, false);
+		factory.handshakeFinished(server, beginMS, true);
+		client.closeOutbound();
+		server.closeOutbound();
+	}
+
+	private static boolean isHandshaking(SSLEngine engine) {
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return HandshakeStatus.NOT_HANDSHAKING != status && HandshakeStatus.FINISHED != status;
+	}
+
+	private static void step(SSLEngine engine, ByteBuffer out, ByteBuffer in, ByteBuffer plain) throws SSLException {
+		switch (engine.getHandshakeStatus()) {
+			case NEED_WRAP:
+				engine.wrap(ByteBuffer.allocate(0), out);
+				break;
+			case NEED_UNWRAP:
+				((Buffer)in).flip();
+				((Buffer)plain).clear();
+				engine.unwrap(in, plain);
+				in.compact();
+				break;
+			case NEED_TASK:
+				Runnable task;
+				while (null != (task = engine.getDelegatedTask())) {
+					task.run();
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+}
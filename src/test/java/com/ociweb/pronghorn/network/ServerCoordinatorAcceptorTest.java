@@ -0,0 +1,70 @@
+package com.ociweb.pronghorn.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class ServerCoordinatorAcceptorTest {
+
+	private static ServerCoordinator coordinator(int tracks, int acceptors) {
+		GraphManager gm = new GraphManager();
+		HTTPServerConfig c = NetGraphBuilder.serverConfig(8093, gm);
+		c.setHost("127.0.0.1");
+		c.useInsecureServer();
+		c.setTracks(tracks);
+		c.setAcceptors(acceptors);
+		return c.buildServerCoordinator();
+	}
+	
+	@Test
+	public void connectionIdsArePartitionedTest() throws IOException {
+		ServerCoordinator coordinator = coordinator(4, 2);
+		assertEquals(2, coordinator.acceptors);
+		
+		SocketChannel channel = SocketChannel.open();
+		try {
+			int a = coordinator.acceptors;
+			while (--a>=0) {
+				long id = ServerCoordinator.lookupInsertPosition(coordinator, a);
+				assertTrue(id>=0);
+				assertEquals(a, (int)(id & coordinator.acceptorMask));
+				
+				ServerConnection con = new ServerConnection(null, channel, id, coordinator);
+				ServerCoordinator.setConnection(coordinator, id, con);
+				assertSame(con, ServerCoordinator.getConnection(coordinator, id));
+				assertSame(con, coordinator.connectionForSessionId(id));
+				
+				//the same slot in the other acceptor is a different connection
+				assertNull(ServerCoordinator.getConnection(coordinator, id ^ 1));
+				
+				//pipe index is relative to the pipes owned by this acceptor
+				int pipeIdx = coordinator.responsePipeLineIdx(id);
+				assertTrue(pipeIdx>=0 && pipeIdx < coordinator.maxConcurrentInputs/coordinator.acceptors);
+				assertEquals(pipeIdx, coordinator.checkForResponsePipeLineIdx(id));
+				coordinator.releaseResponsePipeLineIdx(id);
+				assertEquals(-1, coordinator.checkForResponsePipeLineIdx(id));
+				
+				assertSame(con, ServerCoordinator.removeConnection(coordinator, id));
+			}
+		} finally {
+			channel.close();
+		}
+		assertEquals(coordinator.maxConcurrentInputs, coordinator.resposePoolSize());
+	}
+	
+	@Test
+	public void unevenTracksUseOneAcceptorTest() {
+		ServerCoordinator coordinator = coordinator(3, 2);
+		assertEquals(1, coordinator.acceptors);
+		assertEquals(0, coordinator.acceptorMask);
+	}
+	
+}
@@ -0,0 +1,91 @@
+package com.ociweb.pronghorn.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HPACKTest {
+
+	private static byte[] hex(String value) {
+		String v = value.replace(" ", "");
+		byte[] result = new byte[v.length()/2];
+		int i = result.length;
+		while (--i>=0) {
+			result[i] = (byte)Integer.parseInt(v.substring(i*2, (i*2)+2), 16);
+		}
+		return result;
+	}
+
+	private static String decode(HPACK.Decoder decoder, byte[] block) {
+		final StringBuilder builder = new StringBuilder();
+		assertTrue(decoder.decode(block, 0, block.length, new HPACK.HeaderListener() {
+			@Override
+			public void header(byte[] data, int nameStart, int nameLength, int valueStart, int valueLength) {
+				builder.append(new String(data, nameStart, nameLength))
+				       .append(": ")
+				       .append(new String(data, valueStart, valueLength))
+				       .append('\n');
+			}
+		}));
+		return builder.toString();
+	}
+
+	//RFC 7541 C.4, three requests with Huffman coding sharing one dynamic table
+	@Test
+	public void requestsWithHuffmanTest() {
+		HPACK.Decoder decoder = new HPACK.Decoder(1<<12);
+
+		assertEquals(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\n",
+				decode(decoder, hex("82 86 84 41 8c f1 e3 c2 e5 f2 3a 6b a0 ab 90 f4 ff")));
+
+		assertEquals(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\ncache-control: no-cache\n",
+				decode(decoder, hex("82 86 84 be 58 86 a8 eb 10 64 9c bf")));
+
+		assertEquals(":method: GET\n:scheme: https\n:path: /index.html\n:authority: www.example.com\ncustom-key: custom-value\n",
+				decode(decoder, hex("82 87 85 bf 40 88 25 a8 49 e9 5b a9 7d 7f 89 25 a8 49 e9 5b b8 e8 b4 bf")));
+
+		assertFalse(decoder.overflow());
+	}
+
+	@Test
+	public void encodeDecodeTest() {
+		byte[] data = ":status200content-typetext/htmlx-customabcdate2024".getBytes();
+		int[][] fields = new int[][] {{0,7,7,3},{10,12,22,9},{31,8,39,3},{42,4,46,4}};
+
+		HPACK.Encoder encoder = new HPACK.Encoder();
+		HPACK.Decoder decoder = new HPACK.Decoder(1<<12);
+		byte[] block = new byte[256];
+
+		int round = 2;
+		while (--round>=0) {
+			int len = encoder.beginBlock(block, 0);
+			for (int[] f : fields) {
+				len = encoder.encode(block, len, data, f[0], f[1], f[2], f[3], f[0]!=42);
+			}
+			assertEquals(":status: 200\ncontent-type: text/html\nx-custom: abc\ndate: 2024\n",
+					decode(decoder, Arrays.copyOf(block, len)));
+		}
+
+		//after a smaller table is announced the tables must stay in step
+		encoder.setMaxSize(0);
+		int len = encoder.beginBlock(block, 0);
+		len = encoder.encode(block, len, data, 31, 8, 39, 3, true);
+		assertEquals("x-custom: abc\n", decode(decoder, Arrays.copyOf(block, len)));
+	}
+
+	@Test
+	public void invalidHuffmanTest() {
+		byte[] target = new byte[16];
+		assertEquals(15, HPACK.huffmanDecode(hex("f1 e3 c2 e5 f2 3a 6b a0 ab 90 f4 ff"), 0, 12, target, 0));
+		assertEquals("www.example.com", new String(target, 0, 15));
+
+		//padding longer than 7 bits is an error
+		assertEquals(-1, HPACK.huffmanDecode(hex("ff ff ff ff"), 0, 4, target, 0));
+		assertEquals(-2, HPACK.huffmanDecode(hex("f1 e3 c2 e5 f2 3a 6b a0 ab 90 f4 ff"), 0, 12, new byte[4], 0));
+	}
+
+}
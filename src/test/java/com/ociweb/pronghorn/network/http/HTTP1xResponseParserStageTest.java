@@ -0,0 +1,46 @@
+package com.ociweb.pronghorn.network.http;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.schema.NetResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+
+public class HTTP1xResponseParserStageTest {
+
+	@Test
+	public void copyFragmentSkipsUnusedSpaceTest() {
+		Pipe<NetResponseSchema> source = NetResponseSchema.instance.newPipe(4, 100);
+		Pipe<NetResponseSchema> target = NetResponseSchema.instance.newPipe(4, 100);
+		source.initBuffers();
+		target.initBuffers();
+		
+		byte[] sourceBlob = Pipe.blob(source);
+		int i = sourceBlob.length;
+		while (--i>=0) {
+			sourceBlob[i] = (byte)i;
+		}
+		Arrays.fill(Pipe.blob(target), (byte)-1);
+		
+		int start = 3;
+		int len = 10;
+		int indexCount = 2;
+		HTTP1xResponseParserStage.copyFragment(source, start, len, target, start, indexCount);
+		
+		byte[] targetBlob = Pipe.blob(target);
+		int indexStart = source.maxVarLen-(4*indexCount);
+		i = source.maxVarLen;
+		while (--i>=0) {
+			if (i<len || i>=indexStart) {
+				assertEquals("at "+i, sourceBlob[start+i], targetBlob[start+i]);
+			} else {
+				//space between the payload and the index is not copied
+				assertEquals("at "+i, -1, targetBlob[start+i]);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,234 @@
+package com.ociweb.pronghorn.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.FileRegions;
+import com.ociweb.pronghorn.network.schema.NetPayloadSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class HTTP2ConnectionStageTest {
+
+	private static final long CHANNEL = 5;
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+	private static final int TYPE_DATA     = 0x0;
+	private static final int TYPE_HEADERS  = 0x1;
+	private static final int TYPE_SETTINGS = 0x4;
+	private static final int FLAG_END_STREAM  = 0x1;
+	private static final int FLAG_ACK         = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+
+	//RFC 7541 C.4.1 and C.4.2, two requests sharing one dynamic table
+	private static final byte[] FIRST_BLOCK = hex("82 86 84 41 8c f1 e3 c2 e5 f2 3a 6b a0 ab 90 f4 ff");
+	private static final byte[] SECOND_BLOCK = hex("82 86 84 be 58 86 a8 eb 10 64 9c bf");
+
+	private final Pipe<NetPayloadSchema> fromNet = newPipe();
+	private final Pipe<NetPayloadSchema> toRouter = newPipe();
+	private final Pipe<NetPayloadSchema> fromSupervisor = newPipe();
+	private final Pipe<NetPayloadSchema> toNet = newPipe();
+	private final HTTP2ConnectionStage stage = new HTTP2ConnectionStage(new GraphManager(), null,
+			                                         new Pipe[]{fromNet}, new Pipe[]{toRouter},
+			                                         new Pipe[]{fromSupervisor}, new Pipe[]{toNet});
+
+	@Test
+	public void requestAndResponseTest() {
+		stage.startup();
+
+		ByteArrayOutputStream client = new ByteArrayOutputStream();
+		client.write(PREFACE, 0, PREFACE.length);
+		writeFrame(client, TYPE_SETTINGS, 0, 0, new byte[0]);
+		writeFrame(client, TYPE_HEADERS, FLAG_END_HEADERS|FLAG_END_STREAM, 1, FIRST_BLOCK);
+		writePlain(fromNet, 0, client.toByteArray());
+		stage.run();
+
+		assertEquals("GET / HTTP/1.1\r\nHost: www.example.com\r\n\r\n", new String(readAll(toRouter)));
+
+		List<int[]> frames = new ArrayList<int[]>();
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		parseFrames(readAll(toNet), frames, payloads);
+		assertEquals(2, frames.size());
+		assertFrame(frames.get(0), TYPE_SETTINGS, 0, 0);
+		assertEquals(18, payloads.get(0).length);
+		assertFrame(frames.get(1), TYPE_SETTINGS, FLAG_ACK, 0);
+
+		writePlain(fromSupervisor, 0, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/plain\r\n\r\nhello".getBytes());
+		stage.run();
+
+		frames.clear();
+		payloads.clear();
+		parseFrames(readAll(toNet), frames, payloads);
+		assertEquals(2, frames.size());
+		assertFrame(frames.get(0), TYPE_HEADERS, FLAG_END_HEADERS, 1);
+		HPACK.Decoder decoder = new HPACK.Decoder(1<<12);
+		assertEquals(":status: 200\ncontent-length: 5\ncontent-type: text/plain\n", decode(decoder, payloads.get(0)));
+		assertFrame(frames.get(1), TYPE_DATA, FLAG_END_STREAM, 1);
+		assertEquals("hello", new String(payloads.get(1)));
+	}
+
+	@Test
+	public void fileRegionResponseTest() throws IOException {
+		byte[] content = "hello world from a file".getBytes();
+		File f = File.createTempFile("http2", "region");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(content);
+		out.close();
+		FileChannel channel = new RandomAccessFile(f, "r").getChannel();
+		long regionId = FileRegions.register(channel);
+		assertTrue(0 != regionId);
+		try {
+			stage.startup();
+
+			ByteArrayOutputStream client = new ByteArrayOutputStream();
+			client.write(PREFACE, 0, PREFACE.length);
+			writeFrame(client, TYPE_SETTINGS, 0, 0, new byte[0]);
+			writeFrame(client, TYPE_HEADERS, FLAG_END_HEADERS|FLAG_END_STREAM, 1, FIRST_BLOCK);
+			writeFrame(client, TYPE_HEADERS, FLAG_END_HEADERS|FLAG_END_STREAM, 3, SECOND_BLOCK);
+			writePlain(fromNet, 0, client.toByteArray());
+			stage.run();
+
+			assertEquals("GET / HTTP/1.1\r\nHost: www.example.com\r\n\r\n"
+					    +"GET / HTTP/1.1\r\nHost: www.example.com\r\ncache-control: no-cache\r\n\r\n",
+					    new String(readAll(toRouter)));
+			readAll(toNet);//settings
+
+			//responses come back in request order, the second body is a file region
+			writePlain(fromSupervisor, 0, "HTTP/1.1 204 No Content\r\n\r\n".getBytes());
+			writePlain(fromSupervisor, 0, ("HTTP/1.1 200 OK\r\nContent-Length: "+content.length+"\r\n\r\n").getBytes());
+			ByteBuffer descriptor = ByteBuffer.allocate(FileRegions.DESCRIPTOR_SIZE);
+			descriptor.putLong(regionId).putLong(0).putLong(content.length);
+			writePlain(fromSupervisor, FileRegions.REGION_MARKER, descriptor.array());
+			stage.run();
+
+			List<int[]> frames = new ArrayList<int[]>();
+			List<byte[]> payloads = new ArrayList<byte[]>();
+			parseFrames(readAll(toNet), frames, payloads);
+			assertEquals(3, frames.size());
+			HPACK.Decoder decoder = new HPACK.Decoder(1<<12);
+			assertFrame(frames.get(0), TYPE_HEADERS, FLAG_END_HEADERS|FLAG_END_STREAM, 1);
+			assertEquals(":status: 204\n", decode(decoder, payloads.get(0)));
+			assertFrame(frames.get(1), TYPE_HEADERS, FLAG_END_HEADERS, 3);
+			assertEquals(":status: 200\ncontent-length: "+content.length+"\n", decode(decoder, payloads.get(1)));
+			assertFrame(frames.get(2), TYPE_DATA, FLAG_END_STREAM, 3);
+			assertEquals(new String(content), new String(payloads.get(2)));
+		} finally {
+			FileRegions.release(regionId);
+			channel.close();
+		}
+	}
+
+	@Test
+	public void http1PassesThroughTest() {
+		stage.startup();
+
+		byte[] request = "GET / HTTP/1.1\r\nHost: a\r\n\r\n".getBytes();
+		writePlain(fromNet, 0, request);
+		stage.run();
+		assertEquals(new String(request), new String(readAll(toRouter)));
+
+		byte[] response = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes();
+		writePlain(fromSupervisor, 0, response);
+		stage.run();
+		assertEquals(new String(response), new String(readAll(toNet)));
+	}
+
+	private static void assertFrame(int[] frame, int type, int flags, int streamId) {
+		assertEquals("type", type, frame[0]);
+		assertEquals("flags", flags, frame[1]);
+		assertEquals("stream", streamId, frame[2]);
+	}
+
+	private static void parseFrames(byte[] data, List<int[]> frames, List<byte[]> payloads) {
+		int pos = 0;
+		while (pos<data.length) {
+			int length = ((0xFF&data[pos])<<16) | ((0xFF&data[pos+1])<<8) | (0xFF&data[pos+2]);
+			frames.add(new int[] {0xFF&data[pos+3], 0xFF&data[pos+4], HTTP2ConnectionStage.readInt32(data, pos+5)});
+			byte[] payload = new byte[length];
+			System.arraycopy(data, pos+9, payload, 0, length);
+			payloads.add(payload);
+			pos += (9+length);
+		}
+		assertEquals(data.length, pos);
+	}
+
+	private static void writeFrame(ByteArrayOutputStream target, int type, int flags, int streamId, byte[] payload) {
+		byte[] header = new byte[9];
+		HTTP2ConnectionStage.writeFrameHeader(header, 0, payload.length, type, flags, streamId);
+		target.write(header, 0, header.length);
+		target.write(payload, 0, payload.length);
+	}
+
+	private static String decode(HPACK.Decoder decoder, byte[] block) {
+		final StringBuilder builder = new StringBuilder();
+		assertTrue(decoder.decode(block, 0, block.length, new HPACK.HeaderListener() {
+			@Override
+			public void header(byte[] data, int nameStart, int nameLength, int valueStart, int valueLength) {
+				builder.append(new String(data, nameStart, nameLength))
+				       .append(": ")
+				       .append(new String(data, valueStart, valueLength))
+				       .append('\n');
+			}
+		}));
+		return builder.toString();
+	}
+
+	private static void writePlain(Pipe<NetPayloadSchema> pipe, long arrivalTime, byte[] data) {
+		int size = Pipe.addMsgIdx(pipe, NetPayloadSchema.MSG_PLAIN_210);
+		Pipe.addLongValue(CHANNEL, pipe);
+		Pipe.addLongValue(arrivalTime, pipe);
+		Pipe.addLongValue(0, pipe);
+		Pipe.addByteArray(data, 0, data.length, pipe);
+		Pipe.confirmLowLevelWrite(pipe, size);
+		Pipe.publishWrites(pipe);
+	}
+
+	private static byte[] readAll(Pipe<NetPayloadSchema> pipe) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		while (Pipe.hasContentToRead(pipe)) {
+			assertEquals(NetPayloadSchema.MSG_PLAIN_210, Pipe.takeMsgIdx(pipe));
+			assertEquals(CHANNEL, Pipe.takeLong(pipe));
+			Pipe.takeLong(pipe);//arrival time
+			Pipe.takeLong(pipe);//position
+			int meta = Pipe.takeByteArrayMetaData(pipe);
+			int len = Pipe.takeByteArrayLength(pipe);
+			byte[] data = new byte[len];
+			Pipe.copyBytesFromToRing(Pipe.byteBackingArray(meta, pipe), Pipe.bytePosition(meta, pipe, len), Pipe.blobMask(pipe),
+					                 data, 0, Integer.MAX_VALUE, len);
+			result.write(data, 0, len);
+			Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, NetPayloadSchema.MSG_PLAIN_210));
+			Pipe.releaseReadLock(pipe);
+		}
+		return result.toByteArray();
+	}
+
+	private static Pipe<NetPayloadSchema> newPipe() {
+		Pipe<NetPayloadSchema> pipe = NetPayloadSchema.instance.newPipe(8, 4096);
+		pipe.initBuffers();
+		return pipe;
+	}
+
+	private static byte[] hex(String value) {
+		String v = value.replace(" ", "");
+		byte[] result = new byte[v.length()/2];
+		int i = result.length;
+		while (--i>=0) {
+			result[i] = (byte)Integer.parseInt(v.substring(i*2, (i*2)+2), 16);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,232 @@
+package com.ociweb.pronghorn.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerConnectionStruct;
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.config.HTTPVerb;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class HTTPResponseCacheStageTest {
+
+	private static final int CACHED_ROUTE = 0;
+	private static final int OTHER_ROUTE = 1;
+	private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+	private static final String UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n";
+
+	private final Pipe<HTTPRequestSchema> fromRouter = newRequestPipe();
+	private final Pipe<HTTPRequestSchema> toModule = newRequestPipe();
+	private final Pipe<ServerResponseSchema> fromModule = newResponsePipe();
+	private final Pipe<ServerResponseSchema> toSupervisor = newResponsePipe();
+	private final Pipe<ServerResponseSchema> hits = newResponsePipe();
+
+	private HTTPResponseCacheStage newStage(long ttlMS, long maxCacheBytes, int maxEntryBytes) {
+		GraphManager gm = new GraphManager();
+		HTTP1xRouterStageConfig config = new HTTP1xRouterStageConfig(HTTPSpecification.defaultSpec(),
+				                                                     new ServerConnectionStruct(gm.recordTypeData));
+		config.cacheRoute(CACHED_ROUTE, ttlMS);
+		HTTPResponseCacheStage stage = new HTTPResponseCacheStage(gm, config, fromRouter, toModule,
+				                                                  fromModule, toSupervisor, hits,
+				                                                  maxCacheBytes, maxEntryBytes);
+		stage.startup();
+		return stage;
+	}
+
+	@Test
+	public void cacheHitTest() {
+		HTTPResponseCacheStage stage = newStage(60_000, 1<<16, 1<<12);
+
+		assertEquals(OK, miss(stage, 1, "a", OK, ServerCoordinator.END_RESPONSE_MASK));
+		assertTrue(hit(stage, 2, "a", OK));
+		assertTrue(hit(stage, 3, "a", OK));
+
+		assertEquals(2, stage.counterValue(0));//hits
+		assertEquals(1, stage.counterValue(1));//misses
+		assertEquals(OK.length(), stage.counterValue(2));//bytes
+	}
+
+	@Test
+	public void differentParamsMissTest() {
+		HTTPResponseCacheStage stage = newStage(60_000, 1<<16, 1<<12);
+
+		miss(stage, 1, "a", OK, ServerCoordinator.END_RESPONSE_MASK);
+		assertFalse(hit(stage, 2, "b", OK));
+	}
+
+	@Test
+	public void ttlExpiryTest() throws InterruptedException {
+		HTTPResponseCacheStage stage = newStage(1, 1<<16, 1<<12);
+
+		miss(stage, 1, "a", OK, ServerCoordinator.END_RESPONSE_MASK);
+		Thread.sleep(20);
+		assertFalse("expired entry must not be used", hit(stage, 2, "a", OK));
+		assertEquals(0, stage.counterValue(0));
+	}
+
+	@Test
+	public void entryLimitTest() {
+		HTTPResponseCacheStage stage = newStage(60_000, 1<<16, OK.length()-1);
+
+		miss(stage, 1, "a", OK, ServerCoordinator.END_RESPONSE_MASK);
+		assertEquals(0, stage.counterValue(2));
+		assertFalse(hit(stage, 2, "a", OK));
+	}
+
+	@Test
+	public void totalLimitDropsLeastRecentTest() {
+		//room for two responses
+		HTTPResponseCacheStage stage = newStage(60_000, (2*OK.length())+1, 1<<12);
+
+		miss(stage, 1, "a", OK, ServerCoordinator.END_RESPONSE_MASK);
+		miss(stage, 2, "b", OK, ServerCoordinator.END_RESPONSE_MASK);
+		assertTrue(hit(stage, 3, "a", OK)); //b is now the least recently used
+		miss(stage, 4, "c", OK, ServerCoordinator.END_RESPONSE_MASK);
+		assertEquals(2*OK.length(), stage.counterValue(2));
+
+		assertTrue(hit(stage, 5, "a", OK));
+		assertTrue(hit(stage, 6, "c", OK));
+		assertFalse(hit(stage, 7, "b", OK));
+	}
+
+	@Test
+	public void notCacheableTest() {
+		HTTPResponseCacheStage stage = newStage(60_000, 1<<16, 1<<12);
+
+		//only 200 responses
+		String notFound = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+		miss(stage, 1, "a", notFound, ServerCoordinator.END_RESPONSE_MASK);
+		assertFalse(hit(stage, 2, "a", notFound));
+
+		//never file regions
+		miss(stage, 3, "b", OK, ServerCoordinator.END_RESPONSE_MASK|ServerCoordinator.FILE_REGION_MASK);
+		assertFalse(hit(stage, 4, "b", OK));
+
+		//only GET
+		sendRequest(5, CACHED_ROUTE, HTTPVerbDefaults.POST, "c");
+		stage.run();
+		assertTrue(Pipe.hasContentToRead(toModule));
+		respond(stage, OK, ServerCoordinator.END_RESPONSE_MASK);
+		readResponse(toSupervisor, 5);
+		assertFalse(hit(stage, 6, "c", OK));
+
+		//only routes registered to be cached
+		sendRequest(7, OTHER_ROUTE, HTTPVerbDefaults.GET, "d");
+		stage.run();
+		respond(stage, OK, ServerCoordinator.END_RESPONSE_MASK);
+		readResponse(toSupervisor, 7);
+		sendRequest(8, OTHER_ROUTE, HTTPVerbDefaults.GET, "d");
+		stage.run();
+		assertFalse(Pipe.hasContentToRead(hits));
+		assertTrue(Pipe.hasContentToRead(toModule));
+
+		assertEquals(0, stage.counterValue(2));
+	}
+
+	/**
+	 * Sends a GET which the module must answer.
+	 * @return the response passed on to the supervisor
+	 */
+	private String miss(HTTPResponseCacheStage stage, long channelId, String params, String response, int context) {
+		sendRequest(channelId, CACHED_ROUTE, HTTPVerbDefaults.GET, params);
+		stage.run();
+		assertFalse(Pipe.hasContentToRead(hits));
+		respond(stage, response, context);
+		return readResponse(toSupervisor, channelId);
+	}
+
+	/**
+	 * Sends a GET, if it was answered from the cache the response must match.
+	 * @return true if it was answered from the cache
+	 */
+	private boolean hit(HTTPResponseCacheStage stage, long channelId, String params, String response) {
+		sendRequest(channelId, CACHED_ROUTE, HTTPVerbDefaults.GET, params);
+		stage.run();
+		if (Pipe.hasContentToRead(hits)) {
+			assertFalse(Pipe.hasContentToRead(toModule));
+			assertEquals(response, readResponse(hits, channelId));
+			return true;
+		}
+		//answered with an error which is never cached so the next request starts clean
+		respond(stage, UNAVAILABLE, ServerCoordinator.END_RESPONSE_MASK);
+		assertEquals(UNAVAILABLE, readResponse(toSupervisor, channelId));
+		return false;
+	}
+
+	private void sendRequest(long channelId, int routeId, HTTPVerbDefaults verb, String params) {
+		int size = Pipe.addMsgIdx(fromRouter, HTTPRequestSchema.MSG_RESTREQUEST_300);
+		Pipe.addLongValue(channelId, fromRouter);
+		Pipe.addIntValue((int)channelId, fromRouter); //sequence
+		Pipe.addIntValue((routeId<<HTTPVerb.BITS) | verb.ordinal(), fromRouter);
+		DataOutputBlobWriter<HTTPRequestSchema> writer = Pipe.openOutputStream(fromRouter);
+		writer.write(params.getBytes());
+		DataOutputBlobWriter.closeLowLevelField(writer);
+		Pipe.addIntValue(0, fromRouter); //revision
+		Pipe.addIntValue(0, fromRouter); //context
+		Pipe.confirmLowLevelWrite(fromRouter, size);
+		Pipe.publishWrites(fromRouter);
+	}
+
+	/**
+	 * Plays the module, the request waiting on toModule is answered with this response.
+	 */
+	private void respond(HTTPResponseCacheStage stage, String response, int context) {
+		assertTrue(Pipe.hasContentToRead(toModule));
+		int msgIdx = Pipe.takeMsgIdx(toModule);
+		assertEquals(HTTPRequestSchema.MSG_RESTREQUEST_300, msgIdx);
+		long channelId = Pipe.takeLong(toModule);
+		int sequence = Pipe.takeInt(toModule);
+		Pipe.takeInt(toModule); //route and verb
+		Pipe.openInputStream(toModule); //params
+		Pipe.takeInt(toModule); //revision
+		Pipe.takeInt(toModule); //context
+		Pipe.confirmLowLevelRead(toModule, Pipe.sizeOf(toModule, msgIdx));
+		Pipe.releaseReadLock(toModule);
+
+		byte[] bytes = response.getBytes();
+		ServerResponseSchema.publishToChannel(fromModule, channelId, sequence, bytes, 0, bytes.length, context);
+		stage.run();
+	}
+
+	private static String readResponse(Pipe<ServerResponseSchema> pipe, long channelId) {
+		StringBuilder result = new StringBuilder();
+		while (Pipe.hasContentToRead(pipe)) {
+			int msgIdx = Pipe.takeMsgIdx(pipe);
+			assertEquals(ServerResponseSchema.MSG_TOCHANNEL_100, msgIdx);
+			assertEquals(channelId, Pipe.takeLong(pipe));
+			assertEquals((int)channelId, Pipe.takeInt(pipe));
+			int meta = Pipe.takeByteArrayMetaData(pipe);
+			int len = Pipe.takeByteArrayLength(pipe);
+			byte[] data = new byte[len];
+			Pipe.copyBytesFromToRing(Pipe.byteBackingArray(meta, pipe), Pipe.bytePosition(meta, pipe, len), Pipe.blobMask(pipe),
+					                 data, 0, Integer.MAX_VALUE, len);
+			result.append(new String(data));
+			Pipe.takeInt(pipe); //context
+			Pipe.confirmLowLevelRead(pipe, Pipe.sizeOf(pipe, msgIdx));
+			Pipe.releaseReadLock(pipe);
+		}
+		return result.toString();
+	}
+
+	private static Pipe<HTTPRequestSchema> newRequestPipe() {
+		Pipe<HTTPRequestSchema> pipe = HTTPRequestSchema.instance.newPipe(8, 256);
+		pipe.initBuffers();
+		return pipe;
+	}
+
+	private static Pipe<ServerResponseSchema> newResponsePipe() {
+		Pipe<ServerResponseSchema> pipe = ServerResponseSchema.instance.newPipe(8, 256);
+		pipe.initBuffers();
+		return pipe;
+	}
+
+}
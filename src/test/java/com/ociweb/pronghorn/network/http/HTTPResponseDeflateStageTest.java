@@ -0,0 +1,169 @@
+package com.ociweb.pronghorn.network.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+
+public class HTTPResponseDeflateStageTest {
+
+	private static final int MAX_VAR = 1024;
+	private static final int DEFLATE_END = ServerCoordinator.DEFLATE_RESPONSE_MASK | ServerCoordinator.END_RESPONSE_MASK;
+
+	@Test
+	public void singleMessageResponseTest() throws IOException {
+		byte[] body = body(600);
+		Pipe<ServerResponseSchema> input = newPipe(MAX_VAR);
+		Pipe<ServerResponseSchema> output = newPipe(MAX_VAR+HTTPResponseDeflateStage.CHUNK_OVERHEAD);
+		HTTPResponseDeflateStage stage = new HTTPResponseDeflateStage(new GraphManager(), new Pipe[]{input}, new Pipe[]{output}, 6);
+
+		byte[] response = concat(header(body.length), body);
+		ServerResponseSchema.publishToChannel(input, 1, 0, response, 0, response.length, DEFLATE_END);
+
+		stage.startup();
+		stage.run();
+
+		int[] lastContext = new int[1];
+		String sent = new String(readAll(output, lastContext), "ISO-8859-1");
+		assertGzipped(sent, body);
+		assertEquals(ServerCoordinator.END_RESPONSE_MASK, lastContext[0]);
+	}
+
+	@Test
+	public void responseAcrossMessagesTest() throws IOException {
+		byte[] body = body(1500);
+		Pipe<ServerResponseSchema> input = newPipe(MAX_VAR);
+		Pipe<ServerResponseSchema> output = newPipe(MAX_VAR+HTTPResponseDeflateStage.CHUNK_OVERHEAD);
+		HTTPResponseDeflateStage stage = new HTTPResponseDeflateStage(new GraphManager(), new Pipe[]{input}, new Pipe[]{output}, 6);
+
+		byte[] first = concat(header(body.length), copy(body, 0, 500));
+		ServerResponseSchema.publishToChannel(input, 1, 0, first, 0, first.length, ServerCoordinator.DEFLATE_RESPONSE_MASK);
+		ServerResponseSchema.publishToChannel(input, 1, 0, body, 500, 1000, DEFLATE_END);
+
+		stage.startup();
+		stage.run();
+
+		int[] lastContext = new int[1];
+		String sent = new String(readAll(output, lastContext), "ISO-8859-1");
+		assertGzipped(sent, body);
+		assertEquals(ServerCoordinator.END_RESPONSE_MASK, lastContext[0]);
+	}
+
+	@Test
+	public void unmarkedResponsePassesThroughTest() {
+		byte[] body = body(100);
+		Pipe<ServerResponseSchema> input = newPipe(MAX_VAR);
+		Pipe<ServerResponseSchema> output = newPipe(MAX_VAR+HTTPResponseDeflateStage.CHUNK_OVERHEAD);
+		HTTPResponseDeflateStage stage = new HTTPResponseDeflateStage(new GraphManager(), new Pipe[]{input}, new Pipe[]{output}, 6);
+
+		byte[] response = concat(header(body.length), body);
+		ServerResponseSchema.publishToChannel(input, 1, 0, response, 0, response.length, ServerCoordinator.END_RESPONSE_MASK);
+
+		stage.startup();
+		stage.run();
+
+		int[] lastContext = new int[1];
+		assertArrayEquals(response, readAll(output, lastContext));
+		assertEquals(ServerCoordinator.END_RESPONSE_MASK, lastContext[0]);
+	}
+
+	private static void assertGzipped(String sent, byte[] body) throws IOException {
+		int headerEnd = sent.indexOf("\r\n\r\n");
+		assertTrue(sent, headerEnd>0);
+		String header = sent.substring(0, headerEnd+2);
+		assertTrue(header, header.startsWith("HTTP/1.1 200 OK\r\n"));
+		assertTrue(header, header.indexOf("Content-Encoding: gzip\r\n")>=0);
+		assertTrue(header, header.indexOf("Transfer-Encoding: chunked\r\n")>=0);
+		assertTrue(header, header.indexOf("Content-Type: text/plain\r\n")>=0);
+		assertEquals(header, -1, header.toLowerCase().indexOf("content-length"));
+
+		//decode the chunks
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		int pos = headerEnd+4;
+		int chunkLength;
+		do {
+			int lineEnd = sent.indexOf("\r\n", pos);
+			chunkLength = Integer.parseInt(sent.substring(pos, lineEnd), 16);
+			pos = lineEnd+2;
+			gzip.write(sent.substring(pos, pos+chunkLength).getBytes("ISO-8859-1"));
+			pos += chunkLength;
+			assertEquals("\r\n", sent.substring(pos, pos+2));
+			pos += 2;
+		} while (chunkLength>0);
+		assertEquals("nothing may follow the last chunk", sent.length(), pos);
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()));
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		byte[] temp = new byte[256];
+		int count;
+		while ((count = in.read(temp))>=0) {
+			plain.write(temp, 0, count);
+		}
+		assertArrayEquals(body, plain.toByteArray());
+	}
+
+	private static byte[] readAll(Pipe<ServerResponseSchema> output, int[] lastContext) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		while (Pipe.hasContentToRead(output)) {
+			int msgIdx = Pipe.takeMsgIdx(output);
+			assertEquals(ServerResponseSchema.MSG_TOCHANNEL_100, msgIdx);
+			assertEquals(1, Pipe.takeLong(output));
+			assertEquals(0, Pipe.takeInt(output));
+			int meta = Pipe.takeByteArrayMetaData(output);
+			int len = Pipe.takeByteArrayLength(output);
+			byte[] data = new byte[len];
+			Pipe.copyBytesFromToRing(Pipe.byteBackingArray(meta, output), Pipe.bytePosition(meta, output, len), Pipe.blobMask(output),
+					                 data, 0, Integer.MAX_VALUE, len);
+			result.write(data, 0, len);
+			lastContext[0] = Pipe.takeInt(output);
+			assertEquals(0, lastContext[0]&ServerCoordinator.DEFLATE_RESPONSE_MASK);
+			Pipe.confirmLowLevelRead(output, Pipe.sizeOf(output, msgIdx));
+			Pipe.releaseReadLock(output);
+		}
+		return result.toByteArray();
+	}
+
+	private static Pipe<ServerResponseSchema> newPipe(int maxVar) {
+		Pipe<ServerResponseSchema> pipe = ServerResponseSchema.instance.newPipe(6, maxVar);
+		pipe.initBuffers();
+		return pipe;
+	}
+
+	private static byte[] header(int length) {
+		return ("HTTP/1.1 200 OK\r\nContent-Length: "+length+"\r\nContent-Type: text/plain\r\n\r\n").getBytes();
+	}
+
+	private static byte[] body(int length) {
+		byte[] result = new byte[length];
+		int i = length;
+		while (--i>=0) {
+			result[i] = (byte)('a'+((i*7)%26));
+		}
+		return result;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = new byte[a.length+b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static byte[] copy(byte[] source, int pos, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(source, pos, result, 0, length);
+		return result;
+	}
+
+}
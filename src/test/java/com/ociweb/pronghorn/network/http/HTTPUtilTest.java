@@ -0,0 +1,66 @@
+package com.ociweb.pronghorn.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HTTPUtilTest {
+
+	@Test
+	public void acceptsGzipTest() {
+		assertTrue(HTTPUtil.acceptsGzip("gzip"));
+		assertTrue(HTTPUtil.acceptsGzip("deflate, GZIP"));
+		assertTrue(HTTPUtil.acceptsGzip("gzip;q=0.5, br"));
+		assertTrue(HTTPUtil.acceptsGzip("br, gzip;q=1.0"));
+
+		assertFalse(HTTPUtil.acceptsGzip(""));
+		assertFalse(HTTPUtil.acceptsGzip("deflate, br"));
+		assertFalse(HTTPUtil.acceptsGzip("gzip;q=0"));
+		assertFalse(HTTPUtil.acceptsGzip("identity, gzip;q=0.000"));
+	}
+
+	@Test
+	public void etagMatchesTest() {
+		byte[] etag = "0x00000000000000ab".getBytes();
+		assertTrue(HTTPUtil.etagMatches("0x00000000000000ab", etag));
+		assertTrue(HTTPUtil.etagMatches("\"abc\", W/\"0x00000000000000ab\"", etag));
+		assertTrue(HTTPUtil.etagMatches("*", etag));
+
+		assertFalse(HTTPUtil.etagMatches("0x00000000000000ac", etag));
+		assertFalse(HTTPUtil.etagMatches("", etag));
+	}
+
+	@Test
+	public void parseRangesTest() {
+		long[] first = new long[4];
+		long[] last = new long[4];
+
+		assertEquals(1, HTTPUtil.parseRanges("bytes=0-99", 1000, first, last));
+		assertEquals(0, first[0]);
+		assertEquals(99, last[0]);
+
+		assertEquals(3, HTTPUtil.parseRanges("bytes=10-, -50, 100-2000", 1000, first, last));
+		assertEquals(10, first[0]);
+		assertEquals(999, last[0]);
+		assertEquals(950, first[1]);
+		assertEquals(999, last[1]);
+		assertEquals(100, first[2]);
+		assertEquals(999, last[2]);
+
+		//unsatisfiable ranges are dropped
+		assertEquals(1, HTTPUtil.parseRanges("bytes=5000-6000,0-0", 1000, first, last));
+		assertEquals(0, first[0]);
+		assertEquals(0, last[0]);
+		assertEquals(0, HTTPUtil.parseRanges("bytes=1000-", 1000, first, last));
+		assertEquals(0, HTTPUtil.parseRanges("bytes=-0", 1000, first, last));
+
+		//must be ignored
+		assertEquals(-1, HTTPUtil.parseRanges("items=0-9", 1000, first, last));
+		assertEquals(-1, HTTPUtil.parseRanges("bytes=9-0", 1000, first, last));
+		assertEquals(-1, HTTPUtil.parseRanges("bytes=-", 1000, first, last));
+		assertEquals(-1, HTTPUtil.parseRanges("bytes=0-1,2-3,4-5,6-7,8-9", 1000, first, last));
+	}
+
+}
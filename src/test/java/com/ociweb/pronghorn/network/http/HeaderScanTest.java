@@ -0,0 +1,66 @@
+package com.ociweb.pronghorn.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
+
+public class HeaderScanTest {
+
+	private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+	@Test
+	public void indexOfTest() {
+		byte[] data = "abcdefghijklmnopqrstuvwxyz\n".getBytes();
+		int i = data.length;
+		while (--i>=0) {
+			//every start position so the word and byte paths are both used
+			assertEquals(data.length-1-i, HeaderScan.indexOf(data, i, data.length-i, Integer.MAX_VALUE, NEWLINES));
+		}
+		assertEquals(-1, HeaderScan.indexOf(data, 0, data.length-1, Integer.MAX_VALUE, NEWLINES));
+		//high bytes must not be confused with the pattern
+		byte[] high = new byte[] {(byte)0x8A, (byte)0xFF, 0x0B, 0x09, (byte)0x80, 0, 1, 2, 3, 0x0A};
+		assertEquals(9, HeaderScan.indexOf(high, 0, high.length, Integer.MAX_VALUE, NEWLINES));
+	}
+
+	@Test
+	public void indexOfWrapTest() {
+		byte[] ring = new byte[16];
+		byte[] text = "0123456789ab\ncd".getBytes();
+		int start = 10;
+		int i = text.length;
+		while (--i>=0) {
+			ring[(start+i)&15] = text[i];
+		}
+		assertEquals(12, HeaderScan.indexOf(ring, start, text.length, 15, NEWLINES));
+	}
+
+	@Test
+	public void unknownLineTest() {
+		long[] filter = HeaderScan.newFilter(HTTPHeaderDefaults.CONTENT_LENGTH,
+				                             HTTPHeaderDefaults.TRANSFER_ENCODING,
+				                             HTTPHeaderDefaults.CONNECTION);
+
+		byte[] data = "Accept-Language: en-US,en;q=0.9\r\nContent-Length: 12\r\n\r\n".getBytes();
+		int mask = Integer.MAX_VALUE;
+
+		int skip = HeaderScan.unknownLineLength(filter, data, 0, data.length, mask);
+		assertEquals("Accept-Language: en-US,en;q=0.9\r\n".length(), skip);
+
+		//known headers, in any case, and the end of the headers go to the trie
+		assertEquals(0, HeaderScan.unknownLineLength(filter, data, skip, data.length-skip, mask));
+		byte[] upper = "CONNECTION: close\r\n".getBytes();
+		assertEquals(0, HeaderScan.unknownLineLength(filter, upper, 0, upper.length, mask));
+		assertEquals(0, HeaderScan.unknownLineLength(filter, data, data.length-2, 2, mask));
+
+		//lines which have not all arrived go to the trie
+		assertEquals(0, HeaderScan.unknownLineLength(filter, data, 0, 20, mask));
+		byte[] broken = "Accept\r\nContent-Length: 12\r\n".getBytes();
+		assertEquals(0, HeaderScan.unknownLineLength(filter, broken, 0, broken.length, mask));
+
+		assertTrue(HeaderScan.mayBeKnown(filter, (byte)'C', "content-length".length()));
+	}
+
+}
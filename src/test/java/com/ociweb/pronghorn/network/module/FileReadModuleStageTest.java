@@ -0,0 +1,204 @@
+package com.ociweb.pronghorn.network.module;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.network.ServerCoordinator;
+import com.ociweb.pronghorn.network.config.HTTPHeader;
+import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
+import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
+import com.ociweb.pronghorn.network.config.HTTPSpecification;
+import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTPUtil;
+import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
+import com.ociweb.pronghorn.network.schema.ServerResponseSchema;
+import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.struct.StructRegistry;
+
+public class FileReadModuleStageTest {
+
+	private static final long CHANNEL = 3;
+	private static final String CONTENT = "0123456789abcdefghij";
+	private static final byte[] PATH = "range.txt".getBytes();
+
+	private final GraphManager gm = new GraphManager();
+	private final Pipe<HTTPRequestSchema> input = HTTPRequestSchema.instance.newPipe(8, 256);
+	private final Pipe<ServerResponseSchema> output = ServerResponseSchema.instance.newPipe(32, 1024);
+	private int structId;
+	private int sequence;
+
+	@Test
+	public void ifNoneMatchTest() throws IOException {
+		FileReadModuleStage<?,?,?,?> stage = newStage();
+
+		//client copy is out of date so the file is sent
+		String full = request(stage, HTTPHeaderDefaults.IF_NONE_MATCH, "\"other\"");
+		assertStatus(full, 200);
+		assertEquals(CONTENT, body(full));
+		String etag = header(full, "ETag");
+
+		String notModified = request(stage, HTTPHeaderDefaults.IF_NONE_MATCH, "\"other\", \""+etag+"\"");
+		assertStatus(notModified, 304);
+		assertEquals(etag, header(notModified, "ETag"));
+		assertEquals("", body(notModified));
+	}
+
+	@Test
+	public void singleRangeTest() throws IOException {
+		FileReadModuleStage<?,?,?,?> stage = newStage();
+
+		String partial = request(stage, HTTPHeaderDefaults.RANGE, "bytes=2-5");
+		assertStatus(partial, 206);
+		assertEquals("bytes 2-5/"+CONTENT.length(), header(partial, "Content-Range"));
+		assertEquals("4", header(partial, "Content-Length"));
+		assertEquals("2345", body(partial));
+
+		//suffix range
+		partial = request(stage, HTTPHeaderDefaults.RANGE, "bytes=-3");
+		assertStatus(partial, 206);
+		assertEquals("bytes 17-19/"+CONTENT.length(), header(partial, "Content-Range"));
+		assertEquals("hij", body(partial));
+	}
+
+	@Test
+	public void unsatisfiableRangeTest() throws IOException {
+		FileReadModuleStage<?,?,?,?> stage = newStage();
+
+		String response = request(stage, HTTPHeaderDefaults.RANGE, "bytes=100-200");
+		assertStatus(response, 416);
+		assertEquals("bytes */"+CONTENT.length(), header(response, "Content-Range"));
+		assertEquals("", body(response));
+	}
+
+	@Test
+	public void multipartRangeTest() throws IOException {
+		boolean regions = FileReadModuleStage.sendFileRegions;
+		FileReadModuleStage.sendFileRegions = false;
+		try {
+			FileReadModuleStage<?,?,?,?> stage = newStage();
+
+			String response = request(stage, HTTPHeaderDefaults.RANGE, "bytes=0-1,4-5");
+			assertStatus(response, 206);
+			assertEquals("multipart/byteranges; boundary=PRONGHORN_BYTERANGES", header(response, "Content-Type"));
+			assertEquals("only the parts have a range", -1, response.substring(0, response.indexOf("\r\n\r\n")).indexOf("Content-Range"));
+
+			String expected = "\r\n--PRONGHORN_BYTERANGES\r\n"
+					         +"Content-Type: text/plain\r\n"
+					         +"Content-Range: bytes 0-1/"+CONTENT.length()+"\r\n\r\n"
+					         +"01"
+					         +"\r\n--PRONGHORN_BYTERANGES\r\n"
+					         +"Content-Type: text/plain\r\n"
+					         +"Content-Range: bytes 4-5/"+CONTENT.length()+"\r\n\r\n"
+					         +"45"
+					         +"\r\n--PRONGHORN_BYTERANGES--\r\n";
+			assertEquals(expected, body(response));
+			assertEquals(String.valueOf(expected.length()), header(response, "Content-Length"));
+		} finally {
+			FileReadModuleStage.sendFileRegions = regions;
+		}
+	}
+
+	private FileReadModuleStage<?,?,?,?> newStage() throws IOException {
+		File root = Files.createTempDirectory("fileRead").toFile();
+		root.deleteOnExit();
+		File file = new File(root, new String(PATH));
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(CONTENT.getBytes());
+		out.close();
+
+		//same struct the router builds for a file route
+		StructRegistry registry = gm.recordTypeData;
+		structId = HTTPUtil.newHTTPStruct(registry);
+		HTTPUtil.buildHeaderParser(registry, structId, FileReadModuleStage.REQUEST_HEADERS);
+
+		input.initBuffers();
+		output.initBuffers();
+		Pipe.structRegistry(input, registry);
+
+		FileReadModuleStage<?,?,?,?> stage = FileReadModuleStage.newInstance(gm, input, output, HTTPSpecification.defaultSpec(), root);
+		stage.startup();
+		return stage;
+	}
+
+	/**
+	 * Sends a GET for the test file with at most one header.
+	 * @return all the response messages as one string
+	 */
+	private String request(FileReadModuleStage<?,?,?,?> stage, HTTPHeader header, String value) {
+		int size = Pipe.addMsgIdx(input, HTTPRequestSchema.MSG_RESTREQUEST_300);
+		Pipe.addLongValue(CHANNEL, input);
+		Pipe.addIntValue(++sequence, input);
+		Pipe.addIntValue(HTTPVerbDefaults.GET.ordinal(), input); //route zero
+		DataOutputBlobWriter<HTTPRequestSchema> writer = Pipe.openOutputStream(input);
+		DataOutputBlobWriter.tryClearIntBackData(writer, gm.recordTypeData.totalSizeOfIndexes(structId));
+		writer.writeShort(PATH.length);
+		writer.write(PATH);
+		if (null!=header) {
+			int position = writer.position();
+			writer.writeUTF(value);
+			long fieldId = gm.recordTypeData.fieldLookupByIdentity(header, structId);
+			DataOutputBlobWriter.setIntBackData(writer, position, StructRegistry.FIELD_MASK & (int)fieldId);
+		}
+		DataOutputBlobWriter.commitBackData(writer, structId);
+		DataOutputBlobWriter.closeLowLevelField(writer);
+		Pipe.addIntValue(HTTPRevisionDefaults.HTTP_1_1.ordinal(), input);
+		Pipe.addIntValue(0, input); //context
+		Pipe.confirmLowLevelWrite(input, size);
+		Pipe.publishWrites(input);
+
+		stage.run();
+		assertFalse(Pipe.hasContentToRead(input));
+		return readResponse();
+	}
+
+	private String readResponse() {
+		StringBuilder result = new StringBuilder();
+		int context = 0;
+		while (Pipe.hasContentToRead(output)) {
+			int msgIdx = Pipe.takeMsgIdx(output);
+			assertEquals(ServerResponseSchema.MSG_TOCHANNEL_100, msgIdx);
+			assertEquals(CHANNEL, Pipe.takeLong(output));
+			assertEquals(sequence, Pipe.takeInt(output));
+			int meta = Pipe.takeByteArrayMetaData(output);
+			int len = Pipe.takeByteArrayLength(output);
+			byte[] data = new byte[len];
+			Pipe.copyBytesFromToRing(Pipe.byteBackingArray(meta, output), Pipe.bytePosition(meta, output, len), Pipe.blobMask(output),
+					                 data, 0, Integer.MAX_VALUE, len);
+			result.append(new String(data));
+			context = Pipe.takeInt(output);
+			Pipe.confirmLowLevelRead(output, Pipe.sizeOf(output, msgIdx));
+			Pipe.releaseReadLock(output);
+		}
+		assertTrue("response must be ended", 0 != (context&ServerCoordinator.END_RESPONSE_MASK));
+		return result.toString();
+	}
+
+	private static void assertStatus(String response, int status) {
+		assertTrue(response, response.startsWith("HTTP/1.1 "+status+" "));
+	}
+
+	private static String header(String response, String name) {
+		int start = response.indexOf("\r\n"+name+": ");
+		assertTrue(response, start>=0 && start<response.indexOf("\r\n\r\n"));
+		start += (name.length()+4);
+		return response.substring(start, response.indexOf("\r\n", start));
+	}
+
+	private static String body(String response) {
+		int headerEnd = response.indexOf("\r\n\r\n");
+		assertTrue(response, headerEnd>0);
+		return response.substring(headerEnd+4);
+	}
+
+}
@@ -0,0 +1,232 @@
+package com.ociweb.pronghorn.stage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeWriter;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobLoadConsumerSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobLoadProducerSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobLoadReleaseSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobStoreConsumerSchema;
+import com.ociweb.pronghorn.stage.file.schema.PersistedBlobStoreProducerSchema;
+import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.stage.scheduling.NonThreadScheduler;
+import com.ociweb.pronghorn.stage.test.ConsoleJSONDumpStage;
+
+public class SegmentLogReplayerStageTest {
+
+	private static final String HELLO = "0x68,0x65,0x6c,0x6c,0x6f";
+	private static final String WORLD = "0x77,0x6f,0x72,0x6c,0x64";
+
+	@Test
+	public void writeAndReadTest() throws IOException {
+		File dir = Files.createTempDirectory("segLog").toFile();
+
+		Pipe<PersistedBlobStoreProducerSchema> producer = newProducer();
+		Pipe<PersistedBlobStoreConsumerSchema> consumer = newConsumer();
+		storeBlock(producer, 10, "hello");
+		requestReplay(consumer);
+		PipeWriter.publishEOF(consumer);
+
+		String result = runGraph(dir, producer, consumer, 1<<16, FileDurability.SYNC_EACH_WRITE);
+
+		assertTrue(result, result.indexOf("AckWrite")>0);
+		assertTrue(result, result.indexOf("{\"BlockId\":10}")>0);
+		assertTrue(result, result.indexOf(HELLO)>0);
+		assertTrue(result, result.indexOf("FinishReplay")>0);
+	}
+
+	@Test
+	public void releaseSurvivesRestartTest() throws IOException {
+		File dir = Files.createTempDirectory("segLog").toFile();
+
+		Pipe<PersistedBlobStoreProducerSchema> producer = newProducer();
+		Pipe<PersistedBlobStoreConsumerSchema> consumer = newConsumer();
+		storeBlock(producer, 10, "hello");
+		storeBlock(producer, 11, "world");
+		release(consumer, 10);
+		PipeWriter.publishEOF(consumer);
+
+		String result = runGraph(dir, producer, consumer, 1<<16, FileDurability.GROUP_COMMIT);
+		assertTrue(result, result.indexOf("AckRelease")>0);
+
+		//second run only replays what the first one kept
+		producer = newProducer();
+		consumer = newConsumer();
+		requestReplay(consumer);
+		PipeWriter.publishEOF(consumer);
+
+		result = runGraph(dir, producer, consumer, 1<<16, FileDurability.GROUP_COMMIT);
+		assertFalse(result, result.indexOf(HELLO)>0);
+		assertTrue(result, result.indexOf(WORLD)>0);
+		assertTrue(result, result.indexOf("FinishReplay")>0);
+	}
+
+	@Test
+	public void releasedSegmentsAreDeletedTest() throws IOException {
+		File dir = Files.createTempDirectory("segLog").toFile();
+
+		Pipe<PersistedBlobStoreProducerSchema> producer = newProducer();
+		Pipe<PersistedBlobStoreConsumerSchema> consumer = newConsumer();
+		//segments only hold a few blocks so these span many files
+		int i = 8;
+		while (--i>=0) {
+			storeBlock(producer, 100+i, "hello");
+		}
+		i = 8;
+		while (--i>0) {
+			release(consumer, 100+i);
+		}
+		requestReplay(consumer);
+		PipeWriter.publishEOF(consumer);
+
+		int segmentSize = SegmentLogReplayerStage.HEADER_SIZE+producer.maxVarLen;
+		String result = runGraph(dir, producer, consumer, segmentSize, FileDurability.OS_BUFFERED);
+
+		assertTrue(result, result.indexOf("{\"BlockId\":100}")>0);
+		assertEquals(1, result.split(HELLO, -1).length-1);
+		//only the oldest, still holding block 100, and the active segment remain
+		assertTrue(dir.list().length <= 2);
+	}
+
+	@Test
+	public void reusedIdSurvivesRestartTest() throws IOException {
+		File dir = Files.createTempDirectory("segLog").toFile();
+
+		Pipe<PersistedBlobStoreProducerSchema> producer = newProducer();
+		Pipe<PersistedBlobStoreConsumerSchema> consumer = newConsumer();
+		storeBlock(producer, 10, "hello");
+		PipeWriter.publishEOF(consumer);
+		runGraph(dir, producer, consumer, 1<<16, FileDurability.SYNC_EACH_WRITE);
+
+		producer = newProducer();
+		consumer = newConsumer();
+		release(consumer, 10);
+		PipeWriter.publishEOF(consumer);
+		runGraph(dir, producer, consumer, 1<<16, FileDurability.SYNC_EACH_WRITE);
+
+		//same id stored again after the release, as done with reused packet ids
+		producer = newProducer();
+		consumer = newConsumer();
+		storeBlock(producer, 10, "world");
+		PipeWriter.publishEOF(consumer);
+		runGraph(dir, producer, consumer, 1<<16, FileDurability.SYNC_EACH_WRITE);
+
+		producer = newProducer();
+		consumer = newConsumer();
+		requestReplay(consumer);
+		PipeWriter.publishEOF(consumer);
+		String result = runGraph(dir, producer, consumer, 1<<16, FileDurability.SYNC_EACH_WRITE);
+
+		assertTrue(result, result.indexOf("{\"BlockId\":10}")>0);
+		assertFalse(result, result.indexOf(HELLO)>0);
+		assertTrue(result, result.indexOf(WORLD)>0);
+		assertTrue(result, result.indexOf("FinishReplay")>0);
+	}
+
+	@Test
+	public void corruptRecordIsNotReplayedTest() throws IOException {
+		File dir = Files.createTempDirectory("segLog").toFile();
+
+		Pipe<PersistedBlobStoreProducerSchema> producer = newProducer();
+		Pipe<PersistedBlobStoreConsumerSchema> consumer = newConsumer();
+		storeBlock(producer, 10, "hello");
+		storeBlock(producer, 11, "world");
+		PipeWriter.publishEOF(consumer);
+		runGraph(dir, producer, consumer, 1<<16, FileDurability.SYNC_EACH_WRITE);
+
+		//damage the payload of the second record, as a torn write would
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+		try {
+			long pos = 2*SegmentLogReplayerStage.HEADER_SIZE+"hello".length();
+			raf.seek(pos);
+			raf.write('W');
+		} finally {
+			raf.close();
+		}
+
+		producer = newProducer();
+		consumer = newConsumer();
+		requestReplay(consumer);
+		PipeWriter.publishEOF(consumer);
+		String result = runGraph(dir, producer, consumer, 1<<16, FileDurability.SYNC_EACH_WRITE);
+
+		assertTrue(result, result.indexOf(HELLO)>0);
+		assertFalse(result, result.indexOf("{\"BlockId\":11}")>0);
+		assertTrue(result, result.indexOf("FinishReplay")>0);
+	}
+
+	private static Pipe<PersistedBlobStoreProducerSchema> newProducer() {
+		Pipe<PersistedBlobStoreProducerSchema> pipe = PersistedBlobStoreProducerSchema.instance.newPipe(10, 100);
+		pipe.initBuffers();
+		return pipe;
+	}
+
+	private static Pipe<PersistedBlobStoreConsumerSchema> newConsumer() {
+		Pipe<PersistedBlobStoreConsumerSchema> pipe = PersistedBlobStoreConsumerSchema.instance.newPipe(10, 100);
+		pipe.initBuffers();
+		return pipe;
+	}
+
+	private static void storeBlock(Pipe<PersistedBlobStoreProducerSchema> producer, long id, String text) {
+		byte[] bytes = text.getBytes();
+		PipeWriter.presumeWriteFragment(producer, PersistedBlobStoreProducerSchema.MSG_BLOCK_1);
+		PipeWriter.writeLong(producer, PersistedBlobStoreProducerSchema.MSG_BLOCK_1_FIELD_BLOCKID_3, id);
+		PipeWriter.writeBytes(producer, PersistedBlobStoreProducerSchema.MSG_BLOCK_1_FIELD_BYTEARRAY_2, bytes, 0, bytes.length);
+		PipeWriter.publishWrites(producer);
+	}
+
+	private static void release(Pipe<PersistedBlobStoreConsumerSchema> consumer, long id) {
+		PipeWriter.presumeWriteFragment(consumer, PersistedBlobStoreConsumerSchema.MSG_RELEASE_7);
+		PipeWriter.writeLong(consumer, PersistedBlobStoreConsumerSchema.MSG_RELEASE_7_FIELD_BLOCKID_3, id);
+		PipeWriter.publishWrites(consumer);
+	}
+
+	private static void requestReplay(Pipe<PersistedBlobStoreConsumerSchema> consumer) {
+		PipeWriter.presumeWriteFragment(consumer, PersistedBlobStoreConsumerSchema.MSG_REQUESTREPLAY_6);
+		PipeWriter.publishWrites(consumer);
+	}
+
+	private static String runGraph(File dir,
+			                       Pipe<PersistedBlobStoreProducerSchema> producer,
+			                       Pipe<PersistedBlobStoreConsumerSchema> consumer,
+			                       int segmentSize, FileDurability durability) {
+		GraphManager gm = new GraphManager();
+
+		Pipe<PersistedBlobLoadReleaseSchema>  loadRelease  = PersistedBlobLoadReleaseSchema.instance.newPipe(20, 100);
+		Pipe<PersistedBlobLoadConsumerSchema> loadConsumer = PersistedBlobLoadConsumerSchema.instance.newPipe(20, 100);
+		Pipe<PersistedBlobLoadProducerSchema> loadProducer = PersistedBlobLoadProducerSchema.instance.newPipe(20, 100);
+
+		FileGraphBuilder.buildSegmentLogReplayer(gm, loadRelease, loadConsumer, loadProducer,
+				                                 consumer, producer, dir, segmentSize, durability, null);
+
+		StringBuilder result0 = new StringBuilder();
+		ConsoleJSONDumpStage.newInstance(gm, loadRelease, result0);
+		StringBuilder result1 = new StringBuilder();
+		ConsoleJSONDumpStage.newInstance(gm, loadProducer, result1);
+		StringBuilder result2 = new StringBuilder();
+		ConsoleJSONDumpStage watch = ConsoleJSONDumpStage.newInstance(gm, loadConsumer, result2);
+
+		NonThreadScheduler scheduler = new NonThreadScheduler(gm);
+		scheduler.startup();
+		while (!GraphManager.isStageTerminated(gm, watch.stageId)) {
+			scheduler.run();
+			Thread.yield();
+		}
+		scheduler.shutdown();
+
+		return result0.toString()+result1.toString()+result2.toString();
+	}
+
+}
@@ -1,10 +1,16 @@
 package com.ociweb.pronghorn.stage.file;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.SecureRandom;
+import java.util.zip.CRC32;
 
 import org.junit.Test;
 
@@ -24,6 +30,14 @@ import com.ociweb.pronghorn.stage.test.ConsoleJSONDumpStage;
 public class SequentialReplayerStageTest {
 
 	
+	private FileDurability durability = FileDurability.SYNC_EACH_WRITE;
+	private double compactionLiveRatio = SequentialReplayerStage.DEFAULT_COMPACTION_LIVE_RATIO;
+	private int compactionFileSize = 0;
+	private int compactionBytesPerRun = SequentialReplayerStage.DEFAULT_COMPACTION_BYTES_PER_RUN;
+	
+	//stored size of each block written by Feeder, header, packed lengths, 7 bytes of data and crc
+	private static final int FEED_RECORD_SIZE = SequentialReplayerStage.RECORD_HEADER_SIZE+3+7+SequentialReplayerStage.RECORD_CRC_SIZE;
+	
 	@Test
 	public void writeWithAckTest() {
 		writeWithAckImpl(false, false);
@@ -64,7 +78,345 @@ public class SequentialReplayerStageTest {
 		writeReleaseAndReadImpl(true, false);
 	}
 	
+	@Test
+	public void groupCommitWriteWithAckTest() {
+		durability = FileDurability.GROUP_COMMIT;
+		writeWithAckImpl(false, false);
+	}
+	
+	@Test
+	public void groupCommitWriteReleaseAndReadTest() {
+		durability = FileDurability.GROUP_COMMIT;
+		writeReleaseAndReadImpl(false, false);
+	}
+	
+	@Test
+	public void osBufferedWriteAndReadTest() {
+		durability = FileDurability.OS_BUFFERED;
+		writeAndReadImpl(false, false);
+	}
+	
 
+	@Test
+	public void recordChecksumWrapsRingTest() {
+		byte[] record = "a record which wraps the ring".getBytes();
+		CRC32 expected = new CRC32();
+		expected.update(record, 0, record.length);
+		
+		//place the record so it runs past the end of the ring and back to the start
+		byte[] ring = new byte[32];
+		int start = ring.length-7;
+		int i = record.length;
+		while (--i>=0) {
+			ring[(start+i)&(ring.length-1)] = record[i];
+		}
+		
+		assertEquals((int)expected.getValue(),
+				     SequentialReplayerStage.checksum(new CRC32(), ring, ring.length-1, start, record.length));
+	}
+	
+	@Test
+	public void compactionWhileWritingTest() throws IOException {
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		compactionFileSize = FEED_RECORD_SIZE*20;
+		//one in four blocks is kept, the rest are released while more are written
+		String result = runFeeder(dir, 200, 4, true);
+		
+		assertFedBlocks(result, 200, 4);
+		//each store is acked once, copies made by compaction are not acked
+		assertEquals(result, 200, count(result, "AckWrite"));
+		assertTrue(storedSize(dir) < FEED_RECORD_SIZE*200/2);
+	}
+	
+	@Test
+	public void compactionLiveRatioTest() throws IOException {
+		compactionFileSize = FEED_RECORD_SIZE*20;
+		//a quarter of the blocks are live which is above this ratio so nothing is compacted
+		compactionLiveRatio = 0.1;
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		String result = runFeeder(dir, 200, 4, true);
+		assertFedBlocks(result, 200, 4);
+		assertTrue(new File(dir, "seqRep.dat0").length() >= FEED_RECORD_SIZE*200);
+		assertEquals(0, new File(dir, "seqRep.dat1").length());
+		
+		compactionLiveRatio = 0.5;
+		dir = Files.createTempDirectory("seqRep").toFile();
+		result = runFeeder(dir, 200, 4, true);
+		assertFedBlocks(result, 200, 4);
+		assertTrue(storedSize(dir) < FEED_RECORD_SIZE*200/2);
+	}
+	
+	@Test
+	public void compactionByteBudgetTest() throws IOException {
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		compactionFileSize = FEED_RECORD_SIZE*20;
+		//beyond the bytes written only one block is copied on each run so every compaction spans many runs
+		compactionBytesPerRun = 1;
+		String result = runFeeder(dir, 200, 4, true);
+		
+		assertFedBlocks(result, 200, 4);
+		assertEquals(result, 200, count(result, "AckWrite"));
+		assertTrue(storedSize(dir) < FEED_RECORD_SIZE*200/2);
+	}
+	
+	@Test
+	public void replayAfterCompactionTest() throws IOException {
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		compactionFileSize = FEED_RECORD_SIZE*20;
+		runFeeder(dir, 200, 4, false);
+		compactionFileSize = 0;
+		assertTrue(storedSize(dir) < FEED_RECORD_SIZE*200/2);
+		
+		//restart, only the checkpoint and the releases after it are read back
+		String result = runFeeder(dir, 0, 1, true);
+		assertFedBlocks(result, 200, 4);
+	}
+	
+	@Test
+	public void recoverInterruptedCompactionTest() throws IOException {
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		runFeeder(dir, 8, 1, false);
+		
+		//the new file of a compaction cut short, holds copies of the first blocks and a newer one
+		File other = Files.createTempDirectory("seqRep").toFile();
+		Pipe<PersistedBlobStoreProducerSchema> perStoreProducer = PersistedBlobStoreProducerSchema.instance.newPipe(10, 1000);
+		Pipe<PersistedBlobStoreConsumerSchema> perStoreConsumer = PersistedBlobStoreConsumerSchema.instance.newPipe(10, 1000);
+		perStoreProducer.initBuffers();
+		perStoreConsumer.initBuffers();
+		storeFedBlock(perStoreProducer, 0);
+		storeFedBlock(perStoreProducer, 1);
+		storeFedBlock(perStoreProducer, 8);
+		PipeWriter.publishEOF(perStoreConsumer);
+		runGraph(perStoreProducer, perStoreConsumer, false, false, other, null);
+		Files.copy(new File(other, "seqRep.dat0").toPath(), new File(dir, "seqRep.dat1").toPath(),
+				   StandardCopyOption.REPLACE_EXISTING);
+		
+		String result = runFeeder(dir, 0, 1, true);
+		assertFedBlocks(result, 9, 1);
+		//the old file was cleared once merged
+		assertTrue(0 == new File(dir, "seqRep.dat0").length() || 0 == new File(dir, "seqRep.dat1").length());
+	}
+	
+	@Test
+	public void tornTailTest() throws IOException {
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		runFeeder(dir, 8, 1, false);
+		
+		//crash while the last block was written, part of its crc is missing
+		File damaged = new File(dir, "seqRep.dat0");
+		assertEquals(FEED_RECORD_SIZE*8, damaged.length());
+		truncate(damaged, damaged.length()-3);
+		
+		String result = runFeeder(dir, 0, 1, true);
+		assertFedBlocks(result, 7, 1);
+		assertEquals(result, 0, count(result, hex(fedBlock(7))));
+		
+		//good blocks were moved to the other file and the damaged one cleared
+		assertEquals(0, damaged.length());
+		assertEquals(FEED_RECORD_SIZE*7, new File(dir, "seqRep.dat1").length());
+		
+		//blocks written after the repair are not lost behind the torn tail
+		result = storeAndReplay(dir, 8);
+		assertFedBlocks(result, 7, 1);
+		assertEquals(result, 0, count(result, hex(fedBlock(7))));
+		assertEquals(result, 1, count(result, hex(fedBlock(8))));
+	}
+	
+	@Test
+	public void corruptChecksumTest() throws IOException {
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		runFeeder(dir, 8, 1, false);
+		
+		//flip a bit in the crc of the fourth block
+		File damaged = new File(dir, "seqRep.dat0");
+		RandomAccessFile raf = new RandomAccessFile(damaged, "rw");
+		try {
+			long pos = (FEED_RECORD_SIZE*4)-1;
+			raf.seek(pos);
+			int value = raf.read();
+			raf.seek(pos);
+			raf.write(value^1);
+		} finally {
+			raf.close();
+		}
+		
+		//nothing from the corrupt block on can be trusted
+		String result = runFeeder(dir, 0, 1, true);
+		assertFedBlocks(result, 3, 1);
+		int i = 8;
+		while (--i>=3) {
+			assertEquals(result, 0, count(result, hex(fedBlock(i))));
+		}
+		assertEquals(0, damaged.length());
+		assertEquals(FEED_RECORD_SIZE*3, new File(dir, "seqRep.dat1").length());
+		
+		result = storeAndReplay(dir, 8);
+		assertFedBlocks(result, 3, 1);
+		assertEquals(result, 1, count(result, hex(fedBlock(8))));
+	}
+	
+	@Test
+	public void restartAfterCheckpointTest() throws IOException {
+		File dir = Files.createTempDirectory("seqRep").toFile();
+		compactionFileSize = FEED_RECORD_SIZE*20;
+		runFeeder(dir, 200, 4, false);
+		compactionFileSize = 0;
+		//the checkpoint only holds releases since the last compaction began
+		File uncompacted = Files.createTempDirectory("seqRep").toFile();
+		runFeeder(uncompacted, 200, 4, false);
+		assertTrue(new File(dir, "seqRep.idx").length() < new File(uncompacted, "seqRep.idx").length());
+		
+		//restart and release two more of the kept blocks, these follow the checkpoint
+		Pipe<PersistedBlobStoreProducerSchema> perStoreProducer = PersistedBlobStoreProducerSchema.instance.newPipe(10, 1000);
+		Pipe<PersistedBlobStoreConsumerSchema> perStoreConsumer = PersistedBlobStoreConsumerSchema.instance.newPipe(10, 1000);
+		perStoreProducer.initBuffers();
+		perStoreConsumer.initBuffers();
+		releaseBlock(perStoreConsumer, 0);
+		releaseBlock(perStoreConsumer, 4);
+		PipeWriter.publishEOF(perStoreConsumer);
+		runGraph(perStoreProducer, perStoreConsumer, false, false, dir, null);
+		
+		//restart again, the checkpoint and the releases after it are both applied
+		String result = runFeeder(dir, 0, 1, true);
+		assertTrue(result, result.indexOf("FinishReplay")>0);
+		int i = 200;
+		while (--i>=0) {
+			boolean live = 0==i%4 && 0!=i && 4!=i;
+			assertEquals(fedBlock(i), live ? 1 : 0, count(result, hex(fedBlock(i))));
+		}
+	}
+	
+	private String storeAndReplay(File dir, long id) {
+		Pipe<PersistedBlobStoreProducerSchema> perStoreProducer = PersistedBlobStoreProducerSchema.instance.newPipe(10, 1000);
+		Pipe<PersistedBlobStoreConsumerSchema> perStoreConsumer = PersistedBlobStoreConsumerSchema.instance.newPipe(10, 1000);
+		perStoreProducer.initBuffers();
+		perStoreConsumer.initBuffers();
+		storeFedBlock(perStoreProducer, id);
+		PipeWriter.presumeWriteFragment(perStoreConsumer, PersistedBlobStoreConsumerSchema.MSG_REQUESTREPLAY_6);
+		PipeWriter.publishWrites(perStoreConsumer);
+		PipeWriter.publishEOF(perStoreConsumer);
+		return runGraph(perStoreProducer, perStoreConsumer, false, false, dir, null);
+	}
+	
+	private static void releaseBlock(Pipe<PersistedBlobStoreConsumerSchema> consumer, long id) {
+		PipeWriter.presumeWriteFragment(consumer, PersistedBlobStoreConsumerSchema.MSG_RELEASE_7);
+		PipeWriter.writeLong(consumer, PersistedBlobStoreConsumerSchema.MSG_RELEASE_7_FIELD_BLOCKID_3, id);
+		PipeWriter.publishWrites(consumer);
+	}
+	
+	private static void truncate(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private String runFeeder(File dir, int blocks, int keepEvery, boolean replay) {
+		Pipe<PersistedBlobStoreProducerSchema> perStoreProducer = PersistedBlobStoreProducerSchema.instance.newPipe(10, 1000);
+		Pipe<PersistedBlobStoreConsumerSchema> perStoreConsumer = PersistedBlobStoreConsumerSchema.instance.newPipe(10, 1000);
+		perStoreProducer.initBuffers();
+		perStoreConsumer.initBuffers();
+		
+		return runGraph(perStoreProducer, perStoreConsumer, false, false, dir,
+				        new Feeder(perStoreProducer, perStoreConsumer, blocks, keepEvery, replay));
+	}
+	
+	/**
+	 * Stores blocks while the graph runs, releasing all but every keepEvery block once it is
+	 * known to have been taken by the stage, then optionally requests a replay.
+	 */
+	private static final class Feeder implements Runnable {
+		
+		private final Pipe<PersistedBlobStoreProducerSchema> producer;
+		private final Pipe<PersistedBlobStoreConsumerSchema> consumer;
+		private final int blocks;
+		private final int keepEvery;
+		private final boolean replay;
+		private int stored;
+		private int released;
+		private int step;
+		
+		Feeder(Pipe<PersistedBlobStoreProducerSchema> producer,
+			   Pipe<PersistedBlobStoreConsumerSchema> consumer,
+			   int blocks, int keepEvery, boolean replay) {
+			this.producer = producer;
+			this.consumer = consumer;
+			this.blocks = blocks;
+			this.keepEvery = keepEvery;
+			this.replay = replay;
+		}
+		
+		@Override
+		public void run() {
+			while (stored<blocks && PipeWriter.hasRoomForWrite(producer)) {
+				storeFedBlock(producer, stored++);
+			}
+			//the producer pipe holds at most 10 so these ids have been taken for writing
+			int limit = stored<blocks ? stored-10 : blocks;
+			while (released<limit && PipeWriter.hasRoomForWrite(consumer)) {
+				if (0 != released%keepEvery) {
+					PipeWriter.presumeWriteFragment(consumer, PersistedBlobStoreConsumerSchema.MSG_RELEASE_7);
+					PipeWriter.writeLong(consumer, PersistedBlobStoreConsumerSchema.MSG_RELEASE_7_FIELD_BLOCKID_3, released);
+					PipeWriter.publishWrites(consumer);
+				}
+				released++;
+			}
+			if (released==blocks && PipeWriter.hasRoomForWrite(consumer)) {
+				if (0==step && replay) {
+					PipeWriter.presumeWriteFragment(consumer, PersistedBlobStoreConsumerSchema.MSG_REQUESTREPLAY_6);
+					PipeWriter.publishWrites(consumer);
+					step = 1;
+				} else if (step<2) {
+					PipeWriter.publishEOF(consumer);
+					step = 2;
+				}
+			}
+		}
+	}
+	
+	private static void storeFedBlock(Pipe<PersistedBlobStoreProducerSchema> producer, long id) {
+		byte[] data = fedBlock(id).getBytes();
+		PipeWriter.presumeWriteFragment(producer, PersistedBlobStoreProducerSchema.MSG_BLOCK_1);
+		PipeWriter.writeLong(producer, PersistedBlobStoreProducerSchema.MSG_BLOCK_1_FIELD_BLOCKID_3, id);
+		PipeWriter.writeBytes(producer, PersistedBlobStoreProducerSchema.MSG_BLOCK_1_FIELD_BYTEARRAY_2, data, 0, data.length);
+		PipeWriter.publishWrites(producer);
+	}
+	
+	private static String fedBlock(long id) {
+		return String.format("blk%04d", id);
+	}
+	
+	private static void assertFedBlocks(String result, int blocks, int keepEvery) {
+		assertTrue(result, result.indexOf("FinishReplay")>0);
+		int i = blocks;
+		while (--i>=0) {
+			//kept blocks are replayed exactly once, released ones never
+			assertEquals(fedBlock(i), 0==i%keepEvery ? 1 : 0, count(result, hex(fedBlock(i))));
+		}
+	}
+	
+	private static String hex(String text) {
+		StringBuilder builder = new StringBuilder();
+		byte[] bytes = text.getBytes();
+		for (int i = 0; i<bytes.length; i++) {
+			if (i>0) {
+				builder.append(',');
+			}
+			builder.append(String.format("0x%02x", bytes[i]));
+		}
+		return builder.toString();
+	}
+	
+	private static int count(String text, String value) {
+		return text.split(value, -1).length-1;
+	}
+	
+	private static long storedSize(File dir) {
+		return new File(dir, "seqRep.dat0").length() + new File(dir, "seqRep.dat1").length();
+	}
+	
 	private void writeWithAckImpl(boolean encryption, boolean telemetry) {
 		Pipe<PersistedBlobStoreProducerSchema> perStoreProducer = PersistedBlobStoreProducerSchema.instance.newPipe(10, 1000);
 		Pipe<PersistedBlobStoreConsumerSchema> perStoreConsumer = PersistedBlobStoreConsumerSchema.instance.newPipe(10, 1000);
@@ -225,6 +577,13 @@ public class SequentialReplayerStageTest {
 	private String runGraph(Pipe<PersistedBlobStoreProducerSchema> perStoreProducer,
 							Pipe<PersistedBlobStoreConsumerSchema> perStoreConsumer,
 			                boolean encryption, boolean telemetry) {
+		return runGraph(perStoreProducer, perStoreConsumer, encryption, telemetry, null, null);
+	}
+	
+	private String runGraph(Pipe<PersistedBlobStoreProducerSchema> perStoreProducer,
+							Pipe<PersistedBlobStoreConsumerSchema> perStoreConsumer,
+			                boolean encryption, boolean telemetry,
+			                File dir, Runnable feeder) {
 		///////////////////////////////
 		
 		
@@ -236,8 +595,6 @@ public class SequentialReplayerStageTest {
 		
 		short inFlightCount = 20;
 		int largestBlock = 1<<12;
-		
-		File dir=null;
 	
 		NoiseProducer np = null;
 		
@@ -262,7 +619,8 @@ public class SequentialReplayerStageTest {
 		FileGraphBuilder.buildSequentialReplayer(gm, 
 				perLoadRelease, perLoadConsumer, perLoadProducer, 
 				perStoreConsumer, perStoreProducer,
-				inFlightCount, largestBlock, dir, np, proc);
+				inFlightCount, largestBlock, dir, np, proc, durability,
+				compactionLiveRatio, compactionFileSize, compactionBytesPerRun);
 	
 		StringBuilder result0 = new StringBuilder();
 		ConsoleJSONDumpStage.newInstance(gm, perLoadRelease, result0);		
@@ -278,6 +636,9 @@ public class SequentialReplayerStageTest {
 		scheduler.startup();
 		
 		while (!GraphManager.isStageTerminated(gm, watch.stageId) ) {
+			if (null!=feeder) {
+				feeder.run();
+			}
 			scheduler.run();
 			Thread.yield();
 		}
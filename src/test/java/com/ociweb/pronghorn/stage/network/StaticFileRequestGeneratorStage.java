@@ -14,11 +14,14 @@ import com.ociweb.pronghorn.network.config.HTTPHeaderDefaults;
 import com.ociweb.pronghorn.network.config.HTTPRevisionDefaults;
 import com.ociweb.pronghorn.network.config.HTTPVerb;
 import com.ociweb.pronghorn.network.config.HTTPVerbDefaults;
+import com.ociweb.pronghorn.network.http.HTTPUtil;
+import com.ociweb.pronghorn.network.module.FileReadModuleStage;
 import com.ociweb.pronghorn.network.schema.HTTPRequestSchema;
 import com.ociweb.pronghorn.pipe.DataOutputBlobWriter;
 import com.ociweb.pronghorn.pipe.Pipe;
 import com.ociweb.pronghorn.stage.PronghornStage;
 import com.ociweb.pronghorn.stage.scheduling.GraphManager;
+import com.ociweb.pronghorn.struct.StructRegistry;
 
 import junit.framework.Assert;
 
@@ -43,6 +46,8 @@ public class StaticFileRequestGeneratorStage extends PronghornStage {
 
     
     private final TestDataFiles testDataFiles;
+    private final StructRegistry registry;
+    private final int structId;
 
 
     protected StaticFileRequestGeneratorStage(GraphManager graphManager, Pipe<HTTPRequestSchema> output, int iterations, int fileCount, int fileSize, HTTPVerbDefaults verb) {
@@ -55,6 +60,11 @@ public class StaticFileRequestGeneratorStage extends PronghornStage {
         this.output = output;
         this.verb = verb;   //HTTPVerbDefaults.GET;
         
+        //same struct the router builds for a file route, no headers are sent
+        this.registry = graphManager.recordTypeData;
+        this.structId = HTTPUtil.newHTTPStruct(registry);
+        HTTPUtil.buildHeaderParser(registry, structId, FileReadModuleStage.REQUEST_HEADERS);
+        
         //Must be done extra early so other stages can see these files, so we do it here in the constuctor before startup.
         this.testDataFiles = new TestDataFiles(new File(System.getProperty("java.io.tmpdir"),"staticFileRequestGeneratorStage"), fileCount, fileSize);
         
@@ -106,9 +116,11 @@ public class StaticFileRequestGeneratorStage extends PronghornStage {
             Pipe.addIntValue(verb.ordinal(), output); //verb
             
                 DataOutputBlobWriter.openField(writer);   
+                DataOutputBlobWriter.tryClearIntBackData(writer, registry.totalSizeOfIndexes(structId));
                 int localLen = testDataFiles.testFilePathsBytes[pathIdx].length - testDataFiles.rootLen;
                 writer.writeShort(localLen); //this is a UTF8 encode sequence of bytes so the length is required up front
                 DataOutputBlobWriter.write(writer, testDataFiles.testFilePathsBytes[pathIdx], testDataFiles.rootLen, localLen, 0xFFF);
+                DataOutputBlobWriter.commitBackData(writer, structId);
                 DataOutputBlobWriter.closeLowLevelField(writer);
  
             
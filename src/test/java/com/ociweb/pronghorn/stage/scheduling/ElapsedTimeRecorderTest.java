@@ -25,6 +25,19 @@ public class ElapsedTimeRecorderTest {
 		assertEquals(16,etr.elapsedAtPercentile(etr, .16f));	
 	}
 	
+	@Test
+	public void totalElapsedTest() {
+		
+		ElapsedTimeRecorder etr = new ElapsedTimeRecorder();
+		assertEquals(0, ElapsedTimeRecorder.totalElapsed(etr));
+		
+		ElapsedTimeRecorder.record(etr, 8);
+		ElapsedTimeRecorder.record(etr, 32);
+		ElapsedTimeRecorder.record(etr, 1000);
+		
+		assertEquals(1040, ElapsedTimeRecorder.totalElapsed(etr));
+	}
+	
 	@Test
 	public void simpleEmpty() {
 		
@@ -0,0 +1,177 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.test.ByteArrayEqualsStage;
+import com.ociweb.pronghorn.stage.test.ByteArrayProducerStage;
+import com.ociweb.pronghorn.stage.test.PipeCleanerStage;
+
+public class IdleStrategiesTest {
+
+	@Test
+	public void namedStrategiesTest() {
+		assertTrue(IdleStrategies.newStrategy(IdleStrategies.BUSY_SPIN) instanceof IdleStrategies.BusySpin);
+		assertTrue(IdleStrategies.newStrategy(IdleStrategies.SPIN_YIELD) instanceof IdleStrategies.SpinYield);
+		assertTrue(IdleStrategies.newStrategy(IdleStrategies.BACKOFF) instanceof IdleStrategies.BackoffPark);
+		assertTrue(IdleStrategies.newStrategy(IdleStrategies.ADAPTIVE) instanceof IdleStrategies.Adaptive);
+		assertNull(IdleStrategies.newStrategy("NOT_A_STRATEGY"));
+	}
+	
+	@Test
+	public void waitsUntilDueTest() {
+		final long waitNS = 2_000_000;
+		IdleStrategy[] strategies = new IdleStrategy[] {
+				IdleStrategies.newStrategy(IdleStrategies.BUSY_SPIN),
+				IdleStrategies.newStrategy(IdleStrategies.SPIN_YIELD),
+				IdleStrategies.newStrategy(IdleStrategies.BACKOFF),
+				IdleStrategies.newStrategy(IdleStrategies.ADAPTIVE)
+		};
+		int i = strategies.length;
+		while (--i>=0) {
+			long start = System.nanoTime();
+			strategies[i].idle(waitNS, 0, true);
+			long duration = System.nanoTime()-start;
+			//park may return early but never by much, spin and yield must not
+			assertTrue(strategies[i].getClass().getSimpleName()+" "+duration, duration >= (waitNS>>1));
+		}
+	}
+	
+	@Test
+	public void backoffSequenceTest() {
+		IdleStrategies.BackoffPark backoff = new IdleStrategies.BackoffPark(1_000, 8_000);
+		//doubles while nothing is found and is capped
+		assertEquals(1_000, backoff.parkDuration(0, 1, true));
+		assertEquals(2_000, backoff.parkDuration(0, 2, true));
+		assertEquals(4_000, backoff.parkDuration(0, 3, true));
+		assertEquals(8_000, backoff.parkDuration(0, 4, true));
+		assertEquals(8_000, backoff.parkDuration(0, 5, true));
+		//never shorter than the schedule
+		assertEquals(8_000, backoff.parkDuration(6_000, 6, true));
+		//work found, only wait for the schedule and start over
+		assertEquals(0, backoff.parkDuration(0, 0, true));
+		assertEquals(3_000, backoff.parkDuration(3_000, 0, true));
+		assertEquals(1_000, backoff.parkDuration(0, 1, true));
+		//producers can not sleep long but must still give up the core
+		assertEquals(1_000, backoff.parkDuration(0, 2, false));
+		assertEquals(1_000, backoff.parkDuration(0, 3, false));
+	}
+	
+	@Test
+	public void noInputGroupBacksOffTest() {
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 8, 64);
+		final Pipe<RawDataSchema> pipe = new Pipe<RawDataSchema>(config);
+		final boolean[] publish = new boolean[1];
+		PronghornStage producer = new PronghornStage(gm, PronghornStage.NONE, pipe) {
+			@Override
+			public void run() {
+				if (publish[0]) {
+					publish[0] = false;
+					int size = Pipe.addMsgIdx(pipe, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+					Pipe.addNullByteArray(pipe);
+					Pipe.confirmLowLevelWrite(pipe, size);
+					Pipe.publishWrites(pipe);
+				}
+			}
+		};
+		PronghornStage consumer = new PipeCleanerStage<RawDataSchema>(gm, pipe);
+		
+		List<Long> counts = new ArrayList<Long>();
+		List<Long> parks = new ArrayList<Long>();
+		ScriptedNonThreadScheduler producerGroup = new ScriptedNonThreadScheduler(gm, false, new PronghornStage[]{producer});
+		producerGroup.setIdleStrategy(recordingBackoff(counts, parks));
+		List<Long> consumerCounts = new ArrayList<Long>();
+		List<Long> consumerParks = new ArrayList<Long>();
+		ScriptedNonThreadScheduler consumerGroup = new ScriptedNonThreadScheduler(gm, false, new PronghornStage[]{consumer});
+		consumerGroup.setIdleStrategy(recordingBackoff(consumerCounts, consumerParks));
+		//the consumer owns the pipe so it must start first
+		consumerGroup.startup();
+		producerGroup.startup();
+		
+		//starts active, with no input pipes to check the idle count must still grow
+		int i = 4;
+		while (--i>=0) {
+			producerGroup.run();
+			consumerGroup.run();
+		}
+		assertEquals(Arrays.asList(0L, 1L, 2L, 3L), counts);
+		//producers only give up the core, they are not put to sleep
+		assertEquals(Arrays.asList(0L, 1_000L, 1_000L, 1_000L), parks);
+		//nothing arrives so the consumer waits longer each time up to the limit
+		consumerGroup.run();
+		assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), consumerCounts);
+		assertEquals(Arrays.asList(0L, 1_000L, 2_000L, 4_000L, 8_000L), consumerParks);
+		
+		//work reported by the stage starts over
+		counts.clear();
+		consumerCounts.clear();
+		consumerParks.clear();
+		publish[0] = true;
+		producerGroup.run();
+		producerGroup.run();
+		producerGroup.run();
+		assertEquals(Arrays.asList(4L, 0L, 1L), counts);
+		
+		//data on the input wakes the consumer, it backs off again once the pipe is empty
+		consumerGroup.run();
+		consumerGroup.run();
+		consumerGroup.run();
+		assertTrue(Pipe.isEmpty(pipe));
+		assertEquals(Arrays.asList(0L, 1L, 2L), consumerCounts);
+		assertEquals(Arrays.asList(0L, 1_000L, 2_000L), consumerParks);
+		
+		producerGroup.shutdown();
+		consumerGroup.shutdown();
+	}
+	
+	/**
+	 * Records the idle count and the park a backoff would choose for it, without parking.
+	 */
+	private static IdleStrategy recordingBackoff(final List<Long> counts, final List<Long> parks) {
+		final IdleStrategies.BackoffPark backoff = new IdleStrategies.BackoffPark(1_000, 8_000);
+		return new IdleStrategy() {
+			@Override
+			public void idle(long waitNS, long noWorkCount, boolean canSleep) {
+				counts.add(noWorkCount);
+				parks.add(backoff.parkDuration(0, noWorkCount, canSleep));
+			}
+		};
+	}
+	
+	@Test
+	public void notaSelectsStrategyTest() {
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 4, 512);
+		byte[] data = new byte[10_000];
+		Pipe<RawDataSchema> pipe = new Pipe<RawDataSchema>(config);
+		PronghornStage producer = new ByteArrayProducerStage(gm, data, pipe);
+		ByteArrayEqualsStage check = new ByteArrayEqualsStage(gm, pipe, data);
+		GraphManager.addNota(gm, GraphManager.IDLE_STRATEGY, IdleStrategies.BUSY_SPIN, check);
+		
+		ScriptedNonThreadScheduler nts = new ScriptedNonThreadScheduler(gm, false, new PronghornStage[]{producer, check});
+		assertTrue(nts.idleStrategy() instanceof IdleStrategies.BusySpin);
+		
+		IdleStrategy backoff = IdleStrategies.newStrategy(IdleStrategies.BACKOFF);
+		nts.setIdleStrategy(backoff);
+		assertEquals(backoff, nts.idleStrategy());
+		
+		nts.startup();
+		while (!(GraphManager.isStageTerminated(gm, check.stageId) || GraphManager.isStageShuttingDown(gm, check.stageId))) {
+			nts.run();
+		}
+		nts.shutdown();
+	}
+	
+}
@@ -0,0 +1,123 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.test.PipeCleanerStage;
+
+public class ScriptedFixedThreadsSchedulerRebalanceTest {
+
+	private static final long PERIOD_NS = 100; //hot over 70ns, cold under 5ns
+
+	@Test
+	public void hotGroupSplitIntoMergedColdGroupsTest() {
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 64, 64);
+
+		Pipe<RawDataSchema> fastPipe = new Pipe<RawDataSchema>(config);
+		Pipe<RawDataSchema> slowPipe = new Pipe<RawDataSchema>(config);
+		PronghornStage fast = new SpinProducerStage(gm, fastPipe, 0);
+		PronghornStage slow = new SpinProducerStage(gm, slowPipe, 200_000);
+		PronghornStage fastCleaner = new PipeCleanerStage<RawDataSchema>(gm, fastPipe);
+		PronghornStage slowCleaner = new PipeCleanerStage<RawDataSchema>(gm, slowPipe);
+
+		ScriptedFixedThreadsScheduler scheduler = new ScriptedFixedThreadsScheduler(gm, new PronghornStage[][] {
+				new PronghornStage[]{fast, slow},
+				new PronghornStage[]{fastCleaner},
+				new PronghornStage[]{slowCleaner}});
+		ScriptedNonThreadScheduler[] groups = scheduler.ntsArray;
+		assertEquals(3, groups.length);
+
+		ScriptedNonThreadScheduler hot = groupOf(groups, fast);
+		//same setup done by buildRunnable when rebalancing is on, consumers start first
+		for(ScriptedNonThreadScheduler nts : groups) {
+			nts.recordElapsedTime(true);
+		}
+		groupOf(groups, fastCleaner).startup();
+		groupOf(groups, slowCleaner).startup();
+		hot.startup();
+
+		//first step only takes the baseline
+		assertFalse(scheduler.rebalance(PERIOD_NS));
+		assertSame(groups, scheduler.ntsArray);
+
+		//only the producers run so both cleaner groups stay cold
+		int i = 10;
+		while (--i>=0) {
+			hot.run();
+		}
+		assertTrue(hot.elapsedTotal() > PERIOD_NS);
+
+		assertTrue(scheduler.rebalance(PERIOD_NS));
+		ScriptedNonThreadScheduler[] result = scheduler.ntsArray;
+		assertEquals(3, result.length);
+		assertEquals(3, new HashSet<ScriptedNonThreadScheduler>(Arrays.asList(result)).size());
+
+		//slowest stage with no local input is isolated on a freed thread
+		assertSame(hot, groupOf(result, fast));
+		assertArrayEquals(new PronghornStage[]{fast}, hot.stages);
+		ScriptedNonThreadScheduler isolated = groupOf(result, slow);
+		assertNotSame(hot, isolated);
+		assertArrayEquals(new PronghornStage[]{slow}, isolated.stages);
+
+		//the two cold groups now share one thread
+		ScriptedNonThreadScheduler merged = groupOf(result, fastCleaner);
+		assertSame(merged, groupOf(result, slowCleaner));
+		assertEquals(2, merged.stages.length);
+
+		//groups were rebuilt so history starts over
+		assertFalse(scheduler.rebalance(PERIOD_NS));
+
+		for(ScriptedNonThreadScheduler nts : result) {
+			nts.shutdown();
+		}
+	}
+
+	private static ScriptedNonThreadScheduler groupOf(ScriptedNonThreadScheduler[] groups, PronghornStage stage) {
+		for(ScriptedNonThreadScheduler nts : groups) {
+			if (nts.indexOfStage(stage)>=0) {
+				return nts;
+			}
+		}
+		throw new AssertionError("no group runs "+stage);
+	}
+
+	private static class SpinProducerStage extends PronghornStage {
+
+		private final Pipe<RawDataSchema> output;
+		private final long spinNS;
+
+		SpinProducerStage(GraphManager gm, Pipe<RawDataSchema> output, long spinNS) {
+			super(gm, NONE, output);
+			this.output = output;
+			this.spinNS = spinNS;
+		}
+
+		@Override
+		public void run() {
+			if (Pipe.hasRoomForWrite(output)) {
+				long end = System.nanoTime()+spinNS;
+				while (System.nanoTime()<end) {
+				}
+				int size = Pipe.addMsgIdx(output, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+				Pipe.addNullByteArray(output);
+				Pipe.confirmLowLevelWrite(output, size);
+				Pipe.publishWrites(output);
+			}
+		}
+	}
+
+}
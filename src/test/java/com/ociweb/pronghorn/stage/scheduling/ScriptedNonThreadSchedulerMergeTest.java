@@ -0,0 +1,65 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.test.ByteArrayEqualsStage;
+import com.ociweb.pronghorn.stage.test.ByteArrayProducerStage;
+
+public class ScriptedNonThreadSchedulerMergeTest {
+
+	@Test
+	public void mergeThenSplitTest() {
+		
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 4, 512);
+		Random r = new Random(7);
+		
+		byte[] dataA = new byte[50_000];
+		r.nextBytes(dataA);
+		Pipe<RawDataSchema> pipeA = new Pipe<RawDataSchema>(config);
+		PronghornStage producerA = new ByteArrayProducerStage(gm, dataA, pipeA);
+		ByteArrayEqualsStage checkA = new ByteArrayEqualsStage(gm, pipeA, dataA);
+		
+		byte[] dataB = new byte[70_000];
+		r.nextBytes(dataB);
+		Pipe<RawDataSchema> pipeB = new Pipe<RawDataSchema>(config);
+		PronghornStage producerB = new ByteArrayProducerStage(gm, dataB, pipeB);
+		ByteArrayEqualsStage checkB = new ByteArrayEqualsStage(gm, pipeB, dataB);
+		
+		ScriptedNonThreadScheduler a = new ScriptedNonThreadScheduler(gm, false, new PronghornStage[]{producerA, checkA});
+		ScriptedNonThreadScheduler b = new ScriptedNonThreadScheduler(gm, false, new PronghornStage[]{producerB, checkB});
+		a.startup();
+		b.startup();
+		
+		a.merge(b);
+		assertTrue(b.isEmpty());
+		assertEquals(4, a.stages.length);
+		
+		//split the second chain back off, each script must still run its own stages
+		ScriptedNonThreadScheduler c = a.splitOn(2);
+		assertEquals(2, a.stages.length);
+		assertEquals(2, c.stages.length);
+		
+		c.takeOwnership();
+		while (!(GraphManager.isStageTerminated(gm, checkA.stageId) || GraphManager.isStageShuttingDown(gm, checkA.stageId))
+			|| !(GraphManager.isStageTerminated(gm, checkB.stageId) || GraphManager.isStageShuttingDown(gm, checkB.stageId))) {
+			a.run();
+			c.run();
+		}
+		a.shutdown();
+		c.shutdown();
+		
+		assertTrue(checkA.wasEqual());
+		assertTrue(checkB.wasEqual());
+	}
+	
+}
@@ -0,0 +1,136 @@
+package com.ociweb.pronghorn.stage.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.ociweb.pronghorn.pipe.Pipe;
+import com.ociweb.pronghorn.pipe.PipeConfig;
+import com.ociweb.pronghorn.pipe.RawDataSchema;
+import com.ociweb.pronghorn.stage.PronghornStage;
+import com.ociweb.pronghorn.stage.test.ByteArrayEqualsStage;
+import com.ociweb.pronghorn.stage.test.ByteArrayProducerStage;
+import com.ociweb.pronghorn.stage.test.PipeCleanerStage;
+
+public class WorkStealingSchedulerTest {
+
+	@Test
+	public void allDataArrivesTest() {
+		
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 4, 512);
+		
+		//uneven chains so the groups carry different loads
+		int chains = 6;
+		ByteArrayEqualsStage[] checks = new ByteArrayEqualsStage[chains];
+		Random r = new Random(42);
+		int c = chains;
+		while (--c>=0) {
+			byte[] rawData = new byte[(c+1)*20_000];
+			r.nextBytes(rawData);
+			Pipe<RawDataSchema> pipe = new Pipe<RawDataSchema>(config);
+			new ByteArrayProducerStage(gm, rawData, pipe);
+			checks[c] = new ByteArrayEqualsStage(gm, pipe, rawData);			
+		}
+		
+		StageScheduler scheduler = StageScheduler.workStealing(gm, 2, false);
+		scheduler.startup();
+		
+		c = chains;
+		while (--c>=0) {
+			assertTrue(GraphManager.blockUntilStageTerminated(gm, checks[c], 20_000));
+		}
+		
+		scheduler.shutdown();
+		assertTrue(scheduler.awaitTermination(2, TimeUnit.SECONDS));
+		
+		c = chains;
+		while (--c>=0) {
+			assertTrue("chain "+c, checks[c].wasEqual());
+		}
+	}
+	
+	@Test
+	public void stalledWorkerGivesUpGroupTest() throws InterruptedException {
+		
+		GraphManager gm = new GraphManager();
+		PipeConfig<RawDataSchema> config = new PipeConfig<RawDataSchema>(RawDataSchema.instance, 4, 64);
+		
+		//every run of this stage holds its worker for 20ms
+		Pipe<RawDataSchema> stallPipe = new Pipe<RawDataSchema>(config);
+		TimedProducerStage stall = new TimedProducerStage(gm, stallPipe, 20, true);
+		Pipe<RawDataSchema> lightPipe = new Pipe<RawDataSchema>(config);
+		TimedProducerStage light = new TimedProducerStage(gm, lightPipe, 0, true);
+		Pipe<RawDataSchema> idlePipe = new Pipe<RawDataSchema>(config);
+		TimedProducerStage idle = new TimedProducerStage(gm, idlePipe, 0, false);
+		
+		//groups are dealt out in reverse so stall and light start on the same worker
+		WorkStealingScheduler scheduler = new WorkStealingScheduler(gm, 2, false, new PronghornStage[][] {
+				new PronghornStage[]{stall, new PipeCleanerStage<RawDataSchema>(gm, stallPipe)},
+				new PronghornStage[]{idle, new PipeCleanerStage<RawDataSchema>(gm, idlePipe)},
+				new PronghornStage[]{light, new PipeCleanerStage<RawDataSchema>(gm, lightPipe)}});
+		int stalled = scheduler.workerOf(stall);
+		assertEquals(stalled, scheduler.workerOf(light));
+		assertTrue(stalled != scheduler.workerOf(idle));
+		
+		scheduler.startup();
+		
+		//the idle worker takes light and runs it once the stalled worker lets go
+		long limit = System.currentTimeMillis()+10_000;
+		while ((stalled == scheduler.workerOf(light) || stall.runner == light.runner)
+			   && System.currentTimeMillis()<limit) {
+			Thread.sleep(10);
+		}
+		
+		try {
+			assertEquals(scheduler.workerOf(idle), scheduler.workerOf(light));
+			assertEquals(stalled, scheduler.workerOf(stall));
+			assertNotSame(stall.runner, light.runner);
+			assertEquals(idle.runner, light.runner);
+		} finally {
+			scheduler.shutdown();
+			assertTrue(scheduler.awaitTermination(2, TimeUnit.SECONDS));
+		}
+	}
+	
+	private static class TimedProducerStage extends PronghornStage {
+		
+		private final Pipe<RawDataSchema> output;
+		private final long runMS;
+		private final boolean publish;
+		volatile Thread runner; //thread which last ran this stage
+		
+		TimedProducerStage(GraphManager gm, Pipe<RawDataSchema> output, long runMS, boolean publish) {
+			super(gm, NONE, output);
+			this.output = output;
+			this.runMS = runMS;
+			this.publish = publish;
+		}
+		
+		@Override
+		public void run() {
+			runner = Thread.currentThread();
+			if (runMS>0) {
+				try {
+					Thread.sleep(runMS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			//only published work is counted as load
+			if (publish && Pipe.hasRoomForWrite(output)) {
+				int size = Pipe.addMsgIdx(output, RawDataSchema.MSG_CHUNKEDSTREAM_1);
+				Pipe.addNullByteArray(output);
+				Pipe.confirmLowLevelWrite(output, size);
+				Pipe.publishWrites(output);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,77 @@
+package com.ociweb.pronghorn.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+public class PinningUtilTest {
+
+	@Test
+	public void cpuListTest() {
+		assertEquals("", PinningUtil.cpuList(new int[0]));
+		assertEquals("3", PinningUtil.cpuList(new int[]{3}));
+		assertEquals("0,2,5", PinningUtil.cpuList(new int[]{0,2,5}));
+	}
+	
+	@Test
+	public void parseCpuListTest() {
+		assertArrayEquals(new int[0], PinningUtil.parseCpuList(""));
+		assertArrayEquals(new int[]{3}, PinningUtil.parseCpuList("3"));
+		assertArrayEquals(new int[]{0,1,2,3,6}, PinningUtil.parseCpuList("0-3,6"));
+		assertArrayEquals(new int[]{2,4,5,8}, PinningUtil.parseCpuList("8,4-5,2"));
+		assertArrayEquals(PinningUtil.parseCpuList(PinningUtil.cpuList(new int[]{1,7,9})), new int[]{1,7,9});
+	}
+	
+	@Test
+	public void availableCoresTest() {
+		int[] allowed = PinningUtil.allowedCores();
+		assertTrue(allowed.length>0);
+		int reserved = allowed[0];
+		int[] cores = PinningUtil.availableCores(new int[]{reserved});
+		assertEquals(allowed.length-1, cores.length);
+		int i = cores.length;
+		while (--i>=0) {
+			assertTrue(cores[i]!=reserved);
+			assertTrue(contains(allowed, cores[i]));
+		}
+	}
+	
+	@Test
+	public void pinCurrentThreadTest() throws InterruptedException {
+		assumeTrue(PinningUtil.isSupported());
+		
+		final int[] allowed = PinningUtil.allowedCores();
+		final int core = allowed[allowed.length-1];
+		final int[][] pinned = new int[1][];
+		//pinned on its own thread so the test runner keeps its affinity
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (PinningUtil.pinCurrentThread(core)) {
+					pinned[0] = PinningUtil.affinity(PinningUtil.nativeThreadId());
+				}
+			}
+		});
+		thread.start();
+		thread.join();
+		
+		assertNotNull("thread was not pinned", pinned[0]);
+		assertArrayEquals(new int[]{core}, pinned[0]);
+		assertArrayEquals(allowed, PinningUtil.allowedCores());
+	}
+	
+	private static boolean contains(int[] cores, int core) {
+		int i = cores.length;
+		while (--i>=0) {
+			if (cores[i]==core) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+}